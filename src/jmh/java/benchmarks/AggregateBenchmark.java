@@ -0,0 +1,95 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.ValueVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Non-null deepest leaf values per top-level row of the benchmark column,
+ * counted by ArrayAggregates from the offsets and by flattening the leaf
+ * and counting its rows per top-level row through the repetition index.
+ *
+ *    java -jar target/benchmarks.jar AggregateBenchmark -p depth=3 -p fanOut=4
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregateBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Aggregates {
+    String path;
+    List<String> projection;
+    Object operator;
+    MethodHandle count;
+    MethodHandle flatten;
+    MethodHandle getVector;
+    MethodHandle getRepetitionIndex;
+    MethodHandle getElements;
+
+    @Setup
+    public void setup(NestedBenchmarkData data) {
+      StringBuilder builder = new StringBuilder(NestedBenchmarkData.COLUMN);
+      for (int level = 1; level <= data.depth; level++) {
+        builder.append(".l").append(level);
+      }
+      path = builder.append(".v").append(data.depth).toString();
+      projection = Collections.singletonList(path);
+      operator = DefaultPackage.newInstance("FlattenOperator");
+      count = DefaultPackage.method("ArrayAggregates", "count", String.class, ValueVector.class, String.class,
+          int.class, BufferAllocator.class);
+      flatten = DefaultPackage.method("FlattenOperator", "flatten", String.class, ValueVector.class, List.class);
+      getVector = DefaultPackage.method("FlattenOperator$ColumnarRecordBatch", "getVector", String.class);
+      getRepetitionIndex = DefaultPackage.method("FlattenOperator$ColumnarRecordBatch", "getRepetitionIndex");
+      getElements = DefaultPackage.method("RepetitionIndex", "getElements", int.class);
+    }
+  }
+
+  @Benchmark
+  public long count(NestedBenchmarkData data, Aggregates aggregates) throws Throwable {
+    try (IntVector counts = (IntVector)aggregates.count.invoke(NestedBenchmarkData.COLUMN, data.root,
+        aggregates.path, 0, data.allocator)) {
+      long total = 0;
+      for (int i = 0; i < counts.getValueCount(); i++) {
+        total += counts.get(i);
+      }
+      return total;
+    }
+  }
+
+  @Benchmark
+  public long flattenAndCount(NestedBenchmarkData data, Aggregates aggregates) throws Throwable {
+    try (AutoCloseable batch = (AutoCloseable)aggregates.flatten.invoke(aggregates.operator,
+        NestedBenchmarkData.COLUMN, data.root, aggregates.projection)) {
+      ValueVector leaf = (ValueVector)aggregates.getVector.invoke(batch, "v" + data.depth);
+      int[] rows = (int[])aggregates.getElements.invoke(aggregates.getRepetitionIndex.invoke(batch), 0);
+      int[] counts = new int[data.rows];
+      for (int row = 0; row < rows.length; row++) {
+        if (!leaf.isNull(row)) {
+          counts[rows[row]]++;
+        }
+      }
+      long total = 0;
+      for (int count : counts) {
+        total += count;
+      }
+      return total;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the operators, which live in the default package.
+ *
+ * JMH refuses benchmark classes in the default package and a named package
+ * cannot import from it, so the benchmarks look the operators up by name.
+ * The method handles are resolved once per trial; the cost of invoking one
+ * is negligible next to the batch-sized work behind it.
+ */
+final class DefaultPackage {
+
+  private DefaultPackage() {
+  }
+
+  static Object newInstance(String className) {
+    try {
+      Constructor<?> constructor = Class.forName(className).getDeclaredConstructor();
+      constructor.setAccessible(true);
+      return constructor.newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+    try {
+      Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(parameterTypes);
+      constructor.setAccessible(true);
+      return MethodHandles.lookup().unreflectConstructor(constructor);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+    try {
+      Method method = Class.forName(className).getDeclaredMethod(name, parameterTypes);
+      method.setAccessible(true);
+      return MethodHandles.lookup().unreflect(method);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static Class<?> type(String className) {
+    try {
+      return Class.forName(className);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.apache.arrow.vector.ValueVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of FlattenOperator on the benchmark column.
+ *
+ *    java -jar target/benchmarks.jar FlattenBenchmark -prof gc
+ *    java -jar target/benchmarks.jar FlattenBenchmark.flattenParallel -p threads=1,2,4,8,16,32
+ *
+ * The parallel benchmark with threads from 1 to the core count gives the
+ * scaling curve of flattenParallel. flattenIteratorReused streams the same
+ * batches as flattenIterator into one FlattenOutput, so the difference
+ * between the two is the cost of allocating and freeing output vectors.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlattenBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Operator {
+    Object operator;
+    MethodHandle flatten;
+    MethodHandle flattenIterator;
+    MethodHandle flattenIteratorInto;
+    MethodHandle flattenParallel;
+    MethodHandle count;
+    MethodHandle rowCount;
+    MethodHandle total;
+
+    @Setup
+    public void setup() {
+      operator = DefaultPackage.newInstance("FlattenOperator");
+      flatten = DefaultPackage.method("FlattenOperator", "flatten", String.class, ValueVector.class);
+      flattenIterator = DefaultPackage.method("FlattenOperator", "flatten", String.class, ValueVector.class,
+          int.class);
+      flattenIteratorInto = DefaultPackage.method("FlattenOperator", "flatten", String.class, ValueVector.class,
+          List.class, int.class, DefaultPackage.type("FlattenOutput"));
+      flattenParallel = DefaultPackage.method("FlattenOperator", "flattenParallel", String.class,
+          ValueVector.class, List.class, ForkJoinPool.class, int.class);
+      count = DefaultPackage.method("FlattenOperator", "count", String.class, ValueVector.class);
+      rowCount = DefaultPackage.method("FlattenOperator$ColumnarRecordBatch", "getRowCount");
+      total = DefaultPackage.method("FlattenOperator$FlattenCounts", "getTotal");
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Pool {
+    @Param({"1", "4"})
+    public int threads;
+
+    ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+      pool = new ForkJoinPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Output vectors reused across the invocations of an iteration. They are
+   * released per iteration, before the trial closes the data allocator.
+   */
+  @State(Scope.Benchmark)
+  public static class Output {
+    AutoCloseable output;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+      output = (AutoCloseable)DefaultPackage.newInstance("FlattenOutput");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+      output.close();
+    }
+  }
+
+  @Benchmark
+  public int flatten(NestedBenchmarkData data, Operator operator, OffHeapCounters counters) throws Throwable {
+    try (AutoCloseable batch = (AutoCloseable)operator.flatten.invoke(operator.operator, NestedBenchmarkData.COLUMN,
+        data.root)) {
+      int rows = (int)operator.rowCount.invoke(batch);
+      counters.record(data.allocator.getAllocatedMemory() - data.container.getBufferSize(), rows);
+      return rows;
+    }
+  }
+
+  @Benchmark
+  public int flattenIterator(NestedBenchmarkData data, Operator operator) throws Throwable {
+    Iterator<?> iterator = (Iterator<?>)operator.flattenIterator.invoke(operator.operator,
+        NestedBenchmarkData.COLUMN, data.root, 4096);
+    int rows = 0;
+    while (iterator.hasNext()) {
+      try (AutoCloseable batch = (AutoCloseable)iterator.next()) {
+        rows += (int)operator.rowCount.invoke(batch);
+      }
+    }
+    return rows;
+  }
+
+  @Benchmark
+  public int flattenIteratorReused(NestedBenchmarkData data, Operator operator, Output output) throws Throwable {
+    Iterator<?> iterator = (Iterator<?>)operator.flattenIteratorInto.invoke(operator.operator,
+        NestedBenchmarkData.COLUMN, data.root, null, 4096, output.output);
+    int rows = 0;
+    while (iterator.hasNext()) {
+      rows += (int)operator.rowCount.invoke(iterator.next());
+    }
+    return rows;
+  }
+
+  @Benchmark
+  public int flattenParallel(NestedBenchmarkData data, Operator operator, Pool pool) throws Throwable {
+    List<?> batches = (List<?>)operator.flattenParallel.invoke(operator.operator, NestedBenchmarkData.COLUMN,
+        data.root, null, pool.pool, pool.threads);
+    int rows = 0;
+    for (Object batch : batches) {
+      rows += (int)operator.rowCount.invoke(batch);
+      ((AutoCloseable)batch).close();
+    }
+    return rows;
+  }
+
+  @Benchmark
+  public long count(NestedBenchmarkData data, Operator operator) throws Throwable {
+    Object counts = operator.count.invoke(operator.operator, NestedBenchmarkData.COLUMN, data.root);
+    return (long)operator.total.invoke(counts);
+  }
+}
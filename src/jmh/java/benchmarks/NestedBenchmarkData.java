@@ -0,0 +1,232 @@
+package benchmarks;
+
+import io.netty.buffer.ArrowBuf;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.complex.impl.ComplexWriterImpl;
+import org.apache.arrow.vector.complex.impl.SingleStructReaderImpl;
+import org.apache.arrow.vector.complex.impl.UnionListReader;
+import org.apache.arrow.vector.complex.reader.BaseReader;
+import org.apache.arrow.vector.complex.reader.FieldReader;
+import org.apache.arrow.vector.complex.writer.BaseWriter;
+import org.apache.arrow.vector.complex.writer.BigIntWriter;
+import org.apache.arrow.vector.complex.writer.Float8Writer;
+import org.apache.arrow.vector.complex.writer.IntWriter;
+import org.apache.arrow.vector.complex.writer.VarCharWriter;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Nested column shared by the benchmarks
+ *
+ * STRUCT {                         level 0
+ *   v0: leafType
+ *   l1: LIST {                     level 1, fanOut elements per row
+ *     v1: leafType
+ *     l2: LIST { ... }             down to level depth
+ *   }
+ * }
+ *
+ * A row flattens into fanOut ^ depth rows. Each leaf value is null with
+ * probability nullDensity (the same rows for a given seed). VARCHAR leaves
+ * hold the decimal string of the value, padded to 8 characters.
+ */
+@State(Scope.Benchmark)
+public class NestedBenchmarkData {
+
+  static final String COLUMN = "root";
+
+  @Param({"1000", "100000"})
+  public int rows;
+
+  @Param({"1", "2", "3"})
+  public int depth;
+
+  @Param({"2", "4"})
+  public int fanOut;
+
+  @Param({"0.0", "0.3"})
+  public double nullDensity;
+
+  @Param({"INT", "BIGINT", "FLOAT8", "VARCHAR"})
+  public String leafType;
+
+  BufferAllocator allocator;
+  // bytes of the VARCHAR value being written
+  ArrowBuf scratch;
+  StructVector container;
+  StructVector root;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    allocator = new RootAllocator(Long.MAX_VALUE);
+    scratch = allocator.buffer(64);
+    container = newContainer();
+    root = write(container);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    scratch.close();
+    container.close();
+    allocator.close();
+  }
+
+  StructVector newContainer() {
+    FieldType structFieldType = new FieldType(false, ArrowType.Struct.INSTANCE, null, null);
+    return new StructVector("top-level-struct", allocator, structFieldType, null);
+  }
+
+  static String varChar(long value) {
+    return String.format("%08d", value);
+  }
+
+  long flattenedRowCount() {
+    long count = rows;
+    for (int level = 0; level < depth; level++) {
+      count *= fanOut;
+    }
+    return count;
+  }
+
+  /**
+   * Write the column through the ComplexWriterImpl state machines, one call
+   * per value and per struct/list boundary.
+   */
+  StructVector write(StructVector container) {
+    BaseWriter.ComplexWriter complexWriter = new ComplexWriterImpl(COLUMN, container);
+    Writers writers = new Writers(complexWriter.rootAsStruct());
+    Random random = new Random(42);
+    for (int i = 0; i < rows; i++) {
+      writers.structs[0].setPosition(i);
+      writers.writeStruct(0, i, random);
+    }
+    complexWriter.setValueCount(rows);
+    return (StructVector)container.getChild(COLUMN);
+  }
+
+  /**
+   * Read every leaf row by row through the struct and list readers and
+   * return a checksum of the values.
+   */
+  double read(StructVector container) {
+    Readers readers = new Readers(new SingleStructReaderImpl(container).reader(COLUMN));
+    double sum = 0;
+    for (int i = 0; i < rows; i++) {
+      readers.structs[0].setPosition(i);
+      sum += readers.readStruct(0);
+    }
+    return sum;
+  }
+
+  private class Writers {
+    final BaseWriter.StructWriter[] structs = new BaseWriter.StructWriter[depth + 1];
+    final BaseWriter.ListWriter[] lists = new BaseWriter.ListWriter[depth + 1];
+    final IntWriter[] ints = new IntWriter[depth + 1];
+    final BigIntWriter[] bigInts = new BigIntWriter[depth + 1];
+    final Float8Writer[] float8s = new Float8Writer[depth + 1];
+    final VarCharWriter[] varChars = new VarCharWriter[depth + 1];
+
+    Writers(BaseWriter.StructWriter root) {
+      structs[0] = root;
+      for (int level = 0; level <= depth; level++) {
+        switch (leafType) {
+          case "INT":
+            ints[level] = structs[level].integer("v" + level);
+            break;
+          case "BIGINT":
+            bigInts[level] = structs[level].bigInt("v" + level);
+            break;
+          case "VARCHAR":
+            varChars[level] = structs[level].varChar("v" + level);
+            break;
+          default:
+            float8s[level] = structs[level].float8("v" + level);
+            break;
+        }
+        if (level < depth) {
+          lists[level + 1] = structs[level].list("l" + (level + 1));
+          structs[level + 1] = lists[level + 1].struct();
+        }
+      }
+    }
+
+    void writeStruct(int level, long value, Random random) {
+      structs[level].start();
+      if (random.nextDouble() >= nullDensity) {
+        if (ints[level] != null) {
+          ints[level].writeInt((int)value);
+        } else if (bigInts[level] != null) {
+          bigInts[level].writeBigInt(value);
+        } else if (varChars[level] != null) {
+          byte[] bytes = varChar(value).getBytes(StandardCharsets.UTF_8);
+          scratch.setBytes(0, bytes);
+          varChars[level].writeVarChar(0, bytes.length, scratch);
+        } else {
+          float8s[level].writeFloat8(value);
+        }
+      }
+      if (level < depth) {
+        lists[level + 1].startList();
+        for (int j = 0; j < fanOut; j++) {
+          writeStruct(level + 1, value * fanOut + j, random);
+        }
+        lists[level + 1].endList();
+      }
+      structs[level].end();
+    }
+  }
+
+  private class Readers {
+    final BaseReader.StructReader[] structs = new BaseReader.StructReader[depth + 1];
+    final UnionListReader[] lists = new UnionListReader[depth + 1];
+    final String[] leafNames = new String[depth + 1];
+
+    Readers(BaseReader.StructReader root) {
+      structs[0] = root;
+      for (int level = 0; level <= depth; level++) {
+        leafNames[level] = "v" + level;
+        if (level < depth) {
+          lists[level + 1] = (UnionListReader)structs[level].reader("l" + (level + 1));
+          structs[level + 1] = lists[level + 1].reader();
+        }
+      }
+    }
+
+    double readStruct(int level) {
+      double sum = 0;
+      FieldReader leaf = structs[level].reader(leafNames[level]);
+      if (leaf.isSet()) {
+        switch (leafType) {
+          case "INT":
+            sum += leaf.readInteger();
+            break;
+          case "BIGINT":
+            sum += leaf.readLong();
+            break;
+          case "VARCHAR":
+            sum += leaf.readText().getLength();
+            break;
+          default:
+            sum += leaf.readDouble();
+            break;
+        }
+      }
+      if (level < depth) {
+        while (lists[level + 1].next()) {
+          sum += readStruct(level + 1);
+        }
+      }
+      return sum;
+    }
+  }
+}
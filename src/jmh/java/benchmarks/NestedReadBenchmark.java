@@ -0,0 +1,29 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading every leaf row by row through SingleStructReaderImpl and
+ * UnionListReader, the access pattern of TestNested.
+ *
+ *    java -jar target/benchmarks.jar NestedReadBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NestedReadBenchmark {
+
+  @Benchmark
+  public double read(NestedBenchmarkData data) {
+    return data.read(data.container);
+  }
+}
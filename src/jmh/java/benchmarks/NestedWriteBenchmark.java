@@ -0,0 +1,170 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.arrow.vector.complex.StructVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the nested column through ComplexWriterImpl, and through
+ * NestedVectorBuilder from primitive arrays prepared outside the benchmark.
+ *
+ *    mvn -Pbenchmark package
+ *    java -jar target/benchmarks.jar NestedWriteBenchmark -prof gc
+ *
+ * -prof gc reports heap bytes allocated per operation (gc.alloc.rate.norm)
+ * and collection counts; divide by the rows of the parameter set for bytes
+ * per row. The off-heap side is reported by {@link OffHeapCounters}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NestedWriteBenchmark {
+
+  /**
+   * Leaf values, validity and list lengths of every level of the benchmark
+   * column, element e of a level holding value e like the written column.
+   */
+  @State(Scope.Benchmark)
+  public static class Arrays {
+    Object[] values;
+    boolean[][] valid;
+    int[][] lengths;
+
+    MethodHandle newBuilder;
+    MethodHandle getRoot;
+    MethodHandle list;
+    MethodHandle column;
+    MethodHandle build;
+
+    @Setup
+    public void setup(NestedBenchmarkData data) {
+      String levelClass = "NestedVectorBuilder$Level";
+      Class<?> valuesType;
+      String columnMethod;
+      switch (data.leafType) {
+        case "INT":
+          valuesType = int[].class;
+          columnMethod = "intColumn";
+          break;
+        case "BIGINT":
+          valuesType = long[].class;
+          columnMethod = "bigIntColumn";
+          break;
+        case "VARCHAR":
+          valuesType = String[].class;
+          columnMethod = "varCharColumn";
+          break;
+        default:
+          valuesType = double[].class;
+          columnMethod = "float8Column";
+          break;
+      }
+      newBuilder = DefaultPackage.constructor("NestedVectorBuilder", String.class, int.class);
+      getRoot = DefaultPackage.method("NestedVectorBuilder", "getRoot");
+      list = DefaultPackage.method(levelClass, "list", String.class, int[].class);
+      column = "VARCHAR".equals(data.leafType)
+          ? DefaultPackage.method(levelClass, columnMethod, String.class, valuesType)
+          : DefaultPackage.method(levelClass, columnMethod, String.class, valuesType, boolean[].class);
+      build = DefaultPackage.method("NestedVectorBuilder", "build", StructVector.class);
+
+      values = new Object[data.depth + 1];
+      valid = new boolean[data.depth + 1][];
+      lengths = new int[data.depth + 1][];
+      Random random = new Random(42);
+      int count = data.rows;
+      for (int level = 0; level <= data.depth; level++) {
+        valid[level] = new boolean[count];
+        for (int i = 0; i < count; i++) {
+          valid[level][i] = random.nextDouble() >= data.nullDensity;
+        }
+        switch (data.leafType) {
+          case "INT": {
+            int[] ints = new int[count];
+            for (int i = 0; i < count; i++) {
+              ints[i] = i;
+            }
+            values[level] = ints;
+            break;
+          }
+          case "BIGINT": {
+            long[] longs = new long[count];
+            for (int i = 0; i < count; i++) {
+              longs[i] = i;
+            }
+            values[level] = longs;
+            break;
+          }
+          case "VARCHAR": {
+            // nulls are null entries rather than a validity array
+            String[] strings = new String[count];
+            for (int i = 0; i < count; i++) {
+              strings[i] = valid[level][i] ? NestedBenchmarkData.varChar(i) : null;
+            }
+            values[level] = strings;
+            break;
+          }
+          default: {
+            double[] doubles = new double[count];
+            for (int i = 0; i < count; i++) {
+              doubles[i] = i;
+            }
+            values[level] = doubles;
+            break;
+          }
+        }
+        if (level < data.depth) {
+          lengths[level + 1] = new int[count];
+          java.util.Arrays.fill(lengths[level + 1], data.fanOut);
+          count *= data.fanOut;
+        }
+      }
+    }
+
+    StructVector build(StructVector container, int rows) throws Throwable {
+      Object builder = newBuilder.invoke(NestedBenchmarkData.COLUMN, rows);
+      Object level = getRoot.invoke(builder);
+      for (int l = 0; l < values.length; l++) {
+        if (values[l] instanceof String[]) {
+          column.invoke(level, "v" + l, values[l]);
+        } else {
+          column.invoke(level, "v" + l, values[l], valid[l]);
+        }
+        if (l + 1 < values.length) {
+          level = list.invoke(level, "l" + (l + 1), lengths[l + 1]);
+        }
+      }
+      return (StructVector)build.invoke(builder, container);
+    }
+  }
+
+  @Benchmark
+  public long write(NestedBenchmarkData data, OffHeapCounters counters) {
+    try (StructVector container = data.newContainer()) {
+      StructVector root = data.write(container);
+      counters.record(data.allocator.getAllocatedMemory() - data.container.getBufferSize(), data.rows);
+      return root.getValueCount();
+    }
+  }
+
+  @Benchmark
+  public long bulkBuild(NestedBenchmarkData data, Arrays arrays, OffHeapCounters counters) throws Throwable {
+    try (StructVector container = data.newContainer()) {
+      StructVector root = arrays.build(container, data.rows);
+      counters.record(data.allocator.getAllocatedMemory() - data.container.getBufferSize(), data.rows);
+      return root.getValueCount();
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Off-heap bytes held by the output of an operation and the rows it
+ * produced, summed over an iteration. offHeapBytes / rows is the allocator
+ * cost per output row.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class OffHeapCounters {
+
+  public long offHeapBytes;
+  public long rows;
+
+  @Setup(Level.Iteration)
+  public void reset() {
+    offHeapBytes = 0;
+    rows = 0;
+  }
+
+  void record(long bytes, long outputRows) {
+    offHeapBytes += bytes;
+    rows += outputRows;
+  }
+}
@@ -0,0 +1,128 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.ArrowReader;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end FlattenPipeline throughput from a memory-mapped Arrow file of
+ * the benchmark column, written batches times, to a discarding channel.
+ *
+ *    java -jar target/benchmarks.jar PipelineBenchmark -p rows=100000 -p depth=2
+ *
+ * The inputBytes counter is reported in bytes per second of IPC input
+ * decoded, flattened and encoded again, i.e. GB/s times 10^9.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-opens", "java.base/java.nio=ALL-UNNAMED",
+    "-Dio.netty.tryReflectionSetAccessible=true"})
+public class PipelineBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Input {
+    @Param({"8"})
+    public int batches;
+
+    File file;
+    Object pipeline;
+    MethodHandle openMapped;
+    MethodHandle run;
+
+    @Setup(Level.Trial)
+    public void setup(NestedBenchmarkData data) throws Throwable {
+      file = File.createTempFile("flatten-pipeline", ".arrow");
+      // not closed, the column belongs to the data
+      VectorSchemaRoot root = new VectorSchemaRoot(Collections.<FieldVector>singletonList(data.root));
+      try (FileOutputStream out = new FileOutputStream(file);
+           ArrowFileWriter writer = new ArrowFileWriter(root, null, out.getChannel())) {
+        root.setRowCount(data.rows);
+        writer.start();
+        for (int i = 0; i < batches; i++) {
+          writer.writeBatch();
+        }
+        writer.end();
+      }
+      Class<?> operatorClass = DefaultPackage.type("FlattenOperator");
+      pipeline = DefaultPackage.constructor("FlattenPipeline", operatorClass, String.class, List.class, List.class)
+          .invoke(DefaultPackage.newInstance("FlattenOperator"), NestedBenchmarkData.COLUMN, null, null);
+      openMapped = DefaultPackage.method("FlattenPipeline", "openMapped", Path.class, BufferAllocator.class);
+      run = DefaultPackage.method("FlattenPipeline", "run", ArrowReader.class, BufferAllocator.class,
+          WritableByteChannel.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      file.delete();
+    }
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Bytes {
+    public long inputBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      inputBytes = 0;
+    }
+  }
+
+  @Benchmark
+  public long pipeline(NestedBenchmarkData data, Input input, Bytes bytes) throws Throwable {
+    try (ArrowReader reader = (ArrowReader)input.openMapped.invoke(input.file.toPath(), data.allocator)) {
+      input.run.invoke(input.pipeline, reader, data.allocator, new Discard());
+      long inputBytes = reader.bytesRead();
+      bytes.inputBytes += inputBytes;
+      return inputBytes;
+    }
+  }
+
+  /**
+   * Channel that drops what is written, so the figure excludes the disk.
+   */
+  private static final class Discard implements WritableByteChannel {
+    @Override
+    public int write(ByteBuffer src) {
+      int length = src.remaining();
+      src.position(src.limit());
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Shredding the benchmark column into repetition and definition levels with
+ * LevelShredder, assembling it back from them with RecordAssembler, and
+ * rebuilding it through the ComplexWriterImpl writers for comparison.
+ *
+ *    java -jar target/benchmarks.jar ShredBenchmark -p depth=3 -p nullDensity=0.3
+ *
+ * Both directions should grow linearly with the leaf values (rows, and
+ * fanOut ^ depth), which is easiest seen across the rows parameter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShredBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Shredded {
+    MethodHandle shred;
+    MethodHandle assemble;
+    Field field;
+    List<?> columns;
+
+    @Setup
+    public void setup(NestedBenchmarkData data) throws Throwable {
+      shred = DefaultPackage.method("LevelShredder", "shred", String.class, ValueVector.class,
+          BufferAllocator.class);
+      assemble = DefaultPackage.method("RecordAssembler", "assemble", String.class, Field.class, List.class,
+          BufferAllocator.class);
+      field = data.root.getField();
+      columns = shred(data);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+      close(columns);
+    }
+
+    List<?> shred(NestedBenchmarkData data) throws Throwable {
+      return (List<?>)shred.invoke(NestedBenchmarkData.COLUMN, data.root, data.allocator);
+    }
+
+    static void close(List<?> columns) throws Exception {
+      for (Object column : columns) {
+        ((AutoCloseable)column).close();
+      }
+    }
+  }
+
+  @Benchmark
+  public long shred(NestedBenchmarkData data, Shredded shredded) throws Throwable {
+    List<?> columns = shredded.shred(data);
+    try {
+      return columns.size();
+    } finally {
+      Shredded.close(columns);
+    }
+  }
+
+  @Benchmark
+  public long assemble(NestedBenchmarkData data, Shredded shredded) throws Throwable {
+    try (FieldVector vector = (FieldVector)shredded.assemble.invoke(NestedBenchmarkData.COLUMN, shredded.field,
+        shredded.columns, data.allocator)) {
+      return vector.getValueCount();
+    }
+  }
+
+  @Benchmark
+  public long write(NestedBenchmarkData data) {
+    try (StructVector container = data.newContainer()) {
+      return data.write(container).getValueCount();
+    }
+  }
+}
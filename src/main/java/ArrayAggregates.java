@@ -0,0 +1,330 @@
+import io.netty.buffer.ArrowBuf;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.util.Preconditions;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.types.Types;
+
+/**
+ * Aggregates over the elements of nested lists, one value per parent
+ * element, without flattening:
+ *
+ *    count("person", person, "person.addresses.phones", 0)    phones per person
+ *    max("person", person, "person.addresses.zip", 0)         max zip per person
+ *    sum("person", person, "person.addresses.phones.phone-number", 1)
+ *                                                             sum per address
+ *
+ * Since list offsets are monotonic, the elements at a deeper level that
+ * belong to one parent element are a contiguous range, found by composing
+ * the offset buffers of the levels in between (as the repetition index does
+ * for a flatten). An aggregate is then a loop over each range of the leaf's
+ * buffers: no row is replicated and nothing is allocated but the result.
+ * Null values, including those under null structs, are skipped through a
+ * validity bitmap of the whole range, built only when there are any.
+ *
+ * An empty range counts 0 and has a null sum, min and max; any() of it is
+ * false and all() true. Absent lists are empty; lists with elements under
+ * null structs are not supported.
+ */
+final class ArrayAggregates {
+
+  private ArrayAggregates() {
+  }
+
+  /**
+   * Number of elements of the list at path per element of the given level,
+   * or number of non-null values if path is a leaf.
+   */
+  static IntVector count(String column, ValueVector vector, String path, int level, BufferAllocator allocator) {
+    Segments segments = new Segments(column, vector, path, level, false);
+    IntVector result = new IntVector("count(" + path + ")", allocator);
+    result.allocateNew(segments.count);
+    int[] bounds = segments.bounds;
+    for (int i = 0; i < segments.count; i++) {
+      result.set(i, segments.valid == null ? bounds[i + 1] - bounds[i]
+          : segments.valid.cardinality(bounds[i], bounds[i + 1]));
+    }
+    result.setValueCount(segments.count);
+    return result;
+  }
+
+  /**
+   * Sum of a numeric leaf per element of the given level, as a BIGINT for
+   * integers and a FLOAT8 for floating point leaves.
+   */
+  static FieldVector sum(String column, ValueVector vector, String path, int level, BufferAllocator allocator) {
+    Segments segments = new Segments(column, vector, path, level, true);
+    String name = "sum(" + path + ")";
+    int[] bounds = segments.bounds;
+    SelectionBitmap valid = segments.valid;
+    ArrowBuf data = ((FieldVector)segments.leaf).getDataBuffer();
+    switch (segments.leaf.getMinorType()) {
+      case INT:
+      case BIGINT: {
+        boolean isInt = segments.leaf.getMinorType() == Types.MinorType.INT;
+        BigIntVector result = new BigIntVector(name, allocator);
+        result.allocateNew(segments.count);
+        for (int i = 0; i < segments.count; i++) {
+          long sum = 0;
+          boolean any = false;
+          for (int e = bounds[i]; e < bounds[i + 1]; e++) {
+            if (valid == null || valid.get(e)) {
+              sum += isInt ? data.getInt((long)e << 2) : data.getLong((long)e << 3);
+              any = true;
+            }
+          }
+          if (any) {
+            result.set(i, sum);
+          }
+        }
+        result.setValueCount(segments.count);
+        return result;
+      }
+      case FLOAT4:
+      case FLOAT8: {
+        boolean isFloat = segments.leaf.getMinorType() == Types.MinorType.FLOAT4;
+        Float8Vector result = new Float8Vector(name, allocator);
+        result.allocateNew(segments.count);
+        for (int i = 0; i < segments.count; i++) {
+          double sum = 0;
+          boolean any = false;
+          for (int e = bounds[i]; e < bounds[i + 1]; e++) {
+            if (valid == null || valid.get(e)) {
+              sum += isFloat ? data.getFloat((long)e << 2) : data.getDouble((long)e << 3);
+              any = true;
+            }
+          }
+          if (any) {
+            result.set(i, sum);
+          }
+        }
+        result.setValueCount(segments.count);
+        return result;
+      }
+      default:
+        throw new UnsupportedOperationException("Sum is not supported on leaf type " + segments.leaf.getMinorType());
+    }
+  }
+
+  /**
+   * Smallest value of a numeric leaf per element of the given level, of the
+   * leaf's type.
+   */
+  static FieldVector min(String column, ValueVector vector, String path, int level, BufferAllocator allocator) {
+    return extreme(new Segments(column, vector, path, level, true), "min(" + path + ")", false, allocator);
+  }
+
+  /**
+   * Largest value of a numeric leaf per element of the given level, of the
+   * leaf's type.
+   */
+  static FieldVector max(String column, ValueVector vector, String path, int level, BufferAllocator allocator) {
+    return extreme(new Segments(column, vector, path, level, true), "max(" + path + ")", true, allocator);
+  }
+
+  /**
+   * Whether any value of the predicate's leaf satisfies it, per element of
+   * the given level.
+   */
+  static BitVector any(String column, ValueVector vector, LeafPredicate predicate, int level,
+      BufferAllocator allocator) {
+    return test(column, vector, predicate, level, "any(" + predicate + ")", false, allocator);
+  }
+
+  /**
+   * Whether every value of the predicate's leaf satisfies it, per element of
+   * the given level. A null value does not.
+   */
+  static BitVector all(String column, ValueVector vector, LeafPredicate predicate, int level,
+      BufferAllocator allocator) {
+    return test(column, vector, predicate, level, "all(" + predicate + ")", true, allocator);
+  }
+
+  private static FieldVector extreme(Segments segments, String name, boolean max, BufferAllocator allocator) {
+    int[] bounds = segments.bounds;
+    SelectionBitmap valid = segments.valid;
+    ArrowBuf data = ((FieldVector)segments.leaf).getDataBuffer();
+    switch (segments.leaf.getMinorType()) {
+      case INT: {
+        IntVector result = new IntVector(name, allocator);
+        result.allocateNew(segments.count);
+        for (int i = 0; i < segments.count; i++) {
+          int extreme = max ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+          boolean any = false;
+          for (int e = bounds[i]; e < bounds[i + 1]; e++) {
+            if (valid == null || valid.get(e)) {
+              int value = data.getInt((long)e << 2);
+              extreme = max ? Math.max(extreme, value) : Math.min(extreme, value);
+              any = true;
+            }
+          }
+          if (any) {
+            result.set(i, extreme);
+          }
+        }
+        result.setValueCount(segments.count);
+        return result;
+      }
+      case BIGINT: {
+        BigIntVector result = new BigIntVector(name, allocator);
+        result.allocateNew(segments.count);
+        for (int i = 0; i < segments.count; i++) {
+          long extreme = max ? Long.MIN_VALUE : Long.MAX_VALUE;
+          boolean any = false;
+          for (int e = bounds[i]; e < bounds[i + 1]; e++) {
+            if (valid == null || valid.get(e)) {
+              long value = data.getLong((long)e << 3);
+              extreme = max ? Math.max(extreme, value) : Math.min(extreme, value);
+              any = true;
+            }
+          }
+          if (any) {
+            result.set(i, extreme);
+          }
+        }
+        result.setValueCount(segments.count);
+        return result;
+      }
+      case FLOAT4: {
+        Float4Vector result = new Float4Vector(name, allocator);
+        result.allocateNew(segments.count);
+        for (int i = 0; i < segments.count; i++) {
+          float extreme = max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+          boolean any = false;
+          for (int e = bounds[i]; e < bounds[i + 1]; e++) {
+            if (valid == null || valid.get(e)) {
+              float value = data.getFloat((long)e << 2);
+              extreme = max ? Math.max(extreme, value) : Math.min(extreme, value);
+              any = true;
+            }
+          }
+          if (any) {
+            result.set(i, extreme);
+          }
+        }
+        result.setValueCount(segments.count);
+        return result;
+      }
+      case FLOAT8: {
+        Float8Vector result = new Float8Vector(name, allocator);
+        result.allocateNew(segments.count);
+        for (int i = 0; i < segments.count; i++) {
+          double extreme = max ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+          boolean any = false;
+          for (int e = bounds[i]; e < bounds[i + 1]; e++) {
+            if (valid == null || valid.get(e)) {
+              double value = data.getDouble((long)e << 3);
+              extreme = max ? Math.max(extreme, value) : Math.min(extreme, value);
+              any = true;
+            }
+          }
+          if (any) {
+            result.set(i, extreme);
+          }
+        }
+        result.setValueCount(segments.count);
+        return result;
+      }
+      default:
+        throw new UnsupportedOperationException((max ? "Max" : "Min") + " is not supported on leaf type "
+            + segments.leaf.getMinorType());
+    }
+  }
+
+  /**
+   * Evaluate the predicate once over the whole range of its leaf, then look
+   * for a set bit (any) or a clear one (all) in each element's range, a word
+   * at a time.
+   */
+  private static BitVector test(String column, ValueVector vector, LeafPredicate predicate, int level, String name,
+      boolean all, BufferAllocator allocator) {
+    Segments segments = new Segments(column, vector, predicate.getPath(), level, true);
+    int[] bounds = segments.bounds;
+    int start = bounds[0];
+    int end = bounds[segments.count];
+    SelectionBitmap matches = segments.valid;
+    if (matches == null) {
+      matches = new SelectionBitmap(end);
+      matches.setRange(start, end);
+    }
+    predicate.filter(segments.leaf, start, end, matches);
+    BitVector result = new BitVector(name, allocator);
+    result.allocateNew(segments.count);
+    for (int i = 0; i < segments.count; i++) {
+      boolean value = all
+          ? matches.nextClearBit(bounds[i], bounds[i + 1]) == bounds[i + 1]
+          : matches.nextSetBit(bounds[i], bounds[i + 1]) < bounds[i + 1];
+      result.set(i, value ? 1 : 0);
+    }
+    result.setValueCount(segments.count);
+    return result;
+  }
+
+  /**
+   * The range of elements at the aggregated level that belongs to each
+   * element of the output level, and the leaf's valid values among them.
+   */
+  private static final class Segments {
+    // elements of the output level
+    final int count;
+    // bounds[i] is the first element of output element i, bounds[count] the end
+    final int[] bounds;
+    // null for a list
+    final ValueVector leaf;
+    // null when every value in [bounds[0], bounds[count]) is valid
+    final SelectionBitmap valid;
+
+    Segments(String column, ValueVector vector, String path, int level, boolean needsLeaf) {
+      if (vector.getMinorType() != Types.MinorType.LIST && vector.getMinorType() != Types.MinorType.STRUCT) {
+        throw new UnsupportedOperationException("Aggregates are not supported on primitive root types");
+      }
+      FlattenPlan plan = FlattenPlan.compile(column, ((FieldVector)vector).getField(),
+          Collections.singletonList(path), null);
+      FlattenPlan.Bound bound = plan.bind(vector);
+      if (bound.nullListsWithElements) {
+        throw new UnsupportedOperationException("Aggregates are not supported on lists with elements under null "
+            + "structs");
+      }
+      int listLevel = plan.getListLevel(path);
+      FlattenPlan.Leaf[] leaves = plan.getLeaves();
+      int aggregatedLevel;
+      if (listLevel > 0 && !needsLeaf) {
+        aggregatedLevel = listLevel;
+        leaf = null;
+      } else if (leaves.length == 1 && leaves[0].path.equals(path)) {
+        aggregatedLevel = leaves[0].level;
+        leaf = bound.leafVectors[0];
+      } else {
+        throw new IllegalArgumentException("Expected the path of a " + (needsLeaf ? "leaf" : "leaf or list")
+            + ": " + path);
+      }
+      Preconditions.checkArgument(level >= 0 && level <= aggregatedLevel,
+          "Level %s is not above the aggregated level %s", level, aggregatedLevel);
+      ListVector[] lists = Arrays.copyOf(bound.lists, aggregatedLevel + 1);
+      count = level == 0 ? vector.getValueCount()
+          : RepetitionIndex.offset(lists[level], lists[level].getValueCount());
+      bounds = RepetitionIndex.composeOffsets(lists, level, 0, count);
+
+      SelectionBitmap validity = null;
+      if (leaf != null && (leaf.getNullCount() > 0 || bound.leafStructs[0].length > 0)) {
+        int start = bounds[0];
+        int end = bounds[count];
+        validity = new SelectionBitmap(end);
+        validity.setRange(start, end);
+        validity.and(((FieldVector)leaf).getValidityBuffer(), start, end);
+        for (ValueVector struct : bound.leafStructs[0]) {
+          validity.and(((FieldVector)struct).getValidityBuffer(), start, end);
+        }
+      }
+      valid = validity;
+    }
+  }
+}
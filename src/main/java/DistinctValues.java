@@ -0,0 +1,103 @@
+import io.netty.buffer.ArrowBuf;
+import org.apache.arrow.memory.util.ByteFunctionHelpers;
+import org.apache.arrow.vector.BaseFixedWidthVector;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.BitVectorHelper;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+
+/**
+ * Dictionary ids for the values of a leaf vector, in order of first
+ * appearance, found by hashing each value where it lies in the vector's
+ * buffers: a fixed-width value by its raw bits, a variable-width one by the
+ * bytes its offsets point to. No value is boxed or copied out.
+ *
+ * The open-addressing table holds ids only, a value being found again
+ * through the first index with its id, and is kept at most half full.
+ * Values are equal by their bits, so -0.0 and 0.0 get different ids and
+ * each NaN its own bits, which the dictionary then holds exactly.
+ */
+final class DistinctValues {
+
+  private DistinctValues() {
+  }
+
+  /**
+   * Set ids[i] to the id of value i, -1 if it is null, and firsts[id] to
+   * the first value with that id, for the first count values. Returns the
+   * number of distinct values.
+   */
+  static int assign(ValueVector values, int count, int[] ids, int[] firsts) {
+    ArrowBuf validity = ((FieldVector)values).getValidityBuffer();
+    int shift = Math.min(30, 2 + 32 - Integer.numberOfLeadingZeros(Math.max(count, 1)));
+    // id + 1 per slot, 0 when free
+    int[] table = new int[1 << shift];
+    int mask = table.length - 1;
+    if (values instanceof BaseVariableWidthVector) {
+      return assignBytes((BaseVariableWidthVector)values, validity, count, ids, firsts, table, shift, mask);
+    }
+    ArrowBuf data = ((FieldVector)values).getDataBuffer();
+    boolean isLong = ((BaseFixedWidthVector)values).getTypeWidth() == 8;
+    long[] keys = new long[count];
+    int distinctCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (BitVectorHelper.get(validity, i) == 0) {
+        ids[i] = -1;
+        continue;
+      }
+      long bits = isLong ? data.getLong((long)i << 3) : data.getInt((long)i << 2);
+      int slot = (int)((bits * 0x9E3779B97F4A7C15L) >>> (64 - shift));
+      int id;
+      while ((id = table[slot] - 1) >= 0 && keys[id] != bits) {
+        slot = (slot + 1) & mask;
+      }
+      if (id < 0) {
+        id = distinctCount++;
+        keys[id] = bits;
+        firsts[id] = i;
+        table[slot] = id + 1;
+      }
+      ids[i] = id;
+    }
+    return distinctCount;
+  }
+
+  private static int assignBytes(
+      BaseVariableWidthVector values,
+      ArrowBuf validity,
+      int count,
+      int[] ids,
+      int[] firsts,
+      int[] table,
+      int shift,
+      int mask) {
+    ArrowBuf data = values.getDataBuffer();
+    ArrowBuf offsets = values.getOffsetBuffer();
+    int distinctCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (BitVectorHelper.get(validity, i) == 0) {
+        ids[i] = -1;
+        continue;
+      }
+      int start = offsets.getInt((long)i << 2);
+      int end = offsets.getInt((long)(i + 1) << 2);
+      int slot = (ByteFunctionHelpers.hash(data, start, end) * 0x9E3779B9) >>> (32 - shift);
+      int id;
+      while ((id = table[slot] - 1) >= 0) {
+        int first = firsts[id];
+        if (ByteFunctionHelpers.equal(data, start, end, data, offsets.getInt((long)first << 2),
+            offsets.getInt((long)(first + 1) << 2)) != 0) {
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (id < 0) {
+        id = distinctCount++;
+        firsts[id] = i;
+        table[slot] = id + 1;
+      }
+      ids[i] = id;
+    }
+    return distinctCount;
+  }
+}
@@ -0,0 +1,67 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull-based FLATTEN producing bounded-size output batches.
+ *
+ * The rows of a flatten are the contiguous range of deepest-level elements
+ * reachable from the top-level rows, so the iterator only has to remember the
+ * next deepest element to emit. Each batch indexes and copies just its own
+ * slice of that range, resuming in the middle of a list when the previous
+ * batch filled up there.
+ *
+ * With a {@link FlattenOutput} every batch is copied into the same vectors,
+ * and a batch is only valid until the next one is requested.
+ */
+class FlattenIterator implements Iterator<FlattenOperator.ColumnarRecordBatch> {
+
+  private final FlattenOperator operator;
+  private final FlattenPlan.Bound bound;
+  private final int maxRowsPerBatch;
+  private final int end;
+  // null for new vectors per batch
+  private final FlattenOutput output;
+  // reported with the first batch
+  private long planningNanos;
+  private int position;
+
+  FlattenIterator(
+      FlattenOperator operator,
+      FlattenPlan.Bound bound,
+      int topLevelRowCount,
+      int maxRowsPerBatch,
+      FlattenOutput output,
+      long planningNanos) {
+    this.operator = operator;
+    this.bound = bound;
+    this.maxRowsPerBatch = maxRowsPerBatch;
+    this.output = output;
+    this.planningNanos = planningNanos;
+    this.position = RepetitionIndex.toDeepest(bound.lists, 0);
+    this.end = RepetitionIndex.toDeepest(bound.lists, topLevelRowCount);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return position < end;
+  }
+
+  @Override
+  public FlattenOperator.ColumnarRecordBatch next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    int batchStart = position;
+    position += Math.min(maxRowsPerBatch, end - position);
+    long batchPlanningNanos = planningNanos;
+    planningNanos = 0;
+    return operator.flattenRange(bound, batchStart, position, output, batchPlanningNanos);
+  }
+
+  /**
+   * Number of rows not yet returned.
+   */
+  int getRemainingRows() {
+    return end - position;
+  }
+}
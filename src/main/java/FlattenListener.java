@@ -0,0 +1,10 @@
+/**
+ * Receives the {@link FlattenStats} of every batch a {@link FlattenOperator}
+ * produces, on the thread that produced it; with flattenParallel that is a
+ * pool thread per partition. Implementations must be thread-safe and cheap,
+ * since they run inline with the flatten.
+ */
+interface FlattenListener {
+
+  void batchFlattened(FlattenStats stats);
+}
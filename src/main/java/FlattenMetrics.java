@@ -0,0 +1,172 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Listener that keeps running totals of {@link FlattenStats} for monitoring,
+ * readable directly or over JMX once registered.
+ *
+ *    FlattenMetrics metrics = new FlattenMetrics();
+ *    metrics.register("orders");
+ *    operator.setListener(metrics);
+ *
+ * Every counter is a LongAdder, so threads recording batches at the same
+ * time add to separate cells rather than contend on one, and no state is
+ * kept per thread: pools that come and go leave nothing behind. A total
+ * read while batches are being recorded may be missing the batches in
+ * flight. Allocated bytes are also kept per output column.
+ */
+class FlattenMetrics implements FlattenListener, FlattenMetricsMBean {
+
+  static final int LEVELS = 8;
+  private static final int BUCKETS = 64;
+
+  private static final int BATCHES = 0;
+  private static final int INPUT_ROWS = 1;
+  private static final int OUTPUT_ROWS = 2;
+  private static final int BYTES = 3;
+  private static final int PLANNING_NANOS = 4;
+  private static final int INDEX_NANOS = 5;
+  private static final int COPY_NANOS = 6;
+  private static final int REPLICATION_NANOS = 7;
+  private static final int LEVEL_ROWS = 8;
+  private static final int LATENCY = LEVEL_ROWS + LEVELS;
+  private static final int COUNTERS = LATENCY + BUCKETS;
+
+  private final LongAdder[] counters = new LongAdder[COUNTERS];
+  private final ConcurrentMap<String, LongAdder> columnBytes = new ConcurrentHashMap<>();
+
+  FlattenMetrics() {
+    for (int i = 0; i < COUNTERS; i++) {
+      counters[i] = new LongAdder();
+    }
+  }
+
+  @Override
+  public void batchFlattened(FlattenStats stats) {
+    counters[BATCHES].increment();
+    counters[INPUT_ROWS].add(stats.getInputRows());
+    counters[OUTPUT_ROWS].add(stats.getOutputRows());
+    counters[BYTES].add(stats.getBytes());
+    counters[PLANNING_NANOS].add(stats.getPlanningNanos());
+    counters[INDEX_NANOS].add(stats.getIndexNanos());
+    counters[COPY_NANOS].add(stats.getCopyNanos());
+    counters[REPLICATION_NANOS].add(stats.getReplicationNanos());
+    long[] levelRows = stats.getLevelRows();
+    for (int level = 0; level < levelRows.length; level++) {
+      counters[LEVEL_ROWS + Math.min(level, LEVELS - 1)].add(levelRows[level]);
+    }
+    counters[LATENCY + bucket(stats.getTotalNanos())].increment();
+    String[] columns = stats.getColumns();
+    long[] bytes = stats.getColumnBytes();
+    for (int i = 0; i < columns.length; i++) {
+      LongAdder adder = columnBytes.get(columns[i]);
+      if (adder == null) {
+        LongAdder added = new LongAdder();
+        adder = columnBytes.putIfAbsent(columns[i], added);
+        if (adder == null) {
+          adder = added;
+        }
+      }
+      adder.add(bytes[i]);
+    }
+  }
+
+  /**
+   * Register as an MBean named nested-arrow:type=FlattenMetrics,name=name
+   * with the platform MBean server.
+   */
+  ObjectName register(String name) throws JMException {
+    ObjectName objectName = new ObjectName("nested-arrow:type=FlattenMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(
+        new StandardMBean(this, FlattenMetricsMBean.class), objectName);
+    return objectName;
+  }
+
+  static int bucket(long nanos) {
+    return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+  }
+
+  private long total(int counter) {
+    return counters[counter].sum();
+  }
+
+  private long[] totals(int first, int count) {
+    long[] totals = new long[count];
+    for (int i = 0; i < count; i++) {
+      totals[i] = total(first + i);
+    }
+    return totals;
+  }
+
+  @Override
+  public long getBatchCount() {
+    return total(BATCHES);
+  }
+
+  @Override
+  public long getInputRows() {
+    return total(INPUT_ROWS);
+  }
+
+  @Override
+  public long getOutputRows() {
+    return total(OUTPUT_ROWS);
+  }
+
+  @Override
+  public double getAmplification() {
+    long inputRows = getInputRows();
+    return inputRows == 0 ? 0 : (double)getOutputRows() / inputRows;
+  }
+
+  @Override
+  public long[] getLevelRows() {
+    return totals(LEVEL_ROWS, LEVELS);
+  }
+
+  @Override
+  public long getBytesAllocated() {
+    return total(BYTES);
+  }
+
+  @Override
+  public Map<String, Long> getColumnBytesAllocated() {
+    Map<String, Long> bytes = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> entry : columnBytes.entrySet()) {
+      bytes.put(entry.getKey(), entry.getValue().sum());
+    }
+    return bytes;
+  }
+
+  @Override
+  public long getPlanningNanos() {
+    return total(PLANNING_NANOS);
+  }
+
+  @Override
+  public long getIndexNanos() {
+    return total(INDEX_NANOS);
+  }
+
+  @Override
+  public long getCopyNanos() {
+    return total(COPY_NANOS);
+  }
+
+  @Override
+  public long getReplicationNanos() {
+    return total(REPLICATION_NANOS);
+  }
+
+  @Override
+  public long[] getLatencyHistogram() {
+    return totals(LATENCY, BUCKETS);
+  }
+}
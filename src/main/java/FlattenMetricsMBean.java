@@ -0,0 +1,45 @@
+import java.util.Map;
+
+/**
+ * JMX view of {@link FlattenMetrics}: totals since the metrics were created.
+ */
+public interface FlattenMetricsMBean {
+
+  long getBatchCount();
+
+  long getInputRows();
+
+  long getOutputRows();
+
+  /**
+   * Output rows per input row over every batch.
+   */
+  double getAmplification();
+
+  /**
+   * Distinct elements per repetition level, levels past the last slot being
+   * added to it.
+   */
+  long[] getLevelRows();
+
+  long getBytesAllocated();
+
+  /**
+   * Bytes allocated per output column, by column name.
+   */
+  Map<String, Long> getColumnBytesAllocated();
+
+  long getPlanningNanos();
+
+  long getIndexNanos();
+
+  long getCopyNanos();
+
+  long getReplicationNanos();
+
+  /**
+   * Batch count by total flatten time, bucket i counting batches that took
+   * [2^i, 2^(i+1)) nanoseconds (bucket 0 also counts 0).
+   */
+  long[] getLatencyHistogram();
+}
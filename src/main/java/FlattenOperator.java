@@ -1,25 +1,36 @@
 import io.netty.buffer.ArrowBuf;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import org.apache.arrow.flatbuf.Int;
-import org.apache.arrow.flatbuf.RecordBatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.apache.arrow.memory.BufferAllocator;
 import org.apache.arrow.util.Preconditions;
+import org.apache.arrow.vector.BaseFixedWidthVector;
+import org.apache.arrow.vector.BaseVariableWidthVector;
 import org.apache.arrow.vector.BigIntVector;
 import org.apache.arrow.vector.FieldVector;
 import org.apache.arrow.vector.Float4Vector;
 import org.apache.arrow.vector.Float8Vector;
 import org.apache.arrow.vector.IntVector;
 import org.apache.arrow.vector.ValueVector;
-import org.apache.arrow.vector.complex.ListVector;
-import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
 import org.apache.arrow.vector.types.Types;
 import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.apache.arrow.vector.types.pojo.FieldType;
 
 public class FlattenOperator {
 
+  // null when no one is listening, in which case nothing is timed
+  private volatile FlattenListener listener;
+
   /********************************** NOTES ***********************************
    *
    * PERSON (STRUCT column)
@@ -105,148 +116,899 @@ public class FlattenOperator {
    *             WHERE T.flattened.name = "john" AND T.flattened.zip = 94402
    */
 
+  /**
+   * Report the stats of every batch flattened from now on to the listener,
+   * or stop reporting them with null.
+   */
+  void setListener(FlattenListener listener) {
+    this.listener = listener;
+  }
+
   ColumnarRecordBatch flatten(String column, ValueVector vector) {
-    if (vector.getMinorType() != Types.MinorType.LIST && vector.getMinorType() != Types.MinorType.STRUCT) {
-      throw new UnsupportedOperationException("Flatten is not supported on primitive root types");
-    }
-    ColumnarRecordBatch outputRecordBatch = new ColumnarRecordBatch();
-    Map<Integer, ChildrenAndParent> levelToNodes = new HashMap<>();
-    buildLevelToNodesMap(vector, levelToNodes, 0, null);
-    int maxLevel = Integer.MIN_VALUE;
-    for (int level : levelToNodes.keySet()) {
-      maxLevel = Math.max(maxLevel, level);
-    }
+    return flatten(column, vector, (List<String>)null);
+  }
+
+  /**
+   * Flatten only the given dotted paths, e.g. person.name and
+   * person.addresses.zip where person is the flattened column. A path to a
+   * struct or list projects everything beneath it. Subtrees that no path goes
+   * through are never visited, so their list levels do not multiply the output
+   * rows and their leaves are not copied. A null list projects every leaf.
+   */
+  ColumnarRecordBatch flatten(String column, ValueVector vector, List<String> projectedPaths) {
+    return flatten(column, vector, projectedPaths, null);
+  }
+
+  /**
+   * Flatten the projected paths keeping only the rows that satisfy every
+   * predicate. Query 3 in the notes becomes
+   *
+   *    flatten("person", person, null, [person.name = john, person.addresses.zip = 94402])
+   *
+   * Each predicate is evaluated on the elements of its own repetition level
+   * (name on persons, zip on addresses) before anything is replicated, and
+   * only the children of surviving elements are looked at further down. So
+   * persons other than john are never expanded into their phones at all.
+   * The lists a predicate goes through become part of the flatten even when
+   * its leaf is not projected.
+   */
+  ColumnarRecordBatch flatten(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      List<LeafPredicate> predicates) {
+    return flatten(column, vector, projectedPaths, predicates, JoinType.INNER);
+  }
+
+  /**
+   * Flatten the projected paths with the given join semantics. An INNER
+   * flatten drops an element whose list is empty, null or under a null
+   * struct, just like one whose children are all filtered out. An OUTER
+   * flatten keeps such an element as one row with every column below it
+   * null, like a left join of each parent with its children. Predicates
+   * apply to the flattened rows either way, and a null never matches, so
+   * those null rows only survive when no predicate is on a level below them.
+   */
+  ColumnarRecordBatch flatten(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      List<LeafPredicate> predicates,
+      JoinType joinType) {
+    long planStart = startTimer();
+    return flatten(getPlan(column, vector, projectedPaths, predicates), vector, predicates, joinType, null,
+        ParentEncoding.NONE, null, planStart);
+  }
+
+  /**
+   * Flatten a vector with a plan compiled for its schema, skipping the plan
+   * cache lookup. The predicates must be on paths the plan was compiled with.
+   */
+  ColumnarRecordBatch flatten(FlattenPlan plan, ValueVector vector, List<LeafPredicate> predicates) {
+    return flatten(plan, vector, predicates, JoinType.INNER);
+  }
+
+  ColumnarRecordBatch flatten(
+      FlattenPlan plan,
+      ValueVector vector,
+      List<LeafPredicate> predicates,
+      JoinType joinType) {
+    return flatten(plan, vector, predicates, joinType, null, ParentEncoding.NONE, null, startTimer());
+  }
+
+  /**
+   * Flatten into the vectors of output, reusing their buffers, instead of
+   * into new vectors. The returned batch is only valid until the next
+   * flatten into the same output.
+   */
+  ColumnarRecordBatch flattenInto(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      List<LeafPredicate> predicates,
+      JoinType joinType,
+      FlattenOutput output) {
+    long planStart = startTimer();
+    return flatten(getPlan(column, vector, projectedPaths, predicates), vector, predicates, joinType, output,
+        ParentEncoding.NONE, null, planStart);
+  }
+
+  /**
+   * Flatten with the leaves of every level above the deepest encoded
+   * instead of replicated, see {@link ParentEncoding}. Only the deepest
+   * level's leaves get a value per row.
+   */
+  ColumnarRecordBatch flattenEncoded(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      List<LeafPredicate> predicates,
+      JoinType joinType,
+      ParentEncoding encoding) {
+    long planStart = startTimer();
+    return flatten(getPlan(column, vector, projectedPaths, predicates), vector, predicates, joinType, null,
+        encoding, null, planStart);
+  }
+
+  ColumnarRecordBatch flattenEncoded(
+      FlattenPlan plan,
+      ValueVector vector,
+      List<LeafPredicate> predicates,
+      JoinType joinType,
+      ParentEncoding encoding) {
+    return flatten(plan, vector, predicates, joinType, null, encoding, null, startTimer());
+  }
+
+  /**
+   * @param output vectors to flatten into, or null for new vectors owned by
+   *               the returned batch
+   */
+  ColumnarRecordBatch flattenInto(
+      FlattenPlan plan,
+      ValueVector vector,
+      List<LeafPredicate> predicates,
+      JoinType joinType,
+      FlattenOutput output) {
+    return flatten(plan, vector, predicates, joinType, output, ParentEncoding.NONE, null, startTimer());
+  }
+
+  /**
+   * Flatten skipping the top-level rows of the blocks in which the
+   * statistics show that some predicate cannot match, and the whole batch
+   * when that is every block, without evaluating the predicates there. The
+   * result is the same as without statistics.
+   *
+   * @param statistics collected from this batch of the column
+   */
+  ColumnarRecordBatch flattenWithStatistics(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      List<LeafPredicate> predicates,
+      JoinType joinType,
+      NestedStatistics statistics) {
+    long planStart = startTimer();
+    statistics.checkBatch(column, vector);
+    return flatten(getPlan(column, vector, projectedPaths, predicates), vector, predicates, joinType, null,
+        ParentEncoding.NONE, statistics, planStart);
+  }
+
+  /**
+   * @param statistics of the batch to skip blocks with, or null
+   * @param planStart when planning started, 0 if nothing is timed
+   */
+  private ColumnarRecordBatch flatten(
+      FlattenPlan plan,
+      ValueVector vector,
+      List<LeafPredicate> predicates,
+      JoinType joinType,
+      FlattenOutput output,
+      ParentEncoding encoding,
+      NestedStatistics statistics,
+      long planStart) {
+    FlattenPlan.Bound bound = plan.bind(vector);
+    FlattenStats stats = newStats(bound, planStart);
+    long indexStart = startTimer();
     // level 0 -- name, age, salary
     // level 1 -- apt, zip
     // level 2 -- phone-number, phone-type
-    // Flatten/unnest bottom-up from higher level to lower propagating the repetition
-    // level at higher level to lower level
-    int recordCount = -1;
-    int currentLevel = maxLevel;
-    while (true) {
-      recordCount++;
-      while (currentLevel >= maxLevel) {
-        ChildrenAndParent childrenAndParent = levelToNodes.get(maxLevel);
-        ValueVector parent = childrenAndParent.parent;
-        List<ValueVector> children = childrenAndParent.children;
-        if (parent instanceof ListVector) {
-          ListVector listVector = (ListVector)parent;
-          ArrowBuf offsets = listVector.getOffsetBuffer();
-          int start = offsets.getInt(recordCount * 4);
-          int end = offsets.getInt((recordCount + 1) * 4);
-          int innerRecordCount = 0;
-          for (int i = start; i < end; i++, innerRecordCount++) {
-            for (ValueVector child : children) {
-              Object value = child.getObject(i);
-              ValueVector out = outputRecordBatch.getVector(child.getName());
-              if (out == null) {
-                out = getOutputVector(child);
-                outputRecordBatch.addVector(child.getName(), child);
-              }
-              setValue(out, innerRecordCount, value);
+    // Instead of unnesting value by value, compute for every output row the
+    // element it comes from at each level (the repetition index) by composing
+    // the list offsets, then move each leaf column with one bulk copy (deepest
+    // level) or one typed gather (replicated higher levels).
+    RepetitionIndex index;
+    boolean filtered = predicates != null && !predicates.isEmpty();
+    if (!filtered && joinType == JoinType.INNER && !bound.nullListsWithElements) {
+      index = RepetitionIndex.forTopLevelRows(bound.lists, 0, vector.getValueCount());
+    } else {
+      PredicateFilter filter = null;
+      if (filtered) {
+        filter = new PredicateFilter(bound, predicates);
+        if (statistics != null) {
+          filter.rows = statistics.selectRows(predicates);
+        }
+      }
+      index = RepetitionIndex.forFilteredTopLevelRows(bound.lists, getListValidity(bound),
+          joinType == JoinType.OUTER, 0, vector.getValueCount(), filter, filter == null ? 0 : filter.maxLevel);
+    }
+    if (stats != null) {
+      stats.indexNanos = System.nanoTime() - indexStart;
+      stats.inputRows = vector.getValueCount();
+    }
+    return materialize(bound, index, output == null ? new ColumnarRecordBatch() : new ColumnarRecordBatch(null, false),
+        null, output, encoding, stats);
+  }
+
+  /**
+   * Number of rows {@link #flatten(String, ValueVector, List, List)} would
+   * produce for each top-level row and in total, without allocating any
+   * output vector. Without predicates this only reads the list offset
+   * buffers; with predicates only the levels down to the deepest predicate
+   * are walked.
+   */
+  FlattenCounts count(String column, ValueVector vector, List<LeafPredicate> predicates) {
+    return count(column, vector, predicates, JoinType.INNER);
+  }
+
+  /**
+   * Number of rows {@link #flatten(String, ValueVector, List, List, JoinType)}
+   * would produce. Absent lists and the null rows of an OUTER flatten are
+   * counted by walking every level, still only reading offsets and validity.
+   */
+  FlattenCounts count(String column, ValueVector vector, List<LeafPredicate> predicates, JoinType joinType) {
+    FlattenPlan.Bound bound = getPlan(column, vector, null, predicates).bind(vector);
+    PredicateFilter filter = predicates == null || predicates.isEmpty() ? null : new PredicateFilter(bound, predicates);
+    int[] rowCounts = RepetitionIndex.countPerTopLevelRow(bound.lists, getListValidity(bound),
+        joinType == JoinType.OUTER, 0, vector.getValueCount(), filter, filter == null ? 0 : filter.maxLevel);
+    return new FlattenCounts(rowCounts);
+  }
+
+  FlattenCounts count(String column, ValueVector vector) {
+    return count(column, vector, null);
+  }
+
+  /**
+   * Index of the rows {@link #flatten(String, ValueVector, List, List, JoinType)}
+   * would produce, to map a flattened row to its elements and to flatten
+   * pages of rows with {@link #flattenPage(FlattenedRowIndex, int, int)}.
+   * Building it reads at most the offsets and validity, like count(), and
+   * only when there are predicates, outer rows or absent lists with
+   * elements; otherwise nothing at all.
+   */
+  FlattenedRowIndex rowIndex(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      List<LeafPredicate> predicates,
+      JoinType joinType) {
+    FlattenPlan.Bound bound = getPlan(column, vector, projectedPaths, predicates).bind(vector);
+    boolean filtered = predicates != null && !predicates.isEmpty();
+    if (!filtered && joinType == JoinType.INNER && !bound.nullListsWithElements) {
+      return FlattenedRowIndex.forDeepestElements(bound);
+    }
+    PredicateFilter filter = filtered ? new PredicateFilter(bound, predicates) : null;
+    return FlattenedRowIndex.forCountedRows(bound, getListValidity(bound), joinType == JoinType.OUTER, filter,
+        filter == null ? 0 : filter.maxLevel);
+  }
+
+  /**
+   * Flattened rows [offset, offset + limit) of the column, fewer at the end
+   * and none past it, as in LIMIT limit OFFSET offset.
+   */
+  ColumnarRecordBatch flattenPage(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      int offset,
+      int limit) {
+    return flattenPage(rowIndex(column, vector, projectedPaths, null, JoinType.INNER), offset, limit);
+  }
+
+  /**
+   * Flattened rows [offset, offset + limit) of the index. Only the top-level
+   * rows the page spans are indexed and only the page's rows are copied, so
+   * a page far into the column costs the same as the first one.
+   */
+  ColumnarRecordBatch flattenPage(FlattenedRowIndex rows, int offset, int limit) {
+    Preconditions.checkArgument(offset >= 0, "offset must not be negative");
+    Preconditions.checkArgument(limit >= 0, "limit must not be negative");
+    int fromRow = Math.min(offset, rows.getRowCount());
+    int toRow = (int)Math.min((long)fromRow + limit, rows.getRowCount());
+    long indexStart = startTimer();
+    RepetitionIndex index = rows.index(fromRow, toRow);
+    FlattenStats stats = newStats(rows.bound, 0);
+    if (stats != null) {
+      stats.indexNanos = System.nanoTime() - indexStart;
+      stats.inputRows = index.getElementCount(0);
+    }
+    return materialize(rows.bound, index, new ColumnarRecordBatch(), null, null, ParentEncoding.NONE, stats);
+  }
+
+  /**
+   * Flatten a column whose structs may hold several lists, combining the
+   * sibling lists of every element as the mode says, see
+   * {@link RepetitionIndex#forSiblingLists}. Without sibling lists either
+   * mode is the plain flatten with the join type. ZIP produces as many rows
+   * as the longest sibling of each element, so it stays linear in the
+   * elements; CROSS multiplies them.
+   */
+  ColumnarRecordBatch flattenSiblings(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      JoinType joinType,
+      SiblingMode mode) {
+    long planStart = startTimer();
+    FlattenPlan plan = getPlan(column, vector, projectedPaths, null);
+    FlattenPlan.Bound bound = plan.bindTree(vector);
+    FlattenStats stats = newStats(bound, planStart);
+    long indexStart = startTimer();
+    RepetitionIndex index = RepetitionIndex.forSiblingLists(bound.lists, plan.getListParents(),
+        getListValidity(bound), joinType == JoinType.OUTER, mode == SiblingMode.ZIP, 0, vector.getValueCount());
+    if (stats != null) {
+      stats.indexNanos = System.nanoTime() - indexStart;
+      stats.inputRows = vector.getValueCount();
+    }
+    return materialize(bound, index, new ColumnarRecordBatch(), null, null, ParentEncoding.NONE, stats);
+  }
+
+  /**
+   * Validity to consult for absent lists, only needed when some of them
+   * have elements; otherwise their being empty already says it all.
+   */
+  private static ValueVector[][] getListValidity(FlattenPlan.Bound bound) {
+    return bound.nullListsWithElements ? bound.listValidity : null;
+  }
+
+  /**
+   * Predicates bound to their leaf vectors and grouped by level.
+   */
+  private static class PredicateFilter implements RepetitionIndex.LevelFilter {
+    private final List<List<LeafPredicate>> levelPredicates;
+    private final List<List<ValueVector>> levelLeaves;
+    // structs with nulls above the predicate leaves, whose nulls never match
+    private final List<List<ValueVector>> levelStructs;
+    private int maxLevel;
+    // top-level rows that may match, from statistics; null if all may
+    private SelectionBitmap rows;
+
+    PredicateFilter(FlattenPlan.Bound bound, List<LeafPredicate> predicates) {
+      levelPredicates = new ArrayList<>();
+      levelLeaves = new ArrayList<>();
+      levelStructs = new ArrayList<>();
+      for (int level = 0; level < bound.lists.length; level++) {
+        levelPredicates.add(new ArrayList<LeafPredicate>());
+        levelLeaves.add(new ArrayList<ValueVector>());
+        levelStructs.add(new ArrayList<ValueVector>());
+      }
+      for (LeafPredicate predicate : predicates) {
+        int ordinal = bound.plan.getFilterLeafOrdinal(predicate.getPath());
+        int level = bound.plan.getFilterLeaf(ordinal).level;
+        levelPredicates.get(level).add(predicate);
+        levelLeaves.get(level).add(bound.filterVectors[ordinal]);
+        for (ValueVector struct : bound.filterStructs[ordinal]) {
+          if (!levelStructs.get(level).contains(struct)) {
+            levelStructs.get(level).add(struct);
+          }
+        }
+        maxLevel = Math.max(maxLevel, level);
+      }
+    }
+
+    @Override
+    public void filter(int level, int start, int end, SelectionBitmap selection) {
+      List<LeafPredicate> predicates = levelPredicates.get(level);
+      List<ValueVector> leaves = levelLeaves.get(level);
+      if (level == 0 && rows != null) {
+        selection.and(rows, start, end);
+      }
+      for (ValueVector struct : levelStructs.get(level)) {
+        selection.and(((FieldVector)struct).getValidityBuffer(), start, end);
+      }
+      for (int i = 0; i < predicates.size(); i++) {
+        predicates.get(i).filter(leaves.get(i), start, end, selection);
+      }
+    }
+  }
+
+  /**
+   * Flatten on a fork/join pool. The flattened rows, which are a contiguous
+   * range of deepest-level elements, are cut into partitions of equal size
+   * regardless of how unevenly the top-level rows expand; a partition may
+   * start or end in the middle of a list. Each partition is indexed and
+   * copied by its own task into vectors from its own child allocator, which
+   * the returned batch closes with its vectors. The batches are returned in
+   * row order.
+   */
+  List<ColumnarRecordBatch> flattenParallel(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      ForkJoinPool pool,
+      int partitions) {
+    Preconditions.checkArgument(partitions > 0, "partitions must be positive");
+    long planStart = startTimer();
+    final FlattenPlan.Bound bound = getPlan(column, vector, projectedPaths, null).bind(vector);
+    checkNoNullListsWithElements(bound);
+    final long planningNanos = planStart == 0 ? 0 : System.nanoTime() - planStart;
+    int start = RepetitionIndex.toDeepest(bound.lists, 0);
+    int end = RepetitionIndex.toDeepest(bound.lists, vector.getValueCount());
+    long rowCount = end - start;
+    // no empty partitions, but always at least one batch
+    int taskCount = (int)Math.max(1, Math.min(partitions, rowCount));
+    final BufferAllocator parent = vector.getAllocator();
+    List<ForkJoinTask<ColumnarRecordBatch>> tasks = new ArrayList<>();
+    RuntimeException failure = null;
+    for (int i = 0; i < taskCount; i++) {
+      final int partition = i;
+      final int partitionStart = start + (int)(rowCount * i / taskCount);
+      final int partitionEnd = start + (int)(rowCount * (i + 1) / taskCount);
+      final long partitionPlanningNanos = i == 0 ? planningNanos : 0;
+      try {
+        tasks.add(pool.submit(new Callable<ColumnarRecordBatch>() {
+          @Override
+          public ColumnarRecordBatch call() {
+            // created by the task, so that a task never run holds no allocator
+            BufferAllocator allocator = parent.newChildAllocator(column + "-flatten-" + partition, 0,
+                Long.MAX_VALUE);
+            ColumnarRecordBatch batch = new ColumnarRecordBatch(allocator);
+            try {
+              return flattenRange(bound, partitionStart, partitionEnd, batch, allocator, null,
+                  partitionPlanningNanos);
+            } catch (RuntimeException e) {
+              batch.close();
+              throw e;
             }
           }
+        }));
+      } catch (RuntimeException e) {
+        // e.g. rejected by a shut down pool, the tasks submitted so far are
+        // still joined below so that their batches are closed
+        failure = e;
+        break;
+      }
+    }
+    List<ColumnarRecordBatch> batches = new ArrayList<>();
+    for (ForkJoinTask<ColumnarRecordBatch> task : tasks) {
+      try {
+        batches.add(task.join());
+      } catch (RuntimeException e) {
+        failure = failure == null ? e : failure;
+      }
+    }
+    if (failure != null) {
+      for (ColumnarRecordBatch batch : batches) {
+        batch.close();
+      }
+      throw failure;
+    }
+    return batches;
+  }
+
+  /**
+   * Streaming variant of {@link #flatten(String, ValueVector)} that produces
+   * the same rows as successive batches of at most maxRowsPerBatch rows. A
+   * batch boundary may fall anywhere, including in the middle of a list, so
+   * the memory held by one batch stays bounded however much a single top-level
+   * row expands. Batches are owned and closed by the caller.
+   */
+  FlattenIterator flatten(String column, ValueVector vector, int maxRowsPerBatch) {
+    return flatten(column, vector, null, maxRowsPerBatch);
+  }
+
+  FlattenIterator flatten(String column, ValueVector vector, List<String> projectedPaths, int maxRowsPerBatch) {
+    return flatten(column, vector, projectedPaths, maxRowsPerBatch, null);
+  }
+
+  /**
+   * Streaming flatten writing every batch into the vectors of output, so
+   * that after the first batch or two the iterator allocates nothing. Each
+   * batch is only valid until the next call to next().
+   */
+  FlattenIterator flatten(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      int maxRowsPerBatch,
+      FlattenOutput output) {
+    Preconditions.checkArgument(maxRowsPerBatch > 0, "maxRowsPerBatch must be positive");
+    long planStart = startTimer();
+    FlattenPlan.Bound bound = getPlan(column, vector, projectedPaths, null).bind(vector);
+    checkNoNullListsWithElements(bound);
+    return new FlattenIterator(this, bound, vector.getValueCount(), maxRowsPerBatch, output,
+        planStart == 0 ? 0 : System.nanoTime() - planStart);
+  }
+
+  /**
+   * Same as {@link #flatten(String, ValueVector, int)} with the batch size
+   * derived from a budget on the bytes allocated for the output vectors.
+   */
+  FlattenIterator flattenWithByteBudget(String column, ValueVector vector, long maxBytesPerBatch) {
+    Preconditions.checkArgument(maxBytesPerBatch > 0, "maxBytesPerBatch must be positive");
+    long planStart = startTimer();
+    FlattenPlan.Bound bound = getPlan(column, vector, null, null).bind(vector);
+    checkNoNullListsWithElements(bound);
+    long maxRows = Math.max(1, maxBytesPerBatch / getBytesPerRow(bound));
+    return new FlattenIterator(this, bound, vector.getValueCount(), (int)Math.min(Integer.MAX_VALUE, maxRows), null,
+        planStart == 0 ? 0 : System.nanoTime() - planStart);
+  }
+
+  /**
+   * The streaming and parallel variants cut the flattened rows as ranges of
+   * deepest-level elements, which is only right when no absent list has
+   * elements. Lists written through Arrow never do; only a null struct over
+   * a non-empty list leaves them, and flatten() handles that.
+   */
+  private static void checkNoNullListsWithElements(FlattenPlan.Bound bound) {
+    if (bound.nullListsWithElements) {
+      throw new UnsupportedOperationException("Streaming flatten is not supported on lists with elements under "
+          + "null structs");
+    }
+  }
+
+  /**
+   * Plan for the vector's schema from the plan cache, compiled on first use.
+   */
+  private FlattenPlan getPlan(
+      String column,
+      ValueVector vector,
+      List<String> projectedPaths,
+      List<LeafPredicate> predicates) {
+    Types.MinorType type = vector.getMinorType();
+    if (type != Types.MinorType.LIST && type != Types.MinorType.MAP && type != Types.MinorType.STRUCT) {
+      throw new UnsupportedOperationException("Flatten is not supported on primitive root types");
+    }
+    List<String> predicatePaths = new ArrayList<>();
+    if (predicates != null) {
+      for (LeafPredicate predicate : predicates) {
+        predicatePaths.add(predicate.getPath());
+      }
+    }
+    return FlattenPlan.compile(column, ((FieldVector)vector).getField(), projectedPaths, predicatePaths);
+  }
+
+  /**
+   * Bytes allocated per output row: the data width of every leaf plus one
+   * validity bit each, rounded up to a whole byte per leaf. Variable-width
+   * leaves count their average value length in the input and an offset.
+   */
+  private long getBytesPerRow(FlattenPlan.Bound bound) {
+    long bytes = 0;
+    for (ValueVector leaf : bound.leafVectors) {
+      if (leaf instanceof BaseVariableWidthVector) {
+        int valueCount = leaf.getValueCount();
+        long dataBytes = valueCount == 0 ? 0
+            : ((BaseVariableWidthVector)leaf).getOffsetBuffer().getInt((long)valueCount << 2);
+        bytes += (valueCount == 0 ? 0 : (dataBytes + valueCount - 1) / valueCount) + 4 + 1;
+      } else {
+        bytes += ((BaseFixedWidthVector)leaf).getTypeWidth() + 1;
+      }
+    }
+    return Math.max(1, bytes);
+  }
+
+  /**
+   * Flatten the rows produced by deepest-level elements [start, end), which
+   * may begin and end in the middle of lists, into the vectors of output or
+   * into new vectors when it is null.
+   *
+   * @param planningNanos planning time to report with this batch
+   */
+  ColumnarRecordBatch flattenRange(
+      FlattenPlan.Bound bound,
+      int start,
+      int end,
+      FlattenOutput output,
+      long planningNanos) {
+    ColumnarRecordBatch batch = output == null ? new ColumnarRecordBatch() : new ColumnarRecordBatch(null, false);
+    return flattenRange(bound, start, end, batch, null, output, planningNanos);
+  }
+
+  private ColumnarRecordBatch flattenRange(
+      FlattenPlan.Bound bound,
+      int start,
+      int end,
+      ColumnarRecordBatch batch,
+      BufferAllocator allocator,
+      FlattenOutput output,
+      long planningNanos) {
+    long indexStart = startTimer();
+    RepetitionIndex index = RepetitionIndex.forDeepestRange(bound.lists, start, end);
+    FlattenStats stats = newStats(bound, 0);
+    if (stats != null) {
+      stats.planningNanos = planningNanos;
+      stats.indexNanos = System.nanoTime() - indexStart;
+      stats.inputRows = index.getElementCount(0);
+    }
+    return materialize(bound, index, batch, allocator, output, ParentEncoding.NONE, stats);
+  }
+
+  /**
+   * System.nanoTime() when someone listens, otherwise 0.
+   */
+  private long startTimer() {
+    return listener == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * Stats for a batch of the bound column, null when no one listens.
+   *
+   * @param planStart when planning started, 0 to report no planning time
+   */
+  private FlattenStats newStats(FlattenPlan.Bound bound, long planStart) {
+    if (listener == null) {
+      return null;
+    }
+    FlattenStats stats = new FlattenStats(bound.plan.getColumn());
+    if (planStart != 0) {
+      stats.planningNanos = System.nanoTime() - planStart;
+    }
+    return stats;
+  }
+
+  /**
+   * Copy the leaves selected by the index into the vectors of output or,
+   * without one, into new vectors allocated from the given allocator or,
+   * when it is null, from the allocator of each input leaf. The vectors are
+   * added to the output batch, or encoded into it for the leaves above the
+   * deepest level unless the encoding is NONE. With stats, the copy times and
+   * output sizes are added to them and they are reported to the listener.
+   */
+  private ColumnarRecordBatch materialize(
+      FlattenPlan.Bound bound,
+      RepetitionIndex index,
+      ColumnarRecordBatch outputRecordBatch,
+      BufferAllocator allocator,
+      FlattenOutput output,
+      ParentEncoding encoding,
+      FlattenStats stats) {
+    int rowCount = index.getRowCount();
+    int depth = index.getDepth();
+    FlattenPlan.Leaf[] leaves = bound.plan.getLeaves();
+    if (stats != null) {
+      stats.columns = new String[leaves.length];
+      stats.columnBytes = new long[leaves.length];
+    }
+    for (int i = 0; i < leaves.length; i++) {
+      FlattenPlan.Leaf leaf = leaves[i];
+      ValueVector child = bound.leafVectors[i];
+      long copyStart = stats == null ? 0 : System.nanoTime();
+      if (encoding != ParentEncoding.NONE && leaf.level < depth) {
+        long bytes = encode(bound, index, i, outputRecordBatch, allocator == null ? child.getAllocator() : allocator,
+            encoding);
+        if (stats != null) {
+          stats.replicationNanos += System.nanoTime() - copyStart;
+          stats.columns[i] = leaf.name;
+          stats.columnBytes[i] = bytes;
+        }
+        continue;
+      }
+      ValueVector out = output != null ? output.getVector(leaf, child)
+          : getOutputVector(child, allocator == null ? child.getAllocator() : allocator);
+      // values under a null struct are null whatever the leaf says
+      if (leaf.level == depth && index.isContiguous()) {
+        int start = index.getDeepestStart();
+        leaf.copier.copyRange(child, start, out, rowCount);
+        ArrowBuf validity = ((FieldVector)out).getValidityBuffer();
+        for (ValueVector struct : bound.leafStructs[i]) {
+          ValidityBitmaps.andRange(((FieldVector)struct).getValidityBuffer(), start, validity, 0, rowCount);
+        }
+      } else {
+        int[] elements = index.getElements(leaf.level);
+        if (index.hasNullElements(leaf.level)) {
+          leaf.copier.gatherNullable(child, elements, out, rowCount);
         } else {
-          // TODO: incomplete code
+          leaf.copier.gather(child, elements, out, rowCount);
+        }
+        ArrowBuf validity = ((FieldVector)out).getValidityBuffer();
+        for (ValueVector struct : bound.leafStructs[i]) {
+          ValidityBitmaps.andGathered(((FieldVector)struct).getValidityBuffer(), elements, validity, 0, rowCount);
         }
       }
+      out.setValueCount(rowCount);
+      outputRecordBatch.addVector(leaf.name, out);
+      if (stats != null) {
+        // deepest leaves are copied, the ones above are replicated
+        if (leaf.level == depth) {
+          stats.copyNanos += System.nanoTime() - copyStart;
+        } else {
+          stats.replicationNanos += System.nanoTime() - copyStart;
+        }
+        stats.columns[i] = leaf.name;
+        stats.columnBytes[i] = getBufferBytes(out);
+      }
+    }
+    outputRecordBatch.setRowCount(rowCount);
+    outputRecordBatch.setRepetitionIndex(index);
+    if (stats != null) {
+      stats.outputRows = rowCount;
+      stats.levelRows = new long[depth + 1];
+      for (int level = 0; level <= depth; level++) {
+        stats.levelRows[level] = index.getElementCount(level);
+      }
+      FlattenListener listener = this.listener;
+      if (listener != null) {
+        listener.batchFlattened(stats);
+      }
     }
     return outputRecordBatch;
   }
 
-  private void setValue(ValueVector vector, int index, Object value) {
-    switch (vector.getMinorType()) {
-      case INT:
-        IntVector intVector = (IntVector)vector;
-        intVector.set(index, (Integer)value);
-        break;
-      case BIGINT:
-        BigIntVector bigIntVector = (BigIntVector)vector;
-        bigIntVector.set(index, (Long)value);
-        break;
-      case FLOAT4:
-        Float4Vector floatVector = (Float4Vector)vector;
-        floatVector.set(index, (Float)value);
-        break;
-      case FLOAT8:
-        Float8Vector doubleVector = (Float8Vector)vector;
-        doubleVector.set(index, (Double)value);
-        break;
-      default:
-        throw new IllegalStateException("output vectors are leaves which should be primitive type");
+  /**
+   * Add leaf i, which is above the deepest level, to the batch with one
+   * value per run of rows from the same element, as a run-length column, or
+   * as dictionary indices into the distinct values of those runs. Returns
+   * the bytes allocated.
+   */
+  private long encode(
+      FlattenPlan.Bound bound,
+      RepetitionIndex index,
+      int i,
+      ColumnarRecordBatch batch,
+      BufferAllocator allocator,
+      ParentEncoding encoding) {
+    FlattenPlan.Leaf leaf = bound.plan.getLeaves()[i];
+    ValueVector child = bound.leafVectors[i];
+    RepetitionIndex.Runs runs = index.getRuns(leaf.level);
+    int runCount = runs.getCount();
+    ValueVector values = getOutputVector(child, allocator);
+    if (runs.hasNulls) {
+      leaf.copier.gatherNullable(child, runs.elements, values, runCount);
+    } else {
+      leaf.copier.gather(child, runs.elements, values, runCount);
+    }
+    ArrowBuf validity = ((FieldVector)values).getValidityBuffer();
+    for (ValueVector struct : bound.leafStructs[i]) {
+      ValidityBitmaps.andGathered(((FieldVector)struct).getValidityBuffer(), runs.elements, validity, 0, runCount);
     }
+    values.setValueCount(runCount);
+    IntVector encoded;
+    if (encoding == ParentEncoding.RUN_LENGTH) {
+      encoded = new IntVector(leaf.name + "$runEnds", allocator);
+      encoded.allocateNew(runCount);
+      for (int run = 0; run < runCount; run++) {
+        encoded.set(run, runs.ends[run]);
+      }
+      encoded.setValueCount(runCount);
+      batch.addRunLengthColumn(leaf.name, new RunLengthColumn(values, encoded));
+    } else {
+      // one dictionary entry per distinct value of the batch, so runs of
+      // different elements with the same value share it
+      int[] ids = new int[runCount];
+      int[] firstRuns = new int[runCount];
+      int distinctCount = DistinctValues.assign(values, runCount, ids, firstRuns);
+      ValueVector dictionaryValues = getOutputVector(child, allocator);
+      try {
+        leaf.copier.gather(values, firstRuns, dictionaryValues, distinctCount);
+        dictionaryValues.setValueCount(distinctCount);
+      } finally {
+        values.close();
+      }
+      values = dictionaryValues;
+
+      DictionaryEncoding dictionaryEncoding = new DictionaryEncoding(i, false, new ArrowType.Int(32, true));
+      encoded = new IntVector(leaf.name, new FieldType(true, dictionaryEncoding.getIndexType(), dictionaryEncoding),
+          allocator);
+      int rowCount = index.getRowCount();
+      encoded.allocateNew(rowCount);
+      int row = 0;
+      for (int run = 0; run < runCount; run++) {
+        int id = ids[run];
+        for (; row < runs.ends[run]; row++) {
+          if (id >= 0) {
+            encoded.set(row, id);
+          }
+        }
+      }
+      encoded.setValueCount(rowCount);
+      batch.addDictionaryColumn(leaf.name, encoded, new Dictionary((FieldVector)values, dictionaryEncoding));
+    }
+    return getBufferBytes(values) + getBufferBytes(encoded);
   }
 
-  private ValueVector getOutputVector(ValueVector inputVector) {
+  private static long getBufferBytes(ValueVector vector) {
+    long bytes = 0;
+    for (ArrowBuf buffer : ((FieldVector)vector).getFieldBuffers()) {
+      bytes += buffer.capacity();
+    }
+    return bytes;
+  }
+
+  static ValueVector getOutputVector(ValueVector inputVector, BufferAllocator allocator) {
     switch (inputVector.getMinorType()) {
       case INT:
-        return new IntVector(inputVector.getName(), inputVector.getAllocator());
+        return new IntVector(inputVector.getName(), allocator);
       case BIGINT:
-        return new BigIntVector(inputVector.getName(), inputVector.getAllocator());
+        return new BigIntVector(inputVector.getName(), allocator);
       case FLOAT4:
-        return new Float4Vector(inputVector.getName(), inputVector.getAllocator());
+        return new Float4Vector(inputVector.getName(), allocator);
       case FLOAT8:
-        return new Float8Vector(inputVector.getName(), inputVector.getAllocator());
+        return new Float8Vector(inputVector.getName(), allocator);
+      case VARCHAR:
+        return new VarCharVector(inputVector.getName(), allocator);
+      case VARBINARY:
+        return new VarBinaryVector(inputVector.getName(), allocator);
       default:
         throw new IllegalStateException("output vectors are leaves which should be primitive type");
     }
   }
 
-  private static class ChildrenAndParent {
-    ValueVector parent;
-    List<ValueVector> children;
-    ChildrenAndParent(ValueVector parent) {
-      this.parent = parent;
-      this.children = new ArrayList<>();
-    }
+  /**
+   * How the leaves of the levels above the deepest are output. A run-length
+   * column stores one value per run of rows that come from the same
+   * element, and a dictionary one per distinct value among those runs, so
+   * those columns take memory in proportion to the elements of their level
+   * rather than to the flattened rows.
+   */
+  enum ParentEncoding {
+    // a value per row, replicated
+    NONE,
+    // a dictionary of the distinct values of the batch and an INT index per
+    // row, null for a null value, which Arrow readers and writers
+    // understand (DictionaryEncoder.decode)
+    DICTIONARY,
+    // the run values and the end row of each run, see RunLengthColumn
+    RUN_LENGTH
   }
 
-  // person = struct (name, age, salary, list(struct(apt, zip, list(struct(phone number, type)))))
-  private void buildLevelToNodesMap(
-      ValueVector vector,
-      Map<Integer, ChildrenAndParent> levelToNodes,
-      int level,
-      ValueVector parent) {
-    switch (vector.getMinorType()) {
-      case LIST:
-        ListVector listVector = (ListVector)vector;
-        // increase the level for the underlying data source of list
-        // this will help us backtrack with repetition level for the inner count
-        buildLevelToNodesMap(listVector.getDataVector(), levelToNodes, level + 1, listVector);
-        break;
-      case STRUCT:
-        StructVector structVector = (StructVector)vector;
-        for (String child : structVector.getChildFieldNames()) {
-          FieldVector childVector = structVector.getChild(child);
-          // this is buggy -- passing struct as parent won't help
-          // we need to pass parent of struct (which for our example of person
-          // happens to be list). Generalize this.
-          // no need to change the level for children of struct since that
-          // doesn't increase the repetition level
-          buildLevelToNodesMap(childVector, levelToNodes, level, parent);
-        }
-        break;
-      case INT:
-      case BIGINT:
-      case FLOAT4:
-      case FLOAT8:
-        ChildrenAndParent childrenAndParent = levelToNodes.get(level);
-        if (childrenAndParent == null) {
-          childrenAndParent = new ChildrenAndParent(parent);
-          levelToNodes.put(level, childrenAndParent);
-        }
-        childrenAndParent.children.add(vector);
-        break;
+  /**
+   * What becomes of an element whose list is absent or empty.
+   */
+  enum JoinType {
+    // drop it
+    INNER,
+    // keep it as one row with nulls below it
+    OUTER
+  }
+
+  /**
+   * How the lists held by the same elements, e.g. a person's addresses and
+   * emails, combine into rows.
+   */
+  enum SiblingMode {
+    // row j of an element pairs the j-th element of every sibling list,
+    // null where a list is shorter: max(lengths) rows
+    ZIP,
+    // every combination of the siblings' elements: the product of the
+    // lengths, nested in schema order
+    CROSS
+  }
+
+  /**
+   * Flattened cardinality per top-level row.
+   */
+  public static class FlattenCounts {
+    private final int[] rowCounts;
+    private final long total;
+
+    FlattenCounts(int[] rowCounts) {
+      this.rowCounts = rowCounts;
+      long total = 0;
+      for (int count : rowCounts) {
+        total += count;
+      }
+      this.total = total;
+    }
+
+    int getRowCount(int topLevelRow) {
+      return rowCounts[topLevelRow];
+    }
+
+    int getTopLevelRowCount() {
+      return rowCounts.length;
+    }
+
+    long getTotal() {
+      return total;
     }
   }
 
-  public static class ColumnarRecordBatch {
+  public static class ColumnarRecordBatch implements AutoCloseable {
     private final Map<String, ValueVector> columnData;
     private final Map<String, Types.MinorType> columnTypes;
+    // allocator dedicated to this batch, closed with it
+    private final BufferAllocator allocator;
+    // false when the vectors belong to a FlattenOutput
+    private final boolean ownsVectors;
+    private final Map<String, RunLengthColumn> runLengthColumns = new LinkedHashMap<>();
+    private final DictionaryProvider.MapDictionaryProvider dictionaries = new DictionaryProvider.MapDictionaryProvider();
+    private int rowCount;
+    // null unless the rows come straight from a flatten
+    private RepetitionIndex index;
 
     ColumnarRecordBatch () {
-      columnData = new HashMap<>();
-      columnTypes = new HashMap<>();
+      this(null);
+    }
+
+    ColumnarRecordBatch (BufferAllocator allocator) {
+      this(allocator, true);
+    }
+
+    ColumnarRecordBatch (BufferAllocator allocator, boolean ownsVectors) {
+      columnData = new LinkedHashMap<>();
+      columnTypes = new LinkedHashMap<>();
+      this.allocator = allocator;
+      this.ownsVectors = ownsVectors;
     }
 
     public void addVector(String column, ValueVector vector) {
@@ -254,71 +1016,84 @@ public class FlattenOperator {
       columnTypes.put(column, vector.getMinorType());
     }
 
+    /**
+     * Add a column of dictionary indices, whose dictionary is then available
+     * from {@link #getDictionaries()} by the id in its field's encoding.
+     */
+    void addDictionaryColumn(String column, IntVector indices, Dictionary dictionary) {
+      addVector(column, indices);
+      dictionaries.put(dictionary);
+    }
+
+    /**
+     * Add a run-length encoded column. Its type is the type of its values,
+     * and it is only available from {@link #getRunLengthColumn(String)}.
+     */
+    void addRunLengthColumn(String column, RunLengthColumn runs) {
+      runLengthColumns.put(column, runs);
+      columnTypes.put(column, runs.getValues().getMinorType());
+    }
+
+    /**
+     * The vector of a column, dictionary indices for a dictionary encoded
+     * one and null for a run-length encoded one.
+     */
     ValueVector getVector(String column) {
       return  columnData.get(column);
     }
 
+    RunLengthColumn getRunLengthColumn(String column) {
+      return runLengthColumns.get(column);
+    }
+
+    DictionaryProvider getDictionaries() {
+      return dictionaries;
+    }
+
     Types.MinorType getMinorType(String column) {
       return columnTypes.get(column);
     }
 
     Set<String> getColumns() {
-      return columnData.keySet();
+      return columnTypes.keySet();
     }
-  }
 
-  /*************************** UNUSED PARTIAL CODE ***********************************/
+    void setRowCount(int rowCount) {
+      this.rowCount = rowCount;
+    }
 
-  private void flattenStruct(
-      String column,
-      ValueVector vector,
-      ColumnarRecordBatch outputRecordBatch,
-      String parentColumn,
-      ValueVector parentVector) {
-    Preconditions.checkArgument(vector instanceof StructVector);
-    StructVector structVector = (StructVector)vector;
-    for (String child : structVector.getChildFieldNames()) {
-      FieldVector childVector = structVector.getChild(child);
-      Types.MinorType childType = childVector.getMinorType();
-      switch (childType) {
-        case INT:
-          IntVector intVector = new IntVector(child, structVector.getAllocator());
-          outputRecordBatch.addVector(child, intVector);
-          break;
-        case BIGINT:
-          BigIntVector bigIntVector = new BigIntVector(child, structVector.getAllocator());
-          outputRecordBatch.addVector(child, bigIntVector);
-          break;
-        case FLOAT4:
-          Float4Vector floatVector = new Float4Vector(child, structVector.getAllocator());
-          outputRecordBatch.addVector(child, floatVector);
-          break;
-        case FLOAT8:
-          Float8Vector doubleVector = new Float8Vector(child, structVector.getAllocator());
-          outputRecordBatch.addVector(child, doubleVector);
-          break;
-      }
+    int getRowCount() {
+      return rowCount;
     }
-  }
 
-  private void flattenList(
-      String column,
-      ValueVector vector,
-      ColumnarRecordBatch outputRecordBatch) {
-    Preconditions.checkArgument(vector instanceof ListVector);
-    ListVector listVector = (ListVector)vector;
-    FieldVector underlyingDataVector = listVector.getDataVector();
-    Types.MinorType innerType = underlyingDataVector.getMinorType();
-    switch (innerType) {
-      case LIST:
-        flattenList(underlyingDataVector.getName(), underlyingDataVector, outputRecordBatch);
-      case STRUCT:
-        flattenStruct(underlyingDataVector.getName(), underlyingDataVector, outputRecordBatch);
-      case INT:
-      case BIGINT:
-      case FLOAT4:
-      case FLOAT8:
-        handleLeaves(underlyingDataVector.getName(), underlyingDataVector, outputRecordBatch, listVector.getName(), listVector);
+    void setRepetitionIndex(RepetitionIndex index) {
+      this.index = index;
+    }
+
+    /**
+     * The element of every row at each level of the flattened column, which
+     * {@link NestOperator} nests the rows back with.
+     */
+    RepetitionIndex getRepetitionIndex() {
+      return index;
+    }
+
+    @Override
+    public void close() {
+      if (ownsVectors) {
+        for (ValueVector vector : columnData.values()) {
+          vector.close();
+        }
+        for (RunLengthColumn runs : runLengthColumns.values()) {
+          runs.close();
+        }
+        for (long id : dictionaries.getDictionaryIds()) {
+          dictionaries.lookup(id).getVector().close();
+        }
+      }
+      if (allocator != null) {
+        allocator.close();
+      }
     }
   }
 }
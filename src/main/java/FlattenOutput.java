@@ -0,0 +1,58 @@
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.ValueVector;
+
+/**
+ * Output vectors kept across flatten calls, one per output column.
+ *
+ * A flatten that writes into a FlattenOutput gets back a batch of the same
+ * vector objects every time, each overwritten in place when its buffers can
+ * hold the new rows and grown otherwise. Once the buffers have grown to the
+ * largest batch, flattening further batches of the same shape allocates
+ * nothing, so a scan over many record batches stops paying for allocator
+ * bookkeeping and buffer zeroing per batch.
+ *
+ * The vectors belong to this object: a batch returned for it is only valid
+ * until the next flatten into it, and closing the batch leaves the vectors
+ * alone. close() releases them.
+ */
+class FlattenOutput implements AutoCloseable {
+
+  private final Map<String, ValueVector> vectors = new HashMap<>();
+  // null to allocate from the allocator of each input leaf
+  private final BufferAllocator allocator;
+
+  FlattenOutput() {
+    this(null);
+  }
+
+  FlattenOutput(BufferAllocator allocator) {
+    this.allocator = allocator;
+  }
+
+  /**
+   * Vector for the output column of a leaf, created on first use and
+   * replaced when the leaf's type changed since.
+   */
+  ValueVector getVector(FlattenPlan.Leaf leaf, ValueVector input) {
+    ValueVector vector = vectors.get(leaf.name);
+    if (vector != null && vector.getMinorType() == input.getMinorType()) {
+      return vector;
+    }
+    if (vector != null) {
+      vector.close();
+    }
+    vector = FlattenOperator.getOutputVector(input, allocator == null ? input.getAllocator() : allocator);
+    vectors.put(leaf.name, vector);
+    return vector;
+  }
+
+  @Override
+  public void close() {
+    for (ValueVector vector : vectors.values()) {
+      vector.close();
+    }
+    vectors.clear();
+  }
+}
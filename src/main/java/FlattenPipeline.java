@@ -0,0 +1,374 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.util.Preconditions;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileReader;
+import org.apache.arrow.vector.ipc.ArrowReader;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.apache.arrow.vector.util.TransferPair;
+
+/**
+ * FLATTEN of one nested column of Arrow IPC record batches, written back
+ * out as an Arrow IPC stream of flat record batches.
+ *
+ *    try (ArrowFileReader reader = FlattenPipeline.openMapped(input, allocator)) {
+ *      FlattenPipeline.Result result = new FlattenPipeline(operator, "person", null, null)
+ *          .run(reader, allocator, Channels.newChannel(out));
+ *    }
+ *
+ * A decoder thread reads batch N + 1 while batch N is flattened and written:
+ * it loads each batch into the reader's VectorSchemaRoot and transfers the
+ * nested column out of it, without copying, onto a queue of one batch. The
+ * flattened leaves are in turn transferred into the VectorSchemaRoot of the
+ * writer, whose schema, one nullable field per output leaf, is known from
+ * the plan before the first batch. The plan is compiled once for the
+ * reader's schema.
+ *
+ * {@link #openMapped} reads an Arrow file through a memory mapping, so that
+ * decoding copies the record batch bodies straight from the page cache into
+ * Arrow buffers without read() calls or an intermediate heap buffer.
+ */
+final class FlattenPipeline {
+
+  // mapped regions of at most 1GB, each read with one ByteBuffer
+  private static final long REGION_SIZE = 1L << 30;
+
+  private final FlattenOperator operator;
+  private final String column;
+  private final List<String> projectedPaths;
+  private final List<LeafPredicate> predicates;
+
+  /**
+   * @param projectedPaths dotted paths to output, null for every leaf
+   * @param predicates rows to keep, null or empty for every row
+   */
+  FlattenPipeline(FlattenOperator operator, String column, List<String> projectedPaths,
+      List<LeafPredicate> predicates) {
+    this.operator = operator;
+    this.column = column;
+    this.projectedPaths = projectedPaths;
+    this.predicates = predicates;
+  }
+
+  /**
+   * Flatten every batch of the reader into an Arrow stream written to out.
+   * The reader is read on another thread until it is exhausted, but is left
+   * open.
+   *
+   * @param allocator for the vectors of the writer
+   */
+  Result run(ArrowReader reader, BufferAllocator allocator, WritableByteChannel out) throws IOException {
+    long start = System.nanoTime();
+    Schema inputSchema = reader.getVectorSchemaRoot().getSchema();
+    Field field = inputSchema.findField(column);
+    List<String> predicatePaths = new ArrayList<>();
+    if (predicates != null) {
+      for (LeafPredicate predicate : predicates) {
+        predicatePaths.add(predicate.getPath());
+      }
+    }
+    FlattenPlan plan = FlattenPlan.compile(column, field, projectedPaths, predicatePaths);
+    plan.checkNoSiblingLists();
+    List<Field> outputFields = new ArrayList<>();
+    for (FlattenPlan.Leaf leaf : plan.getLeaves()) {
+      outputFields.add(Field.nullable(leaf.name, leaf.type.getType()));
+    }
+
+    Decoder decoder = new Decoder(reader, column);
+    Thread thread = new Thread(decoder, "flatten-decoder-" + column);
+    thread.setDaemon(true);
+    long inputRows = 0;
+    long outputRows = 0;
+    int batches = 0;
+    try (VectorSchemaRoot output = VectorSchemaRoot.create(new Schema(outputFields), allocator);
+         ArrowStreamWriter writer = new ArrowStreamWriter(output, null, out)) {
+      writer.start();
+      thread.start();
+      FieldVector vector;
+      while ((vector = decoder.take()) != null) {
+        try (FieldVector input = vector;
+             FlattenOperator.ColumnarRecordBatch batch = operator.flatten(plan, input, predicates,
+                 FlattenOperator.JoinType.INNER)) {
+          FlattenPlan.Leaf[] leaves = plan.getLeaves();
+          for (int i = 0; i < leaves.length; i++) {
+            ((FieldVector)batch.getVector(leaves[i].name)).makeTransferPair(output.getVector(i)).transfer();
+          }
+          output.setRowCount(batch.getRowCount());
+          writer.writeBatch();
+          inputRows += input.getValueCount();
+          outputRows += batch.getRowCount();
+          batches++;
+        }
+      }
+      writer.end();
+      return new Result(batches, inputRows, outputRows, reader.bytesRead(), writer.bytesWritten(),
+          System.nanoTime() - start);
+    } finally {
+      decoder.stop(thread);
+    }
+  }
+
+  /**
+   * Open an Arrow file for reading through a read-only memory mapping of it.
+   */
+  static ArrowFileReader openMapped(Path file, BufferAllocator allocator) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      List<MappedByteBuffer> regions = new ArrayList<>();
+      for (long position = 0; position < size; position += REGION_SIZE) {
+        regions.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position)));
+      }
+      // the mappings stay valid once the file channel is closed
+      return new ArrowFileReader(new MappedChannel(regions, size), allocator);
+    }
+  }
+
+  /**
+   * Reads batches on its own thread and hands over the flattened column of
+   * each, one batch ahead of the consumer.
+   */
+  private static final class Decoder implements Runnable {
+    private static final Object END = new Object();
+
+    private final ArrowReader reader;
+    private final String column;
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(1);
+    private volatile boolean stopped;
+
+    Decoder(ArrowReader reader, String column) {
+      this.reader = reader;
+      this.column = column;
+    }
+
+    @Override
+    public void run() {
+      Object last = END;
+      try {
+        while (!stopped && reader.loadNextBatch()) {
+          FieldVector loaded = reader.getVectorSchemaRoot().getVector(column);
+          TransferPair pair = loaded.getTransferPair(loaded.getAllocator());
+          pair.transfer();
+          FieldVector vector = (FieldVector)pair.getTo();
+          try {
+            queue.put(vector);
+          } catch (InterruptedException e) {
+            vector.close();
+            return;
+          }
+        }
+      } catch (Throwable e) {
+        last = e;
+      }
+      try {
+        queue.put(last);
+      } catch (InterruptedException e) {
+        // the consumer has stopped
+      }
+    }
+
+    /**
+     * The next batch's column, owned by the caller, or null after the last.
+     */
+    FieldVector take() throws IOException {
+      Object next;
+      try {
+        next = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the next batch", e);
+      }
+      if (next instanceof IOException) {
+        throw (IOException)next;
+      }
+      if (next instanceof RuntimeException) {
+        throw (RuntimeException)next;
+      }
+      if (next instanceof Error) {
+        throw (Error)next;
+      }
+      return next == END ? null : (FieldVector)next;
+    }
+
+    /**
+     * Stop the decoder thread, possibly in the middle of the input after a
+     * failure, and free the batches it queues until it does. The thread is
+     * not interrupted: an interrupted read closes an interruptible input
+     * channel halfway through a batch, whose buffers would then leak.
+     */
+    void stop(Thread thread) {
+      stopped = true;
+      boolean interrupted = false;
+      while (true) {
+        boolean done = !thread.isAlive();
+        Object queued = queue.poll();
+        if (queued instanceof FieldVector) {
+          ((FieldVector)queued).close();
+        }
+        if (done) {
+          break;
+        }
+        try {
+          thread.join(10);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Read-only channel over the mapped regions of a file.
+   */
+  private static final class MappedChannel implements SeekableByteChannel {
+    private final List<MappedByteBuffer> regions;
+    private final long size;
+    private long position;
+    private boolean open = true;
+
+    MappedChannel(List<MappedByteBuffer> regions, long size) {
+      this.regions = regions;
+      this.size = size;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      checkOpen();
+      if (position >= size) {
+        return -1;
+      }
+      int read = 0;
+      while (dst.hasRemaining() && position < size) {
+        ByteBuffer region = regions.get((int)(position / REGION_SIZE)).duplicate();
+        region.position((int)(position % REGION_SIZE));
+        if (region.remaining() > dst.remaining()) {
+          region.limit(region.position() + dst.remaining());
+        }
+        read += region.remaining();
+        position += region.remaining();
+        dst.put(region);
+      }
+      return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+      checkOpen();
+      return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+      checkOpen();
+      Preconditions.checkArgument(newPosition >= 0, "negative position");
+      position = newPosition;
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+      checkOpen();
+      return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+
+    private void checkOpen() throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+    }
+  }
+
+  /**
+   * Totals of a run. Input bytes are the IPC bytes decoded, so
+   * {@link #getGigabytesPerSecond()} is the decode-to-write throughput.
+   */
+  static final class Result {
+    private final int batches;
+    private final long inputRows;
+    private final long outputRows;
+    private final long inputBytes;
+    private final long outputBytes;
+    private final long nanos;
+
+    Result(int batches, long inputRows, long outputRows, long inputBytes, long outputBytes, long nanos) {
+      this.batches = batches;
+      this.inputRows = inputRows;
+      this.outputRows = outputRows;
+      this.inputBytes = inputBytes;
+      this.outputBytes = outputBytes;
+      this.nanos = nanos;
+    }
+
+    int getBatches() {
+      return batches;
+    }
+
+    long getInputRows() {
+      return inputRows;
+    }
+
+    long getOutputRows() {
+      return outputRows;
+    }
+
+    long getInputBytes() {
+      return inputBytes;
+    }
+
+    long getOutputBytes() {
+      return outputBytes;
+    }
+
+    long getNanos() {
+      return nanos;
+    }
+
+    double getGigabytesPerSecond() {
+      return nanos == 0 ? 0 : (double)inputBytes / nanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d batches, %d -> %d rows, %d -> %d bytes in %.1f ms, %.3f GB/s", batches, inputRows,
+          outputRows, inputBytes, outputBytes, nanos / 1e6, getGigabytesPerSecond());
+    }
+  }
+}
@@ -0,0 +1,605 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.AbstractStructVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.types.Types;
+import org.apache.arrow.vector.types.pojo.Field;
+
+/**
+ * FLATTEN compiled from the schema of the flattened column.
+ *
+ * Compiling walks the {@link Field} tree once to find the list of every
+ * repetition level and the leaves to output, each with the child ordinals
+ * leading to it from the root and the {@link LeafCopier} for its type.
+ * A plan is immutable and cached per schema, so batches sharing a schema
+ * only pay for {@link #bind(ValueVector)}, which follows the ordinals to
+ * the batch's vectors in O(number of columns).
+ *
+ * Along with each leaf and list the plan records the structs on the way to
+ * it within its level, since a null struct makes everything beneath it at
+ * that level null: a leaf is only valid where all those structs are valid,
+ * and a list is only present where they are. Binding keeps only the vectors
+ * that actually hold nulls, so null-free batches skip validity work.
+ *
+ * person = struct (name, age, salary, list(struct(apt, zip, list(struct(phone number, type)))))
+ *
+ *    level 0 -- name, age, salary
+ *    level 1 -- apt, zip               list: person.addresses
+ *    level 2 -- phone-number, type     list: person.addresses.phones
+ *
+ * Lists are numbered in schema order and each records the level of the
+ * elements holding it. A struct with several lists, such as addresses and
+ * emails, makes them siblings: the levels form a tree rather than a chain,
+ * and only {@link #bindTree(ValueVector)} binds such a plan, for a flatten
+ * that zips or crosses the siblings. Everything else flattens one path of
+ * lists and gets it from {@link #bind(ValueVector)}.
+ *
+ *    person = struct (age, list(struct(zip, list(phone))), list(email))
+ *
+ *    level 0 -- age
+ *    level 1 -- zip       list: person.addresses         parent 0
+ *    level 2 -- phone     list: person.addresses.phones  parent 1
+ *    level 3 -- email     list: person.emails            parent 0
+ */
+final class FlattenPlan {
+
+  // step from a list into its data vector, any other step is a child ordinal
+  private static final int LIST_DATA = -1;
+  private static final int MAX_CACHED_PLANS = 1024;
+  private static final Map<Key, FlattenPlan> CACHE = new ConcurrentHashMap<>();
+
+  private final String column;
+  private final Field field;
+  // listSteps[k] leads from the root to the list of level k, listSteps[0] is null
+  private final int[][] listSteps;
+  // listStructSteps[k] lead to the structs of level k - 1 enclosing that list
+  private final int[][][] listStructSteps;
+  // listPaths[k] is the dotted path of the list of level k, listPaths[0] is null
+  private final String[] listPaths;
+  // listParents[k] is the level of the elements holding list k, listParents[0] is -1
+  private final int[] listParents;
+  private final Leaf[] leaves;
+  private final Leaf[] filterLeaves;
+  // the node each filter path names, see resolve
+  private final Map<String, Node> filterNodes;
+
+  private FlattenPlan(String column, Field field, int[][] listSteps, int[][][] listStructSteps, String[] listPaths,
+      int[] listParents, Leaf[] leaves, Leaf[] filterLeaves, Map<String, Node> filterNodes) {
+    this.column = column;
+    this.field = field;
+    this.listSteps = listSteps;
+    this.listStructSteps = listStructSteps;
+    this.listPaths = listPaths;
+    this.listParents = listParents;
+    this.leaves = leaves;
+    this.filterLeaves = filterLeaves;
+    this.filterNodes = filterNodes;
+  }
+
+  /**
+   * Cached plan for flattening a column with the given schema.
+   *
+   * @param column name of the flattened column, the first segment of every path
+   * @param field schema of the flattened column
+   * @param projectedPaths dotted paths to output, null for every leaf
+   * @param filterPaths dotted paths of predicate leaves, their lists take part
+   *                    in the flatten even when they are not projected
+   */
+  static FlattenPlan compile(String column, Field field, List<String> projectedPaths, List<String> filterPaths) {
+    Key key = new Key(column, field, projectedPaths, filterPaths);
+    FlattenPlan plan = CACHE.get(key);
+    if (plan == null) {
+      plan = new Compiler(column, projectedPaths, filterPaths).compile(field);
+      if (CACHE.size() >= MAX_CACHED_PLANS) {
+        CACHE.clear();
+      }
+      CACHE.put(key, plan);
+    }
+    return plan;
+  }
+
+  String getColumn() {
+    return column;
+  }
+
+  Field getField() {
+    return field;
+  }
+
+  int getDepth() {
+    return listSteps.length - 1;
+  }
+
+  Leaf[] getLeaves() {
+    return leaves;
+  }
+
+  /**
+   * Level of the elements holding the list of each level, -1 for level 0.
+   * Level k - 1 for every k unless the plan has sibling lists.
+   */
+  int[] getListParents() {
+    return listParents;
+  }
+
+  /**
+   * Whether two lists are held by the same elements, or one by the other's
+   * elements with the other also holding a third. Either way the levels are
+   * not a single path.
+   */
+  boolean hasSiblingLists() {
+    for (int level = 1; level < listParents.length; level++) {
+      if (listParents[level] != level - 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Throw for a plan with sibling lists, which only a flatten with a
+   * {@link FlattenOperator.SiblingMode} supports.
+   */
+  void checkNoSiblingLists() {
+    for (int level = 1; level < listParents.length; level++) {
+      if (listParents[level] != level - 1) {
+        // lists are numbered depth first, so the first list of the parent's
+        // elements comes right after the parent
+        throw new UnsupportedOperationException("Flatten is not supported on sibling repeated fields: "
+            + listPaths[listParents[level] + 1] + ", " + listPaths[level]);
+      }
+    }
+  }
+
+  /**
+   * Level of the elements of the list at the given path, or -1 if the plan
+   * has no such list.
+   */
+  int getListLevel(String path) {
+    for (int level = 1; level < listPaths.length; level++) {
+      if (listPaths[level].equals(path)) {
+        return level;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Position of a predicate leaf in {@link Bound#filterVectors}.
+   */
+  int getFilterLeafOrdinal(String path) {
+    for (int i = 0; i < filterLeaves.length; i++) {
+      if (filterLeaves[i].path.equals(path)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Path was not compiled into the plan: " + path);
+  }
+
+  Leaf getFilterLeaf(int ordinal) {
+    return filterLeaves[ordinal];
+  }
+
+  /**
+   * Resolve the only path of a plan compiled with it as its one filter path
+   * and nothing projected, whose lists are then those on the path, in a
+   * vector with the plan's schema. See {@link NestedPaths#resolve}.
+   */
+  NestedPaths.Resolved resolve(ValueVector vector, String path) {
+    Node node = filterNodes.get(path);
+    if (node == null || listSteps.length != node.level + 1) {
+      throw new IllegalArgumentException("Path was not compiled alone into the plan: " + path);
+    }
+    ListVector[] lists = new ListVector[node.level + 1];
+    ValueVector[][] structs = new ValueVector[node.level + 1][];
+    for (int level = 1; level <= node.level; level++) {
+      lists[level] = (ListVector)follow(vector, listSteps[level]);
+      structs[level - 1] = followAll(vector, listStructSteps[level]);
+    }
+    structs[node.level] = followAll(vector, node.structSteps);
+    return new NestedPaths.Resolved(follow(vector, node.steps), lists, structs);
+  }
+
+  /**
+   * Resolve the lists and leaves of the plan in a vector with the plan's
+   * schema.
+   */
+  Bound bind(ValueVector vector) {
+    checkNoSiblingLists();
+    return bindTree(vector);
+  }
+
+  /**
+   * Same as {@link #bind(ValueVector)} for a plan whose lists may be
+   * siblings. lists[k] of the result is held by the elements of level
+   * {@link #getListParents()}[k], not necessarily k - 1.
+   */
+  Bound bindTree(ValueVector vector) {
+    ListVector[] lists = new ListVector[listSteps.length];
+    ValueVector[][] listValidity = new ValueVector[listSteps.length][];
+    boolean nullListsWithElements = false;
+    for (int level = 1; level < lists.length; level++) {
+      lists[level] = (ListVector)follow(vector, listSteps[level]);
+      List<ValueVector> nullable = withNulls(vector, listStructSteps[level]);
+      if (lists[level].getNullCount() > 0) {
+        nullable.add(lists[level]);
+      }
+      listValidity[level] = nullable.toArray(new ValueVector[0]);
+      nullListsWithElements |= hasNullListsWithElements(lists[level], listValidity[level]);
+    }
+    ValueVector[] leafVectors = new ValueVector[leaves.length];
+    ValueVector[][] leafStructs = new ValueVector[leaves.length][];
+    for (int i = 0; i < leaves.length; i++) {
+      leafVectors[i] = follow(vector, leaves[i]);
+      leafStructs[i] = withNulls(vector, leaves[i].structSteps).toArray(new ValueVector[0]);
+    }
+    ValueVector[] filterVectors = new ValueVector[filterLeaves.length];
+    ValueVector[][] filterStructs = new ValueVector[filterLeaves.length][];
+    for (int i = 0; i < filterLeaves.length; i++) {
+      filterVectors[i] = follow(vector, filterLeaves[i]);
+      filterStructs[i] = withNulls(vector, filterLeaves[i].structSteps).toArray(new ValueVector[0]);
+    }
+    return new Bound(this, vector, lists, listValidity, nullListsWithElements, leafVectors, leafStructs,
+        filterVectors, filterStructs);
+  }
+
+  /**
+   * The nullable structs at the given steps that hold at least one null.
+   */
+  private static List<ValueVector> withNulls(ValueVector root, int[][] structSteps) {
+    List<ValueVector> nullable = new ArrayList<>();
+    for (int[] steps : structSteps) {
+      ValueVector struct = follow(root, steps);
+      if (struct instanceof StructVector && struct.getNullCount() > 0) {
+        nullable.add(struct);
+      }
+    }
+    return nullable;
+  }
+
+  /**
+   * Whether an absent list (null, or under a null struct) has elements. Null
+   * lists written through Arrow are empty, but the lists under a null struct
+   * keep whatever was written to them. Only the null slots are looked at.
+   */
+  private static boolean hasNullListsWithElements(ListVector list, ValueVector[] validity) {
+    if (validity.length == 0) {
+      return false;
+    }
+    int count = list.getValueCount();
+    SelectionBitmap present = RepetitionIndex.presentLists(validity, 0, count);
+    for (int i = present.nextClearBit(0, count); i < count; i = present.nextClearBit(i + 1, count)) {
+      if (RepetitionIndex.offset(list, i + 1) > RepetitionIndex.offset(list, i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static ValueVector follow(ValueVector root, Leaf leaf) {
+    ValueVector vector = follow(root, leaf.steps);
+    if (vector.getMinorType() != leaf.type) {
+      throw new IllegalArgumentException("Vector does not match the plan's schema at " + leaf.path);
+    }
+    return vector;
+  }
+
+  private static ValueVector[] followAll(ValueVector root, int[][] steps) {
+    ValueVector[] vectors = new ValueVector[steps.length];
+    for (int i = 0; i < steps.length; i++) {
+      vectors[i] = follow(root, steps[i]);
+    }
+    return vectors;
+  }
+
+  private static ValueVector follow(ValueVector root, int[] steps) {
+    ValueVector vector = root;
+    for (int step : steps) {
+      vector = step == LIST_DATA
+          ? ((ListVector)vector).getDataVector()
+          : ((AbstractStructVector)vector).getChildByOrdinal(step);
+    }
+    return vector;
+  }
+
+  /**
+   * A primitive leaf of the flattened column.
+   */
+  static final class Leaf {
+    final String name;
+    final String path;
+    final int level;
+    final Types.MinorType type;
+    final LeafCopier copier;
+    private final int[] steps;
+    // the structs between the level's element and the leaf, outermost first
+    private final int[][] structSteps;
+
+    Leaf(String name, String path, int level, Types.MinorType type, int[] steps, int[][] structSteps) {
+      this.name = name;
+      this.path = path;
+      this.level = level;
+      this.type = type;
+      this.copier = LeafCopier.forType(type);
+      this.steps = steps;
+      this.structSteps = structSteps;
+    }
+  }
+
+  /**
+   * The vector a filter path names beneath the lists on it: a leaf, or the
+   * struct of the elements of a list or map.
+   */
+  private static final class Node {
+    final int level;
+    final int[] steps;
+    // the structs between the level's element and the node, outermost first
+    final int[][] structSteps;
+
+    Node(int level, int[] steps, int[][] structSteps) {
+      this.level = level;
+      this.steps = steps;
+      this.structSteps = structSteps;
+    }
+  }
+
+  /**
+   * A plan bound to the vectors of one batch.
+   */
+  static final class Bound {
+    final FlattenPlan plan;
+    final ValueVector root;
+    final ListVector[] lists;
+    // listValidity[k]: list k and its enclosing structs, those with nulls
+    final ValueVector[][] listValidity;
+    // an absent list has elements, which must not be flattened
+    final boolean nullListsWithElements;
+    final ValueVector[] leafVectors;
+    // leafStructs[i]: the structs with nulls above leaf i at its level
+    final ValueVector[][] leafStructs;
+    final ValueVector[] filterVectors;
+    final ValueVector[][] filterStructs;
+
+    Bound(FlattenPlan plan, ValueVector root, ListVector[] lists, ValueVector[][] listValidity,
+        boolean nullListsWithElements, ValueVector[] leafVectors, ValueVector[][] leafStructs,
+        ValueVector[] filterVectors, ValueVector[][] filterStructs) {
+      this.plan = plan;
+      this.root = root;
+      this.lists = lists;
+      this.listValidity = listValidity;
+      this.nullListsWithElements = nullListsWithElements;
+      this.leafVectors = leafVectors;
+      this.leafStructs = leafStructs;
+      this.filterVectors = filterVectors;
+      this.filterStructs = filterStructs;
+    }
+
+    /**
+     * Whether any list at any level is absent for some element.
+     */
+    boolean hasAbsentLists() {
+      for (int level = 1; level < listValidity.length; level++) {
+        if (listValidity[level].length > 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class Compiler {
+    private final String column;
+    private final List<String> projectedPaths;
+    private final List<String> filterPaths;
+    private final Set<String> matched = new HashSet<>();
+    private final List<int[]> listSteps = new ArrayList<>();
+    private final List<int[][]> listStructSteps = new ArrayList<>();
+    private final List<String> listPaths = new ArrayList<>();
+    private final List<Integer> listParents = new ArrayList<>();
+    private final List<Leaf> leaves = new ArrayList<>();
+    private final List<Leaf> filterLeaves = new ArrayList<>();
+    private final Map<String, Node> filterNodes = new HashMap<>();
+
+    Compiler(String column, List<String> projectedPaths, List<String> filterPaths) {
+      this.column = column;
+      this.projectedPaths = projectedPaths;
+      this.filterPaths = filterPaths == null ? Collections.<String>emptyList() : filterPaths;
+    }
+
+    FlattenPlan compile(Field field) {
+      Types.MinorType type = Types.getMinorTypeForArrowType(field.getType());
+      if (type != Types.MinorType.LIST && type != Types.MinorType.MAP && type != Types.MinorType.STRUCT) {
+        throw new UnsupportedOperationException("Flatten is not supported on primitive root types");
+      }
+      listSteps.add(null);
+      listStructSteps.add(null);
+      listPaths.add(null);
+      listParents.add(-1);
+      visit(field, 0, new int[0], column, new ArrayList<int[]>());
+      if (projectedPaths != null) {
+        for (String projected : projectedPaths) {
+          if (!matched.contains(projected)) {
+            throw new IllegalArgumentException("No such nested column: " + projected);
+          }
+        }
+      }
+      for (String filtered : filterPaths) {
+        if (!matched.contains(filtered)) {
+          throw new IllegalArgumentException("No such nested column: " + filtered);
+        }
+      }
+      // output columns are named by their leaf, so two leaves of the same
+      // name, e.g. person.name and person.addresses.name, would overwrite
+      // each other in the batch
+      Map<String, String> outputPaths = new HashMap<>();
+      for (Leaf leaf : leaves) {
+        String other = outputPaths.put(leaf.name, leaf.path);
+        if (other != null) {
+          throw new IllegalArgumentException("Flatten output has two columns named " + leaf.name + ": " + other
+              + ", " + leaf.path + "; project only one of them");
+        }
+      }
+      // output leaves ordered by level, then in schema order
+      List<Leaf> ordered = new ArrayList<>();
+      for (int level = 0; level < listSteps.size(); level++) {
+        for (Leaf leaf : leaves) {
+          if (leaf.level == level) {
+            ordered.add(leaf);
+          }
+        }
+      }
+      int[] parents = new int[listParents.size()];
+      for (int level = 0; level < parents.length; level++) {
+        parents[level] = listParents.get(level);
+      }
+      return new FlattenPlan(column, field, listSteps.toArray(new int[0][]),
+          listStructSteps.toArray(new int[0][][]), listPaths.toArray(new String[0]), parents,
+          ordered.toArray(new Leaf[0]), filterLeaves.toArray(new Leaf[0]), filterNodes);
+    }
+
+    /**
+     * @param structs steps to the structs entered so far at this level
+     */
+    private void visit(Field field, int level, int[] steps, String path, List<int[]> structs) {
+      if (!includes(path)) {
+        return;
+      }
+      if (filterPaths.contains(path)) {
+        // a list and its elements share a path, so the elements replace it
+        filterNodes.put(path, new Node(level, steps, structs.toArray(new int[0][])));
+      }
+      Types.MinorType type = Types.getMinorTypeForArrowType(field.getType());
+      switch (type) {
+        case LIST:
+        case MAP:
+          // a new level for the underlying data source of list, which is not
+          // addressed by name in a path, held by the elements of this level;
+          // a second list of the same elements is a sibling, checked on bind.
+          // A map is a list of key/value structs and is flattened as one,
+          // its leaves being e.g. person.attrs.key and person.attrs.value
+          int listLevel = listSteps.size();
+          listSteps.add(steps);
+          listStructSteps.add(structs.toArray(new int[0][]));
+          listPaths.add(path);
+          listParents.add(level);
+          visit(field.getChildren().get(0), listLevel, append(steps, LIST_DATA), path, new ArrayList<int[]>());
+          break;
+        case STRUCT:
+          // no need to change the level for children of struct since that
+          // doesn't increase the repetition level
+          List<int[]> enclosing = new ArrayList<>(structs);
+          enclosing.add(steps);
+          List<Field> children = field.getChildren();
+          for (int i = 0; i < children.size(); i++) {
+            visit(children.get(i), level, append(steps, i), path + "." + children.get(i).getName(), enclosing);
+          }
+          break;
+        case INT:
+        case BIGINT:
+        case FLOAT4:
+        case FLOAT8:
+        case VARCHAR:
+        case VARBINARY:
+          int[][] structSteps = structs.toArray(new int[0][]);
+          if (isOutput(path)) {
+            leaves.add(new Leaf(field.getName(), path, level, type, steps, structSteps));
+          }
+          if (filterPaths.contains(path)) {
+            filterLeaves.add(new Leaf(field.getName(), path, level, type, steps, structSteps));
+          }
+          break;
+        default:
+          throw new UnsupportedOperationException("Flatten is not supported on leaf type " + type);
+      }
+    }
+
+    /**
+     * A node is visited if it is on the way to a projected or filtered path,
+     * or beneath a projected one.
+     */
+    private boolean includes(String path) {
+      boolean included = projectedPaths == null;
+      if (projectedPaths != null) {
+        for (String projected : projectedPaths) {
+          if (projected.equals(path)) {
+            matched.add(projected);
+            included = true;
+          } else if (isPrefix(path, projected) || isPrefix(projected, path)) {
+            included = true;
+          }
+        }
+      }
+      for (String filtered : filterPaths) {
+        if (filtered.equals(path)) {
+          matched.add(filtered);
+          included = true;
+        } else if (isPrefix(path, filtered)) {
+          included = true;
+        }
+      }
+      return included;
+    }
+
+    private boolean isOutput(String path) {
+      if (projectedPaths == null) {
+        return true;
+      }
+      for (String projected : projectedPaths) {
+        if (projected.equals(path) || isPrefix(projected, path)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean isPrefix(String prefix, String path) {
+      return path.startsWith(prefix + ".");
+    }
+
+    private static int[] append(int[] steps, int step) {
+      int[] appended = Arrays.copyOf(steps, steps.length + 1);
+      appended[steps.length] = step;
+      return appended;
+    }
+  }
+
+  private static final class Key {
+    private final String column;
+    private final Field field;
+    private final List<String> projectedPaths;
+    private final List<String> filterPaths;
+
+    Key(String column, Field field, List<String> projectedPaths, List<String> filterPaths) {
+      this.column = column;
+      this.field = field;
+      this.projectedPaths = projectedPaths == null ? null : new ArrayList<>(projectedPaths);
+      this.filterPaths = filterPaths == null ? null : new ArrayList<>(filterPaths);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)o;
+      return column.equals(other.column) && field.equals(other.field)
+          && Objects.equals(projectedPaths, other.projectedPaths)
+          && Objects.equals(filterPaths, other.filterPaths);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(column, field, projectedPaths, filterPaths);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * What one flattened batch cost: how many rows each repetition level
+ * contributed, the bytes allocated for every output column and where the
+ * time went.
+ *
+ * Rows per level are the distinct elements of the level that made it into
+ * the batch, so levelRows[k + 1] / levelRows[k] is the fan-out of level k
+ * and the output rows over the input rows the overall amplification. The
+ * time is split into planning (plan lookup or compilation and binding it to
+ * the vectors), indexing (composing the list offsets, filtering), copying
+ * the leaves of the deepest level and replicating the leaves of the levels
+ * above it.
+ *
+ * A batch of a streaming or parallel flatten counts a top-level row as input
+ * when any of its rows are in the batch, and only the first batch carries
+ * the planning time.
+ */
+final class FlattenStats {
+
+  final String column;
+  long inputRows;
+  long outputRows;
+  long[] levelRows;
+  String[] columns;
+  long[] columnBytes;
+  long planningNanos;
+  long indexNanos;
+  long copyNanos;
+  long replicationNanos;
+
+  FlattenStats(String column) {
+    this.column = column;
+  }
+
+  String getColumn() {
+    return column;
+  }
+
+  long getInputRows() {
+    return inputRows;
+  }
+
+  long getOutputRows() {
+    return outputRows;
+  }
+
+  /**
+   * Output rows per input row, 0 without input rows.
+   */
+  double getAmplification() {
+    return inputRows == 0 ? 0 : (double)outputRows / inputRows;
+  }
+
+  /**
+   * Distinct elements of each level in the batch, level 0 being the top-level
+   * rows.
+   */
+  long[] getLevelRows() {
+    return levelRows;
+  }
+
+  /**
+   * Output column names, in the order of {@link #getColumnBytes()}.
+   */
+  String[] getColumns() {
+    return columns;
+  }
+
+  /**
+   * Capacity of the buffers of each output column, which for reused output
+   * vectors may exceed what the batch needed.
+   */
+  long[] getColumnBytes() {
+    return columnBytes;
+  }
+
+  long getBytes() {
+    long bytes = 0;
+    for (long columnBytes : this.columnBytes) {
+      bytes += columnBytes;
+    }
+    return bytes;
+  }
+
+  long getPlanningNanos() {
+    return planningNanos;
+  }
+
+  long getIndexNanos() {
+    return indexNanos;
+  }
+
+  long getCopyNanos() {
+    return copyNanos;
+  }
+
+  long getReplicationNanos() {
+    return replicationNanos;
+  }
+
+  long getTotalNanos() {
+    return planningNanos + indexNanos + copyNanos + replicationNanos;
+  }
+}
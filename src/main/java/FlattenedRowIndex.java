@@ -0,0 +1,178 @@
+import org.apache.arrow.util.Preconditions;
+import org.apache.arrow.vector.ValueVector;
+
+/**
+ * Random access to the rows a flatten would produce, for paging through
+ * them (LIMIT 100 OFFSET 2000000) without flattening what comes before.
+ *
+ * Flattened row k is ranked among the top-level rows by the first row of
+ * each, and selected down the levels from there. Without predicates, outer
+ * null rows or absent lists with elements the rows are exactly a range of
+ * deepest-level elements: the first row of a top-level row is its composed
+ * offset and row k is deepest element start + k, whose parent at every
+ * level above is a binary search of that level's offsets. Nothing is built
+ * and every lookup is O(depth * log n). Otherwise the rows of every
+ * top-level row are counted once from the offsets, as by
+ * {@link FlattenOperator#count}, into prefix sums that rank by binary
+ * search, and a top-level row is flattened to select within it.
+ *
+ * Either way a page costs the top-level rows it spans, not the ones before.
+ */
+final class FlattenedRowIndex {
+
+  final FlattenPlan.Bound bound;
+  // null if every list is present
+  private final ValueVector[][] listValidity;
+  private final boolean outer;
+  // null without predicates
+  private final RepetitionIndex.LevelFilter filter;
+  private final int filteredDepth;
+  // first deepest element of the first row, when the rows are a range of them
+  private final int deepestStart;
+  // starts[r] is the first row of top-level row r, with a trailing row
+  // count; null when the rows are a range of deepest elements
+  private final int[] starts;
+  private final int rowCount;
+
+  private FlattenedRowIndex(
+      FlattenPlan.Bound bound,
+      ValueVector[][] listValidity,
+      boolean outer,
+      RepetitionIndex.LevelFilter filter,
+      int filteredDepth,
+      int deepestStart,
+      int[] starts,
+      int rowCount) {
+    this.bound = bound;
+    this.listValidity = listValidity;
+    this.outer = outer;
+    this.filter = filter;
+    this.filteredDepth = filteredDepth;
+    this.deepestStart = deepestStart;
+    this.starts = starts;
+    this.rowCount = rowCount;
+  }
+
+  /**
+   * Rows that are the range of deepest elements under the top-level rows.
+   */
+  static FlattenedRowIndex forDeepestElements(FlattenPlan.Bound bound) {
+    int start = RepetitionIndex.toDeepest(bound.lists, 0);
+    int end = RepetitionIndex.toDeepest(bound.lists, bound.root.getValueCount());
+    return new FlattenedRowIndex(bound, null, false, null, 0, start, null, end - start);
+  }
+
+  /**
+   * Rows counted per top-level row, with the arguments of
+   * {@link RepetitionIndex#forFilteredTopLevelRows} that produce them.
+   */
+  static FlattenedRowIndex forCountedRows(
+      FlattenPlan.Bound bound,
+      ValueVector[][] listValidity,
+      boolean outer,
+      RepetitionIndex.LevelFilter filter,
+      int filteredDepth) {
+    int topLevelRows = bound.root.getValueCount();
+    int[] counts = RepetitionIndex.countPerTopLevelRow(bound.lists, listValidity, outer, 0, topLevelRows, filter,
+        filteredDepth);
+    int[] starts = new int[topLevelRows + 1];
+    long total = 0;
+    for (int row = 0; row < topLevelRows; row++) {
+      starts[row] = (int)total;
+      total += counts[row];
+      if (total > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Too many flattened rows to index");
+      }
+    }
+    starts[topLevelRows] = (int)total;
+    return new FlattenedRowIndex(bound, listValidity, outer, filter, filteredDepth, -1, starts, (int)total);
+  }
+
+  int getRowCount() {
+    return rowCount;
+  }
+
+  int getDepth() {
+    return bound.lists.length - 1;
+  }
+
+  /**
+   * First flattened row of the top-level row, or the row count for one past
+   * the last (rank).
+   */
+  int getFirstRow(int topLevelRow) {
+    return starts == null ? RepetitionIndex.toDeepest(bound.lists, topLevelRow) - deepestStart : starts[topLevelRow];
+  }
+
+  /**
+   * The top-level row the flattened row comes from (select). Top-level rows
+   * without rows share their first row with the next, so it is the last one
+   * whose first row is not past the row.
+   */
+  int getTopLevelRow(int row) {
+    checkRow(row);
+    int low = 0;
+    int high = bound.root.getValueCount() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (getFirstRow(mid) <= row) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * The element of the row at every level, from the top-level row at 0 down
+   * to the deepest, -1 below an outer null row. E.g. (person, address,
+   * phone).
+   */
+  int[] getElements(int row) {
+    checkRow(row);
+    int depth = getDepth();
+    int[] elements = new int[depth + 1];
+    if (starts == null) {
+      int element = deepestStart + row;
+      elements[depth] = element;
+      for (int level = depth; level > 0; level--) {
+        element = RepetitionIndex.parentOf(bound.lists[level], element);
+        elements[level - 1] = element;
+      }
+      return elements;
+    }
+    int topLevelRow = getTopLevelRow(row);
+    RepetitionIndex index = RepetitionIndex.forFilteredTopLevelRows(bound.lists, listValidity, outer, topLevelRow,
+        topLevelRow + 1, filter, filteredDepth);
+    for (int level = 0; level <= depth; level++) {
+      elements[level] = index.getElement(level, row - starts[topLevelRow]);
+    }
+    return elements;
+  }
+
+  /**
+   * Repetition index of the flattened rows [fromRow, toRow), built from the
+   * top-level rows they span only.
+   */
+  RepetitionIndex index(int fromRow, int toRow) {
+    Preconditions.checkArgument(0 <= fromRow && fromRow <= toRow && toRow <= rowCount,
+        "rows [%s, %s) out of [0, %s)", fromRow, toRow, rowCount);
+    if (starts == null) {
+      return RepetitionIndex.forDeepestRange(bound.lists, deepestStart + fromRow, deepestStart + toRow);
+    }
+    if (fromRow == toRow) {
+      return RepetitionIndex.forFilteredTopLevelRows(bound.lists, listValidity, outer, 0, 0, filter, filteredDepth);
+    }
+    int fromTopLevelRow = getTopLevelRow(fromRow);
+    int toTopLevelRow = getTopLevelRow(toRow - 1) + 1;
+    RepetitionIndex index = RepetitionIndex.forFilteredTopLevelRows(bound.lists, listValidity, outer,
+        fromTopLevelRow, toTopLevelRow, filter, filteredDepth);
+    int first = starts[fromTopLevelRow];
+    return index.slice(fromRow - first, toRow - first);
+  }
+
+  private void checkRow(int row) {
+    Preconditions.checkArgument(0 <= row && row < rowCount, "row %s out of [0, %s)", row, rowCount);
+  }
+}
@@ -0,0 +1,234 @@
+import io.netty.buffer.ArrowBuf;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.FixedWidthVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.types.Types;
+
+/**
+ * Copies values of one primitive leaf type between vectors directly on the
+ * validity and data buffers, without materializing a Java object per value.
+ *
+ * There is one implementation per physical layout rather than per logical
+ * type (INT and FLOAT4 are both 4 byte values, VARCHAR and VARBINARY both
+ * offsets into a data buffer) so that each call site in the flatten loop
+ * only ever sees a small number of receiver classes.
+ */
+abstract class LeafCopier {
+
+  private static final LeafCopier FOUR_BYTE = new FourByteCopier();
+  private static final LeafCopier EIGHT_BYTE = new EightByteCopier();
+  private static final LeafCopier VARIABLE_WIDTH = new VariableWidthCopier();
+
+  static LeafCopier forType(Types.MinorType type) {
+    switch (type) {
+      case INT:
+      case FLOAT4:
+        return FOUR_BYTE;
+      case BIGINT:
+      case FLOAT8:
+        return EIGHT_BYTE;
+      case VARCHAR:
+      case VARBINARY:
+        return VARIABLE_WIDTH;
+      default:
+        throw new IllegalStateException("output vectors are leaves which should be primitive type");
+    }
+  }
+
+  /**
+   * Copy the count values of src starting at srcIndex into dst from index 0.
+   * dst keeps its buffers if they can hold the values, whatever they held
+   * before, and is otherwise reallocated for exactly these values.
+   */
+  abstract void copyRange(ValueVector src, int srcIndex, ValueVector dst, int count);
+
+  /**
+   * Copy the values at indices[0..count) of src into dst from index 0,
+   * reusing or reallocating its buffers like {@link #copyRange}.
+   */
+  abstract void gather(ValueVector src, int[] indices, ValueVector dst, int count);
+
+  /**
+   * Same as {@link #gather} where a negative index stands for a null value,
+   * kept apart so that gathers without nulls do not test every index.
+   */
+  abstract void gatherNullable(ValueVector src, int[] indices, ValueVector dst, int count);
+
+  private abstract static class FixedWidthCopier extends LeafCopier {
+    private final int width;
+
+    FixedWidthCopier(int width) {
+      this.width = width;
+    }
+
+    /**
+     * Every bit and value in [0, count) is overwritten by the copy, so
+     * buffers that are large enough need no clearing.
+     */
+    private static void ensureCapacity(ValueVector dst, int count) {
+      if (dst.getValueCapacity() < count) {
+        ((FixedWidthVector) dst).allocateNew(count);
+      }
+    }
+
+    @Override
+    void copyRange(ValueVector src, int srcIndex, ValueVector dst, int count) {
+      FieldVector from = (FieldVector) src;
+      FieldVector to = (FieldVector) dst;
+      ensureCapacity(dst, count);
+      ValidityBitmaps.copyRange(from.getValidityBuffer(), srcIndex, to.getValidityBuffer(), 0, count);
+      to.getDataBuffer().setBytes(0, from.getDataBuffer(), (long) srcIndex * width, (long) count * width);
+    }
+
+    @Override
+    void gather(ValueVector src, int[] indices, ValueVector dst, int count) {
+      FieldVector from = (FieldVector) src;
+      FieldVector to = (FieldVector) dst;
+      ensureCapacity(dst, count);
+      ValidityBitmaps.gather(from.getValidityBuffer(), indices, to.getValidityBuffer(), 0, count);
+      gatherData(from.getDataBuffer(), indices, to.getDataBuffer(), count);
+    }
+
+    @Override
+    void gatherNullable(ValueVector src, int[] indices, ValueVector dst, int count) {
+      FieldVector from = (FieldVector) src;
+      FieldVector to = (FieldVector) dst;
+      ensureCapacity(dst, count);
+      ValidityBitmaps.gatherNullable(from.getValidityBuffer(), indices, to.getValidityBuffer(), 0, count);
+      ArrowBuf srcData = from.getDataBuffer();
+      ArrowBuf dstData = to.getDataBuffer();
+      // the values behind null rows are left as allocated
+      for (int i = 0; i < count; i++) {
+        if (indices[i] >= 0) {
+          dstData.setBytes((long) i * width, srcData, (long) indices[i] * width, width);
+        }
+      }
+    }
+
+    abstract void gatherData(ArrowBuf src, int[] indices, ArrowBuf dst, int count);
+  }
+
+  private static final class FourByteCopier extends FixedWidthCopier {
+    FourByteCopier() {
+      super(4);
+    }
+
+    @Override
+    void gatherData(ArrowBuf src, int[] indices, ArrowBuf dst, int count) {
+      for (int i = 0; i < count; i++) {
+        dst.setInt((long) i << 2, src.getInt((long) indices[i] << 2));
+      }
+    }
+  }
+
+  private static final class EightByteCopier extends FixedWidthCopier {
+    EightByteCopier() {
+      super(8);
+    }
+
+    @Override
+    void gatherData(ArrowBuf src, int[] indices, ArrowBuf dst, int count) {
+      for (int i = 0; i < count; i++) {
+        dst.setLong((long) i << 3, src.getLong((long) indices[i] << 3));
+      }
+    }
+  }
+
+  /**
+   * VARCHAR and VARBINARY: 4 byte offsets delimiting each value in a data
+   * buffer. A range is one copy of the data bytes it spans plus its offsets
+   * rebased to 0. A gather copies the bytes of each index, reading the
+   * offsets once per run of equal indices since replicated parent values
+   * come in runs; no value is ever decoded.
+   */
+  private static final class VariableWidthCopier extends LeafCopier {
+
+    /**
+     * Validity bits, offsets and data bytes in [0, count) are all
+     * overwritten, so buffers that are large enough need no clearing.
+     */
+    private static void ensureCapacity(BaseVariableWidthVector dst, long bytes, int count) {
+      // a vector never allocated has no room for even the first offset
+      if (dst.getValueCapacity() < count || dst.getByteCapacity() < bytes
+          || dst.getOffsetBuffer().capacity() < ((long) count + 1) << 2) {
+        dst.allocateNew(Math.max(bytes, dst.getByteCapacity()), Math.max(count, dst.getValueCapacity()));
+      }
+    }
+
+    @Override
+    void copyRange(ValueVector src, int srcIndex, ValueVector dst, int count) {
+      BaseVariableWidthVector from = (BaseVariableWidthVector) src;
+      BaseVariableWidthVector to = (BaseVariableWidthVector) dst;
+      if (count == 0) {
+        // src may be empty without even an offset, as read from IPC
+        ensureCapacity(to, 0, 0);
+        to.getOffsetBuffer().setInt(0, 0);
+        to.setLastSet(-1);
+        return;
+      }
+      ArrowBuf srcOffsets = from.getOffsetBuffer();
+      int start = srcOffsets.getInt((long) srcIndex << 2);
+      int end = srcOffsets.getInt((long) (srcIndex + count) << 2);
+      ensureCapacity(to, end - start, count);
+      ValidityBitmaps.copyRange(from.getValidityBuffer(), srcIndex, to.getValidityBuffer(), 0, count);
+      to.getDataBuffer().setBytes(0, from.getDataBuffer(), start, end - start);
+      ArrowBuf dstOffsets = to.getOffsetBuffer();
+      if (start == 0) {
+        dstOffsets.setBytes(0, srcOffsets, (long) srcIndex << 2, (long) (count + 1) << 2);
+      } else {
+        for (int i = 0; i <= count; i++) {
+          dstOffsets.setInt((long) i << 2, srcOffsets.getInt((long) (srcIndex + i) << 2) - start);
+        }
+      }
+      to.setLastSet(count - 1);
+    }
+
+    @Override
+    void gather(ValueVector src, int[] indices, ValueVector dst, int count) {
+      gather(src, indices, dst, count, false);
+    }
+
+    @Override
+    void gatherNullable(ValueVector src, int[] indices, ValueVector dst, int count) {
+      gather(src, indices, dst, count, true);
+    }
+
+    private void gather(ValueVector src, int[] indices, ValueVector dst, int count, boolean nullable) {
+      BaseVariableWidthVector from = (BaseVariableWidthVector) src;
+      BaseVariableWidthVector to = (BaseVariableWidthVector) dst;
+      ArrowBuf srcOffsets = from.getOffsetBuffer();
+      long bytes = 0;
+      for (int i = 0; i < count; i++) {
+        long index = indices[i];
+        if (index >= 0) {
+          bytes += srcOffsets.getInt((index + 1) << 2) - srcOffsets.getInt(index << 2);
+        }
+      }
+      ensureCapacity(to, bytes, count);
+      if (nullable) {
+        ValidityBitmaps.gatherNullable(from.getValidityBuffer(), indices, to.getValidityBuffer(), 0, count);
+      } else {
+        ValidityBitmaps.gather(from.getValidityBuffer(), indices, to.getValidityBuffer(), 0, count);
+      }
+      ArrowBuf srcData = from.getDataBuffer();
+      ArrowBuf dstData = to.getDataBuffer();
+      ArrowBuf dstOffsets = to.getOffsetBuffer();
+      int offset = 0;
+      int start = 0;
+      int length = 0;
+      dstOffsets.setInt(0, 0);
+      for (int i = 0; i < count; i++) {
+        if (i == 0 || indices[i] != indices[i - 1]) {
+          long index = indices[i];
+          start = index < 0 ? 0 : srcOffsets.getInt(index << 2);
+          length = index < 0 ? 0 : srcOffsets.getInt((index + 1) << 2) - start;
+        }
+        dstData.setBytes(offset, srcData, start, length);
+        offset += length;
+        dstOffsets.setInt((long) (i + 1) << 2, offset);
+      }
+      to.setLastSet(count - 1);
+    }
+  }
+}
@@ -0,0 +1,298 @@
+import io.netty.buffer.ArrowBuf;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.BitVectorHelper;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+
+/**
+ * Comparison of a primitive leaf, addressed by its dotted path, against a
+ * constant. A list of predicates passed to flatten is a conjunction; each one
+ * is evaluated on the repetition level where its leaf lives, before rows are
+ * replicated. Null values never match.
+ *
+ * INT and BIGINT leaves compare exactly against a fractional constant, so
+ * x > 9.5 is x >= 10 and x = 9.5 matches nothing, see
+ * {@link #compareInteger(long, Number)}. FLOAT4 leaves compare against the
+ * constant rounded to float, so x = 0.1 matches 0.1f, and FLOAT8 leaves
+ * against the constant. Floating point values compare as SQL does: -0.0
+ * equals 0.0 and NaN satisfies only NE.
+ *
+ * VARCHAR and VARBINARY leaves compare against a String or byte[] constant,
+ * held as bytes (UTF-8 for strings). Each value is compared in place in the
+ * leaf's data buffer as unsigned bytes, which orders UTF-8 the same way as
+ * code points, so no String is built per value.
+ */
+class LeafPredicate {
+
+  // compare result of a NaN with anything, see compareFloating
+  static final int UNORDERED = Integer.MIN_VALUE;
+
+  enum Comparison {
+    EQ, NE, LT, LE, GT, GE;
+
+    boolean test(int compareResult) {
+      if (compareResult == UNORDERED) {
+        return this == NE;
+      }
+      switch (this) {
+        case EQ:
+          return compareResult == 0;
+        case NE:
+          return compareResult != 0;
+        case LT:
+          return compareResult < 0;
+        case LE:
+          return compareResult <= 0;
+        case GT:
+          return compareResult > 0;
+        default:
+          return compareResult >= 0;
+      }
+    }
+  }
+
+  private final String path;
+  private final Comparison comparison;
+  private final Object value;
+  // value as bytes for variable-width leaves, null for a numeric constant
+  private final byte[] bytes;
+  // a numeric constant against integer leaves, see compareInteger
+  private final long integerBound;
+  private final int integerTie;
+  // a numeric constant against FLOAT4 leaves, see compareFloating
+  private final double floatBound;
+  private final int floatTie;
+
+  LeafPredicate(String path, Comparison comparison, Number value) {
+    this(path, comparison, value, null);
+  }
+
+  LeafPredicate(String path, Comparison comparison, String value) {
+    this(path, comparison, value, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  LeafPredicate(String path, Comparison comparison, byte[] value) {
+    this(path, comparison, value, value.clone());
+  }
+
+  private LeafPredicate(String path, Comparison comparison, Object value, byte[] bytes) {
+    this.path = path;
+    this.comparison = comparison;
+    this.value = value;
+    this.bytes = bytes;
+    this.integerBound = value instanceof Number ? integerBound((Number)value) : 0;
+    this.integerTie = value instanceof Number ? integerTie((Number)value) : 0;
+    this.floatBound = value instanceof Number ? floatBound(((Number)value).doubleValue()) : 0;
+    this.floatTie = value instanceof Number ? floatTie(((Number)value).doubleValue()) : 0;
+  }
+
+  static LeafPredicate equal(String path, Number value) {
+    return new LeafPredicate(path, Comparison.EQ, value);
+  }
+
+  static LeafPredicate equal(String path, String value) {
+    return new LeafPredicate(path, Comparison.EQ, value);
+  }
+
+  String getPath() {
+    return path;
+  }
+
+  Comparison getComparison() {
+    return comparison;
+  }
+
+  Object getValue() {
+    return value;
+  }
+
+  /**
+   * The constant as bytes, null for a numeric constant.
+   */
+  byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Clear the bit of every selected element in [start, end) of the leaf that
+   * does not satisfy the predicate. Unselected elements are not read.
+   */
+  void filter(ValueVector leaf, int start, int end, SelectionBitmap selection) {
+    ArrowBuf validity = ((FieldVector)leaf).getValidityBuffer();
+    ArrowBuf data = ((FieldVector)leaf).getDataBuffer();
+    if ((bytes == null) != (value instanceof Number)
+        || (bytes != null) != (leaf instanceof BaseVariableWidthVector)) {
+      throw new IllegalArgumentException("Cannot compare " + leaf.getMinorType() + " leaf " + path + " with "
+          + value.getClass().getSimpleName());
+    }
+    switch (leaf.getMinorType()) {
+      case INT: {
+        for (int i = selection.nextSetBit(start, end); i < end; i = selection.nextSetBit(i + 1, end)) {
+          if (BitVectorHelper.get(validity, i) == 0) {
+            selection.clear(i);
+            continue;
+          }
+          int cmp = Long.compare(data.getInt((long)i << 2), integerBound);
+          if (!comparison.test(cmp != 0 ? cmp : integerTie)) {
+            selection.clear(i);
+          }
+        }
+        break;
+      }
+      case BIGINT: {
+        for (int i = selection.nextSetBit(start, end); i < end; i = selection.nextSetBit(i + 1, end)) {
+          if (BitVectorHelper.get(validity, i) == 0) {
+            selection.clear(i);
+            continue;
+          }
+          int cmp = Long.compare(data.getLong((long)i << 3), integerBound);
+          if (!comparison.test(cmp != 0 ? cmp : integerTie)) {
+            selection.clear(i);
+          }
+        }
+        break;
+      }
+      case FLOAT4: {
+        // a float widens to double exactly, so this compares in float space
+        for (int i = selection.nextSetBit(start, end); i < end; i = selection.nextSetBit(i + 1, end)) {
+          if (BitVectorHelper.get(validity, i) == 0 || !comparison.test(
+              compareFloating(Float.intBitsToFloat(data.getInt((long)i << 2)), floatBound, floatTie))) {
+            selection.clear(i);
+          }
+        }
+        break;
+      }
+      case FLOAT8: {
+        double constant = ((Number)value).doubleValue();
+        for (int i = selection.nextSetBit(start, end); i < end; i = selection.nextSetBit(i + 1, end)) {
+          if (BitVectorHelper.get(validity, i) == 0 || !comparison.test(
+              compareFloating(Double.longBitsToDouble(data.getLong((long)i << 3)), constant, 0))) {
+            selection.clear(i);
+          }
+        }
+        break;
+      }
+      case VARCHAR:
+      case VARBINARY: {
+        ArrowBuf offsets = ((BaseVariableWidthVector)leaf).getOffsetBuffer();
+        for (int i = selection.nextSetBit(start, end); i < end; i = selection.nextSetBit(i + 1, end)) {
+          if (BitVectorHelper.get(validity, i) == 0 || !comparison.test(compareBytes(data, offsets, i))) {
+            selection.clear(i);
+          }
+        }
+        break;
+      }
+      default:
+        throw new UnsupportedOperationException("Predicates are not supported on leaf type " + leaf.getMinorType());
+    }
+  }
+
+  /**
+   * Exact comparison of an integer value with a numeric constant. A
+   * fractional constant lies between two integers, so it compares as its
+   * floor with a tie broken upwards: 9 < 9.5, 10 > 9.5 and no value equals
+   * 9.5. A constant beyond the range of long, or NaN as Double.compare
+   * orders it, is above or below every value.
+   */
+  static int compareInteger(long value, Number constant) {
+    int cmp = Long.compare(value, integerBound(constant));
+    return cmp != 0 ? cmp : integerTie(constant);
+  }
+
+  /**
+   * The long a numeric constant compares to integer values as: the
+   * constant itself, its floor, or the nearest end of the long range.
+   */
+  private static long integerBound(Number constant) {
+    if (isInteger(constant)) {
+      return constant.longValue();
+    }
+    double d = constant.doubleValue();
+    if (Double.isNaN(d) || d >= 0x1p63) {
+      return Long.MAX_VALUE;
+    }
+    return d < -0x1p63 ? Long.MIN_VALUE : (long)Math.floor(d);
+  }
+
+  /**
+   * Comparison of a value equal to {@link #integerBound} with the constant.
+   */
+  private static int integerTie(Number constant) {
+    if (isInteger(constant)) {
+      return 0;
+    }
+    double d = constant.doubleValue();
+    if (d < -0x1p63) {
+      return 1;
+    }
+    return Double.isNaN(d) || d >= 0x1p63 || d != Math.floor(d) ? -1 : 0;
+  }
+
+  /**
+   * Comparison of a FLOAT4 value, if isFloat, or of a FLOAT8 value with a
+   * numeric constant, {@link #UNORDERED} when either is NaN. Against a
+   * FLOAT4 value the constant is rounded to float; one too large for a
+   * float compares as the largest float with a tie broken towards the
+   * constant, like a fractional constant against an integer.
+   */
+  static int compareFloating(double value, Number constant, boolean isFloat) {
+    double d = constant.doubleValue();
+    return isFloat ? compareFloating(value, floatBound(d), floatTie(d)) : compareFloating(value, d, 0);
+  }
+
+  private static int compareFloating(double value, double bound, int tie) {
+    if (value < bound) {
+      return -1;
+    }
+    if (value > bound) {
+      return 1;
+    }
+    // equal, -0.0 and 0.0 included, unless one is NaN
+    return value == bound ? tie : UNORDERED;
+  }
+
+  private static double floatBound(double constant) {
+    float rounded = (float)constant;
+    return Float.isInfinite(rounded) && !Double.isInfinite(constant)
+        ? Math.copySign(Float.MAX_VALUE, constant) : rounded;
+  }
+
+  private static int floatTie(double constant) {
+    if (Float.isInfinite((float)constant) && !Double.isInfinite(constant)) {
+      return constant > 0 ? -1 : 1;
+    }
+    return 0;
+  }
+
+  private static boolean isInteger(Number constant) {
+    return constant instanceof Long || constant instanceof Integer || constant instanceof Short
+        || constant instanceof Byte;
+  }
+
+  /**
+   * Unsigned lexicographic comparison of value i of a variable-width leaf
+   * with the constant. Equality comparisons reject on length first.
+   */
+  private int compareBytes(ArrowBuf data, ArrowBuf offsets, int i) {
+    int valueStart = offsets.getInt((long)i << 2);
+    int length = offsets.getInt((long)(i + 1) << 2) - valueStart;
+    if ((comparison == Comparison.EQ || comparison == Comparison.NE) && length != bytes.length) {
+      return 1;
+    }
+    int common = Math.min(length, bytes.length);
+    for (int k = 0; k < common; k++) {
+      int cmp = (data.getByte(valueStart + k) & 0xFF) - (bytes[k] & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return length - bytes.length;
+  }
+
+  @Override
+  public String toString() {
+    return path + " " + comparison + " " + (value instanceof byte[] ? Arrays.toString((byte[])value) : value);
+  }
+}
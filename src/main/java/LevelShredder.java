@@ -0,0 +1,280 @@
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.NonNullableStructVector;
+import org.apache.arrow.vector.types.Types;
+
+/**
+ * Shreds a nested column into one Dremel/Parquet style column per leaf:
+ * the leaf's non-null values, densely, and a repetition and a definition
+ * level per slot.
+ *
+ * person = struct (age, list(struct(zip, list(struct(phone-number)))))
+ *
+ *    person.addresses.phones.phone-number     max repetition 2, definition 8
+ *
+ *      {addresses: [{zip: 94404, phones: [{1}, {2}]}, {zip: 94402, phones: []}]}
+ *      {addresses: null}
+ *
+ *      value   repetition   definition
+ *      1       0            8          new person
+ *      2       2            8          next phone of the same address
+ *      -       1            5          next address, its phones empty
+ *      -       0            1          next person, addresses null
+ *
+ * The repetition level of a slot is the list it repeats in, 1 for the
+ * outermost, or 0 for a new top-level row. The definition level counts the
+ * nullable structs, lists and leaves on the path that are set, a list
+ * counting once for being set and once more for having elements. Lists are
+ * transparent in the paths, as everywhere else.
+ *
+ * The column is walked once from the root, and the slots of a level are
+ * computed once for every leaf beneath it: an element index, a repetition
+ * level and, for a slot that stops above the level, its definition level,
+ * since a slot still in the level has the level's own. A struct with nulls
+ * stops the slots of its null elements, and a list expands the slots of its
+ * elements through its offsets. So a leaf costs its own slots, the levels
+ * above it are shared with its siblings, and each value is one gather.
+ * {@link RecordAssembler} puts the column back together.
+ */
+final class LevelShredder {
+
+  private LevelShredder() {
+  }
+
+  /**
+   * Shred every leaf of the column, in schema order. The values are new
+   * vectors from the allocator, owned by the returned columns.
+   */
+  static List<Column> shred(String column, ValueVector vector, BufferAllocator allocator) {
+    int rowCount = vector.getValueCount();
+    int[] elements = new int[rowCount];
+    for (int row = 0; row < rowCount; row++) {
+      elements[row] = row;
+    }
+    Slots slots = new Slots(elements, new int[rowCount], new int[rowCount]);
+    List<Column> columns = new ArrayList<>();
+    try {
+      visit(vector, column, slots, 0, 0, allocator, columns);
+    } catch (RuntimeException e) {
+      for (Column shredded : columns) {
+        shredded.close();
+      }
+      throw e;
+    }
+    return columns;
+  }
+
+  /**
+   * @param definition definition level of the slots that reach the vector
+   * @param repetition number of lists above the vector
+   */
+  private static void visit(
+      ValueVector vector,
+      String path,
+      Slots slots,
+      int definition,
+      int repetition,
+      BufferAllocator allocator,
+      List<Column> columns) {
+    boolean nullable = vector.getField().isNullable();
+    if (vector instanceof NonNullableStructVector) {
+      if (nullable) {
+        slots = slots.stopNulls(vector, definition);
+        definition++;
+      }
+      for (ValueVector child : ((NonNullableStructVector)vector).getChildrenFromFields()) {
+        visit(child, path + "." + child.getName(), slots, definition, repetition, allocator, columns);
+      }
+    } else if (vector instanceof ListVector) {
+      ListVector list = (ListVector)vector;
+      if (nullable) {
+        slots = slots.stopNulls(list, definition);
+        definition++;
+      }
+      visit(list.getDataVector(), path, slots.expand(list, definition, repetition + 1), definition + 1,
+          repetition + 1, allocator, columns);
+    } else {
+      columns.add(shredLeaf(vector, path, slots, definition, repetition, allocator));
+    }
+  }
+
+  private static Column shredLeaf(
+      ValueVector leaf,
+      String path,
+      Slots slots,
+      int definition,
+      int repetition,
+      BufferAllocator allocator) {
+    Types.MinorType type = leaf.getMinorType();
+    switch (type) {
+      case INT:
+      case BIGINT:
+      case FLOAT4:
+      case FLOAT8:
+      case VARCHAR:
+      case VARBINARY:
+        break;
+      default:
+        throw new UnsupportedOperationException("Shredding is not supported on leaf type " + type);
+    }
+    boolean nullable = leaf.getField().isNullable();
+    int maxDefinition = nullable ? definition + 1 : definition;
+    int count = slots.count();
+    SelectionBitmap valid = null;
+    if (nullable && leaf.getNullCount() > 0) {
+      valid = RepetitionIndex.presentLists(new ValueVector[] {leaf}, 0, leaf.getValueCount());
+    }
+    int[] definitions = new int[count];
+    int valueCount = 0;
+    for (int slot = 0; slot < count; slot++) {
+      int element = slots.elements[slot];
+      if (element < 0) {
+        definitions[slot] = slots.definitions[slot];
+      } else if (valid == null || valid.get(element)) {
+        definitions[slot] = maxDefinition;
+        valueCount++;
+      } else {
+        definitions[slot] = definition;
+      }
+    }
+    int[] indices = new int[valueCount];
+    valueCount = 0;
+    for (int slot = 0; slot < count; slot++) {
+      if (definitions[slot] == maxDefinition && slots.elements[slot] >= 0) {
+        indices[valueCount++] = slots.elements[slot];
+      }
+    }
+    ValueVector values = FlattenOperator.getOutputVector(leaf, allocator);
+    try {
+      LeafCopier.forType(type).gather(leaf, indices, values, valueCount);
+      values.setValueCount(valueCount);
+    } catch (RuntimeException e) {
+      values.close();
+      throw e;
+    }
+    return new Column(path, type, repetition, maxDefinition, slots.repetitions, definitions, values);
+  }
+
+  /**
+   * The slots of one level: the element each slot reaches at the level, or
+   * -1 when it stops above it, with the definition level it stopped at.
+   */
+  private static final class Slots {
+    final int[] elements;
+    // only meaningful for the slots that stopped
+    final int[] definitions;
+    final int[] repetitions;
+
+    Slots(int[] elements, int[] definitions, int[] repetitions) {
+      this.elements = elements;
+      this.definitions = definitions;
+      this.repetitions = repetitions;
+    }
+
+    int count() {
+      return elements.length;
+    }
+
+    /**
+     * Stop the slots whose element of the vector is null at the definition
+     * level the vector is at. The slots are shared when there is no null.
+     */
+    Slots stopNulls(ValueVector vector, int definition) {
+      if (vector.getNullCount() == 0) {
+        return this;
+      }
+      SelectionBitmap valid = RepetitionIndex.presentLists(new ValueVector[] {vector}, 0, vector.getValueCount());
+      int count = count();
+      int[] stopped = elements.clone();
+      int[] stoppedDefinitions = definitions.clone();
+      for (int slot = 0; slot < count; slot++) {
+        int element = stopped[slot];
+        if (element >= 0 && !valid.get(element)) {
+          stopped[slot] = -1;
+          stoppedDefinitions[slot] = definition;
+        }
+      }
+      return new Slots(stopped, stoppedDefinitions, repetitions);
+    }
+
+    /**
+     * A slot per element of the lists of every slot, the first one keeping
+     * the slot's repetition level and the others repeating at the list's.
+     * A slot that stopped above, or whose list is empty at the given
+     * definition level, carries over as is.
+     */
+    Slots expand(ListVector list, int definition, int repetition) {
+      int count = count();
+      long total = 0;
+      for (int slot = 0; slot < count; slot++) {
+        int element = elements[slot];
+        if (element >= 0) {
+          total += Math.max(1, RepetitionIndex.offset(list, element + 1) - RepetitionIndex.offset(list, element));
+        } else {
+          total++;
+        }
+      }
+      if (total > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Too many slots under " + list.getName());
+      }
+      int[] expanded = new int[(int)total];
+      int[] expandedDefinitions = new int[expanded.length];
+      int[] expandedRepetitions = new int[expanded.length];
+      int position = 0;
+      for (int slot = 0; slot < count; slot++) {
+        int element = elements[slot];
+        int start = element < 0 ? 0 : RepetitionIndex.offset(list, element);
+        int end = element < 0 ? 0 : RepetitionIndex.offset(list, element + 1);
+        if (start == end) {
+          expanded[position] = -1;
+          expandedDefinitions[position] = element < 0 ? definitions[slot] : definition;
+          expandedRepetitions[position++] = repetitions[slot];
+          continue;
+        }
+        for (int child = start; child < end; child++) {
+          expanded[position] = child;
+          expandedRepetitions[position++] = child == start ? repetitions[slot] : repetition;
+        }
+      }
+      return new Slots(expanded, expandedDefinitions, expandedRepetitions);
+    }
+  }
+
+  /**
+   * One shredded leaf. Slot i has repetitionLevels[i] and
+   * definitionLevels[i], and a value when its definition level is the
+   * maximum; values holds those, in slot order, without nulls.
+   */
+  static final class Column implements AutoCloseable {
+    final String path;
+    final Types.MinorType type;
+    final int maxRepetitionLevel;
+    final int maxDefinitionLevel;
+    final int[] repetitionLevels;
+    final int[] definitionLevels;
+    final ValueVector values;
+
+    Column(String path, Types.MinorType type, int maxRepetitionLevel, int maxDefinitionLevel,
+        int[] repetitionLevels, int[] definitionLevels, ValueVector values) {
+      this.path = path;
+      this.type = type;
+      this.maxRepetitionLevel = maxRepetitionLevel;
+      this.maxDefinitionLevel = maxDefinitionLevel;
+      this.repetitionLevels = repetitionLevels;
+      this.definitionLevels = definitionLevels;
+      this.values = values;
+    }
+
+    int getSlotCount() {
+      return repetitionLevels.length;
+    }
+
+    @Override
+    public void close() {
+      values.close();
+    }
+  }
+}
@@ -0,0 +1,216 @@
+import io.netty.buffer.ArrowBuf;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.MapVector;
+import org.apache.arrow.vector.complex.NonNullableStructVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.types.Types.MinorType;
+
+/**
+ * Extracts the value of one key from every map of a map column, without
+ * flattening the maps:
+ *
+ *    event = struct (id, attrs: map<string, struct (os, version)>)
+ *
+ *    MapLookup.parse("event", "event.attrs['device'].os").extract(event, allocator)
+ *
+ * gives one value per map, null where the map is absent or has no such key.
+ * The keys of each map are compared in place, within the map's range of
+ * the offsets, and the scan of a map stops at its first match. Only the
+ * matching entries' values are then gathered, by one typed gather, so no
+ * entry is materialized to find a key. Flatten the map instead for all its
+ * entries, as key and value rows.
+ *
+ * VARCHAR and VARBINARY keys compare as bytes against a String (UTF-8) or
+ * byte[] key, INT and BIGINT keys against a number.
+ */
+final class MapLookup {
+
+  // map['key'].value.path, map[42] ...
+  private static final Pattern EXPRESSION = Pattern.compile("(.+?)\\[(.+)\\](?:\\.(.+))?");
+
+  private final String column;
+  private final String mapPath;
+  private final Object key;
+  // key as bytes for variable-width keys, null for a numeric key
+  private final byte[] keyBytes;
+  // path within the value struct, null for a primitive value
+  private final String valuePath;
+
+  MapLookup(String column, String mapPath, Object key, String valuePath) {
+    if (!(key instanceof String || key instanceof byte[] || key instanceof Number)) {
+      throw new IllegalArgumentException("Map keys are strings, bytes or numbers, not " + key);
+    }
+    this.column = column;
+    this.mapPath = mapPath;
+    this.key = key;
+    this.keyBytes = key instanceof String ? ((String)key).getBytes(StandardCharsets.UTF_8)
+        : key instanceof byte[] ? ((byte[])key).clone() : null;
+    this.valuePath = valuePath;
+  }
+
+  /**
+   * Lookup written as map['key'] or map[number], followed by the dotted
+   * path to a leaf of a struct value, e.g. event.attrs['device'].os.
+   */
+  static MapLookup parse(String column, String expression) {
+    Matcher matcher = EXPRESSION.matcher(expression);
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException("Invalid map lookup: " + expression);
+    }
+    String key = matcher.group(2);
+    if (key.length() >= 2 && key.startsWith("'") && key.endsWith("'")) {
+      return new MapLookup(column, matcher.group(1), key.substring(1, key.length() - 1), matcher.group(3));
+    }
+    try {
+      return new MapLookup(column, matcher.group(1), Long.parseLong(key), matcher.group(3));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid map lookup: " + expression);
+    }
+  }
+
+  /**
+   * The looked up value of every map, i.e. of every element of the level
+   * holding the map, in a new vector.
+   */
+  FieldVector extract(ValueVector vector, BufferAllocator allocator) {
+    NestedPaths.Resolved map = NestedPaths.resolve(column, vector, mapPath);
+    int level = map.getLevel();
+    // the path must end at the map itself, not at a field of its entries
+    if (level == 0 || !(map.lists[level] instanceof MapVector)
+        || map.vector != ((MapVector)map.lists[level]).getDataVector()) {
+      throw new IllegalArgumentException("Not a map: " + mapPath);
+    }
+    String leafPath = mapPath + "." + MapVector.VALUE_NAME + (valuePath == null ? "" : "." + valuePath);
+    NestedPaths.Resolved value = NestedPaths.resolve(column, vector, leafPath);
+    if (value.getLevel() != level || value.vector instanceof NonNullableStructVector) {
+      throw new IllegalArgumentException("Not a primitive leaf of the map value: " + leafPath);
+    }
+    LeafCopier copier = LeafCopier.forType(value.vector.getMinorType());
+
+    int[] entries = findEntries(map);
+    int count = entries.length;
+    ValueVector out = FlattenOperator.getOutputVector(value.vector, allocator);
+    try {
+      copier.gatherNullable(value.vector, entries, out, count);
+      // a null value struct makes its leaves null
+      ArrowBuf validity = ((FieldVector)out).getValidityBuffer();
+      for (ValueVector struct : value.structs[level]) {
+        if (struct instanceof StructVector && struct.getNullCount() > 0) {
+          ValidityBitmaps.andGathered(((FieldVector)struct).getValidityBuffer(), entries, validity, 0, count);
+        }
+      }
+      out.setValueCount(count);
+      return (FieldVector)out;
+    } catch (RuntimeException e) {
+      out.close();
+      throw e;
+    }
+  }
+
+  /**
+   * The entry holding the key in every map, -1 where the map is absent or
+   * has none.
+   */
+  private int[] findEntries(NestedPaths.Resolved map) {
+    int level = map.getLevel();
+    MapVector mapVector = (MapVector)map.lists[level];
+    ValueVector keys = ((NonNullableStructVector)map.vector).getChild(MapVector.KEY_NAME);
+    int count = mapVector.getValueCount();
+    List<ValueVector> validity = new ArrayList<>();
+    for (ValueVector struct : map.structs[level - 1]) {
+      if (struct instanceof StructVector && struct.getNullCount() > 0) {
+        validity.add(struct);
+      }
+    }
+    if (mapVector.getNullCount() > 0) {
+      validity.add(mapVector);
+    }
+    SelectionBitmap present = validity.isEmpty() ? null
+        : RepetitionIndex.presentLists(validity.toArray(new ValueVector[0]), 0, count);
+    MinorType keyType = keys.getMinorType();
+    checkKeyType(keyType);
+    ArrowBuf data = ((FieldVector)keys).getDataBuffer();
+    ArrowBuf offsets = keyBytes == null ? null : ((BaseVariableWidthVector)keys).getOffsetBuffer();
+    long constant = keyBytes == null ? ((Number)key).longValue() : 0;
+    int[] entries = new int[count];
+    int end = RepetitionIndex.offset(mapVector, 0);
+    for (int i = 0; i < count; i++) {
+      int start = end;
+      end = RepetitionIndex.offset(mapVector, i + 1);
+      entries[i] = -1;
+      if (present != null && !present.get(i)) {
+        continue;
+      }
+      for (int entry = start; entry < end; entry++) {
+        if (matches(keyType, data, offsets, constant, entry)) {
+          entries[i] = entry;
+          break;
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Throw unless the lookup's key can be compared with the map's keys.
+   */
+  private void checkKeyType(MinorType keyType) {
+    switch (keyType) {
+      case INT:
+      case BIGINT:
+        if (keyBytes == null) {
+          return;
+        }
+        break;
+      case VARCHAR:
+      case VARBINARY:
+        if (keyBytes != null) {
+          return;
+        }
+        break;
+      default:
+        throw new UnsupportedOperationException("Map lookups are not supported on key type " + keyType);
+    }
+    throw new IllegalArgumentException("Cannot compare " + keyType + " keys of " + mapPath + " with "
+        + key.getClass().getSimpleName());
+  }
+
+  /**
+   * Whether the key of the entry is the lookup's, compared in place.
+   */
+  private boolean matches(MinorType keyType, ArrowBuf data, ArrowBuf offsets, long constant, int entry) {
+    switch (keyType) {
+      case INT:
+        return data.getInt((long)entry << 2) == constant;
+      case BIGINT:
+        return data.getLong((long)entry << 3) == constant;
+      default: {
+        int start = offsets.getInt((long)entry << 2);
+        if (offsets.getInt((long)(entry + 1) << 2) - start != keyBytes.length) {
+          return false;
+        }
+        for (int k = 0; k < keyBytes.length; k++) {
+          if (data.getByte(start + k) != keyBytes[k]) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    String keyString = key instanceof Number ? key.toString()
+        : "'" + new String(keyBytes, StandardCharsets.UTF_8) + "'";
+    return mapPath + "[" + keyString + "]" + (valuePath == null ? "" : "." + valuePath);
+  }
+}
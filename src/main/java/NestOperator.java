@@ -0,0 +1,431 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.MapVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.types.Types;
+import org.apache.arrow.vector.types.pojo.Field;
+
+/**
+ * NEST, the inverse of {@link FlattenOperator#flatten}: regroups flattened
+ * rows into the nested column they came from.
+ *
+ *    PERSON        APT     ZIP       PHONE               person: {age: 25, addresses: [
+ *    25            1012    94404     123456                {apt: 1012, zip: 94404, phones: [123456, 565676]},
+ *    25            1012    94404     565676       =>       {apt: 1022, zip: 94402, phones: [212121]}
+ *    25            1022    94402     212121              ]}
+ *
+ * Which rows share an element is given per repetition level by an element
+ * index per row, such as the indexes a flatten keeps with its batch (see
+ * {@link FlattenOperator.ColumnarRecordBatch#getRepetitionIndex()}) or ids
+ * from grouping keys ({@link #groupByKeys}). An element at level k is
+ * identified by its element at level k - 1 together with its own index, so
+ * indexes only need to tell elements of the same parent apart.
+ *
+ * Every level is grouped in one pass over its index, from the top down.
+ * When the rows of each element are consecutive and elements come in
+ * increasing order within their parent, as they are straight out of a
+ * flatten or after a filter, an element is a run of rows and grouping is a
+ * comparison with the previous row. Otherwise the elements are numbered
+ * through a hash table in order of first appearance and then counting
+ * sorted by parent, since the elements of a list must be adjacent. Either
+ * way the offsets of every list are known before anything is written, so
+ * each leaf is one typed gather of the first row of every element, or one
+ * bulk copy for a deepest level with an element per row in order, and
+ * every buffer is allocated once.
+ *
+ * Only what the rows say can be recovered. A struct comes back valid with
+ * its null leaves null, and a list comes back empty, not null, where the
+ * rows have no element below it.
+ */
+class NestOperator {
+
+  /**
+   * Nest the rows of a batch holding the output columns of the plan with
+   * the index it was flattened with.
+   */
+  FieldVector nest(FlattenPlan plan, FlattenOperator.ColumnarRecordBatch batch, BufferAllocator allocator) {
+    RepetitionIndex index = batch.getRepetitionIndex();
+    if (index == null) {
+      throw new IllegalArgumentException("The batch has no repetition index, pass the elements of its rows");
+    }
+    int[][] elements = new int[index.getDepth() + 1][];
+    for (int level = 0; level < elements.length; level++) {
+      // the deepest level of a contiguous index is an element per row
+      elements[level] = level == index.getDepth() && index.isContiguous() ? null : index.getElements(level);
+    }
+    return nest(plan, batch, elements, allocator);
+  }
+
+  /**
+   * Nest the rows of a batch holding the output columns of the plan into a
+   * new vector with the plan's schema, pruned to its leaves.
+   *
+   * @param elements elements[k][row] identifies the element at level k the
+   *                 row belongs to, or is -1 when its parent's list at level
+   *                 k is empty (and then -1 at every level below).
+   *                 elements[depth] may be null for an element per row.
+   */
+  FieldVector nest(
+      FlattenPlan plan,
+      FlattenOperator.ColumnarRecordBatch batch,
+      int[][] elements,
+      BufferAllocator allocator) {
+    plan.checkNoSiblingLists();
+    int depth = plan.getDepth();
+    if (elements.length != depth + 1) {
+      throw new IllegalArgumentException("Expected the elements of " + (depth + 1) + " levels, got "
+          + elements.length);
+    }
+    int rowCount = batch.getRowCount();
+    Grouping[] levels = new Grouping[depth + 1];
+    for (int level = 0; level <= depth; level++) {
+      if (elements[level] == null ? level < depth : elements[level].length != rowCount) {
+        throw new IllegalArgumentException("Expected an element per row at level " + level);
+      }
+      levels[level] = level == 0
+          ? Grouping.group(elements[0], null, 1, rowCount, 0)
+          : Grouping.group(elements[level], levels[level - 1].rowGroups, levels[level - 1].count, rowCount, level);
+    }
+
+    Map<String, FlattenPlan.Leaf> leaves = new HashMap<>();
+    for (FlattenPlan.Leaf leaf : plan.getLeaves()) {
+      leaves.put(leaf.path, leaf);
+    }
+    Field field = prune(plan.getField(), plan.getColumn(), leaves);
+    FieldVector vector = field.createVector(allocator);
+    try {
+      String path = plan.getColumn();
+      size(vector, path, 0, levels, leaves, batch);
+      vector.allocateNew();
+      fill(vector, path, 0, levels, leaves, batch);
+      vector.setValueCount(levels[0].count);
+      return vector;
+    } catch (RuntimeException e) {
+      vector.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Dense ids of the rows by the values of the given columns, numbered in
+   * order of first appearance so that rows clustered by key get increasing
+   * ids, ready to be passed as the elements of a level to
+   * {@link #nest(FlattenPlan, FlattenOperator.ColumnarRecordBatch, int[][], BufferAllocator)}.
+   * The values of a level's leaves that identify its elements within their
+   * parent are enough, e.g. apt for addresses. Nulls are equal to each
+   * other. The values are boxed, so this is for convenience rather than
+   * speed.
+   */
+  static int[] groupByKeys(FlattenOperator.ColumnarRecordBatch batch, String... columns) {
+    ValueVector[] vectors = new ValueVector[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      vectors[i] = getColumn(batch, columns[i]);
+    }
+    int rowCount = batch.getRowCount();
+    int[] ids = new int[rowCount];
+    Map<List<Object>, Integer> keys = new HashMap<>();
+    for (int row = 0; row < rowCount; row++) {
+      List<Object> key = new ArrayList<>(vectors.length);
+      for (ValueVector vector : vectors) {
+        Object value = vector.getObject(row);
+        // byte[] compares by identity
+        key.add(value instanceof byte[] ? ByteBuffer.wrap((byte[])value) : value);
+      }
+      Integer id = keys.get(key);
+      if (id == null) {
+        id = keys.size();
+        keys.put(key, id);
+      }
+      ids[row] = id;
+    }
+    return ids;
+  }
+
+  /**
+   * The field with only the structs and lists on the way to a leaf of the
+   * plan, null if there is none beneath it.
+   */
+  private static Field prune(Field field, String path, Map<String, FlattenPlan.Leaf> leaves) {
+    switch (Types.getMinorTypeForArrowType(field.getType())) {
+      case LIST: {
+        Field data = prune(field.getChildren().get(0), path, leaves);
+        return data == null ? null
+            : new Field(field.getName(), field.getFieldType(), Arrays.asList(data));
+      }
+      case MAP: {
+        // a list of key/value structs, which stays a map only with its keys
+        Field entries = prune(field.getChildren().get(0), path, leaves);
+        if (entries == null) {
+          return null;
+        }
+        if (!entries.getChildren().get(0).getName().equals(MapVector.KEY_NAME)) {
+          throw new IllegalArgumentException("Cannot nest map " + path + " without its key " + path + "."
+              + MapVector.KEY_NAME);
+        }
+        return new Field(field.getName(), field.getFieldType(), Arrays.asList(entries));
+      }
+      case STRUCT: {
+        List<Field> children = new ArrayList<>();
+        for (Field child : field.getChildren()) {
+          Field pruned = prune(child, path + "." + child.getName(), leaves);
+          if (pruned != null) {
+            children.add(pruned);
+          }
+        }
+        return children.isEmpty() ? null : new Field(field.getName(), field.getFieldType(), children);
+      }
+      default:
+        return leaves.containsKey(path) ? field : null;
+    }
+  }
+
+  /**
+   * Set the initial capacity of every vector to the elements of its level,
+   * parents before children since those size their children with a guess.
+   */
+  private static void size(
+      ValueVector vector,
+      String path,
+      int level,
+      Grouping[] levels,
+      Map<String, FlattenPlan.Leaf> leaves,
+      FlattenOperator.ColumnarRecordBatch batch) {
+    int count = levels[level].count;
+    if (vector instanceof StructVector) {
+      vector.setInitialCapacity(count);
+      for (FieldVector child : ((StructVector)vector).getChildrenFromFields()) {
+        size(child, path + "." + child.getName(), level, levels, leaves, batch);
+      }
+    } else if (vector instanceof ListVector) {
+      vector.setInitialCapacity(count);
+      size(((ListVector)vector).getDataVector(), path, level + 1, levels, leaves, batch);
+    } else if (vector instanceof BaseVariableWidthVector) {
+      // the average value length of the flattened column
+      ValueVector source = getColumn(batch, leaves.get(path).name);
+      int sourceCount = source.getValueCount();
+      double density = sourceCount == 0 ? 0
+          : (((BaseVariableWidthVector)source).getOffsetBuffer().getInt((long)sourceCount * 4) + 0.5) / sourceCount;
+      ((BaseVariableWidthVector)vector).setInitialCapacity(count, density);
+    } else {
+      vector.setInitialCapacity(count);
+    }
+  }
+
+  private static void fill(
+      ValueVector vector,
+      String path,
+      int level,
+      Grouping[] levels,
+      Map<String, FlattenPlan.Leaf> leaves,
+      FlattenOperator.ColumnarRecordBatch batch) {
+    Grouping grouping = levels[level];
+    int count = grouping.count;
+    if (vector instanceof StructVector) {
+      StructVector struct = (StructVector)vector;
+      ValidityBitmaps.setFirst(struct.getValidityBuffer(), count);
+      for (FieldVector child : struct.getChildrenFromFields()) {
+        fill(child, path + "." + child.getName(), level, levels, leaves, batch);
+      }
+    } else if (vector instanceof ListVector) {
+      ListVector list = (ListVector)vector;
+      ValidityBitmaps.setFirst(list.getValidityBuffer(), count);
+      int[] offsets = levels[level + 1].offsets;
+      for (int i = 0; i <= count; i++) {
+        list.getOffsetBuffer().setInt((long)i * 4, offsets[i]);
+      }
+      list.setLastSet(count - 1);
+      fill(list.getDataVector(), path, level + 1, levels, leaves, batch);
+    } else {
+      FlattenPlan.Leaf leaf = leaves.get(path);
+      ValueVector source = getColumn(batch, leaf.name);
+      if (source.getMinorType() != leaf.type) {
+        throw new IllegalArgumentException("Column " + leaf.name + " is " + source.getMinorType()
+            + ", the plan has " + leaf.type);
+      }
+      if (grouping.isEveryRow) {
+        leaf.copier.copyRange(source, 0, vector, count);
+      } else {
+        leaf.copier.gather(source, grouping.rows, vector, count);
+      }
+      vector.setValueCount(count);
+    }
+  }
+
+  private static ValueVector getColumn(FlattenOperator.ColumnarRecordBatch batch, String column) {
+    ValueVector vector = batch.getVector(column);
+    if (vector == null || vector.getField().getDictionary() != null) {
+      throw new IllegalArgumentException("No plain vector to nest for column " + column);
+    }
+    return vector;
+  }
+
+  /**
+   * The elements of one level, numbered in output order: grouped by parent,
+   * and within a parent in order of first appearance.
+   */
+  private static final class Grouping {
+    final int count;
+    // first row of every element
+    final int[] rows;
+    // offsets[p] is the first element of parent p, with a trailing count
+    final int[] offsets;
+    // element of every row, -1 for none
+    final int[] rowGroups;
+    // the level has an element per row, in row order
+    final boolean isEveryRow;
+
+    private Grouping(int count, int[] rows, int[] offsets, int[] rowGroups) {
+      this.count = count;
+      this.rows = rows;
+      this.offsets = offsets;
+      this.rowGroups = rowGroups;
+      boolean everyRow = count == rowGroups.length;
+      for (int i = 0; everyRow && i < count; i++) {
+        everyRow = rows[i] == i;
+      }
+      this.isEveryRow = everyRow;
+    }
+
+    /**
+     * @param keys element of every row within its parent, -1 for none, null
+     *             for the row itself
+     * @param parents element of every row at the level above, null when all
+     *                rows have the same parent
+     */
+    static Grouping group(int[] keys, int[] parents, int parentCount, int rowCount, int level) {
+      for (int row = 0; row < rowCount; row++) {
+        if (parent(parents, row) < 0 && key(keys, row) >= 0) {
+          throw new IllegalArgumentException("Row " + row + " has an element at level " + level
+              + " but none above it");
+        }
+      }
+      return isClustered(keys, parents, rowCount)
+          ? groupRuns(keys, parents, parentCount, rowCount)
+          : groupHashed(keys, parents, parentCount, rowCount);
+    }
+
+    /**
+     * Whether the (parent, key) pairs of the rows with an element never
+     * decrease, so that every element is a run of rows in parent order.
+     */
+    private static boolean isClustered(int[] keys, int[] parents, int rowCount) {
+      int lastParent = -1;
+      int lastKey = -1;
+      for (int row = 0; row < rowCount; row++) {
+        int key = key(keys, row);
+        if (key < 0) {
+          continue;
+        }
+        int parent = parent(parents, row);
+        if (parent < lastParent || parent == lastParent && key < lastKey) {
+          return false;
+        }
+        lastParent = parent;
+        lastKey = key;
+      }
+      return true;
+    }
+
+    private static Grouping groupRuns(int[] keys, int[] parents, int parentCount, int rowCount) {
+      int[] rowGroups = new int[rowCount];
+      int[] offsets = new int[parentCount + 1];
+      int count = 0;
+      int lastParent = -1;
+      int lastKey = -1;
+      for (int row = 0; row < rowCount; row++) {
+        int key = key(keys, row);
+        int parent = parent(parents, row);
+        if (key >= 0 && (parent != lastParent || key != lastKey)) {
+          count++;
+          offsets[parent + 1]++;
+          lastParent = parent;
+          lastKey = key;
+        }
+      }
+      int[] rows = new int[count];
+      count = 0;
+      lastParent = -1;
+      lastKey = -1;
+      for (int row = 0; row < rowCount; row++) {
+        int key = key(keys, row);
+        int parent = parent(parents, row);
+        if (key < 0) {
+          rowGroups[row] = -1;
+          continue;
+        }
+        if (parent != lastParent || key != lastKey) {
+          rows[count++] = row;
+          lastParent = parent;
+          lastKey = key;
+        }
+        rowGroups[row] = count - 1;
+      }
+      for (int parent = 0; parent < parentCount; parent++) {
+        offsets[parent + 1] += offsets[parent];
+      }
+      return new Grouping(count, rows, offsets, rowGroups);
+    }
+
+    private static Grouping groupHashed(int[] keys, int[] parents, int parentCount, int rowCount) {
+      int[] rowGroups = new int[rowCount];
+      int[] offsets = new int[parentCount + 1];
+      Map<Long, Integer> ids = new HashMap<>();
+      int[] firstRows = new int[rowCount];
+      int[] groupParents = new int[rowCount];
+      for (int row = 0; row < rowCount; row++) {
+        int key = key(keys, row);
+        if (key < 0) {
+          rowGroups[row] = -1;
+          continue;
+        }
+        int parent = parent(parents, row);
+        Long pair = ((long)parent << 32) | key;
+        Integer id = ids.get(pair);
+        if (id == null) {
+          id = ids.size();
+          ids.put(pair, id);
+          firstRows[id] = row;
+          groupParents[id] = parent;
+          offsets[parent + 1]++;
+        }
+        rowGroups[row] = id;
+      }
+      int count = ids.size();
+      for (int parent = 0; parent < parentCount; parent++) {
+        offsets[parent + 1] += offsets[parent];
+      }
+      // counting sort by parent, stable in order of first appearance
+      int[] next = Arrays.copyOf(offsets, parentCount);
+      int[] positions = new int[count];
+      int[] rows = new int[count];
+      for (int id = 0; id < count; id++) {
+        int position = next[groupParents[id]]++;
+        positions[id] = position;
+        rows[position] = firstRows[id];
+      }
+      for (int row = 0; row < rowCount; row++) {
+        if (rowGroups[row] >= 0) {
+          rowGroups[row] = positions[rowGroups[row]];
+        }
+      }
+      return new Grouping(count, rows, offsets, rowGroups);
+    }
+
+    private static int key(int[] keys, int row) {
+      return keys == null ? row : keys[row];
+    }
+
+    private static int parent(int[] parents, int row) {
+      return parents == null ? 0 : parents[row];
+    }
+  }
+}
@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.StructVector;
+
+/**
+ * Selects top-level rows of a nested column by quantified predicates on
+ * its leaves, without flattening:
+ *
+ *    persons having any address with zip = 94402 and any phone of type 1
+ *
+ *    new NestedFilter("person")
+ *        .any(LeafPredicate.equal("person.addresses.zip", 94402))
+ *        .any(LeafPredicate.equal("person.addresses.phones.phone-type", 1))
+ *        .select(person)
+ *
+ * Each predicate is evaluated on the elements of its own repetition level
+ * into a bitmap, which is then rolled up one level at a time through the
+ * offsets of the list above: a parent matches ANY when a bit in its range
+ * is set and ALL when none is clear, found a word at a time. The rolled up
+ * bitmaps of the predicates are ANDed, and a predicate after the first only
+ * reads the elements under top-level rows that are still selected. Every
+ * predicate is quantified on its own: ANY over addresses then phones is
+ * "some phone of some address", not the same address as another predicate.
+ * A flatten with predicates gives the correlated form.
+ *
+ * A null value never matches, so a row with one fails ALL. An absent list,
+ * null or under a null struct, counts as empty: ANY is false and ALL true
+ * over it. Null top-level rows are never selected.
+ */
+final class NestedFilter {
+
+  enum Quantifier {
+    ANY, ALL
+  }
+
+  private final String column;
+  private final List<LeafPredicate> predicates = new ArrayList<>();
+  private final List<Quantifier> quantifiers = new ArrayList<>();
+
+  NestedFilter(String column) {
+    this.column = column;
+  }
+
+  /**
+   * Keep the rows with at least one value satisfying the predicate.
+   */
+  NestedFilter any(LeafPredicate predicate) {
+    return add(predicate, Quantifier.ANY);
+  }
+
+  /**
+   * Keep the rows whose values all satisfy the predicate.
+   */
+  NestedFilter all(LeafPredicate predicate) {
+    return add(predicate, Quantifier.ALL);
+  }
+
+  NestedFilter add(LeafPredicate predicate, Quantifier quantifier) {
+    predicates.add(predicate);
+    quantifiers.add(quantifier);
+    return this;
+  }
+
+  /**
+   * Bitmap of the selected top-level rows of the column.
+   */
+  SelectionBitmap select(ValueVector vector) {
+    return select(vector, null);
+  }
+
+  /**
+   * Bitmap of the selected top-level rows, not looking at the rows of the
+   * blocks in which the statistics show that an ANY predicate cannot match.
+   * ALL holds over an empty list whatever the values, so an ALL predicate
+   * only skips blocks when its leaf is not under a list.
+   *
+   * @param statistics collected from this batch of the column, or null
+   */
+  SelectionBitmap select(ValueVector vector, NestedStatistics statistics) {
+    int rowCount = vector.getValueCount();
+    SelectionBitmap selected = new SelectionBitmap(rowCount);
+    selected.setRange(0, rowCount);
+    if (vector instanceof StructVector || vector instanceof ListVector) {
+      selected.and(((FieldVector)vector).getValidityBuffer(), 0, rowCount);
+    }
+    if (statistics != null) {
+      statistics.checkBatch(column, vector);
+      List<LeafPredicate> skipping = new ArrayList<>();
+      for (int i = 0; i < predicates.size(); i++) {
+        NestedStatistics.LeafStatistics leaf = statistics.getLeaf(predicates.get(i).getPath());
+        if (quantifiers.get(i) == Quantifier.ANY || (leaf != null && leaf.level == 0)) {
+          skipping.add(predicates.get(i));
+        }
+      }
+      selected.and(statistics.selectRows(skipping), 0, rowCount);
+    }
+    for (int i = 0; i < predicates.size(); i++) {
+      NestedPaths.Resolved resolved = NestedPaths.resolve(column, vector, predicates.get(i).getPath());
+      SelectionBitmap matches = select(resolved, predicates.get(i), quantifiers.get(i), selected, rowCount);
+      // unselect the runs of rows that do not match, a word at a time
+      for (int row = matches.nextClearBit(0, rowCount); row < rowCount; ) {
+        int end = matches.nextSetBit(row, rowCount);
+        selected.clearRange(row, end);
+        row = matches.nextClearBit(end, rowCount);
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Indices of the selected top-level rows in increasing order.
+   */
+  IntVector selectIndices(ValueVector vector, BufferAllocator allocator) {
+    SelectionBitmap selected = select(vector);
+    int rowCount = vector.getValueCount();
+    int count = selected.cardinality(0, rowCount);
+    IntVector indices = new IntVector(column + "$selection", allocator);
+    indices.allocateNew(count);
+    int i = 0;
+    for (int row = selected.nextSetBit(0, rowCount); row < rowCount; row = selected.nextSetBit(row + 1, rowCount)) {
+      indices.set(i++, row);
+    }
+    indices.setValueCount(count);
+    return indices;
+  }
+
+  /**
+   * Top-level rows whose values satisfy the predicate as quantified, only
+   * looked for among the selected rows.
+   */
+  private static SelectionBitmap select(
+      NestedPaths.Resolved resolved,
+      LeafPredicate predicate,
+      Quantifier quantifier,
+      SelectionBitmap selected,
+      int rowCount) {
+    ListVector[] lists = resolved.lists;
+    int level = resolved.getLevel();
+    int count = level == 0 ? rowCount : RepetitionIndex.offset(lists[level], lists[level].getValueCount());
+
+    // the leaf's elements under the selected rows
+    SelectionBitmap matches = new SelectionBitmap(count);
+    int[] bounds = level == 0 ? null : RepetitionIndex.composeOffsets(lists, 0, 0, rowCount);
+    for (int row = selected.nextSetBit(0, rowCount); row < rowCount; row = selected.nextSetBit(row + 1, rowCount)) {
+      if (bounds == null) {
+        matches.set(row);
+      } else {
+        matches.setRange(bounds[row], bounds[row + 1]);
+      }
+    }
+    for (ValueVector struct : withNulls(resolved.structs[level])) {
+      matches.and(((FieldVector)struct).getValidityBuffer(), 0, count);
+    }
+    predicate.filter(resolved.vector, 0, count, matches);
+
+    // roll up to the top, where each level's parents are the elements above
+    for (; level > 0; level--) {
+      ListVector list = lists[level];
+      int parentCount = level == 1 ? rowCount : RepetitionIndex.offset(lists[level - 1],
+          lists[level - 1].getValueCount());
+      List<ValueVector> validity = withNulls(resolved.structs[level - 1]);
+      if (list.getNullCount() > 0) {
+        validity.add(list);
+      }
+      SelectionBitmap present = validity.isEmpty() ? null
+          : RepetitionIndex.presentLists(validity.toArray(new ValueVector[0]), 0, parentCount);
+      SelectionBitmap parents = new SelectionBitmap(parentCount);
+      for (int parent = 0; parent < parentCount; parent++) {
+        boolean match;
+        if (present != null && !present.get(parent)) {
+          match = quantifier == Quantifier.ALL;
+        } else {
+          int start = RepetitionIndex.offset(list, parent);
+          int end = RepetitionIndex.offset(list, parent + 1);
+          match = quantifier == Quantifier.ANY
+              ? matches.nextSetBit(start, end) < end
+              : matches.nextClearBit(start, end) == end;
+        }
+        if (match) {
+          parents.set(parent);
+        }
+      }
+      matches = parents;
+    }
+    return matches;
+  }
+
+  /**
+   * The nullable structs that hold at least one null.
+   */
+  private static List<ValueVector> withNulls(ValueVector[] structs) {
+    List<ValueVector> nullable = new ArrayList<>();
+    for (ValueVector struct : structs) {
+      if (struct instanceof StructVector && struct.getNullCount() > 0) {
+        nullable.add(struct);
+      }
+    }
+    return nullable;
+  }
+}
@@ -0,0 +1,49 @@
+import java.util.Collections;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+
+/**
+ * Resolves dotted paths such as person.addresses.zip against a nested
+ * vector. The first segment names the root column, every following segment
+ * a struct child. Lists are transparent: a segment that names a list steps
+ * into the list's data vector and one repetition level down.
+ *
+ * The structs passed on the way are recorded by level, since a null one
+ * makes everything beneath it at its level null as well.
+ *
+ * A path resolves through the cached {@link FlattenPlan} compiled for it
+ * alone, so it names the same vector as in a flatten, maps included.
+ */
+final class NestedPaths {
+
+  private NestedPaths() {
+  }
+
+  static Resolved resolve(String column, ValueVector vector, String path) {
+    return FlattenPlan.compile(column, ((FieldVector)vector).getField(), Collections.<String>emptyList(),
+        Collections.singletonList(path)).resolve(vector, path);
+  }
+
+  /**
+   * The vector at the end of a path together with the lists traversed to
+   * reach it. lists[k] produces level k elements and lists[0] is null, so
+   * the vector lives at level lists.length - 1. structs[k] are the structs
+   * passed at level k, outermost first.
+   */
+  static class Resolved {
+    final ValueVector vector;
+    final ListVector[] lists;
+    final ValueVector[][] structs;
+
+    Resolved(ValueVector vector, ListVector[] lists, ValueVector[][] structs) {
+      this.vector = vector;
+      this.lists = lists;
+      this.structs = structs;
+    }
+
+    int getLevel() {
+      return lists.length - 1;
+    }
+  }
+}
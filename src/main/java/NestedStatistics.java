@@ -0,0 +1,461 @@
+import io.netty.buffer.ArrowBuf;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.arrow.util.Preconditions;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.BitVectorHelper;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.NonNullableStructVector;
+import org.apache.arrow.vector.types.Types.MinorType;
+
+/**
+ * Zone maps of a nested column in one batch: for every primitive leaf the
+ * min, max and null count of its values, and for every list the number of
+ * lists and of their elements.
+ *
+ *    NestedStatistics statistics = NestedStatistics.collect("person", person);
+ *    operator.flattenWithStatistics("person", person, null, [person.addresses.zip = 94402], INNER, statistics)
+ *
+ * Leaf statistics are kept per block of top-level rows as well as for the
+ * whole batch. The values under a block are a contiguous range of the
+ * leaf's elements, found by composing the list offsets at the block's
+ * bounds, so collecting is one pass over each leaf's buffers. A predicate
+ * cannot match in a block whose min and max exclude its constant or whose
+ * values are all null, and a conjunction cannot match where one of its
+ * predicates cannot. Flatten and {@link NestedFilter} skip those blocks
+ * before looking at a single list, or the whole batch when no block is
+ * left.
+ *
+ * Values under null structs are counted like the others, which can only
+ * widen the ranges, so skipping stays safe.
+ */
+final class NestedStatistics {
+
+  static final int DEFAULT_BLOCK_ROWS = 4096;
+
+  private final String column;
+  private final int rowCount;
+  private final int blockRows;
+  private final Map<String, LeafStatistics> leaves = new LinkedHashMap<>();
+  private final Map<String, ListStatistics> lists = new LinkedHashMap<>();
+
+  private NestedStatistics(String column, int rowCount, int blockRows) {
+    this.column = column;
+    this.rowCount = rowCount;
+    this.blockRows = blockRows;
+  }
+
+  static NestedStatistics collect(String column, ValueVector vector) {
+    return collect(column, vector, DEFAULT_BLOCK_ROWS);
+  }
+
+  /**
+   * Statistics of every leaf and list of the column, the leaves' per block
+   * of blockRows top-level rows.
+   */
+  static NestedStatistics collect(String column, ValueVector vector, int blockRows) {
+    Preconditions.checkArgument(blockRows > 0, "blockRows must be positive");
+    NestedStatistics statistics = new NestedStatistics(column, vector.getValueCount(), blockRows);
+    List<ListVector> lists = new ArrayList<>();
+    lists.add(null);
+    statistics.visit(vector, column, lists);
+    return statistics;
+  }
+
+  private void visit(ValueVector vector, String path, List<ListVector> levelLists) {
+    if (vector instanceof NonNullableStructVector) {
+      for (ValueVector child : ((NonNullableStructVector)vector).getChildrenFromFields()) {
+        visit(child, path + "." + child.getName(), levelLists);
+      }
+    } else if (vector instanceof ListVector) {
+      ListVector list = (ListVector)vector;
+      levelLists.add(list);
+      lists.put(path, new ListStatistics(path, levelLists.size() - 1, list));
+      visit(list.getDataVector(), path, levelLists);
+      levelLists.remove(levelLists.size() - 1);
+    } else {
+      switch (vector.getMinorType()) {
+        case INT:
+        case BIGINT:
+        case FLOAT4:
+        case FLOAT8:
+        case VARCHAR:
+        case VARBINARY:
+          leaves.put(path, new LeafStatistics(path, levelLists.size() - 1, vector,
+              blockBounds(levelLists.toArray(new ListVector[0]))));
+          break;
+        default:
+          // no statistics, every predicate may match
+          break;
+      }
+    }
+  }
+
+  /**
+   * First element of every block of top-level rows at the level of the
+   * last list, with a trailing end.
+   */
+  private int[] blockBounds(ListVector[] levelLists) {
+    int blockCount = getBlockCount();
+    int[] bounds = new int[blockCount + 1];
+    for (int block = 0; block <= blockCount; block++) {
+      bounds[block] = RepetitionIndex.toDeepest(levelLists, Math.min(rowCount, block * blockRows));
+    }
+    return bounds;
+  }
+
+  String getColumn() {
+    return column;
+  }
+
+  int getRowCount() {
+    return rowCount;
+  }
+
+  int getBlockRows() {
+    return blockRows;
+  }
+
+  int getBlockCount() {
+    return (rowCount + blockRows - 1) / blockRows;
+  }
+
+  /**
+   * Statistics of the leaf at the dotted path, null if there are none.
+   */
+  LeafStatistics getLeaf(String path) {
+    return leaves.get(path);
+  }
+
+  ListStatistics getList(String path) {
+    return lists.get(path);
+  }
+
+  Collection<LeafStatistics> getLeaves() {
+    return leaves.values();
+  }
+
+  Collection<ListStatistics> getLists() {
+    return lists.values();
+  }
+
+  /**
+   * Whether any value of the batch may satisfy every predicate.
+   */
+  boolean mayMatch(List<LeafPredicate> predicates) {
+    for (LeafPredicate predicate : predicates) {
+      LeafStatistics leaf = leaves.get(predicate.getPath());
+      if (leaf != null && !leaf.mayMatch(predicate, -1)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The top-level rows of the blocks in which every predicate may match,
+   * the others being certain to have no value that does.
+   */
+  SelectionBitmap selectRows(List<LeafPredicate> predicates) {
+    SelectionBitmap rows = new SelectionBitmap(rowCount);
+    if (!mayMatch(predicates)) {
+      return rows;
+    }
+    for (int block = 0; block < getBlockCount(); block++) {
+      boolean match = true;
+      for (int i = 0; match && i < predicates.size(); i++) {
+        LeafStatistics leaf = leaves.get(predicates.get(i).getPath());
+        match = leaf == null || leaf.mayMatch(predicates.get(i), block);
+      }
+      if (match) {
+        rows.setRange(block * blockRows, Math.min(rowCount, (block + 1) * blockRows));
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Check that the statistics were collected for the column of this batch.
+   */
+  void checkBatch(String column, ValueVector vector) {
+    if (!this.column.equals(column) || rowCount != vector.getValueCount()) {
+      throw new IllegalArgumentException("Statistics of " + this.column + " with " + rowCount
+          + " rows do not describe " + column + " with " + vector.getValueCount() + " rows");
+    }
+  }
+
+  /**
+   * Min, max and null count of a leaf, per block and for the batch. Min and
+   * max are a Long for integers, a Double for floating point and a byte[]
+   * for variable-width leaves, ordered like {@link LeafPredicate} compares.
+   * Floating point min and max leave out NaN, which is only counted.
+   */
+  static final class LeafStatistics {
+    final String path;
+    final int level;
+    // FLOAT4, whose values compare to constants rounded to float
+    private final boolean isFloat;
+    // per block, then the batch at blockCount
+    private final Object[] mins;
+    private final Object[] maxes;
+    private final long[] nullCounts;
+    private final long[] valueCounts;
+    private final long[] nanCounts;
+
+    LeafStatistics(String path, int level, ValueVector leaf, int[] blockBounds) {
+      this.path = path;
+      this.level = level;
+      this.isFloat = leaf.getMinorType() == MinorType.FLOAT4;
+      int blockCount = blockBounds.length - 1;
+      mins = new Object[blockCount + 1];
+      maxes = new Object[blockCount + 1];
+      nullCounts = new long[blockCount + 1];
+      valueCounts = new long[blockCount + 1];
+      nanCounts = new long[blockCount + 1];
+      for (int block = 0; block < blockCount; block++) {
+        scan(leaf, block, blockBounds[block], blockBounds[block + 1]);
+        nullCounts[blockCount] += nullCounts[block];
+        valueCounts[blockCount] += valueCounts[block];
+        nanCounts[blockCount] += nanCounts[block];
+        if (mins[block] != null) {
+          if (mins[blockCount] == null || compare(mins[block], mins[blockCount]) < 0) {
+            mins[blockCount] = mins[block];
+          }
+          if (maxes[blockCount] == null || compare(maxes[block], maxes[blockCount]) > 0) {
+            maxes[blockCount] = maxes[block];
+          }
+        }
+      }
+    }
+
+    private void scan(ValueVector leaf, int block, int start, int end) {
+      ArrowBuf validity = ((FieldVector)leaf).getValidityBuffer();
+      ArrowBuf data = ((FieldVector)leaf).getDataBuffer();
+      long nulls = 0;
+      switch (leaf.getMinorType()) {
+        case INT:
+        case BIGINT: {
+          boolean isInt = leaf.getMinorType() == MinorType.INT;
+          long min = Long.MAX_VALUE;
+          long max = Long.MIN_VALUE;
+          for (int i = start; i < end; i++) {
+            if (BitVectorHelper.get(validity, i) == 0) {
+              nulls++;
+              continue;
+            }
+            long value = isInt ? data.getInt((long)i << 2) : data.getLong((long)i << 3);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+          }
+          if (nulls < end - start) {
+            mins[block] = min;
+            maxes[block] = max;
+          }
+          break;
+        }
+        case FLOAT4:
+        case FLOAT8: {
+          boolean isFloat = leaf.getMinorType() == MinorType.FLOAT4;
+          double min = Double.POSITIVE_INFINITY;
+          double max = Double.NEGATIVE_INFINITY;
+          long nans = 0;
+          for (int i = start; i < end; i++) {
+            if (BitVectorHelper.get(validity, i) == 0) {
+              nulls++;
+              continue;
+            }
+            double value = isFloat ? Float.intBitsToFloat(data.getInt((long)i << 2))
+                : Double.longBitsToDouble(data.getLong((long)i << 3));
+            if (value != value) {
+              nans++;
+              continue;
+            }
+            // -0.0 and 0.0 are equal, as predicates compare, so either may be kept
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+          }
+          nanCounts[block] = nans;
+          if (nulls + nans < end - start) {
+            mins[block] = min;
+            maxes[block] = max;
+          }
+          break;
+        }
+        default: {
+          ArrowBuf offsets = ((BaseVariableWidthVector)leaf).getOffsetBuffer();
+          int minIndex = -1;
+          int maxIndex = -1;
+          for (int i = start; i < end; i++) {
+            if (BitVectorHelper.get(validity, i) == 0) {
+              nulls++;
+              continue;
+            }
+            if (minIndex < 0 || compareValues(data, offsets, i, minIndex) < 0) {
+              minIndex = i;
+            }
+            if (maxIndex < 0 || compareValues(data, offsets, i, maxIndex) > 0) {
+              maxIndex = i;
+            }
+          }
+          if (minIndex >= 0) {
+            mins[block] = bytes(data, offsets, minIndex);
+            maxes[block] = bytes(data, offsets, maxIndex);
+          }
+          break;
+        }
+      }
+      nullCounts[block] = nulls;
+      valueCounts[block] = end - start - nulls;
+    }
+
+    /**
+     * Min of the block, or of the batch for block -1; null without values.
+     */
+    Object getMin(int block) {
+      return mins[block < 0 ? mins.length - 1 : block];
+    }
+
+    Object getMax(int block) {
+      return maxes[block < 0 ? maxes.length - 1 : block];
+    }
+
+    long getNullCount(int block) {
+      return nullCounts[block < 0 ? nullCounts.length - 1 : block];
+    }
+
+    /**
+     * Number of non-null values of the block, or of the batch for block -1.
+     */
+    long getValueCount(int block) {
+      return valueCounts[block < 0 ? valueCounts.length - 1 : block];
+    }
+
+    /**
+     * Number of NaN values of the block, or of the batch for block -1.
+     */
+    long getNaNCount(int block) {
+      return nanCounts[block < 0 ? nanCounts.length - 1 : block];
+    }
+
+    /**
+     * Whether a value of the block, or of the batch for block -1, may
+     * satisfy the predicate. A constant of the wrong type may match, and
+     * fails when the predicate is evaluated. NaN, value or constant,
+     * satisfies only NE.
+     */
+    boolean mayMatch(LeafPredicate predicate, int block) {
+      Object min = getMin(block);
+      Object max = getMax(block);
+      if (predicate.getComparison() == LeafPredicate.Comparison.NE && getNaNCount(block) > 0) {
+        return true;
+      }
+      if (min == null) {
+        return false;
+      }
+      Object constant = predicate.getBytes() == null ? predicate.getValue() : predicate.getBytes();
+      if ((min instanceof byte[]) != (constant instanceof byte[])) {
+        return true;
+      }
+      int minToConstant = compare(min, constant);
+      int maxToConstant = compare(max, constant);
+      if (minToConstant == LeafPredicate.UNORDERED) {
+        return predicate.getComparison() == LeafPredicate.Comparison.NE;
+      }
+      switch (predicate.getComparison()) {
+        case EQ:
+          return minToConstant <= 0 && maxToConstant >= 0;
+        case NE:
+          return minToConstant != 0 || maxToConstant != 0;
+        case LT:
+          return minToConstant < 0;
+        case LE:
+          return minToConstant <= 0;
+        case GT:
+          return maxToConstant > 0;
+        default:
+          return maxToConstant >= 0;
+      }
+    }
+
+    /**
+     * Compare two mins or maxes, or one with a predicate's numeric constant
+     * or bytes.
+     */
+    private int compare(Object a, Object b) {
+      if (a instanceof Long) {
+        return LeafPredicate.compareInteger((Long)a, (Number)b);
+      }
+      if (a instanceof Double) {
+        return LeafPredicate.compareFloating((Double)a, (Number)b, isFloat);
+      }
+      return compareBytes((byte[])a, (byte[])b);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+      int common = Math.min(a.length, b.length);
+      for (int k = 0; k < common; k++) {
+        int cmp = (a[k] & 0xFF) - (b[k] & 0xFF);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return a.length - b.length;
+    }
+
+    /**
+     * Unsigned lexicographic comparison of two values of a variable-width
+     * leaf, in place in its data buffer.
+     */
+    private static int compareValues(ArrowBuf data, ArrowBuf offsets, int i, int j) {
+      int iStart = offsets.getInt((long)i << 2);
+      int iLength = offsets.getInt((long)(i + 1) << 2) - iStart;
+      int jStart = offsets.getInt((long)j << 2);
+      int jLength = offsets.getInt((long)(j + 1) << 2) - jStart;
+      int common = Math.min(iLength, jLength);
+      for (int k = 0; k < common; k++) {
+        int cmp = (data.getByte(iStart + k) & 0xFF) - (data.getByte(jStart + k) & 0xFF);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return iLength - jLength;
+    }
+
+    private static byte[] bytes(ArrowBuf data, ArrowBuf offsets, int i) {
+      int start = offsets.getInt((long)i << 2);
+      byte[] value = new byte[offsets.getInt((long)(i + 1) << 2) - start];
+      data.getBytes(start, value);
+      return value;
+    }
+  }
+
+  /**
+   * Number of lists of a list column, null ones included, and of their
+   * elements.
+   */
+  static final class ListStatistics {
+    final String path;
+    // level of the elements
+    final int level;
+    final long listCount;
+    final long nullCount;
+    final long elementCount;
+
+    ListStatistics(String path, int level, ListVector list) {
+      this.path = path;
+      this.level = level;
+      this.listCount = list.getValueCount();
+      this.nullCount = list.getNullCount();
+      this.elementCount = RepetitionIndex.offset(list, list.getValueCount());
+    }
+
+    double getAverageLength() {
+      return listCount == 0 ? 0 : (double)elementCount / listCount;
+    }
+  }
+}
@@ -0,0 +1,431 @@
+import io.netty.buffer.ArrowBuf;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.arrow.util.Preconditions;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.types.Types;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.FieldType;
+
+/**
+ * Builds a nested struct column from primitive arrays, writing the offset,
+ * validity and data buffers directly instead of going through the
+ * ComplexWriterImpl state machines one value at a time.
+ *
+ * The column is described level by level: the leaves of a struct as arrays
+ * with one value per struct, and each list by the length of every list in
+ * the level above. Since every count is known before build(), each buffer is
+ * allocated once at its final size and the leaf arrays are bulk copied.
+ *
+ *    NestedVectorBuilder builder = new NestedVectorBuilder("root", 2);
+ *    NestedVectorBuilder.Level person = builder.getRoot();
+ *    person.intColumn("age", new int[] {25, 30});
+ *    NestedVectorBuilder.Level addresses = person.list("addresses", new int[] {2, 1});
+ *    addresses.intColumn("zip", new int[] {94404, 94402, 94301});
+ *    StructVector root = builder.build(container);
+ *
+ * produces the same vectors, field names and types as writing the rows with
+ * rootAsStruct()/list()/struct()/integer().
+ */
+final class NestedVectorBuilder {
+
+  private final Level root;
+
+  NestedVectorBuilder(String name, int rowCount) {
+    this.root = new Level(name, rowCount);
+  }
+
+  /**
+   * Level 0, one struct per row of the column.
+   */
+  Level getRoot() {
+    return root;
+  }
+
+  /**
+   * Add the column to the container, replacing the contents of an existing
+   * column with the same name, and return its root struct.
+   */
+  StructVector build(StructVector container) {
+    StructVector struct = container.addOrGetStruct(root.name);
+    root.create(struct);
+    // children are sized after their parents, which size children with a guess
+    root.size(struct);
+    struct.allocateNew();
+    root.fill(struct, new Staging());
+    struct.setValueCount(root.count);
+    return struct;
+  }
+
+  /**
+   * A struct at one repetition level: count structs, each with one value per
+   * leaf column.
+   */
+  static class Level {
+    final String name;
+    final int count;
+    private boolean[] valid;
+    private final List<Column> columns = new ArrayList<>();
+    private final List<ListColumn> lists = new ArrayList<>();
+
+    Level(String name, int count) {
+      this.name = name;
+      this.count = count;
+    }
+
+    /**
+     * Mark the structs for which valid is false as null. Their leaves and
+     * lists are kept as given.
+     */
+    Level validity(boolean[] valid) {
+      checkLength(name, count, valid);
+      this.valid = valid;
+      return this;
+    }
+
+    Level intColumn(String name, int[] values) {
+      return intColumn(name, values, null);
+    }
+
+    /**
+     * @param valid null if every value is set, otherwise false for null values
+     */
+    Level intColumn(String name, int[] values, boolean[] valid) {
+      return addColumn(new Column(name, Types.MinorType.INT, values, values.length, valid));
+    }
+
+    Level bigIntColumn(String name, long[] values) {
+      return bigIntColumn(name, values, null);
+    }
+
+    Level bigIntColumn(String name, long[] values, boolean[] valid) {
+      return addColumn(new Column(name, Types.MinorType.BIGINT, values, values.length, valid));
+    }
+
+    Level float4Column(String name, float[] values) {
+      return float4Column(name, values, null);
+    }
+
+    Level float4Column(String name, float[] values, boolean[] valid) {
+      return addColumn(new Column(name, Types.MinorType.FLOAT4, values, values.length, valid));
+    }
+
+    Level float8Column(String name, double[] values) {
+      return float8Column(name, values, null);
+    }
+
+    Level float8Column(String name, double[] values, boolean[] valid) {
+      return addColumn(new Column(name, Types.MinorType.FLOAT8, values, values.length, valid));
+    }
+
+    /**
+     * @param values UTF-8 encoded into the data buffer, null entries are null
+     */
+    Level varCharColumn(String name, String[] values) {
+      byte[][] bytes = new byte[values.length][];
+      for (int i = 0; i < values.length; i++) {
+        bytes[i] = values[i] == null ? null : values[i].getBytes(StandardCharsets.UTF_8);
+      }
+      return addColumn(new Column(name, Types.MinorType.VARCHAR, bytes, values.length, validOf(bytes)));
+    }
+
+    /**
+     * @param values null entries are null
+     */
+    Level varBinaryColumn(String name, byte[][] values) {
+      return addColumn(new Column(name, Types.MinorType.VARBINARY, values, values.length, validOf(values)));
+    }
+
+    /**
+     * Add a list of structs with lengths[i] elements in the list of struct i,
+     * and return the level of the elements.
+     */
+    Level list(String name, int[] lengths) {
+      return list(name, lengths, null);
+    }
+
+    /**
+     * @param valid null if every list is set, otherwise false for null lists,
+     *              which must have length 0
+     */
+    Level list(String name, int[] lengths, boolean[] valid) {
+      checkLength(name, lengths.length, valid);
+      long total = 0;
+      for (int i = 0; i < lengths.length; i++) {
+        Preconditions.checkArgument(lengths[i] >= 0, "negative list length in %s", name);
+        Preconditions.checkArgument(valid == null || valid[i] || lengths[i] == 0,
+            "null list with elements in %s", name);
+        total += lengths[i];
+      }
+      Preconditions.checkArgument(total <= Integer.MAX_VALUE, "too many elements in %s", name);
+      ListColumn list = new ListColumn(name, lengths, valid, new Level(name, (int)total));
+      lists.add(list);
+      return list.elements;
+    }
+
+    private Level addColumn(Column column) {
+      checkLength(column.name, column.length, column.valid);
+      columns.add(column);
+      return this;
+    }
+
+    private static boolean[] validOf(byte[][] values) {
+      boolean[] valid = null;
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] == null) {
+          if (valid == null) {
+            valid = new boolean[values.length];
+            Arrays.fill(valid, true);
+          }
+          valid[i] = false;
+        }
+      }
+      return valid;
+    }
+
+    private void checkLength(String column, int length, boolean[] valid) {
+      Preconditions.checkArgument(length == count, "%s has %s values for %s structs", column, length, count);
+      Preconditions.checkArgument(valid == null || valid.length == count,
+          "%s has %s validity entries for %s structs", column, valid == null ? 0 : valid.length, count);
+    }
+
+    private void create(StructVector struct) {
+      for (Column column : columns) {
+        column.vector = struct.addOrGet(column.name, FieldType.nullable(column.type.getType()),
+            column.vectorClass());
+      }
+      for (ListColumn list : lists) {
+        list.vector = struct.addOrGetList(list.name);
+        StructVector data = list.vector.<StructVector>addOrGetVector(
+            FieldType.nullable(ArrowType.Struct.INSTANCE)).getVector();
+        list.elements.create(data);
+      }
+    }
+
+    private void size(StructVector struct) {
+      struct.setInitialCapacity(count);
+      for (Column column : columns) {
+        column.size();
+      }
+      for (ListColumn list : lists) {
+        list.vector.setInitialCapacity(count);
+        list.elements.size((StructVector)list.vector.getDataVector());
+      }
+    }
+
+    private void fill(StructVector struct, Staging staging) {
+      setValidity(struct.getValidityBuffer(), valid, count);
+      for (Column column : columns) {
+        setValidity(column.vector.getValidityBuffer(), column.valid, count);
+        column.copyValues(staging);
+      }
+      for (ListColumn list : lists) {
+        setValidity(list.vector.getValidityBuffer(), list.valid, count);
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+          offsets[i + 1] = offsets[i] + list.lengths[i];
+        }
+        staging.copy(offsets, list.vector.getOffsetBuffer());
+        list.vector.setLastSet(count - 1);
+        list.elements.fill((StructVector)list.vector.getDataVector(), staging);
+      }
+    }
+  }
+
+  /**
+   * Set the first count bits of a validity buffer, eight per byte, and clear
+   * the ones for which valid is false.
+   */
+  private static void setValidity(ArrowBuf validity, boolean[] valid, int count) {
+    int fullBytes = count >>> 3;
+    if (valid == null) {
+      if (fullBytes > 0) {
+        validity.setOne(0, fullBytes);
+      }
+      if ((count & 7) != 0) {
+        validity.setByte(fullBytes, (1 << (count & 7)) - 1);
+      }
+      return;
+    }
+    byte[] bytes = new byte[(count + 7) >>> 3];
+    for (int i = 0; i < count; i++) {
+      if (valid[i]) {
+        bytes[i >>> 3] |= 1 << (i & 7);
+      }
+    }
+    validity.setBytes(0, bytes);
+  }
+
+  private static class Column {
+    final String name;
+    final Types.MinorType type;
+    final Object values;
+    final int length;
+    final boolean[] valid;
+    FieldVector vector;
+
+    Column(String name, Types.MinorType type, Object values, int length, boolean[] valid) {
+      this.name = name;
+      this.type = type;
+      this.values = values;
+      this.length = length;
+      this.valid = valid;
+    }
+
+    Class<? extends FieldVector> vectorClass() {
+      switch (type) {
+        case INT:
+          return IntVector.class;
+        case BIGINT:
+          return BigIntVector.class;
+        case FLOAT4:
+          return Float4Vector.class;
+        case FLOAT8:
+          return Float8Vector.class;
+        case VARCHAR:
+          return VarCharVector.class;
+        default:
+          return VarBinaryVector.class;
+      }
+    }
+
+    void size() {
+      if (vector instanceof BaseVariableWidthVector) {
+        // the density is rounded up so the data buffer gets at least every byte
+        double density = (dataBytes((byte[][])values) + 0.5) / Math.max(1, length);
+        ((BaseVariableWidthVector)vector).setInitialCapacity(length, density);
+      } else {
+        vector.setInitialCapacity(length);
+      }
+    }
+
+    void copyValues(Staging staging) {
+      ArrowBuf buffer = vector.getDataBuffer();
+      if (vector instanceof BaseVariableWidthVector) {
+        byte[][] bytes = (byte[][])values;
+        int[] offsets = new int[length + 1];
+        for (int i = 0; i < length; i++) {
+          int valueLength = bytes[i] == null ? 0 : bytes[i].length;
+          if (valueLength > 0) {
+            buffer.setBytes(offsets[i], bytes[i]);
+          }
+          offsets[i + 1] = offsets[i] + valueLength;
+        }
+        staging.copy(offsets, ((BaseVariableWidthVector)vector).getOffsetBuffer());
+        ((BaseVariableWidthVector)vector).setLastSet(length - 1);
+        return;
+      }
+      switch (type) {
+        case INT:
+          staging.copy((int[])values, buffer);
+          break;
+        case BIGINT:
+          staging.copy((long[])values, buffer);
+          break;
+        case FLOAT4:
+          staging.copy((float[])values, buffer);
+          break;
+        default:
+          staging.copy((double[])values, buffer);
+          break;
+      }
+    }
+  }
+
+  private static long dataBytes(byte[][] values) {
+    long bytes = 0;
+    for (byte[] value : values) {
+      bytes += value == null ? 0 : value.length;
+    }
+    return bytes;
+  }
+
+  private static class ListColumn {
+    final String name;
+    final int[] lengths;
+    final boolean[] valid;
+    final Level elements;
+    ListVector vector;
+
+    ListColumn(String name, int[] lengths, boolean[] valid, Level elements) {
+      this.name = name;
+      this.lengths = lengths;
+      this.valid = valid;
+      this.elements = elements;
+    }
+  }
+
+  /**
+   * Copies primitive arrays into buffers through a little-endian staging
+   * array, a chunk at a time. Both steps are bulk memory copies, the first
+   * one swapping bytes on big-endian platforms; unlike nioBuffer() views of
+   * the ArrowBuf this needs no reflective access to direct buffers.
+   */
+  private static final class Staging {
+    private static final int SIZE = 64 * 1024;
+
+    private final byte[] bytes = new byte[SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+    void copy(int[] values, ArrowBuf target) {
+      IntBuffer view = buffer.asIntBuffer();
+      int chunk = SIZE / 4;
+      for (int from = 0; from < values.length; from += chunk) {
+        int length = Math.min(chunk, values.length - from);
+        view.clear();
+        view.put(values, from, length);
+        target.setBytes((long)from * 4, bytes, 0, length * 4L);
+      }
+    }
+
+    void copy(long[] values, ArrowBuf target) {
+      LongBuffer view = buffer.asLongBuffer();
+      int chunk = SIZE / 8;
+      for (int from = 0; from < values.length; from += chunk) {
+        int length = Math.min(chunk, values.length - from);
+        view.clear();
+        view.put(values, from, length);
+        target.setBytes((long)from * 8, bytes, 0, length * 8L);
+      }
+    }
+
+    void copy(float[] values, ArrowBuf target) {
+      FloatBuffer view = buffer.asFloatBuffer();
+      int chunk = SIZE / 4;
+      for (int from = 0; from < values.length; from += chunk) {
+        int length = Math.min(chunk, values.length - from);
+        view.clear();
+        view.put(values, from, length);
+        target.setBytes((long)from * 4, bytes, 0, length * 4L);
+      }
+    }
+
+    void copy(double[] values, ArrowBuf target) {
+      DoubleBuffer view = buffer.asDoubleBuffer();
+      int chunk = SIZE / 8;
+      for (int from = 0; from < values.length; from += chunk) {
+        int length = Math.min(chunk, values.length - from);
+        view.clear();
+        view.put(values, from, length);
+        target.setBytes((long)from * 8, bytes, 0, length * 8L);
+      }
+    }
+  }
+}
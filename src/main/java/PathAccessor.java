@@ -0,0 +1,265 @@
+import io.netty.buffer.ArrowBuf;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.BitVectorHelper;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.types.Types.MinorType;
+
+/**
+ * Typed access to the values of one dotted path of a nested column, for
+ * row-oriented consumers. The path is resolved once, see
+ * {@link NestedPaths}, and the accessor keeps the buffers it reads:
+ *
+ *    IntPathAccessor age = PathAccessor.forInt("person", person, "person.age");
+ *    ListPathAccessor addresses = PathAccessor.forList("person", person, "person.addresses");
+ *    IntPathAccessor zip = PathAccessor.forInt("person", person, "person.addresses.zip");
+ *    for (int row = 0; row < person.getValueCount(); row++) {
+ *      sum += age.get(row);
+ *      for (int address = addresses.getStart(row); address < addresses.getEnd(row); address++) {
+ *        sum += zip.get(address);
+ *      }
+ *    }
+ *
+ * An accessor addresses the elements of its level by index, the top-level
+ * rows at level 0, and a list accessor gives the range of a parent's
+ * elements straight from the offsets. Nothing is looked up by name and
+ * nothing is allocated per value, unlike the struct and list readers whose
+ * reader("zip") is a map lookup and a virtual dispatch per cell.
+ *
+ * A value is null when its own bit is clear or a struct enclosing it at its
+ * level is null; get() does not check, and returns what the data buffer
+ * holds for a null value. The buffers are those of the vectors when the
+ * accessor was created, so writing to the column again needs new accessors.
+ */
+abstract class PathAccessor {
+
+  final String path;
+  final int level;
+  // lists[k] produces level k elements, lists[0] is null
+  private final ListVector[] lists;
+  // the list producing this level's elements, null at level 0
+  final ListVector list;
+  // validity of the vector and of the structs with nulls at its level
+  private final ArrowBuf[] validity;
+
+  PathAccessor(String path, NestedPaths.Resolved resolved, ValueVector vector) {
+    this.path = path;
+    this.level = resolved.getLevel();
+    this.lists = resolved.lists;
+    this.list = resolved.lists[level];
+    List<ArrowBuf> buffers = new ArrayList<>();
+    if (vector != null && vector.getNullCount() > 0) {
+      buffers.add(((FieldVector)vector).getValidityBuffer());
+    }
+    for (ValueVector struct : resolved.structs[level]) {
+      if (struct instanceof StructVector && struct.getNullCount() > 0) {
+        buffers.add(((FieldVector)struct).getValidityBuffer());
+      }
+    }
+    this.validity = buffers.toArray(new ArrowBuf[0]);
+  }
+
+  static IntPathAccessor forInt(String column, ValueVector vector, String path) {
+    return new IntPathAccessor(path, resolveLeaf(column, vector, path, MinorType.INT));
+  }
+
+  static LongPathAccessor forLong(String column, ValueVector vector, String path) {
+    return new LongPathAccessor(path, resolveLeaf(column, vector, path, MinorType.BIGINT));
+  }
+
+  static DoublePathAccessor forDouble(String column, ValueVector vector, String path) {
+    return new DoublePathAccessor(path, resolveLeaf(column, vector, path, MinorType.FLOAT8));
+  }
+
+  static BytesPathAccessor forBytes(String column, ValueVector vector, String path) {
+    NestedPaths.Resolved resolved = NestedPaths.resolve(column, vector, path);
+    MinorType type = resolved.vector.getMinorType();
+    if (type != MinorType.VARCHAR && type != MinorType.VARBINARY) {
+      throw new IllegalArgumentException("Leaf " + path + " is " + type + ", not VARCHAR or VARBINARY");
+    }
+    return new BytesPathAccessor(path, resolved);
+  }
+
+  /**
+   * Accessor of the list the path steps through last, e.g. the phones of
+   * person.addresses.phones, whose elements are the level of the path.
+   */
+  static ListPathAccessor forList(String column, ValueVector vector, String path) {
+    NestedPaths.Resolved resolved = NestedPaths.resolve(column, vector, path);
+    if (resolved.getLevel() == 0) {
+      throw new IllegalArgumentException("No list on " + path);
+    }
+    return new ListPathAccessor(path, resolved);
+  }
+
+  private static NestedPaths.Resolved resolveLeaf(String column, ValueVector vector, String path, MinorType type) {
+    NestedPaths.Resolved resolved = NestedPaths.resolve(column, vector, path);
+    if (resolved.vector.getMinorType() != type) {
+      throw new IllegalArgumentException("Leaf " + path + " is " + resolved.vector.getMinorType() + ", not " + type);
+    }
+    return resolved;
+  }
+
+  int getLevel() {
+    return level;
+  }
+
+  /**
+   * First element of the top-level row at the accessor's level, composing
+   * the offsets of the lists above. The row's elements end where the next
+   * row's start, and getRowStart(rowCount) is the number of elements.
+   */
+  int getRowStart(int topLevelRow) {
+    return RepetitionIndex.toDeepest(lists, topLevelRow);
+  }
+
+  boolean isNull(int element) {
+    for (ArrowBuf buffer : validity) {
+      if (BitVectorHelper.get(buffer, element) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + path + ")";
+  }
+
+  static final class IntPathAccessor extends PathAccessor {
+    private final ArrowBuf data;
+
+    IntPathAccessor(String path, NestedPaths.Resolved resolved) {
+      super(path, resolved, resolved.vector);
+      this.data = ((FieldVector)resolved.vector).getDataBuffer();
+    }
+
+    int get(int element) {
+      return data.getInt((long)element << 2);
+    }
+  }
+
+  static final class LongPathAccessor extends PathAccessor {
+    private final ArrowBuf data;
+
+    LongPathAccessor(String path, NestedPaths.Resolved resolved) {
+      super(path, resolved, resolved.vector);
+      this.data = ((FieldVector)resolved.vector).getDataBuffer();
+    }
+
+    long get(int element) {
+      return data.getLong((long)element << 3);
+    }
+  }
+
+  static final class DoublePathAccessor extends PathAccessor {
+    private final ArrowBuf data;
+
+    DoublePathAccessor(String path, NestedPaths.Resolved resolved) {
+      super(path, resolved, resolved.vector);
+      this.data = ((FieldVector)resolved.vector).getDataBuffer();
+    }
+
+    double get(int element) {
+      return data.getDouble((long)element << 3);
+    }
+  }
+
+  /**
+   * VARCHAR or VARBINARY values, read into a caller's buffer or compared in
+   * place rather than built into a String or byte[] per value.
+   */
+  static final class BytesPathAccessor extends PathAccessor {
+    private final ArrowBuf offsets;
+    private final ArrowBuf data;
+
+    BytesPathAccessor(String path, NestedPaths.Resolved resolved) {
+      super(path, resolved, resolved.vector);
+      this.offsets = ((BaseVariableWidthVector)resolved.vector).getOffsetBuffer();
+      this.data = ((FieldVector)resolved.vector).getDataBuffer();
+    }
+
+    int getLength(int element) {
+      return offsets.getInt((long)(element + 1) << 2) - offsets.getInt((long)element << 2);
+    }
+
+    /**
+     * Copy the value's bytes to the start of buffer, which must hold
+     * {@link #getLength} of them, and return their number.
+     */
+    int get(int element, byte[] buffer) {
+      int start = offsets.getInt((long)element << 2);
+      int length = offsets.getInt((long)(element + 1) << 2) - start;
+      data.getBytes(start, buffer, 0, length);
+      return length;
+    }
+
+    boolean equalTo(int element, byte[] value) {
+      int start = offsets.getInt((long)element << 2);
+      if (offsets.getInt((long)(element + 1) << 2) - start != value.length) {
+        return false;
+      }
+      for (int k = 0; k < value.length; k++) {
+        if (data.getByte(start + k) != value[k]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The ranges of elements of a list: parent p of the level above has the
+   * elements [getStart(p), getEnd(p)) of the accessor's level.
+   */
+  static final class ListPathAccessor extends PathAccessor {
+    private final ArrowBuf offsets;
+    // validity of the list and of the structs with nulls at the parent level
+    private final ArrowBuf[] listValidity;
+
+    ListPathAccessor(String path, NestedPaths.Resolved resolved) {
+      super(path, resolved, null);
+      this.offsets = list.getOffsetBuffer();
+      List<ArrowBuf> buffers = new ArrayList<>();
+      if (list.getNullCount() > 0) {
+        buffers.add(list.getValidityBuffer());
+      }
+      for (ValueVector struct : resolved.structs[level - 1]) {
+        if (struct instanceof StructVector && struct.getNullCount() > 0) {
+          buffers.add(((FieldVector)struct).getValidityBuffer());
+        }
+      }
+      this.listValidity = buffers.toArray(new ArrowBuf[0]);
+    }
+
+    int getStart(int parent) {
+      return offsets.getInt((long)parent << 2);
+    }
+
+    int getEnd(int parent) {
+      return offsets.getInt((long)(parent + 1) << 2);
+    }
+
+    int getLength(int parent) {
+      return getEnd(parent) - getStart(parent);
+    }
+
+    /**
+     * Whether the parent's list is absent, itself or through a null struct
+     * around it. An absent list usually has no elements, but may have.
+     */
+    boolean isNullList(int parent) {
+      for (ArrowBuf buffer : listValidity) {
+        if (BitVectorHelper.get(buffer, parent) == 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,273 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.NonNullableStructVector;
+import org.apache.arrow.vector.types.Types;
+import org.apache.arrow.vector.types.pojo.Field;
+
+/**
+ * Assembles a nested column back from the leaf columns of
+ * {@link LevelShredder}, straight into the offset, validity and data buffers.
+ *
+ * Every structure a vector needs can be read off the levels of any leaf
+ * beneath it. The elements at level k (the top-level rows at level 0, the
+ * elements of the k-th list below) are the slots that repeat at level k or
+ * above and are defined down to the elements of the level's list. A struct
+ * or list at level k is valid where such a slot is defined down to it, and
+ * the length of a list is the number of level k + 1 elements up to the next
+ * level k element. A leaf gets the next value where its slot is defined
+ * all the way. So each vector is one scan over the levels of its first
+ * leaf, a leaf over its own, and the values of a leaf are one gather.
+ *
+ * A list under a null struct, or a null struct's leaves, come back null:
+ * the levels do not say what they held.
+ */
+final class RecordAssembler {
+
+  private RecordAssembler() {
+  }
+
+  /**
+   * Assemble the column with the given schema from a shredded column for
+   * every one of its leaves. The returned vector is allocated from the
+   * allocator and owned by the caller.
+   */
+  static FieldVector assemble(
+      String column,
+      Field field,
+      List<LevelShredder.Column> columns,
+      BufferAllocator allocator) {
+    Map<String, LevelShredder.Column> leaves = new HashMap<>();
+    for (LevelShredder.Column shredded : columns) {
+      leaves.put(shredded.path, shredded);
+    }
+    Node root = plan(field, column, leaves, 0, 0, 0);
+    FieldVector vector = field.createVector(allocator);
+    try {
+      size(vector, root);
+      vector.allocateNew();
+      fill(vector, root);
+      vector.setValueCount(root.count);
+      return vector;
+    } catch (RuntimeException e) {
+      vector.close();
+      throw e;
+    }
+  }
+
+  /**
+   * What to write into the vector of the field at the path.
+   *
+   * @param level number of lists above the field
+   * @param elementDefinition definition level of the elements of the level
+   * @param definition definition level where the field's parent is set
+   */
+  private static Node plan(
+      Field field,
+      String path,
+      Map<String, LevelShredder.Column> leaves,
+      int level,
+      int elementDefinition,
+      int definition) {
+    Types.MinorType type = Types.getMinorTypeForArrowType(field.getType());
+    int setDefinition = field.isNullable() ? definition + 1 : definition;
+    switch (type) {
+      case STRUCT: {
+        List<Field> children = field.getChildren();
+        if (children.isEmpty()) {
+          throw new IllegalArgumentException("No leaf beneath " + path);
+        }
+        Node node = null;
+        Node[] nodes = new Node[children.size()];
+        for (int i = 0; i < nodes.length; i++) {
+          Field child = children.get(i);
+          nodes[i] = plan(child, path + "." + child.getName(), leaves, level, elementDefinition, setDefinition);
+          if (node == null) {
+            node = new Node(nodes[i].leaf, level, elementDefinition);
+          }
+        }
+        node.children = nodes;
+        node.valid = field.isNullable() ? node.definedAt(setDefinition) : null;
+        return node;
+      }
+      case LIST: {
+        Node data = plan(field.getChildren().get(0), path, leaves, level + 1, setDefinition + 1, setDefinition + 1);
+        Node node = new Node(data.leaf, level, elementDefinition);
+        node.children = new Node[] {data};
+        node.valid = field.isNullable() ? node.definedAt(setDefinition) : null;
+        node.offsets = node.offsets(setDefinition + 1);
+        return node;
+      }
+      case INT:
+      case BIGINT:
+      case FLOAT4:
+      case FLOAT8:
+      case VARCHAR:
+      case VARBINARY: {
+        LevelShredder.Column leaf = leaves.get(path);
+        if (leaf == null) {
+          throw new IllegalArgumentException("No shredded column for " + path);
+        }
+        if (leaf.type != type || leaf.maxRepetitionLevel != level || leaf.maxDefinitionLevel != setDefinition) {
+          throw new IllegalArgumentException("Shredded column does not match the schema at " + path);
+        }
+        Node node = new Node(leaf, level, elementDefinition);
+        node.indices = node.valueIndices(setDefinition);
+        return node;
+      }
+      default:
+        throw new UnsupportedOperationException("Assembly is not supported on type " + type);
+    }
+  }
+
+  /**
+   * Set the initial capacity of every vector to its element count, parents
+   * before children since those size their children with a guess.
+   */
+  private static void size(ValueVector vector, Node node) {
+    if (vector instanceof NonNullableStructVector) {
+      vector.setInitialCapacity(node.count);
+      List<FieldVector> children = ((NonNullableStructVector)vector).getChildrenFromFields();
+      for (int i = 0; i < node.children.length; i++) {
+        size(children.get(i), node.children[i]);
+      }
+    } else if (vector instanceof ListVector) {
+      vector.setInitialCapacity(node.count);
+      size(((ListVector)vector).getDataVector(), node.children[0]);
+    } else if (vector instanceof BaseVariableWidthVector) {
+      ValueVector values = node.leaf.values;
+      int valueCount = values.getValueCount();
+      double density = valueCount == 0 ? 0
+          : (((BaseVariableWidthVector)values).getOffsetBuffer().getInt((long)valueCount * 4) + 0.5) / node.count;
+      ((BaseVariableWidthVector)vector).setInitialCapacity(node.count, density);
+    } else {
+      vector.setInitialCapacity(node.count);
+    }
+  }
+
+  private static void fill(ValueVector vector, Node node) {
+    int count = node.count;
+    if (vector instanceof NonNullableStructVector) {
+      if (node.valid != null) {
+        node.valid.writeTo(((FieldVector)vector).getValidityBuffer(), count);
+      } else if (vector.getField().isNullable()) {
+        ValidityBitmaps.setFirst(((FieldVector)vector).getValidityBuffer(), count);
+      }
+      List<FieldVector> children = ((NonNullableStructVector)vector).getChildrenFromFields();
+      for (int i = 0; i < node.children.length; i++) {
+        fill(children.get(i), node.children[i]);
+      }
+    } else if (vector instanceof ListVector) {
+      ListVector list = (ListVector)vector;
+      if (node.valid != null) {
+        node.valid.writeTo(list.getValidityBuffer(), count);
+      } else {
+        ValidityBitmaps.setFirst(list.getValidityBuffer(), count);
+      }
+      for (int i = 0; i <= count; i++) {
+        list.getOffsetBuffer().setInt((long)i * 4, node.offsets[i]);
+      }
+      list.setLastSet(count - 1);
+      fill(list.getDataVector(), node.children[0]);
+    } else {
+      LeafCopier.forType(node.leaf.type).gatherNullable(node.leaf.values, node.indices, vector, count);
+      vector.setValueCount(count);
+    }
+  }
+
+  /**
+   * A vector of the column with its elements found in the levels of the
+   * first leaf beneath it.
+   */
+  private static final class Node {
+    final LevelShredder.Column leaf;
+    // slots[i] is the slot of the leaf that starts element i
+    final int[] slots;
+    final int count;
+    final int level;
+    Node[] children;
+    // null when every element is set
+    SelectionBitmap valid;
+    // lists: offsets[i] is the first child element of element i
+    int[] offsets;
+    // leaves: the value of each element, -1 for null
+    int[] indices;
+
+    Node(LevelShredder.Column leaf, int level, int elementDefinition) {
+      this.leaf = leaf;
+      this.level = level;
+      int[] repetitions = leaf.repetitionLevels;
+      int[] definitions = leaf.definitionLevels;
+      int slotCount = leaf.getSlotCount();
+      int count = 0;
+      for (int slot = 0; slot < slotCount; slot++) {
+        if (repetitions[slot] <= level && definitions[slot] >= elementDefinition) {
+          count++;
+        }
+      }
+      this.slots = new int[count];
+      this.count = count;
+      count = 0;
+      for (int slot = 0; slot < slotCount; slot++) {
+        if (repetitions[slot] <= level && definitions[slot] >= elementDefinition) {
+          slots[count++] = slot;
+        }
+      }
+    }
+
+    /**
+     * The elements whose slot is defined at least to the given level.
+     */
+    SelectionBitmap definedAt(int definition) {
+      SelectionBitmap defined = new SelectionBitmap(count);
+      int[] definitions = leaf.definitionLevels;
+      for (int i = 0; i < count; i++) {
+        if (definitions[slots[i]] >= definition) {
+          defined.set(i);
+        }
+      }
+      return defined;
+    }
+
+    /**
+     * Offsets of the lists of the elements into the elements of the level
+     * below, which are defined to the given level.
+     */
+    int[] offsets(int childDefinition) {
+      int[] repetitions = leaf.repetitionLevels;
+      int[] definitions = leaf.definitionLevels;
+      int[] listOffsets = new int[count + 1];
+      int children = 0;
+      for (int i = 0; i < count; i++) {
+        int end = i + 1 < count ? slots[i + 1] : leaf.getSlotCount();
+        listOffsets[i] = children;
+        for (int slot = slots[i]; slot < end; slot++) {
+          if (repetitions[slot] <= level + 1 && definitions[slot] >= childDefinition) {
+            children++;
+          }
+        }
+      }
+      listOffsets[count] = children;
+      return listOffsets;
+    }
+
+    /**
+     * Position in the leaf's values of the value of every element, -1 for
+     * the ones not defined to the given level.
+     */
+    int[] valueIndices(int maxDefinition) {
+      int[] definitions = leaf.definitionLevels;
+      int[] values = new int[count];
+      int value = 0;
+      for (int i = 0; i < count; i++) {
+        values[i] = definitions[slots[i]] == maxDefinition ? value++ : -1;
+      }
+      return values;
+    }
+  }
+}
@@ -0,0 +1,787 @@
+import io.netty.buffer.ArrowBuf;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+
+/**
+ * Maps every flattened output row to the element it comes from at each
+ * repetition level.
+ *
+ * Level 0 is the top-level row (person), level k is an element of the k-th
+ * list on the path down to the deepest repeated field (address, phone).
+ * Since list offsets are monotonic, the rows produced by a contiguous range
+ * of top-level rows are exactly a contiguous range of deepest-level elements.
+ * So the deepest level never needs an explicit index -- output row r is
+ * deepest element (deepestStart + r) -- and the leaves at that level can be
+ * copied as one buffer range. Every other level is described by an element
+ * index per output row that is built run-by-run from the offset buffers,
+ * bottom-up, once per level.
+ *
+ * When rows are filtered on the way (predicate pushdown) the surviving
+ * deepest elements are no longer contiguous and every level, including the
+ * deepest, gets an explicit element index instead.
+ *
+ * A list is absent for an element when it is null or sits under a null
+ * struct. An inner flatten drops the element like it drops one whose list is
+ * empty. An outer flatten keeps it instead as a single row whose elements at
+ * every deeper level are -1, i.e. null; only the explicit index supports
+ * these. Which lists are present is worked out a 64-bit word at a time from
+ * the validity buffers, and only for levels that actually hold nulls.
+ */
+class RepetitionIndex {
+
+  private static final int OFFSET_WIDTH = 4;
+
+  // lists[k] is the list whose elements make up level k, lists[0] is null
+  private final ListVector[] lists;
+  private final int depth;
+  // -1 when the deepest level has an explicit index
+  private final int deepestStart;
+  private final int rowCount;
+  // elements[k][row] is the element at level k for the output row, only
+  // k < depth unless the index is filtered
+  private final int[][] elements;
+  // firstRows[k][e - firstElements[k]] is the first output row of element e at
+  // level k < depth, with an extra trailing entry equal to rowCount
+  private final int[][] firstRows;
+  private final int[] firstElements;
+  // elements are -1 (null rows of an outer flatten) from this level down
+  private final int firstNullLevel;
+
+  private RepetitionIndex(ListVector[] lists, int deepestStart, int deepestEnd) {
+    this(lists, deepestStart, deepestEnd, -1, null);
+  }
+
+  /**
+   * @param topRowStarts null, or the first deepest element of each top-level
+   *                     row from fromRow on, as from {@link #composeOffsets}
+   */
+  private RepetitionIndex(ListVector[] lists, int deepestStart, int deepestEnd, int fromRow, int[] topRowStarts) {
+    this.lists = lists;
+    this.depth = lists.length - 1;
+    this.deepestStart = deepestStart;
+    this.rowCount = deepestEnd - deepestStart;
+    this.elements = new int[depth + 1][];
+    this.firstRows = new int[depth + 1][];
+    this.firstElements = new int[depth + 1];
+    this.firstNullLevel = depth + 1;
+    build(deepestEnd, fromRow, topRowStarts);
+  }
+
+  private RepetitionIndex(ListVector[] lists, int[][] elements, int firstNullLevel) {
+    this.lists = lists;
+    this.depth = lists.length - 1;
+    this.deepestStart = -1;
+    this.rowCount = elements[depth].length;
+    this.elements = elements;
+    this.firstRows = null;
+    this.firstElements = null;
+    this.firstNullLevel = firstNullLevel;
+  }
+
+  /**
+   * Index the rows produced by top-level rows [fromRow, toRow). The offsets
+   * of every level are first composed into the first output row of each
+   * top-level row, which gives the exact row count before anything is
+   * allocated and the element index of level 0 without another pass over
+   * the offsets.
+   */
+  static RepetitionIndex forTopLevelRows(ListVector[] lists, int fromRow, int toRow) {
+    if (lists.length == 1) {
+      return new RepetitionIndex(lists, fromRow, toRow);
+    }
+    int[] topRowStarts = composeOffsets(lists, 0, fromRow, toRow);
+    return new RepetitionIndex(lists, topRowStarts[0], topRowStarts[toRow - fromRow], fromRow, topRowStarts);
+  }
+
+  /**
+   * Compose the offsets of every level to find the first deepest-level
+   * element of the given top-level row. Also valid for one past the last row.
+   */
+  static int toDeepest(ListVector[] lists, int topLevelRow) {
+    return toDeepest(lists, 0, topLevelRow);
+  }
+
+  /**
+   * Same as {@link #toDeepest(ListVector[], int)} starting from an element
+   * of the given level.
+   */
+  static int toDeepest(ListVector[] lists, int level, int element) {
+    int deepest = element;
+    for (int k = level + 1; k < lists.length; k++) {
+      deepest = offset(lists[k], deepest);
+    }
+    return deepest;
+  }
+
+  /**
+   * First deepest-level element of every element in [from, to] at the given
+   * level, composing the offset arrays one level at a time. Entry i belongs
+   * to element from + i and the last entry closes the range.
+   */
+  static int[] composeOffsets(ListVector[] lists, int level, int from, int to) {
+    int[] composed = new int[to - from + 1];
+    for (int i = 0; i < composed.length; i++) {
+      composed[i] = from + i;
+    }
+    for (int k = level + 1; k < lists.length; k++) {
+      if (lists[k].getValueCount() == 0) {
+        // no elements above, and perhaps no offset buffer either
+        Arrays.fill(composed, 0);
+        continue;
+      }
+      ArrowBuf offsets = lists[k].getOffsetBuffer();
+      for (int i = 0; i < composed.length; i++) {
+        composed[i] = offsets.getInt((long) composed[i] * OFFSET_WIDTH);
+      }
+    }
+    return composed;
+  }
+
+  /**
+   * Index the rows produced by deepest-level elements [start, end).
+   */
+  static RepetitionIndex forDeepestRange(ListVector[] lists, int start, int end) {
+    return new RepetitionIndex(lists, start, end);
+  }
+
+  /**
+   * Rows [fromRow, toRow) of a filtered index, e.g. the page of a flatten
+   * that starts and ends in the middle of top-level rows.
+   */
+  RepetitionIndex slice(int fromRow, int toRow) {
+    if (isContiguous()) {
+      throw new UnsupportedOperationException("Slice a contiguous index with forDeepestRange");
+    }
+    int[][] sliced = new int[depth + 1][];
+    for (int level = 0; level <= depth; level++) {
+      sliced[level] = Arrays.copyOfRange(elements[level], fromRow, toRow);
+    }
+    return new RepetitionIndex(lists, sliced, firstNullLevel);
+  }
+
+  /**
+   * Index the rows produced by top-level rows [fromRow, toRow) that survive
+   * the filter. The filter runs level by level from the top and only sees
+   * the children of surviving parents, so work below a level is proportional
+   * to what survived above it.
+   *
+   * @param listValidity per level, the vectors whose validity says where its
+   *                     list is present; null if every list is present
+   * @param outer keep an element whose list is absent or empty as a null row
+   * @param filteredDepth deepest level the filter removes elements from; an
+   *                      outer null row below it could never pass the
+   *                      filter, so null rows are only made beneath it
+   */
+  static RepetitionIndex forFilteredTopLevelRows(
+      ListVector[] lists,
+      ValueVector[][] listValidity,
+      boolean outer,
+      int fromRow,
+      int toRow,
+      LevelFilter filter,
+      int filteredDepth) {
+    int depth = lists.length - 1;
+    int[][] survivors = new int[depth + 1][];
+    // parents[k][i] is the position in survivors[k - 1] of the parent of survivors[k][i]
+    int[][] parents = new int[depth + 1][];
+    int firstNullLevel = filterLevels(lists, listValidity, outer ? filteredDepth + 1 : depth + 1, fromRow, toRow,
+        filter, depth, survivors, parents);
+    // walk the parent positions up from the deepest survivors
+    int rowCount = survivors[depth].length;
+    int[][] elements = new int[depth + 1][];
+    elements[depth] = survivors[depth];
+    int[] positions = new int[rowCount];
+    for (int row = 0; row < rowCount; row++) {
+      positions[row] = row;
+    }
+    for (int level = depth - 1; level >= 0; level--) {
+      int[] levelParents = parents[level + 1];
+      int[] levelSurvivors = survivors[level];
+      int[] index = new int[rowCount];
+      for (int row = 0; row < rowCount; row++) {
+        positions[row] = levelParents[positions[row]];
+        index[row] = levelSurvivors[positions[row]];
+      }
+      elements[level] = index;
+    }
+    return new RepetitionIndex(lists, elements, firstNullLevel);
+  }
+
+  /**
+   * Index the rows produced by top-level rows [fromRow, toRow) of a column
+   * whose lists may be siblings, held by the same elements. lists[k] is held
+   * by the elements of level parents[k], and level k of the index is its
+   * element per row.
+   *
+   * The rows are expanded one step at a time, each row of a step becoming
+   * the rows its element's lists give. A cross expands one list per step in
+   * schema order, which nests every list's rows within those of the lists
+   * before it. A zip expands all the lists of one depth in the same step:
+   * row j of an element takes element j of each of its lists, -1 where a
+   * list is shorter, and the lists below an element -1 are empty. Either
+   * way a step costs the rows it produces. A row that a step gives no rows,
+   * under a cross because its list is absent or empty and under a zip
+   * because all of them are, is dropped by an inner flatten; an outer one
+   * keeps it as one row with -1 for the step's lists.
+   *
+   * @param listValidity per level, the vectors whose validity says where its
+   *                     list is present; null if every list is present
+   * @param outer keep a row without elements in a step's lists
+   */
+  static RepetitionIndex forSiblingLists(
+      ListVector[] lists,
+      int[] parents,
+      ValueVector[][] listValidity,
+      boolean outer,
+      boolean zip,
+      int fromRow,
+      int toRow) {
+    int depth = lists.length - 1;
+    List<int[]> steps = new ArrayList<>();
+    if (zip) {
+      // the lists of each depth below the top-level rows, in schema order
+      int[] listDepths = new int[depth + 1];
+      int maxDepth = 0;
+      for (int level = 1; level <= depth; level++) {
+        listDepths[level] = listDepths[parents[level]] + 1;
+        maxDepth = Math.max(maxDepth, listDepths[level]);
+      }
+      for (int listDepth = 1; listDepth <= maxDepth; listDepth++) {
+        int count = 0;
+        for (int level = 1; level <= depth; level++) {
+          count += listDepths[level] == listDepth ? 1 : 0;
+        }
+        int[] step = new int[count];
+        count = 0;
+        for (int level = 1; level <= depth; level++) {
+          if (listDepths[level] == listDepth) {
+            step[count++] = level;
+          }
+        }
+        steps.add(step);
+      }
+    } else {
+      for (int level = 1; level <= depth; level++) {
+        steps.add(new int[] {level});
+      }
+    }
+
+    // which elements hold their lists, read a word of validity at a time
+    // over the elements the top-level rows reach
+    SelectionBitmap[] present = new SelectionBitmap[depth + 1];
+    if (listValidity != null) {
+      int[] starts = new int[depth + 1];
+      int[] ends = new int[depth + 1];
+      starts[0] = fromRow;
+      ends[0] = toRow;
+      for (int level = 1; level <= depth; level++) {
+        int parent = parents[level];
+        present[level] = presentLists(listValidity[level], starts[parent], ends[parent]);
+        starts[level] = offset(lists[level], starts[parent]);
+        ends[level] = offset(lists[level], ends[parent]);
+      }
+    }
+
+    int rowCount = toRow - fromRow;
+    int[][] elements = new int[depth + 1][];
+    elements[0] = new int[rowCount];
+    for (int row = 0; row < rowCount; row++) {
+      elements[0][row] = fromRow + row;
+    }
+    boolean nulls = false;
+    for (int[] step : steps) {
+      int[] counts = new int[rowCount];
+      long total = 0;
+      for (int row = 0; row < rowCount; row++) {
+        int count = 0;
+        for (int level : step) {
+          int length = listLength(lists[level], present[level], elements[parents[level]][row]);
+          count = zip ? Math.max(count, length) : length;
+        }
+        counts[row] = outer ? Math.max(count, 1) : count;
+        total += counts[row];
+      }
+      if (total > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Too many flattened rows to index");
+      }
+      int expandedCount = (int)total;
+      int[][] expanded = new int[depth + 1][];
+      for (int level = 0; level <= depth; level++) {
+        if (elements[level] != null) {
+          expanded[level] = new int[expandedCount];
+        }
+      }
+      for (int level : step) {
+        expanded[level] = new int[expandedCount];
+      }
+      int out = 0;
+      for (int row = 0; row < rowCount; row++) {
+        int count = counts[row];
+        if (count == 0) {
+          continue;
+        }
+        for (int level = 0; level <= depth; level++) {
+          if (elements[level] != null) {
+            Arrays.fill(expanded[level], out, out + count, elements[level][row]);
+          }
+        }
+        for (int level : step) {
+          int parent = elements[parents[level]][row];
+          int length = listLength(lists[level], present[level], parent);
+          int start = length == 0 ? 0 : offset(lists[level], parent);
+          int[] index = expanded[level];
+          for (int j = 0; j < count; j++) {
+            index[out + j] = j < length ? start + j : -1;
+          }
+          nulls |= length < count;
+        }
+        out += count;
+      }
+      elements = expanded;
+      rowCount = expandedCount;
+    }
+    return new RepetitionIndex(lists, elements, nulls ? 1 : depth + 1);
+  }
+
+  /**
+   * Length of the element's list, 0 for element -1 and where the list is
+   * absent.
+   *
+   * @param present the elements whose list is present, null for all of them
+   */
+  private static int listLength(ListVector list, SelectionBitmap present, int element) {
+    if (element < 0 || present != null && !present.get(element)) {
+      return 0;
+    }
+    return offset(list, element + 1) - offset(list, element);
+  }
+
+  /**
+   * Number of rows each top-level row in [fromRow, toRow) flattens into,
+   * computed from the offset buffers alone. Without a filter or absent lists
+   * this is the difference of the composed offsets of adjacent rows.
+   * Otherwise the levels down to filteredDepth (the deepest level that has
+   * anything to filter) are walked like {@link #forFilteredTopLevelRows},
+   * and below that each survivor is again counted from the composed
+   * offsets. Absent lists, and the null rows of an outer flatten, need
+   * every level walked.
+   */
+  static int[] countPerTopLevelRow(
+      ListVector[] lists,
+      ValueVector[][] listValidity,
+      boolean outer,
+      int fromRow,
+      int toRow,
+      LevelFilter filter,
+      int filteredDepth) {
+    int depth = lists.length - 1;
+    int[] counts = new int[toRow - fromRow];
+    if (filter == null && listValidity == null && !outer) {
+      int[] composed = composeOffsets(lists, 0, fromRow, toRow);
+      for (int row = 0; row < counts.length; row++) {
+        counts[row] = composed[row + 1] - composed[row];
+      }
+      return counts;
+    }
+    int walkedDepth = listValidity != null || outer ? depth : filteredDepth;
+    int[][] survivors = new int[walkedDepth + 1][];
+    int[][] parents = new int[walkedDepth + 1][];
+    filterLevels(lists, listValidity, outer ? filteredDepth + 1 : depth + 1, fromRow, toRow, filter, walkedDepth,
+        survivors, parents);
+    int[] levelCounts = new int[survivors[walkedDepth].length];
+    for (int i = 0; i < levelCounts.length; i++) {
+      int element = survivors[walkedDepth][i];
+      levelCounts[i] = element < 0 ? 1
+          : toDeepest(lists, walkedDepth, element + 1) - toDeepest(lists, walkedDepth, element);
+    }
+    // roll the counts up to the surviving top-level rows
+    for (int level = walkedDepth; level > 0; level--) {
+      int[] parentCounts = new int[survivors[level - 1].length];
+      int[] levelParents = parents[level];
+      for (int i = 0; i < levelCounts.length; i++) {
+        parentCounts[levelParents[i]] += levelCounts[i];
+      }
+      levelCounts = parentCounts;
+    }
+    for (int i = 0; i < levelCounts.length; i++) {
+      counts[survivors[0][i] - fromRow] = levelCounts[i];
+    }
+    return counts;
+  }
+
+  /**
+   * Run the filter top-down over levels 0..maxLevel, recording for each level
+   * the surviving elements in order and the position of each one's parent in
+   * the survivors of the level above. The children of an element are only
+   * selected where its list is present. From firstNullLevel on, an element
+   * without children because its list is absent or empty gets a single -1
+   * child instead, as does every -1 element. Returns the first level that
+   * got a -1, maxLevel + 1 if none did.
+   */
+  private static int filterLevels(
+      ListVector[] lists,
+      ValueVector[][] listValidity,
+      int firstNullLevel,
+      int fromRow,
+      int toRow,
+      LevelFilter filter,
+      int maxLevel,
+      int[][] survivors,
+      int[][] parents) {
+    SelectionBitmap selection = new SelectionBitmap(toRow);
+    selection.setRange(fromRow, toRow);
+    if (filter != null) {
+      filter.filter(0, fromRow, toRow, selection);
+    }
+    survivors[0] = new int[selection.cardinality(fromRow, toRow)];
+    int count = 0;
+    for (int row = selection.nextSetBit(fromRow, toRow); row < toRow; row = selection.nextSetBit(row + 1, toRow)) {
+      survivors[0][count++] = row;
+    }
+    int nullLevel = maxLevel + 1;
+    for (int level = 1; level <= maxLevel; level++) {
+      int[] parentSurvivors = survivors[level - 1];
+      ArrowBuf offsets = lists[level].getOffsetBuffer();
+      int parentStart = Integer.MAX_VALUE;
+      int parentEnd = 0;
+      for (int parent : parentSurvivors) {
+        if (parent >= 0) {
+          parentStart = Math.min(parentStart, parent);
+          parentEnd = parent + 1;
+        }
+      }
+      SelectionBitmap present = null;
+      if (listValidity != null && listValidity[level].length > 0 && parentStart < parentEnd) {
+        present = presentLists(listValidity[level], parentStart, parentEnd);
+      }
+      int start = 0;
+      int end = 0;
+      if (parentStart < parentEnd) {
+        start = offsets.getInt((long) parentStart * OFFSET_WIDTH);
+        end = offsets.getInt((long) parentEnd * OFFSET_WIDTH);
+      }
+      selection = new SelectionBitmap(end);
+      for (int parent : parentSurvivors) {
+        if (parent >= 0 && (present == null || present.get(parent))) {
+          selection.setRange(offsets.getInt((long) parent * OFFSET_WIDTH),
+              offsets.getInt((long) (parent + 1) * OFFSET_WIDTH));
+        }
+      }
+      if (filter != null) {
+        filter.filter(level, start, end, selection);
+      }
+      boolean nulls = level >= firstNullLevel;
+      // sized exactly: the selected children plus one null row per parent
+      // without children
+      int nullRows = nulls ? countNullRows(parentSurvivors, offsets, present) : 0;
+      int[] levelSurvivors = new int[selection.cardinality(start, end) + nullRows];
+      int[] levelParents = new int[levelSurvivors.length];
+      if (nullRows > 0) {
+        nullLevel = Math.min(nullLevel, level);
+      }
+      count = 0;
+      for (int i = 0; i < parentSurvivors.length; i++) {
+        int parent = parentSurvivors[i];
+        int childStart = parent < 0 ? 0 : offsets.getInt((long) parent * OFFSET_WIDTH);
+        int childEnd = parent < 0 ? 0 : offsets.getInt((long) (parent + 1) * OFFSET_WIDTH);
+        if (nulls && isNullRow(parent, childStart, childEnd, present)) {
+          levelSurvivors[count] = -1;
+          levelParents[count++] = i;
+          continue;
+        }
+        for (int child = selection.nextSetBit(childStart, childEnd); child < childEnd;
+             child = selection.nextSetBit(child + 1, childEnd)) {
+          levelSurvivors[count] = child;
+          levelParents[count++] = i;
+        }
+      }
+      survivors[level] = levelSurvivors;
+      parents[level] = levelParents;
+    }
+    return nullLevel;
+  }
+
+  /**
+   * Whether an outer flatten turns the parent into a single null row, its
+   * list being absent or empty or itself being a null row.
+   */
+  private static boolean isNullRow(int parent, int childStart, int childEnd, SelectionBitmap present) {
+    return parent < 0 || childStart == childEnd || (present != null && !present.get(parent));
+  }
+
+  private static int countNullRows(int[] parentSurvivors, ArrowBuf offsets, SelectionBitmap present) {
+    int nullRows = 0;
+    for (int parent : parentSurvivors) {
+      if (parent < 0 || isNullRow(parent, offsets.getInt((long) parent * OFFSET_WIDTH),
+          offsets.getInt((long) (parent + 1) * OFFSET_WIDTH), present)) {
+        nullRows++;
+      }
+    }
+    return nullRows;
+  }
+
+  /**
+   * Bitmap over [start, end) of the elements whose list is present: the AND
+   * of the validity of the list and of the structs enclosing it.
+   */
+  static SelectionBitmap presentLists(ValueVector[] validity, int start, int end) {
+    SelectionBitmap present = new SelectionBitmap(end);
+    present.setRange(start, end);
+    for (ValueVector vector : validity) {
+      present.and(((FieldVector) vector).getValidityBuffer(), start, end);
+    }
+    return present;
+  }
+
+  private void build(int deepestEnd, int fromRow, int[] topRowStarts) {
+    // the deepest level needs no table: element e starts at row e - deepestStart
+    firstElements[depth] = deepestStart;
+    int lowestLevel = 0;
+    if (topRowStarts != null) {
+      // level 0 straight from the composed offsets
+      int[] index = new int[rowCount];
+      int[] levelFirstRows = new int[topRowStarts.length];
+      for (int i = 0; i < topRowStarts.length; i++) {
+        levelFirstRows[i] = topRowStarts[i] - deepestStart;
+      }
+      for (int i = 0; i + 1 < levelFirstRows.length; i++) {
+        Arrays.fill(index, levelFirstRows[i], levelFirstRows[i + 1], fromRow + i);
+      }
+      elements[0] = index;
+      firstRows[0] = levelFirstRows;
+      firstElements[0] = fromRow;
+      lowestLevel = 1;
+    }
+    int[] childFirstRows = null;
+    int childStart = deepestStart;
+    int childEnd = deepestEnd;
+    for (int level = depth - 1; level >= lowestLevel; level--) {
+      ListVector list = lists[level + 1];
+      int[] index = new int[rowCount];
+      elements[level] = index;
+      int start;
+      int end;
+      if (childStart == childEnd) {
+        start = 0;
+        end = 0;
+      } else {
+        start = parentOf(list, childStart);
+        end = parentOf(list, childEnd - 1) + 1;
+      }
+      int[] levelFirstRows = new int[end - start + 1];
+      ArrowBuf offsets = list.getOffsetBuffer();
+      for (int element = start; element < end; element++) {
+        int childFrom = clamp(offsets.getInt((long) element * OFFSET_WIDTH), childStart, childEnd);
+        int childTo = clamp(offsets.getInt((long) (element + 1) * OFFSET_WIDTH), childStart, childEnd);
+        int rowFrom = childFirstRows == null ? childFrom - childStart : childFirstRows[childFrom - childStart];
+        int rowTo = childFirstRows == null ? childTo - childStart : childFirstRows[childTo - childStart];
+        Arrays.fill(index, rowFrom, rowTo, element);
+        levelFirstRows[element - start] = rowFrom;
+      }
+      levelFirstRows[end - start] = rowCount;
+      firstElements[level] = start;
+      firstRows[level] = levelFirstRows;
+      childFirstRows = levelFirstRows;
+      childStart = start;
+      childEnd = end;
+    }
+  }
+
+  int getDepth() {
+    return depth;
+  }
+
+  int getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * Whether the deepest level is the contiguous element range starting at
+   * {@link #getDeepestStart()}, i.e. the rows were not filtered.
+   */
+  boolean isContiguous() {
+    return deepestStart >= 0;
+  }
+
+  int getDeepestStart() {
+    return deepestStart;
+  }
+
+  /**
+   * Element index per output row at the given level. Not available for the
+   * deepest level of a contiguous index.
+   */
+  int[] getElements(int level) {
+    return elements[level];
+  }
+
+  /**
+   * Number of distinct elements of the level that produce rows, not counting
+   * the null rows of an outer flatten. An element's rows are consecutive, so
+   * this counts the runs of the level's index.
+   */
+  int getElementCount(int level) {
+    if (level == depth && isContiguous()) {
+      return rowCount;
+    }
+    int[] index = elements[level];
+    int count = 0;
+    int previous = -1;
+    for (int element : index) {
+      if (element >= 0 && element != previous) {
+        count++;
+        previous = element;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * The runs of consecutive rows that come from the same element of a level
+   * above the deepest, which is what replicating that level's leaves
+   * repeats. Consecutive null rows of an outer flatten form one run of
+   * element -1. An unfiltered index finds the runs from the first rows of
+   * each element, in time proportional to the elements, a filtered one by
+   * scanning the level's index.
+   */
+  Runs getRuns(int level) {
+    if (level >= depth) {
+      throw new IllegalArgumentException("The deepest level has a run per row");
+    }
+    if (isContiguous()) {
+      int[] levelFirstRows = firstRows[level];
+      int count = 0;
+      for (int i = 0; i + 1 < levelFirstRows.length; i++) {
+        if (levelFirstRows[i + 1] > levelFirstRows[i]) {
+          count++;
+        }
+      }
+      Runs runs = new Runs(count);
+      count = 0;
+      for (int i = 0; i + 1 < levelFirstRows.length; i++) {
+        if (levelFirstRows[i + 1] > levelFirstRows[i]) {
+          runs.elements[count] = firstElements[level] + i;
+          runs.ends[count++] = levelFirstRows[i + 1];
+        }
+      }
+      return runs;
+    }
+    int[] index = elements[level];
+    int count = 0;
+    for (int row = 0; row < index.length; row++) {
+      if (row == 0 || index[row] != index[row - 1]) {
+        count++;
+      }
+    }
+    Runs runs = new Runs(count);
+    count = 0;
+    for (int row = 0; row < index.length; row++) {
+      if (row + 1 == index.length || index[row + 1] != index[row]) {
+        runs.elements[count] = index[row];
+        runs.ends[count++] = row + 1;
+        runs.hasNulls |= index[row] < 0;
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * Whether the elements of the level include -1 for the null rows of an
+   * outer flatten.
+   */
+  boolean hasNullElements(int level) {
+    return level >= firstNullLevel;
+  }
+
+  int getElement(int level, int row) {
+    return level == depth && isContiguous() ? deepestStart + row : elements[level][row];
+  }
+
+  /**
+   * First output row produced by the given element at the given level.
+   * Passing one past the last indexed element returns the row count.
+   */
+  int getFirstRow(int level, int element) {
+    if (!isContiguous()) {
+      throw new UnsupportedOperationException("First rows are not tracked for a filtered index");
+    }
+    if (level == depth) {
+      return element - deepestStart;
+    }
+    return firstRows[level][element - firstElements[level]];
+  }
+
+  ListVector getList(int level) {
+    return lists[level];
+  }
+
+  /**
+   * Start of the list at index, or the end of the last list for index ==
+   * value count. An empty list vector read over IPC may have no offset
+   * buffer at all, so its only offset, 0, is not read.
+   */
+  static int offset(ListVector list, int index) {
+    if (index == 0 && list.getValueCount() == 0) {
+      return 0;
+    }
+    return list.getOffsetBuffer().getInt((long) index * OFFSET_WIDTH);
+  }
+
+  /**
+   * Binary search the offsets for the list entry that holds the given child
+   * element. Empty lists share their offset with the next entry so the last
+   * entry whose start offset is not past the element is the owner.
+   */
+  static int parentOf(ListVector list, int element) {
+    ArrowBuf offsets = list.getOffsetBuffer();
+    int low = 0;
+    int high = list.getValueCount() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (offsets.getInt((long) mid * OFFSET_WIDTH) <= element) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return value < min ? min : (value > max ? max : value);
+  }
+
+  /**
+   * Runs of rows from the same element: rows [ends[r - 1], ends[r]) come from
+   * element elements[r], -1 for null rows.
+   */
+  static final class Runs {
+    final int[] elements;
+    final int[] ends;
+    boolean hasNulls;
+
+    Runs(int count) {
+      this.elements = new int[count];
+      this.ends = new int[count];
+    }
+
+    int getCount() {
+      return elements.length;
+    }
+  }
+
+  /**
+   * Removes elements of one repetition level from a flatten.
+   */
+  interface LevelFilter {
+    /**
+     * Clear the bits of the selected elements in [start, end) of the level
+     * that must not produce output rows.
+     */
+    void filter(int level, int start, int end, SelectionBitmap selection);
+  }
+}
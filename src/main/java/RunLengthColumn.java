@@ -0,0 +1,88 @@
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.util.Preconditions;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.ValueVector;
+
+/**
+ * A flattened column stored as one value per run of equal rows.
+ *
+ * Run r covers rows [runEnds[r - 1], runEnds[r]) (from row 0 for the first
+ * run) and all of them have value r of the values vector. Both vectors have
+ * one entry per run, so a column replicated from a level above the deepest
+ * takes memory in proportion to that level's elements instead of the
+ * flattened rows. Finding the value of a row is a binary search over the
+ * run ends.
+ */
+class RunLengthColumn implements AutoCloseable {
+
+  private final ValueVector values;
+  private final IntVector runEnds;
+
+  RunLengthColumn(ValueVector values, IntVector runEnds) {
+    Preconditions.checkArgument(values.getValueCount() == runEnds.getValueCount(),
+        "%s values for %s runs", values.getValueCount(), runEnds.getValueCount());
+    this.values = values;
+    this.runEnds = runEnds;
+  }
+
+  ValueVector getValues() {
+    return values;
+  }
+
+  IntVector getRunEnds() {
+    return runEnds;
+  }
+
+  int getRunCount() {
+    return runEnds.getValueCount();
+  }
+
+  int getRowCount() {
+    int runs = getRunCount();
+    return runs == 0 ? 0 : runEnds.get(runs - 1);
+  }
+
+  /**
+   * Run of the given row, the index of its value.
+   */
+  int getRun(int row) {
+    Preconditions.checkElementIndex(row, getRowCount());
+    int low = 0;
+    int high = getRunCount() - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (runEnds.get(mid) <= row) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * The column with every row materialized, in a new vector from the given
+   * allocator.
+   */
+  ValueVector decode(BufferAllocator allocator) {
+    int rowCount = getRowCount();
+    int[] runs = new int[rowCount];
+    int row = 0;
+    for (int run = 0; run < getRunCount(); run++) {
+      int end = runEnds.get(run);
+      while (row < end) {
+        runs[row++] = run;
+      }
+    }
+    ValueVector decoded = FlattenOperator.getOutputVector(values, allocator);
+    LeafCopier.forType(values.getMinorType()).gather(values, runs, decoded, rowCount);
+    decoded.setValueCount(rowCount);
+    return decoded;
+  }
+
+  @Override
+  public void close() {
+    values.close();
+    runEnds.close();
+  }
+}
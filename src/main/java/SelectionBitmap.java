@@ -0,0 +1,185 @@
+import io.netty.buffer.ArrowBuf;
+import java.util.Arrays;
+
+/**
+ * On-heap bitmap selecting elements of one repetition level, 64 elements
+ * per word.
+ */
+final class SelectionBitmap {
+
+  private final long[] words;
+
+  SelectionBitmap(int size) {
+    this.words = new long[(size + 63) >>> 6];
+  }
+
+  boolean get(int index) {
+    return (words[index >>> 6] & (1L << index)) != 0;
+  }
+
+  void set(int index) {
+    words[index >>> 6] |= 1L << index;
+  }
+
+  void clear(int index) {
+    words[index >>> 6] &= ~(1L << index);
+  }
+
+  /**
+   * Set every bit in [start, end) filling whole words where possible.
+   */
+  void setRange(int start, int end) {
+    if (start >= end) {
+      return;
+    }
+    int startWord = start >>> 6;
+    int endWord = (end - 1) >>> 6;
+    long startMask = -1L << start;
+    long endMask = -1L >>> -end;
+    if (startWord == endWord) {
+      words[startWord] |= startMask & endMask;
+      return;
+    }
+    words[startWord] |= startMask;
+    Arrays.fill(words, startWord + 1, endWord, -1L);
+    words[endWord] |= endMask;
+  }
+
+  /**
+   * Clear every bit in [start, end) clearing whole words where possible.
+   */
+  void clearRange(int start, int end) {
+    if (start >= end) {
+      return;
+    }
+    int startWord = start >>> 6;
+    int endWord = (end - 1) >>> 6;
+    long startMask = -1L << start;
+    long endMask = -1L >>> -end;
+    if (startWord == endWord) {
+      words[startWord] &= ~(startMask & endMask);
+      return;
+    }
+    words[startWord] &= ~startMask;
+    Arrays.fill(words, startWord + 1, endWord, 0L);
+    words[endWord] &= ~endMask;
+  }
+
+  /**
+   * Index of the first set bit at or after from and before end, or end if
+   * there is none. Runs of unselected elements are skipped a word at a time.
+   */
+  int nextSetBit(int from, int end) {
+    if (from >= end) {
+      return end;
+    }
+    int wordIndex = from >>> 6;
+    long word = words[wordIndex] & (-1L << from);
+    while (true) {
+      if (word != 0) {
+        int index = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+        return index < end ? index : end;
+      }
+      wordIndex++;
+      if (wordIndex << 6 >= end) {
+        return end;
+      }
+      word = words[wordIndex];
+    }
+  }
+
+  /**
+   * Clear the bits in [start, end) whose bit in an Arrow validity buffer is
+   * clear, one 64-bit word of validity at a time.
+   */
+  void and(ArrowBuf validity, int start, int end) {
+    if (start >= end) {
+      return;
+    }
+    for (int wordIndex = start >>> 6; wordIndex << 6 < end; wordIndex++) {
+      int from = Math.max(start, wordIndex << 6);
+      int to = Math.min(end, (wordIndex + 1) << 6);
+      long valid = ValidityBitmaps.readBits(validity, from, to - from) << (from & 63);
+      long range = (-1L << from) & (-1L >>> -to);
+      words[wordIndex] &= valid | ~range;
+    }
+  }
+
+  /**
+   * Clear the bits in [start, end) that are clear in other, a word at a
+   * time.
+   */
+  void and(SelectionBitmap other, int start, int end) {
+    if (start >= end) {
+      return;
+    }
+    for (int wordIndex = start >>> 6; wordIndex << 6 < end; wordIndex++) {
+      int from = Math.max(start, wordIndex << 6);
+      int to = Math.min(end, (wordIndex + 1) << 6);
+      long range = (-1L << from) & (-1L >>> -to);
+      words[wordIndex] &= other.words[wordIndex] | ~range;
+    }
+  }
+
+  /**
+   * Index of the first clear bit at or after from and before end, or end if
+   * there is none.
+   */
+  int nextClearBit(int from, int end) {
+    if (from >= end) {
+      return end;
+    }
+    int wordIndex = from >>> 6;
+    long word = ~words[wordIndex] & (-1L << from);
+    while (true) {
+      if (word != 0) {
+        int index = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+        return index < end ? index : end;
+      }
+      wordIndex++;
+      if (wordIndex << 6 >= end) {
+        return end;
+      }
+      word = ~words[wordIndex];
+    }
+  }
+
+  /**
+   * Number of set bits in [start, end), counted a word at a time.
+   */
+  int cardinality(int start, int end) {
+    if (start >= end) {
+      return 0;
+    }
+    int startWord = start >>> 6;
+    int endWord = (end - 1) >>> 6;
+    long startMask = -1L << start;
+    long endMask = -1L >>> -end;
+    if (startWord == endWord) {
+      return Long.bitCount(words[startWord] & startMask & endMask);
+    }
+    int count = Long.bitCount(words[startWord] & startMask) + Long.bitCount(words[endWord] & endMask);
+    for (int word = startWord + 1; word < endWord; word++) {
+      count += Long.bitCount(words[word]);
+    }
+    return count;
+  }
+
+  /**
+   * Write the first count bits to an Arrow validity buffer, a word at a
+   * time. The rest of the last byte is cleared.
+   */
+  void writeTo(ArrowBuf validity, int count) {
+    int fullWords = count >>> 6;
+    for (int word = 0; word < fullWords; word++) {
+      validity.setLong((long)word << 3, words[word]);
+    }
+    int bits = count & 63;
+    if (bits != 0) {
+      long last = words[fullWords] & (-1L >>> -bits);
+      for (int b = 0; b < (bits + 7) >>> 3; b++) {
+        validity.setByte(((long)fullWords << 3) + b, (int)(last >>> (b << 3)));
+      }
+    }
+  }
+}
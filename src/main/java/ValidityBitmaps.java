@@ -0,0 +1,184 @@
+import io.netty.buffer.ArrowBuf;
+import org.apache.arrow.vector.BitVectorHelper;
+
+/**
+ * Bulk operations on Arrow validity bitmaps (LSB-first, one bit per value).
+ *
+ * Ranges are processed 64 bits at a time: a little-endian long read from
+ * the bitmap holds 64 consecutive validity bits in order, so a source range
+ * at any bit offset is realigned with two shifts per word and written to a
+ * byte-aligned destination with one setLong. Only the bits of the range are
+ * ever read, and the bits around it in the destination are preserved.
+ * Gathers, whose source bits are scattered, still read a bit per row but
+ * collect 64 rows in a long before writing them to the destination.
+ */
+final class ValidityBitmaps {
+
+  private ValidityBitmaps() {
+  }
+
+  /**
+   * Copy count bits starting at bit srcIndex of src to bit dstIndex of dst.
+   */
+  static void copyRange(ArrowBuf src, int srcIndex, ArrowBuf dst, int dstIndex, int count) {
+    transfer(src, srcIndex, dst, dstIndex, count, false);
+  }
+
+  /**
+   * AND count bits starting at bit srcIndex of src into the bits starting at
+   * dstIndex of dst, e.g. to null out the values under null structs.
+   */
+  static void andRange(ArrowBuf src, int srcIndex, ArrowBuf dst, int dstIndex, int count) {
+    transfer(src, srcIndex, dst, dstIndex, count, true);
+  }
+
+  private static void transfer(ArrowBuf src, int srcIndex, ArrowBuf dst, int dstIndex, int count, boolean and) {
+    if (count <= 0) {
+      return;
+    }
+    if ((dstIndex & 7) != 0) {
+      for (int i = 0; i < count; i++) {
+        int bit = BitVectorHelper.get(src, srcIndex + i);
+        if (and) {
+          bit &= BitVectorHelper.get(dst, dstIndex + i);
+        }
+        BitVectorHelper.setValidityBit(dst, dstIndex + i, bit);
+      }
+      return;
+    }
+    long dstByte = dstIndex >>> 3;
+    int i = 0;
+    for (; i + 64 <= count; i += 64) {
+      long word = readBits(src, (long) srcIndex + i, 64);
+      long at = dstByte + (i >>> 3);
+      dst.setLong(at, and ? word & dst.getLong(at) : word);
+    }
+    if (i < count) {
+      int bits = count - i;
+      long word = readBits(src, (long) srcIndex + i, bits);
+      long at = dstByte + (i >>> 3);
+      for (int b = 0; b < bits; b += 8, at++) {
+        int mask = bits - b >= 8 ? 0xFF : (1 << (bits - b)) - 1;
+        int value = (int) (word >>> b) & mask;
+        int old = dst.getByte(at);
+        dst.setByte(at, and ? old & (value | ~mask) : (old & ~mask) | value);
+      }
+    }
+  }
+
+  /**
+   * Up to 64 bits starting at bit bitIndex, LSB-first. Reads whole longs
+   * when the bits span them and never reads past the last requested bit.
+   */
+  static long readBits(ArrowBuf buffer, long bitIndex, int bits) {
+    long byteIndex = bitIndex >>> 3;
+    int shift = (int) (bitIndex & 7);
+    long word;
+    if (shift + bits >= 64) {
+      word = buffer.getLong(byteIndex) >>> shift;
+      if (shift + bits > 64) {
+        word |= (long) (buffer.getByte(byteIndex + 8) & 0xFF) << (64 - shift);
+      }
+    } else {
+      word = 0;
+      int bytes = (shift + bits + 7) >>> 3;
+      for (int b = 0; b < bytes; b++) {
+        word |= (long) (buffer.getByte(byteIndex + b) & 0xFF) << (b << 3);
+      }
+      word >>>= shift;
+    }
+    return bits == 64 ? word : word & ((1L << bits) - 1);
+  }
+
+  /**
+   * Set the first count bits of dst, e.g. for vectors without nulls. The
+   * rest of the last byte is cleared.
+   */
+  static void setFirst(ArrowBuf dst, int count) {
+    int fullBytes = count >>> 3;
+    if (fullBytes > 0) {
+      dst.setOne(0, fullBytes);
+    }
+    if ((count & 7) != 0) {
+      dst.setByte(fullBytes, (1 << (count & 7)) - 1);
+    }
+  }
+
+  /**
+   * Set bit (dstIndex + i) of dst to bit indices[i] of src. The bits of 64
+   * rows are gathered into a long and written at once.
+   */
+  static void gather(ArrowBuf src, int[] indices, ArrowBuf dst, int dstIndex, int count) {
+    for (int i = 0; i < count; i += 64) {
+      int bits = Math.min(64, count - i);
+      long word = 0;
+      for (int b = 0; b < bits; b++) {
+        int index = indices[i + b];
+        word |= (long) ((src.getByte(index >>> 3) >>> (index & 7)) & 1) << b;
+      }
+      writeBits(dst, (long) dstIndex + i, word, bits);
+    }
+  }
+
+  /**
+   * Same as {@link #gather} where a negative index stands for a null value.
+   */
+  static void gatherNullable(ArrowBuf src, int[] indices, ArrowBuf dst, int dstIndex, int count) {
+    for (int i = 0; i < count; i += 64) {
+      int bits = Math.min(64, count - i);
+      long word = 0;
+      for (int b = 0; b < bits; b++) {
+        int index = indices[i + b];
+        if (index >= 0) {
+          word |= (long) ((src.getByte(index >>> 3) >>> (index & 7)) & 1) << b;
+        }
+      }
+      writeBits(dst, (long) dstIndex + i, word, bits);
+    }
+  }
+
+  /**
+   * AND bit indices[i] of src into bit (dstIndex + i) of dst, negative
+   * indices being left alone. dst is read and written 64 bits at a time,
+   * and only its set bits are looked up in src.
+   */
+  static void andGathered(ArrowBuf src, int[] indices, ArrowBuf dst, int dstIndex, int count) {
+    for (int i = 0; i < count; i += 64) {
+      int bits = Math.min(64, count - i);
+      long word = readBits(dst, (long) dstIndex + i, bits);
+      long cleared = word;
+      for (long set = word; set != 0; set &= set - 1) {
+        int b = Long.numberOfTrailingZeros(set);
+        int index = indices[i + b];
+        if (index >= 0 && ((src.getByte(index >>> 3) >>> (index & 7)) & 1) == 0) {
+          cleared &= ~(1L << b);
+        }
+      }
+      if (cleared != word) {
+        writeBits(dst, (long) dstIndex + i, cleared, bits);
+      }
+    }
+  }
+
+  /**
+   * Write the low bits of word to the bits starting at bitIndex, preserving
+   * the bits around them: one setLong for 64 aligned bits, otherwise a
+   * read-modify-write of every byte they touch.
+   */
+  private static void writeBits(ArrowBuf dst, long bitIndex, long word, int bits) {
+    long byteIndex = bitIndex >>> 3;
+    int shift = (int) (bitIndex & 7);
+    if (shift == 0 && bits == 64) {
+      dst.setLong(byteIndex, word);
+      return;
+    }
+    // bits [b, b + 8) of word fall in each byte, b starting below 0 when unaligned
+    for (int b = -shift; b < bits; b += 8, byteIndex++) {
+      int low = Math.max(b, 0);
+      int high = Math.min(b + 8, bits);
+      int mask = ((1 << (high - low)) - 1) << (low - b);
+      int value = (int) (b >= 0 ? word >>> b : word << -b) & mask;
+      dst.setByte(byteIndex, (dst.getByte(byteIndex) & ~mask) | value);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.BitVectorHelper;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.complex.MapVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.complex.impl.ComplexWriterImpl;
+import org.apache.arrow.vector.complex.writer.BaseWriter;
+import org.apache.arrow.vector.complex.writer.BigIntWriter;
+import org.apache.arrow.vector.complex.writer.IntWriter;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+
+/**
+ * Builds the person column used across the flatten tests
+ *
+ * STRUCT {
+ *   age: INT
+ *   salary: LONG
+ *   addresses: LIST {
+ *     apt: INT
+ *     zip: INT
+ *     phones: LIST {
+ *       phone-number: INT
+ *       phone-type: INT
+ *     }
+ *   }
+ * }
+ *
+ * Person i has age 20 + i and salary 1000 * i. Address j of person i has
+ * apt 1000 * i + j and zip 94400 + j. Phone k of that address has
+ * phone-number 100 * i + 10 * j + k and phone-type k.
+ */
+class NestedTestData {
+
+  static final String ROOT = "root";
+
+  static StructVector newContainer(BufferAllocator allocator) {
+    FieldType structFieldType = new FieldType(false, ArrowType.Struct.INSTANCE, null, null);
+    return new StructVector("top-level-struct", allocator, structFieldType, null);
+  }
+
+  /**
+   * Write rows persons with the same number of addresses and phones each.
+   */
+  static StructVector writePersons(StructVector container, int rows, int addresses, int phones) {
+    int[] addressCounts = new int[rows];
+    int[] phoneCounts = new int[rows];
+    for (int i = 0; i < rows; i++) {
+      addressCounts[i] = addresses;
+      phoneCounts[i] = phones;
+    }
+    return writePersons(container, addressCounts, phoneCounts);
+  }
+
+  /**
+   * Write one person per entry, person i having addressCounts[i] addresses
+   * with phoneCounts[i] phones each. Returns the root person struct.
+   */
+  static StructVector writePersons(StructVector container, int[] addressCounts, int[] phoneCounts) {
+    BaseWriter.ComplexWriter complexObjectWriter = new ComplexWriterImpl(ROOT, container);
+    BaseWriter.StructWriter rootStructWriter = complexObjectWriter.rootAsStruct();
+    IntWriter ageWriter = rootStructWriter.integer("age");
+    BigIntWriter salaryWriter = rootStructWriter.bigInt("salary");
+    BaseWriter.ListWriter addressListWriter = rootStructWriter.list("addresses");
+    BaseWriter.StructWriter addressStructWriter = addressListWriter.struct();
+    IntWriter aptWriter = addressStructWriter.integer("apt");
+    IntWriter zipWriter = addressStructWriter.integer("zip");
+    BaseWriter.ListWriter phoneListWriter = addressStructWriter.list("phones");
+    BaseWriter.StructWriter phoneStructWriter = phoneListWriter.struct();
+    IntWriter numberWriter = phoneStructWriter.integer("phone-number");
+    IntWriter typeWriter = phoneStructWriter.integer("phone-type");
+
+    for (int i = 0; i < addressCounts.length; i++) {
+      rootStructWriter.setPosition(i);
+      rootStructWriter.start();
+      ageWriter.writeInt(20 + i);
+      salaryWriter.writeBigInt(1000L * i);
+      addressListWriter.startList();
+      for (int j = 0; j < addressCounts[i]; j++) {
+        addressStructWriter.start();
+        aptWriter.writeInt(1000 * i + j);
+        zipWriter.writeInt(94400 + j);
+        phoneListWriter.startList();
+        for (int k = 0; k < phoneCounts[i]; k++) {
+          phoneStructWriter.start();
+          numberWriter.writeInt(100 * i + 10 * j + k);
+          typeWriter.writeInt(k);
+          phoneStructWriter.end();
+        }
+        phoneListWriter.endList();
+        addressStructWriter.end();
+      }
+      addressListWriter.endList();
+      rootStructWriter.end();
+    }
+    complexObjectWriter.setValueCount(addressCounts.length);
+    return (StructVector) container.getChild(ROOT);
+  }
+
+  /**
+   * Same column as {@link #writePersons(StructVector, int[], int[])}, built
+   * through {@link NestedVectorBuilder}.
+   */
+  static StructVector buildPersons(StructVector container, int[] addressCounts, int[] phoneCounts) {
+    int rows = addressCounts.length;
+    int addressTotal = 0;
+    int phoneTotal = 0;
+    for (int i = 0; i < rows; i++) {
+      addressTotal += addressCounts[i];
+      phoneTotal += addressCounts[i] * phoneCounts[i];
+    }
+    int[] ages = new int[rows];
+    long[] salaries = new long[rows];
+    int[] apts = new int[addressTotal];
+    int[] zips = new int[addressTotal];
+    int[] phoneLengths = new int[addressTotal];
+    int[] numbers = new int[phoneTotal];
+    int[] types = new int[phoneTotal];
+    int address = 0;
+    int phone = 0;
+    for (int i = 0; i < rows; i++) {
+      ages[i] = 20 + i;
+      salaries[i] = 1000L * i;
+      for (int j = 0; j < addressCounts[i]; j++, address++) {
+        apts[address] = 1000 * i + j;
+        zips[address] = 94400 + j;
+        phoneLengths[address] = phoneCounts[i];
+        for (int k = 0; k < phoneCounts[i]; k++, phone++) {
+          numbers[phone] = 100 * i + 10 * j + k;
+          types[phone] = k;
+        }
+      }
+    }
+    NestedVectorBuilder builder = new NestedVectorBuilder(ROOT, rows);
+    NestedVectorBuilder.Level person = builder.getRoot()
+        .intColumn("age", ages)
+        .bigIntColumn("salary", salaries);
+    NestedVectorBuilder.Level addresses = person.list("addresses", addressCounts)
+        .intColumn("apt", apts)
+        .intColumn("zip", zips);
+    addresses.list("phones", phoneLengths)
+        .intColumn("phone-number", numbers)
+        .intColumn("phone-type", types);
+    return builder.build(container);
+  }
+
+  /**
+   * Build the column of floating point edge cases, one row each
+   *
+   * STRUCT {
+   *   f: FLOAT4 {0.1f, -0.0f, 0.0f, NaN, Float.MAX_VALUE}
+   *   d: FLOAT8 {0.1, -0.0, 0.0, NaN, 1e300}
+   * }
+   */
+  static StructVector buildFloats(StructVector container) {
+    NestedVectorBuilder builder = new NestedVectorBuilder(ROOT, 5);
+    builder.getRoot()
+        .float4Column("f", new float[] {0.1f, -0.0f, 0.0f, Float.NaN, Float.MAX_VALUE})
+        .float8Column("d", new double[] {0.1, -0.0, 0.0, Double.NaN, 1e300});
+    return builder.build(container);
+  }
+
+  /**
+   * Write the event column
+   *
+   * STRUCT {
+   *   id: INT
+   *   attrs: MAP<VARCHAR, STRUCT { os: VARCHAR, version: INT }>
+   * }
+   *
+   *    id 0: {locale: (x, 1), device: (ios, 17)}
+   *    id 1: {device: (android, 14)}
+   *    id 2: null
+   *    id 3: {}
+   *    id 4: {device: null}
+   */
+  static StructVector writeEvents(StructVector container) {
+    ArrowType utf8 = ArrowType.Utf8.INSTANCE;
+    ArrowType int32 = new ArrowType.Int(32, true);
+    Field value = new Field(MapVector.VALUE_NAME, FieldType.nullable(ArrowType.Struct.INSTANCE),
+        Arrays.asList(Field.nullable("os", utf8), Field.nullable("version", int32)));
+    Field entries = new Field("entries", new FieldType(false, ArrowType.Struct.INSTANCE, null),
+        Arrays.asList(new Field(MapVector.KEY_NAME, new FieldType(false, utf8, null), null), value));
+    Field attrs = new Field("attrs", FieldType.nullable(new ArrowType.Map(false)), Collections.singletonList(entries));
+    StructVector event = container.addOrGetStruct("event");
+    event.initializeChildrenFromFields(Arrays.asList(Field.nullable("id", int32), attrs));
+    event.allocateNew();
+
+    IntVector id = (IntVector)event.getChild("id");
+    MapVector map = (MapVector)event.getChild("attrs");
+    StructVector entry = (StructVector)map.getDataVector();
+    VarCharVector key = (VarCharVector)entry.getChild(MapVector.KEY_NAME);
+    StructVector entryValue = (StructVector)entry.getChild(MapVector.VALUE_NAME);
+    VarCharVector os = (VarCharVector)entryValue.getChild("os");
+    IntVector version = (IntVector)entryValue.getChild("version");
+    String[][] keys = {{"locale", "device"}, {"device"}, {}, {}, {"device"}};
+    String[][] oses = {{"x", "ios"}, {"android"}, {}, {}, {null}};
+    int[][] versions = {{1, 17}, {14}, {}, {}, {0}};
+    int e = 0;
+    for (int i = 0; i < keys.length; i++) {
+      event.setIndexDefined(i);
+      id.setSafe(i, i);
+      map.startNewValue(i);
+      for (int j = 0; j < keys[i].length; j++, e++) {
+        entry.setIndexDefined(e);
+        key.setSafe(e, keys[i][j].getBytes(StandardCharsets.UTF_8));
+        if (oses[i][j] != null) {
+          entryValue.setIndexDefined(e);
+          os.setSafe(e, oses[i][j].getBytes(StandardCharsets.UTF_8));
+          version.setSafe(e, versions[i][j]);
+        }
+      }
+      map.endValue(i, keys[i].length);
+      if (i == 2) {
+        BitVectorHelper.setValidityBit(map.getValidityBuffer(), i, 0);
+      }
+    }
+    event.setValueCount(keys.length);
+    return event;
+  }
+
+  /**
+   * Number of rows FLATTEN produces for the given persons.
+   */
+  static int countRows(int[] addressCounts, int[] phoneCounts) {
+    int rows = 0;
+    for (int i = 0; i < addressCounts.length; i++) {
+      rows += addressCounts[i] * phoneCounts[i];
+    }
+    return rows;
+  }
+}
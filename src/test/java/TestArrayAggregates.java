@@ -0,0 +1,157 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestArrayAggregates {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Persons with {1, 0, 3, 2} addresses of {2, 4, 3, 0} phones each,
+   * aggregated per person and per address.
+   */
+  @Test
+  public void testAggregatePersons() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 3, 2}, new int[] {2, 4, 3, 0});
+      try (IntVector phones = ArrayAggregates.count("person", person, "person.addresses.phones", 0, allocator);
+           IntVector addressPhones = ArrayAggregates.count("person", person, "person.addresses.phones", 1,
+               allocator);
+           IntVector addresses = ArrayAggregates.count("person", person, "person.addresses", 0, allocator);
+           IntVector numbers = ArrayAggregates.count("person", person, "person.addresses.phones.phone-number", 0,
+               allocator)) {
+        assertValues(phones, 2, 0, 9, 0);
+        assertValues(addressPhones, 2, 3, 3, 3, 0, 0);
+        assertValues(addresses, 1, 0, 3, 2);
+        assertValues(numbers, 2, 0, 9, 0);
+      }
+      try (FieldVector zip = ArrayAggregates.max("person", person, "person.addresses.zip", 0, allocator);
+           FieldVector sum = ArrayAggregates.sum("person", person, "person.addresses.phones.phone-number", 0,
+               allocator);
+           FieldVector min = ArrayAggregates.min("person", person, "person.addresses.phones.phone-number", 0,
+               allocator);
+           FieldVector addressSum = ArrayAggregates.sum("person", person, "person.addresses.phones.phone-number", 1,
+               allocator)) {
+        assertValues(zip, 94400, null, 94402, 94401);
+        assertValues(sum, 1L, null, 1899L, null);
+        assertValues(min, 0, null, 200, null);
+        assertValues(addressSum, 1L, 603L, 633L, 663L, null, null);
+      }
+      try (BitVector any = ArrayAggregates.any("person", person,
+               new LeafPredicate("person.addresses.phones.phone-type", LeafPredicate.Comparison.EQ, 2), 0, allocator);
+           BitVector all = ArrayAggregates.all("person", person,
+               new LeafPredicate("person.addresses.phones.phone-number", LeafPredicate.Comparison.LT, 210), 0,
+               allocator)) {
+        assertValues(any, false, false, true, false);
+        // vacuously true without phones
+        assertValues(all, true, true, false, true);
+      }
+
+      try {
+        ArrayAggregates.sum("person", person, "person.addresses", 0, allocator);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Expected the path of a leaf: person.addresses", e.getMessage());
+      }
+      try {
+        ArrayAggregates.count("person", person, "person.age", 1, allocator);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Level 1 is not above the aggregated level 0", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Null values and null lists, over more than a word of elements, give the
+   * same aggregates as reducing the values of each row's list.
+   */
+  @Test
+  public void testAggregateWithNulls() {
+    int rows = 40;
+    int[] lengths = new int[rows];
+    boolean[] listValid = new boolean[rows];
+    int total = 0;
+    for (int i = 0; i < rows; i++) {
+      listValid[i] = i % 7 != 3;
+      lengths[i] = listValid[i] ? i % 5 : 0;
+      total += lengths[i];
+    }
+    double[] scores = new double[total];
+    boolean[] scoreValid = new boolean[total];
+    for (int i = 0; i < total; i++) {
+      scores[i] = (i * 37 % 11) - 5;
+      scoreValid[i] = i % 3 != 1;
+    }
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder("root", rows);
+      builder.getRoot()
+          .list("items", lengths, listValid)
+          .float8Column("score", scores, scoreValid);
+      StructVector root = builder.build(container);
+      ListVector items = (ListVector)root.getChild("items");
+      try (IntVector count = ArrayAggregates.count("root", root, "root.items.score", 0, allocator);
+           FieldVector sum = ArrayAggregates.sum("root", root, "root.items.score", 0, allocator);
+           FieldVector min = ArrayAggregates.min("root", root, "root.items.score", 0, allocator);
+           FieldVector max = ArrayAggregates.max("root", root, "root.items.score", 0, allocator);
+           BitVector positive = ArrayAggregates.all("root", root,
+               new LeafPredicate("root.items.score", LeafPredicate.Comparison.GT, 0), 0, allocator)) {
+        for (int i = 0; i < rows; i++) {
+          int expectedCount = 0;
+          double expectedSum = 0;
+          double expectedMin = Double.POSITIVE_INFINITY;
+          double expectedMax = Double.NEGATIVE_INFINITY;
+          boolean allPositive = true;
+          List<?> values = (List<?>)items.getObject(i);
+          for (Object item : values == null ? Collections.emptyList() : values) {
+            Double score = (Double)((Map<?, ?>)item).get("score");
+            if (score == null) {
+              allPositive = false;
+              continue;
+            }
+            expectedCount++;
+            expectedSum += score;
+            expectedMin = Math.min(expectedMin, score);
+            expectedMax = Math.max(expectedMax, score);
+            allPositive &= score > 0;
+          }
+          Assert.assertEquals(expectedCount, count.get(i));
+          Assert.assertEquals(expectedCount == 0 ? null : expectedSum, sum.getObject(i));
+          Assert.assertEquals(expectedCount == 0 ? null : expectedMin, min.getObject(i));
+          Assert.assertEquals(expectedCount == 0 ? null : expectedMax, max.getObject(i));
+          Assert.assertEquals(allPositive, positive.get(i) == 1);
+        }
+      }
+    }
+  }
+
+  private static void assertValues(ValueVector vector, Object... expected) {
+    Assert.assertEquals(expected.length, vector.getValueCount());
+    for (int i = 0; i < expected.length; i++) {
+      Object actual = vector.getObject(i);
+      Assert.assertEquals("value " + i, expected[i], actual);
+    }
+  }
+}
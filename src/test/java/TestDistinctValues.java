@@ -0,0 +1,84 @@
+import java.nio.charset.StandardCharsets;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDistinctValues {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Values repeating with period 37, every 5th one null, get ids in order of
+   * first appearance, enough of them for the table to probe past collisions.
+   */
+  @Test
+  public void testAssignFixedAndVariableWidth() {
+    int count = 1000;
+    try (BigIntVector longs = new BigIntVector("longs", allocator);
+         VarCharVector strings = new VarCharVector("strings", allocator)) {
+      longs.allocateNew(count);
+      strings.allocateNew(count);
+      for (int i = 0; i < count; i++) {
+        if (i % 5 != 0) {
+          longs.set(i, (i % 37) * 1000003L);
+          strings.setSafe(i, ("value-" + i % 37).getBytes(StandardCharsets.UTF_8));
+        }
+      }
+      longs.setValueCount(count);
+      strings.setValueCount(count);
+      for (ValueVector values : new ValueVector[] {longs, strings}) {
+        int[] ids = new int[count];
+        int[] firsts = new int[count];
+        Assert.assertEquals(37, DistinctValues.assign(values, count, ids, firsts));
+        for (int i = 0; i < count; i++) {
+          if (i % 5 == 0) {
+            Assert.assertEquals(-1, ids[i]);
+          } else {
+            Assert.assertEquals(values.getObject(i), values.getObject(firsts[ids[i]]));
+            Assert.assertTrue(firsts[ids[i]] <= i);
+          }
+        }
+        for (int id = 1; id < 37; id++) {
+          Assert.assertTrue(firsts[id - 1] < firsts[id]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Floating point values are distinct by their bits: -0.0 from 0.0, and
+   * NaN equal to itself.
+   */
+  @Test
+  public void testAssignFloatBits() {
+    float[] floats = {0.0f, -0.0f, Float.NaN, 0.0f, Float.NaN, 1.5f};
+    try (Float4Vector values = new Float4Vector("floats", allocator)) {
+      values.allocateNew(floats.length);
+      for (int i = 0; i < floats.length; i++) {
+        values.set(i, floats[i]);
+      }
+      values.setValueCount(floats.length);
+      int[] ids = new int[floats.length];
+      int[] firsts = new int[floats.length];
+      Assert.assertEquals(4, DistinctValues.assign(values, floats.length, ids, firsts));
+      Assert.assertArrayEquals(new int[] {0, 1, 2, 0, 2, 3}, ids);
+    }
+  }
+}
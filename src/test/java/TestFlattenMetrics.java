@@ -0,0 +1,132 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.complex.StructVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFlattenMetrics {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Persons with {1, 0, 3} addresses of {2, 4, 3} phones: 3 persons, of which
+   * 2 have rows, 4 addresses and 11 phones.
+   */
+  @Test
+  public void testStatsPerBatch() {
+    final List<FlattenStats> reported = new ArrayList<>();
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 3}, new int[] {2, 4, 3});
+      FlattenOperator operator = new FlattenOperator();
+      operator.setListener(new FlattenListener() {
+        @Override
+        public void batchFlattened(FlattenStats stats) {
+          reported.add(stats);
+        }
+      });
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person)) {
+        Assert.assertEquals(1, reported.size());
+        FlattenStats stats = reported.get(0);
+        Assert.assertEquals("person", stats.getColumn());
+        Assert.assertEquals(3, stats.getInputRows());
+        Assert.assertEquals(11, stats.getOutputRows());
+        Assert.assertArrayEquals(new long[] {2, 4, 11}, stats.getLevelRows());
+        Assert.assertEquals(11.0 / 3, stats.getAmplification(), 1e-9);
+        Assert.assertEquals(batch.getColumns().size(), stats.getColumns().length);
+        for (int i = 0; i < stats.getColumns().length; i++) {
+          Assert.assertTrue(batch.getColumns().contains(stats.getColumns()[i]));
+          // at least the 11 values and their validity bits
+          Assert.assertTrue(stats.getColumnBytes()[i] >= 11 * 4 + 2);
+        }
+        Assert.assertTrue(stats.getPlanningNanos() > 0);
+        Assert.assertTrue(stats.getCopyNanos() > 0);
+        Assert.assertTrue(stats.getReplicationNanos() > 0);
+      }
+
+      // a predicate on zip 94402 leaves the third address of person 2
+      reported.clear();
+      List<LeafPredicate> predicates = Collections.singletonList(LeafPredicate.equal("person.addresses.zip", 94402));
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person, null, predicates)) {
+        Assert.assertArrayEquals(new long[] {1, 1, 3}, reported.get(0).getLevelRows());
+      }
+
+      // streaming batches split person 2, who counts as input of both
+      reported.clear();
+      FlattenIterator iterator = operator.flatten("person", person, 6);
+      while (iterator.hasNext()) {
+        iterator.next().close();
+      }
+      Assert.assertEquals(2, reported.size());
+      Assert.assertArrayEquals(new long[] {2, 3, 6}, reported.get(0).getLevelRows());
+      Assert.assertArrayEquals(new long[] {1, 2, 5}, reported.get(1).getLevelRows());
+      Assert.assertTrue(reported.get(0).getPlanningNanos() > 0);
+      Assert.assertEquals(0, reported.get(1).getPlanningNanos());
+
+      reported.clear();
+      operator.setListener(null);
+      operator.flatten("person", person).close();
+      Assert.assertTrue(reported.isEmpty());
+    }
+  }
+
+  @Test
+  public void testMetricsOverJmx() throws Exception {
+    FlattenMetrics metrics = new FlattenMetrics();
+    ObjectName name = metrics.register("test");
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, 20, 2, 3);
+      FlattenOperator operator = new FlattenOperator();
+      operator.setListener(metrics);
+      operator.flatten("person", person).close();
+      for (FlattenOperator.ColumnarRecordBatch batch : operator.flattenParallel("person", person, null, pool, 4)) {
+        batch.close();
+      }
+      Assert.assertEquals(5L, server.getAttribute(name, "BatchCount"));
+      Assert.assertEquals(240L, server.getAttribute(name, "OutputRows"));
+      Assert.assertEquals(240, metrics.getOutputRows());
+      long[] levelRows = (long[])server.getAttribute(name, "LevelRows");
+      Assert.assertEquals(80, levelRows[1]);
+      Assert.assertEquals(240, levelRows[2]);
+      long batches = 0;
+      for (long count : (long[])server.getAttribute(name, "LatencyHistogram")) {
+        batches += count;
+      }
+      Assert.assertEquals(5, batches);
+      Assert.assertTrue((Long)server.getAttribute(name, "BytesAllocated") > 0);
+      Map<?, ?> columnBytes = (Map<?, ?>)server.getAttribute(name, "ColumnBytesAllocated");
+      Assert.assertEquals(Arrays.asList("age", "apt", "phone-number", "phone-type", "salary", "zip"),
+          new ArrayList<>(columnBytes.keySet()));
+      long bytes = 0;
+      for (Object columnByteCount : columnBytes.values()) {
+        bytes += (Long)columnByteCount;
+      }
+      Assert.assertEquals(metrics.getBytesAllocated(), bytes);
+    } finally {
+      pool.shutdown();
+      server.unregisterMBean(name);
+    }
+  }
+}
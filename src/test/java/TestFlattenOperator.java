@@ -0,0 +1,1000 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryEncoder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFlattenOperator {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * 2 persons, 2 addresses per person and 3 phones per address
+   * flatten into 12 rows with the person and address columns replicated.
+   */
+  @Test
+  public void testFlattenTwoLevelList() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, 2, 2, 3);
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten("person", person)) {
+        Assert.assertEquals(12, batch.getRowCount());
+        Assert.assertEquals(
+            Arrays.asList("age", "salary", "apt", "zip", "phone-number", "phone-type"),
+            Arrays.asList(batch.getColumns().toArray()));
+        verifyPersons(batch, new int[] {2, 2}, new int[] {3, 3});
+      }
+    }
+  }
+
+  /**
+   * Persons without addresses and addresses without phones produce no rows
+   * and must not shift the rows of the persons after them.
+   */
+  @Test
+  public void testFlattenWithEmptyLists() {
+    int[] addressCounts = {1, 0, 3, 2, 0};
+    int[] phoneCounts = {2, 4, 0, 1, 5};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten("person", person)) {
+        Assert.assertEquals(4, batch.getRowCount());
+        verifyPersons(batch, addressCounts, phoneCounts);
+      }
+    }
+  }
+
+  @Test
+  public void testFlattenManyRows() {
+    int rows = 1000;
+    int[] addressCounts = new int[rows];
+    int[] phoneCounts = new int[rows];
+    for (int i = 0; i < rows; i++) {
+      addressCounts[i] = i % 4;
+      phoneCounts[i] = (i * 7) % 5;
+    }
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten("person", person)) {
+        verifyPersons(batch, addressCounts, phoneCounts);
+      }
+    }
+  }
+
+  /**
+   * Batch boundaries fall in the middle of address and phone lists; the
+   * batches concatenated must match the one-shot flatten.
+   */
+  @Test
+  public void testFlattenIterator() {
+    int[] addressCounts = {1, 0, 3, 2, 0, 4};
+    int[] phoneCounts = {2, 4, 3, 1, 5, 2};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      for (int batchSize : new int[] {1, 5, 7, 100}) {
+        FlattenIterator iterator = new FlattenOperator().flatten("person", person, batchSize);
+        Assert.assertEquals(21, iterator.getRemainingRows());
+        int row = 0;
+        while (iterator.hasNext()) {
+          try (FlattenOperator.ColumnarRecordBatch batch = iterator.next()) {
+            Assert.assertEquals(Math.min(batchSize, 21 - row), batch.getRowCount());
+            verifyPersons(batch, addressCounts, phoneCounts, row);
+            row += batch.getRowCount();
+          }
+        }
+        Assert.assertEquals(21, row);
+      }
+    }
+  }
+
+  /**
+   * Batches flattened into one FlattenOutput share its vectors, and once
+   * they have grown to the largest batch nothing more is allocated.
+   */
+  @Test
+  public void testFlattenIntoReusedOutput() {
+    int[] addressCounts = {1, 0, 3, 2, 0, 4};
+    int[] phoneCounts = {2, 4, 3, 1, 5, 2};
+    try (StructVector container = NestedTestData.newContainer(allocator);
+         FlattenOutput output = new FlattenOutput()) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      FlattenOperator operator = new FlattenOperator();
+      ValueVector zip = null;
+      long allocated = 0;
+      for (int pass = 0; pass < 3; pass++) {
+        FlattenIterator iterator = operator.flatten("person", person, null, 7, output);
+        int row = 0;
+        while (iterator.hasNext()) {
+          FlattenOperator.ColumnarRecordBatch batch = iterator.next();
+          verifyPersons(batch, addressCounts, phoneCounts, row);
+          row += batch.getRowCount();
+          if (zip == null) {
+            zip = batch.getVector("zip");
+          }
+          Assert.assertSame(zip, batch.getVector("zip"));
+          // closing a batch of the output leaves its vectors open
+          batch.close();
+        }
+        Assert.assertEquals(21, row);
+        if (pass == 0) {
+          allocated = allocator.getAllocatedMemory();
+        }
+        Assert.assertEquals(allocated, allocator.getAllocatedMemory());
+      }
+
+      // a smaller, gathered batch overwrites the vectors in place
+      List<LeafPredicate> predicates = Collections.singletonList(LeafPredicate.equal("person.addresses.zip", 94402));
+      FlattenOperator.ColumnarRecordBatch batch =
+          operator.flattenInto("person", person, null, predicates, FlattenOperator.JoinType.INNER, output);
+      Assert.assertSame(zip, batch.getVector("zip"));
+      Assert.assertEquals(allocated, allocator.getAllocatedMemory());
+      for (int i = 0; i < batch.getRowCount(); i++) {
+        Assert.assertEquals(94402, ((IntVector)zip).get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testFlattenIteratorByteBudget() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      int[] addressCounts = new int[10];
+      int[] phoneCounts = new int[10];
+      Arrays.fill(addressCounts, 2);
+      Arrays.fill(phoneCounts, 3);
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      // 5 INT and 1 BIGINT leaves take 5 * 5 + 9 = 34 bytes per row
+      FlattenIterator iterator = new FlattenOperator().flattenWithByteBudget("person", person, 34 * 16);
+      int row = 0;
+      while (iterator.hasNext()) {
+        try (FlattenOperator.ColumnarRecordBatch batch = iterator.next()) {
+          Assert.assertTrue(batch.getRowCount() <= 16);
+          verifyPersons(batch, addressCounts, phoneCounts, row);
+          row += batch.getRowCount();
+        }
+      }
+      Assert.assertEquals(60, row);
+    }
+  }
+
+  /**
+   * Projecting person.age and person.addresses.zip flattens only up to the
+   * address level: the phones list is never visited.
+   */
+  @Test
+  public void testFlattenProjection() {
+    int[] addressCounts = {2, 0, 3};
+    int[] phoneCounts = {3, 1, 2};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      List<String> paths = Arrays.asList("person.age", "person.addresses.zip");
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten("person", person, paths)) {
+        Assert.assertEquals(Arrays.asList("age", "zip"), Arrays.asList(batch.getColumns().toArray()));
+        Assert.assertEquals(5, batch.getRowCount());
+        IntVector age = (IntVector) batch.getVector("age");
+        IntVector zip = (IntVector) batch.getVector("zip");
+        int[] expectedAges = {20, 20, 22, 22, 22};
+        int[] expectedZips = {94400, 94401, 94400, 94401, 94402};
+        for (int row = 0; row < 5; row++) {
+          Assert.assertEquals(expectedAges[row], age.get(row));
+          Assert.assertEquals(expectedZips[row], zip.get(row));
+        }
+      }
+
+      paths = Arrays.asList("person.salary", "person.addresses.phones");
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten("person", person, paths)) {
+        Assert.assertEquals(
+            Arrays.asList("salary", "phone-number", "phone-type"),
+            Arrays.asList(batch.getColumns().toArray()));
+        Assert.assertEquals(NestedTestData.countRows(addressCounts, phoneCounts), batch.getRowCount());
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFlattenProjectionUnknownPath() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, 2, 2, 3);
+      new FlattenOperator().flatten("person", person, Arrays.asList("person.addresses.street"));
+    }
+  }
+
+  /**
+   * Output columns are named by their leaf, so two leaves of the same name
+   * are only flattened one at a time.
+   */
+  @Test
+  public void testFlattenSameNamedLeaves() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder(NestedTestData.ROOT, 2);
+      builder.getRoot()
+          .varCharColumn("name", new String[] {"john", "mary"})
+          .list("addresses", new int[] {2, 1})
+          .varCharColumn("name", new String[] {"home", "work", "home"});
+      StructVector person = builder.build(container);
+      FlattenOperator operator = new FlattenOperator();
+      try {
+        operator.flatten("person", person);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Flatten output has two columns named name: person.name, person.addresses.name;"
+            + " project only one of them", e.getMessage());
+      }
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person,
+          Arrays.asList("person.addresses.name"), Arrays.asList(LeafPredicate.equal("person.name", "john")))) {
+        assertStrings(batch, "name", "home", "work");
+      }
+    }
+  }
+
+  /**
+   * Query 3 of the notes with the filter pushed into flatten:
+   * person.age = 22 AND person.addresses.zip = 94401.
+   */
+  @Test
+  public void testFlattenWithPredicates() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, 4, 2, 3);
+      List<LeafPredicate> predicates = Arrays.asList(
+          LeafPredicate.equal("person.age", 22),
+          LeafPredicate.equal("person.addresses.zip", 94401));
+      try (FlattenOperator.ColumnarRecordBatch batch =
+               new FlattenOperator().flatten("person", person, null, predicates)) {
+        Assert.assertEquals(3, batch.getRowCount());
+        IntVector apt = (IntVector) batch.getVector("apt");
+        IntVector number = (IntVector) batch.getVector("phone-number");
+        for (int row = 0; row < 3; row++) {
+          Assert.assertEquals(22, ((IntVector) batch.getVector("age")).get(row));
+          Assert.assertEquals(2001, apt.get(row));
+          Assert.assertEquals(210 + row, number.get(row));
+        }
+      }
+    }
+  }
+
+  /**
+   * A predicate on phones makes the phones list part of the flatten even
+   * though only person and address columns are projected.
+   */
+  @Test
+  public void testFlattenWithPredicateOnUnprojectedLevel() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, 4, 2, 3);
+      List<LeafPredicate> predicates = Arrays.asList(
+          new LeafPredicate("person.salary", LeafPredicate.Comparison.GE, 2000L),
+          new LeafPredicate("person.addresses.phones.phone-type", LeafPredicate.Comparison.NE, 1));
+      List<String> paths = Arrays.asList("person.age", "person.addresses.apt");
+      try (FlattenOperator.ColumnarRecordBatch batch =
+               new FlattenOperator().flatten("person", person, paths, predicates)) {
+        Assert.assertEquals(Arrays.asList("age", "apt"), Arrays.asList(batch.getColumns().toArray()));
+        // persons 2 and 3, 2 addresses each, phone types 0 and 2
+        Assert.assertEquals(8, batch.getRowCount());
+        IntVector age = (IntVector) batch.getVector("age");
+        IntVector apt = (IntVector) batch.getVector("apt");
+        for (int row = 0; row < 8; row++) {
+          int i = 2 + row / 4;
+          int j = (row / 2) % 2;
+          Assert.assertEquals(20 + i, age.get(row));
+          Assert.assertEquals(1000 * i + j, apt.get(row));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCount() {
+    int[] addressCounts = {1, 0, 3, 2, 0, 4};
+    int[] phoneCounts = {2, 4, 3, 1, 5, 0};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      FlattenOperator.FlattenCounts counts = new FlattenOperator().count("person", person);
+      Assert.assertEquals(6, counts.getTopLevelRowCount());
+      for (int i = 0; i < addressCounts.length; i++) {
+        Assert.assertEquals(addressCounts[i] * phoneCounts[i], counts.getRowCount(i));
+      }
+      Assert.assertEquals(NestedTestData.countRows(addressCounts, phoneCounts), counts.getTotal());
+    }
+  }
+
+  /**
+   * Counting with predicates matches the size of the filtered flatten, with
+   * and without a predicate on the deepest level.
+   */
+  @Test
+  public void testCountWithPredicates() {
+    int[] addressCounts = {1, 0, 3, 2, 0, 4};
+    int[] phoneCounts = {2, 4, 3, 1, 5, 3};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      FlattenOperator operator = new FlattenOperator();
+      List<LeafPredicate> predicates = Arrays.asList(
+          new LeafPredicate("person.age", LeafPredicate.Comparison.GT, 20),
+          new LeafPredicate("person.addresses.zip", LeafPredicate.Comparison.LE, 94401));
+      FlattenOperator.FlattenCounts counts = operator.count("person", person, predicates);
+      Assert.assertEquals(0, counts.getRowCount(0));
+      Assert.assertEquals(6, counts.getRowCount(2));
+      Assert.assertEquals(2, counts.getRowCount(3));
+      Assert.assertEquals(6, counts.getRowCount(5));
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person, null, predicates)) {
+        Assert.assertEquals(counts.getTotal(), batch.getRowCount());
+      }
+
+      predicates = Arrays.asList(
+          LeafPredicate.equal("person.addresses.phones.phone-type", 2));
+      counts = operator.count("person", person, predicates);
+      Assert.assertEquals(0, counts.getRowCount(0));
+      Assert.assertEquals(3, counts.getRowCount(2));
+      Assert.assertEquals(4, counts.getRowCount(5));
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person, null, predicates)) {
+        Assert.assertEquals(counts.getTotal(), batch.getRowCount());
+      }
+    }
+  }
+
+  /**
+   * VARCHAR and VARBINARY leaves at every level, with nulls and empty values.
+   * The second iterator batch starts mid-buffer so its offsets are rebased.
+   */
+  @Test
+  public void testFlattenVariableWidthLeaves() {
+    String[] names = {"john", null, "mary-ann"};
+    String[] cities = {"", "san jose", "palo alto"};
+    String[] types = {"mobile", "work", "home", null, "mobile", "landline"};
+    byte[][] tags = {{1}, {2, 3}, {}, null, {(byte) 0xFF}, {4}};
+    String[] expectedNames = {"john", "john", "john", null, null, null};
+    String[] expectedCities = {"", "", "san jose", "palo alto", "palo alto", "palo alto"};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder(NestedTestData.ROOT, 3);
+      builder.getRoot()
+          .varCharColumn("name", names)
+          .list("addresses", new int[] {2, 1, 0})
+          .varCharColumn("city", cities)
+          .list("phones", new int[] {2, 1, 3})
+          .intColumn("phone-number", new int[] {0, 1, 2, 3, 4, 5})
+          .varCharColumn("phone-type", types)
+          .varBinaryColumn("tag", tags);
+      StructVector person = builder.build(container);
+
+      FlattenIterator iterator = new FlattenOperator().flatten("person", person, 4);
+      int firstRow = 0;
+      while (iterator.hasNext()) {
+        try (FlattenOperator.ColumnarRecordBatch batch = iterator.next()) {
+          VarCharVector name = (VarCharVector) batch.getVector("name");
+          VarCharVector city = (VarCharVector) batch.getVector("city");
+          IntVector number = (IntVector) batch.getVector("phone-number");
+          VarCharVector type = (VarCharVector) batch.getVector("phone-type");
+          VarBinaryVector tag = (VarBinaryVector) batch.getVector("tag");
+          for (int row = 0; row < batch.getRowCount(); row++) {
+            int flattenedRow = firstRow + row;
+            Assert.assertEquals(expectedNames[flattenedRow], name.isNull(row) ? null : name.getObject(row).toString());
+            Assert.assertEquals(expectedCities[flattenedRow], city.getObject(row).toString());
+            Assert.assertEquals(flattenedRow, number.get(row));
+            Assert.assertEquals(types[flattenedRow], type.isNull(row) ? null : type.getObject(row).toString());
+            Assert.assertArrayEquals(tags[flattenedRow], tag.getObject(row));
+          }
+          firstRow += batch.getRowCount();
+        }
+      }
+      Assert.assertEquals(6, firstRow);
+
+      FlattenOperator operator = new FlattenOperator();
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person, null,
+          Arrays.asList(LeafPredicate.equal("person.name", "john")))) {
+        Assert.assertEquals(3, batch.getRowCount());
+        Assert.assertEquals("san jose", ((VarCharVector) batch.getVector("city")).getObject(2).toString());
+      }
+      List<LeafPredicate> typeAtLeastM = Arrays.asList(
+          new LeafPredicate("person.addresses.phones.phone-type", LeafPredicate.Comparison.GE, "m"));
+      Assert.assertEquals(3, operator.count("person", person, typeAtLeastM).getTotal());
+      List<LeafPredicate> tagAbove4 = Arrays.asList(
+          new LeafPredicate("person.addresses.phones.tag", LeafPredicate.Comparison.GT, new byte[] {4}));
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person, null, tagAbove4)) {
+        Assert.assertEquals(1, batch.getRowCount());
+        Assert.assertEquals(4, ((IntVector) batch.getVector("phone-number")).get(0));
+      }
+    }
+  }
+
+  /**
+   * Persons with a null and an empty address list, addresses with an empty
+   * and a null phone list. INNER drops them all, OUTER keeps each as a row
+   * with nulls below it.
+   */
+  @Test
+  public void testFlattenOuterWithAbsentAndEmptyLists() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder(NestedTestData.ROOT, 4);
+      builder.getRoot()
+          .intColumn("age", new int[] {20, 21, 22, 23})
+          .list("addresses", new int[] {2, 0, 0, 1}, new boolean[] {true, false, true, true})
+          .intColumn("apt", new int[] {0, 1, 2})
+          .list("phones", new int[] {1, 0, 0}, new boolean[] {true, true, false})
+          .intColumn("phone-number", new int[] {7});
+      StructVector person = builder.build(container);
+      FlattenOperator operator = new FlattenOperator();
+
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person)) {
+        Assert.assertEquals(1, batch.getRowCount());
+      }
+      try (FlattenOperator.ColumnarRecordBatch batch =
+               operator.flatten("person", person, null, null, FlattenOperator.JoinType.OUTER)) {
+        assertInts(batch, "age", 20, 20, 21, 22, 23);
+        assertInts(batch, "apt", 0, 1, null, null, 2);
+        assertInts(batch, "phone-number", 7, null, null, null, null);
+      }
+      FlattenOperator.FlattenCounts counts = operator.count("person", person, null, FlattenOperator.JoinType.OUTER);
+      Assert.assertEquals(5, counts.getTotal());
+      Assert.assertEquals(2, counts.getRowCount(0));
+      Assert.assertEquals(1, counts.getRowCount(1));
+
+      // a null row survives a predicate above it but never one on its level or below
+      List<LeafPredicate> onAge = Arrays.asList(
+          new LeafPredicate("person.age", LeafPredicate.Comparison.GE, 21));
+      try (FlattenOperator.ColumnarRecordBatch batch =
+               operator.flatten("person", person, null, onAge, FlattenOperator.JoinType.OUTER)) {
+        assertInts(batch, "age", 21, 22, 23);
+        assertInts(batch, "phone-number", null, null, null);
+      }
+      List<LeafPredicate> onApt = Arrays.asList(LeafPredicate.equal("person.addresses.apt", 2));
+      try (FlattenOperator.ColumnarRecordBatch batch =
+               operator.flatten("person", person, null, onApt, FlattenOperator.JoinType.OUTER)) {
+        assertInts(batch, "age", 23);
+        assertInts(batch, "phone-number", (Integer) null);
+      }
+      Assert.assertEquals(1,
+          operator.count("person", person, onApt, FlattenOperator.JoinType.OUTER).getTotal());
+    }
+  }
+
+  /**
+   * A null person and a null address still hold lists with elements, which
+   * must not be flattened; a null phone nulls the leaves of its row.
+   */
+  @Test
+  public void testFlattenNullStructs() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder(NestedTestData.ROOT, 3);
+      builder.getRoot()
+          .validity(new boolean[] {true, false, true})
+          .intColumn("age", new int[] {20, 21, 22})
+          .list("addresses", new int[] {1, 1, 1})
+          .validity(new boolean[] {true, true, false})
+          .intColumn("apt", new int[] {0, 1, 2})
+          .list("phones", new int[] {2, 2, 2})
+          .validity(new boolean[] {true, false, true, true, true, true})
+          .intColumn("phone-number", new int[] {0, 1, 2, 3, 4, 5});
+      StructVector person = builder.build(container);
+      FlattenOperator operator = new FlattenOperator();
+
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person)) {
+        assertInts(batch, "age", 20, 20);
+        assertInts(batch, "phone-number", 0, null);
+      }
+      Assert.assertEquals(2, operator.count("person", person).getTotal());
+      try (FlattenOperator.ColumnarRecordBatch batch =
+               operator.flatten("person", person, null, null, FlattenOperator.JoinType.OUTER)) {
+        assertInts(batch, "age", 20, 20, null, 22);
+        assertInts(batch, "apt", 0, 0, null, null);
+        assertInts(batch, "phone-number", 0, null, null, null);
+      }
+      Assert.assertEquals(4, operator.count("person", person, null, FlattenOperator.JoinType.OUTER).getTotal());
+      // a null struct fails predicates on the leaves beneath it
+      List<LeafPredicate> onNumber = Arrays.asList(
+          new LeafPredicate("person.addresses.phones.phone-number", LeafPredicate.Comparison.GE, 0));
+      Assert.assertEquals(1, operator.count("person", person, onNumber).getTotal());
+      try {
+        operator.flatten("person", person, 10);
+        Assert.fail("lists under null structs are not streamed");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Parent leaves encoded per run decode to the replicated columns, with
+   * runs of persons and addresses, and with the null rows of an outer
+   * flatten of a filtered column.
+   */
+  @Test
+  public void testFlattenParentEncodings() {
+    int[] addressCounts = {1, 0, 3, 2};
+    int[] phoneCounts = {2, 4, 3, 0};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      FlattenOperator operator = new FlattenOperator();
+      List<List<LeafPredicate>> predicateLists = Arrays.asList(null,
+          Collections.singletonList(LeafPredicate.equal("person.age", 22)));
+      for (FlattenOperator.JoinType joinType : FlattenOperator.JoinType.values()) {
+        for (List<LeafPredicate> predicates : predicateLists) {
+          try (FlattenOperator.ColumnarRecordBatch expected =
+                   operator.flatten("person", person, null, predicates, joinType);
+               FlattenOperator.ColumnarRecordBatch runs = operator.flattenEncoded("person", person, null, predicates,
+                   joinType, FlattenOperator.ParentEncoding.RUN_LENGTH);
+               FlattenOperator.ColumnarRecordBatch dictionary = operator.flattenEncoded("person", person, null,
+                   predicates, joinType, FlattenOperator.ParentEncoding.DICTIONARY)) {
+            Assert.assertEquals(expected.getColumns(), runs.getColumns());
+            Assert.assertEquals(expected.getColumns(), dictionary.getColumns());
+            for (String column : Arrays.asList("age", "salary", "apt", "zip")) {
+              Assert.assertNull(runs.getVector(column));
+              Assert.assertEquals(expected.getMinorType(column), runs.getMinorType(column));
+              RunLengthColumn runColumn = runs.getRunLengthColumn(column);
+              try (ValueVector decoded = runColumn.decode(allocator)) {
+                assertSameValues(expected.getVector(column), decoded);
+              }
+              for (int row = 0; row < expected.getRowCount(); row++) {
+                Assert.assertEquals(expected.getVector(column).getObject(row),
+                    runColumn.getValues().getObject(runColumn.getRun(row)));
+              }
+              ValueVector indices = dictionary.getVector(column);
+              Dictionary values = dictionary.getDictionaries().lookup(
+                  indices.getField().getDictionary().getId());
+              try (ValueVector decoded = DictionaryEncoder.decode(indices, values)) {
+                assertSameValues(expected.getVector(column), decoded);
+              }
+            }
+            assertSameValues(expected.getVector("phone-number"), runs.getVector("phone-number"));
+            assertSameValues(expected.getVector("phone-number"), dictionary.getVector("phone-number"));
+          }
+        }
+      }
+
+      // an inner flatten of everything has a run per person and per address with phones
+      try (FlattenOperator.ColumnarRecordBatch runs = operator.flattenEncoded("person", person, null, null,
+          FlattenOperator.JoinType.INNER, FlattenOperator.ParentEncoding.RUN_LENGTH)) {
+        Assert.assertEquals(11, runs.getRowCount());
+        Assert.assertEquals(2, runs.getRunLengthColumn("age").getRunCount());
+        Assert.assertEquals(4, runs.getRunLengthColumn("zip").getRunCount());
+        Assert.assertEquals(2, runs.getRunLengthColumn("age").getRunEnds().get(0));
+        Assert.assertEquals(11, runs.getRunLengthColumn("age").getRunEnds().get(1));
+      }
+      // the 4 addresses with phones share 3 zips, 94400 to 94402
+      try (FlattenOperator.ColumnarRecordBatch dictionary = operator.flattenEncoded("person", person, null, null,
+          FlattenOperator.JoinType.INNER, FlattenOperator.ParentEncoding.DICTIONARY)) {
+        ValueVector indices = dictionary.getVector("zip");
+        ValueVector zips = dictionary.getDictionaries().lookup(indices.getField().getDictionary().getId()).getVector();
+        Assert.assertEquals(3, zips.getValueCount());
+        Assert.assertEquals(94400, zips.getObject(0));
+        Assert.assertEquals(94402, zips.getObject(2));
+      }
+    }
+  }
+
+  private static void assertSameValues(ValueVector expected, ValueVector actual) {
+    Assert.assertEquals(expected.getValueCount(), actual.getValueCount());
+    for (int row = 0; row < expected.getValueCount(); row++) {
+      Assert.assertEquals("row " + row, expected.getObject(row), actual.getObject(row));
+    }
+  }
+
+  @Test
+  public void testFlattenParallel() {
+    int rows = 500;
+    int[] addressCounts = new int[rows];
+    int[] phoneCounts = new int[rows];
+    for (int i = 0; i < rows; i++) {
+      // a few persons expand far more than the others
+      addressCounts[i] = i % 50 == 0 ? 20 : i % 3;
+      phoneCounts[i] = i % 50 == 0 ? 10 : i % 4;
+    }
+    int total = NestedTestData.countRows(addressCounts, phoneCounts);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      List<FlattenOperator.ColumnarRecordBatch> batches =
+          new FlattenOperator().flattenParallel("person", person, null, pool, 8);
+      Assert.assertEquals(8, batches.size());
+      int row = 0;
+      for (FlattenOperator.ColumnarRecordBatch batch : batches) {
+        Assert.assertTrue(Math.abs(batch.getRowCount() - total / 8) <= 1);
+        verifyPersons(batch, addressCounts, phoneCounts, row);
+        row += batch.getRowCount();
+        batch.close();
+      }
+      Assert.assertEquals(total, row);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * A pool that rejects the tasks leaves no child allocator behind, or the
+   * allocator would fail to close after the test.
+   */
+  @Test
+  public void testFlattenParallelRejected() {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    pool.shutdown();
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, 4, 2, 3);
+      try {
+        new FlattenOperator().flattenParallel("person", person, null, pool, 2);
+        Assert.fail();
+      } catch (RejectedExecutionException e) {
+        // expected
+      }
+      Assert.assertTrue(allocator.getChildAllocators().isEmpty());
+    }
+  }
+
+  /**
+   * Batches with the same schema share one compiled plan which is bound to
+   * each batch's own vectors.
+   */
+  @Test
+  public void testFlattenPlanReusedAcrossBatches() {
+    int[] addressCounts = {2, 1, 3};
+    int[] phoneCounts = {1, 2, 2};
+    try (StructVector first = NestedTestData.newContainer(allocator);
+         StructVector second = NestedTestData.newContainer(allocator)) {
+      StructVector firstPerson = NestedTestData.writePersons(first, 2, 2, 3);
+      StructVector secondPerson = NestedTestData.writePersons(second, addressCounts, phoneCounts);
+      List<String> paths = Arrays.asList("person.age", "person.addresses.phones");
+      FlattenPlan plan = FlattenPlan.compile("person", firstPerson.getField(), paths, null);
+      Assert.assertSame(plan, FlattenPlan.compile("person", secondPerson.getField(), paths, null));
+      Assert.assertEquals(2, plan.getDepth());
+      Assert.assertEquals(3, plan.getLeaves().length);
+
+      FlattenOperator operator = new FlattenOperator();
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten(plan, secondPerson, null)) {
+        Assert.assertEquals(NestedTestData.countRows(addressCounts, phoneCounts), batch.getRowCount());
+        IntVector number = (IntVector) batch.getVector("phone-number");
+        Assert.assertEquals(100 * 2 + 10 * 2 + 1, number.get(batch.getRowCount() - 1));
+      }
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten(plan, firstPerson, null)) {
+        Assert.assertEquals(12, batch.getRowCount());
+      }
+    }
+  }
+
+  /**
+   * Pages of a flatten, with and without predicates and outer rows, hold
+   * the same rows as the full flatten at the same positions, and the row
+   * index maps each flattened row to the elements it comes from.
+   */
+  @Test
+  public void testFlattenPage() {
+    int[] addressCounts = {1, 0, 3, 2, 0, 2};
+    int[] phoneCounts = {2, 4, 3, 0, 5, 1};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      FlattenOperator operator = new FlattenOperator();
+      try (FlattenOperator.ColumnarRecordBatch page = operator.flattenPage("person", person, null, 3, 6)) {
+        verifyPersons(page, addressCounts, phoneCounts, 3);
+        Assert.assertEquals(6, page.getRowCount());
+      }
+
+      List<List<LeafPredicate>> predicateLists = Arrays.asList(null,
+          Collections.singletonList(new LeafPredicate("person.addresses.zip", LeafPredicate.Comparison.GE, 94401)));
+      for (FlattenOperator.JoinType joinType : FlattenOperator.JoinType.values()) {
+        for (List<LeafPredicate> predicates : predicateLists) {
+          FlattenedRowIndex rows = operator.rowIndex("person", person, null, predicates, joinType);
+          try (FlattenOperator.ColumnarRecordBatch expected =
+                   operator.flatten("person", person, null, predicates, joinType)) {
+            int rowCount = expected.getRowCount();
+            Assert.assertEquals(rowCount, rows.getRowCount());
+            RepetitionIndex index = expected.getRepetitionIndex();
+            for (int row = 0; row < rowCount; row++) {
+              int[] elements = rows.getElements(row);
+              for (int level = 0; level <= index.getDepth(); level++) {
+                Assert.assertEquals("row " + row, index.getElement(level, row), elements[level]);
+              }
+              Assert.assertEquals(index.getElement(0, row), rows.getTopLevelRow(row));
+            }
+            for (int offset = 0; offset <= rowCount + 1; offset += 2) {
+              try (FlattenOperator.ColumnarRecordBatch page = operator.flattenPage(rows, offset, 3)) {
+                Assert.assertEquals(Math.max(0, Math.min(3, rowCount - offset)), page.getRowCount());
+                for (String column : expected.getColumns()) {
+                  ValueVector pageColumn = page.getVector(column);
+                  for (int row = 0; row < page.getRowCount(); row++) {
+                    Assert.assertEquals(column + " row " + (offset + row),
+                        expected.getVector(column).getObject(offset + row), pageColumn.getObject(row));
+                  }
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Persons with sibling lists: addresses (with phones) and emails.
+   *
+   *    age 20: addresses [zip 10 phones [100, 101], zip 11 phones []], emails [1, 2, 3]
+   *    age 21: addresses [], emails [4]
+   *    age 22: addresses [zip 12 phones [102]], emails []
+   */
+  @Test
+  public void testFlattenSiblingLists() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder(NestedTestData.ROOT, 3);
+      NestedVectorBuilder.Level root = builder.getRoot().intColumn("age", new int[] {20, 21, 22});
+      root.list("addresses", new int[] {2, 0, 1})
+          .intColumn("zip", new int[] {10, 11, 12})
+          .list("phones", new int[] {2, 0, 1})
+          .intColumn("phone-number", new int[] {100, 101, 102});
+      root.list("emails", new int[] {3, 1, 0})
+          .intColumn("email", new int[] {1, 2, 3, 4});
+      StructVector person = builder.build(container);
+      FlattenOperator operator = new FlattenOperator();
+
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flattenSiblings("person", person, null,
+          FlattenOperator.JoinType.INNER, FlattenOperator.SiblingMode.ZIP)) {
+        assertInts(batch, "age", 20, 20, 22);
+        assertInts(batch, "zip", 10, 10, 12);
+        assertInts(batch, "phone-number", 100, 101, 102);
+        assertInts(batch, "email", 1, 1, null);
+      }
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flattenSiblings("person", person, null,
+          FlattenOperator.JoinType.OUTER, FlattenOperator.SiblingMode.ZIP)) {
+        assertInts(batch, "age", 20, 20, 20, 20, 21, 22);
+        assertInts(batch, "zip", 10, 10, 11, null, null, 12);
+        assertInts(batch, "phone-number", 100, 101, null, null, null, 102);
+        assertInts(batch, "email", 1, 1, 2, 3, 4, null);
+      }
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flattenSiblings("person", person, null,
+          FlattenOperator.JoinType.INNER, FlattenOperator.SiblingMode.CROSS)) {
+        assertInts(batch, "zip", 10, 10, 10, 10, 10, 10);
+        assertInts(batch, "phone-number", 100, 100, 100, 101, 101, 101);
+        assertInts(batch, "email", 1, 2, 3, 1, 2, 3);
+      }
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flattenSiblings("person", person, null,
+          FlattenOperator.JoinType.OUTER, FlattenOperator.SiblingMode.CROSS)) {
+        assertInts(batch, "age", 20, 20, 20, 20, 20, 20, 20, 20, 20, 21, 22);
+        assertInts(batch, "zip", 10, 10, 10, 10, 10, 10, 11, 11, 11, null, 12);
+        assertInts(batch, "phone-number", 100, 100, 100, 101, 101, 101, null, null, null, null, 102);
+        assertInts(batch, "email", 1, 2, 3, 1, 2, 3, 1, 2, 3, 4, null);
+      }
+
+      // one of the siblings projected is a plain flatten
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("person", person,
+          Arrays.asList("person.age", "person.emails"))) {
+        assertInts(batch, "age", 20, 20, 20, 21);
+        assertInts(batch, "email", 1, 2, 3, 4);
+      }
+      try {
+        operator.flatten("person", person);
+        Assert.fail();
+      } catch (UnsupportedOperationException e) {
+        Assert.assertEquals("Flatten is not supported on sibling repeated fields: person.addresses, person.emails",
+            e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Absent sibling lists give no elements, like empty ones.
+   *
+   *    age 20: addresses [zip 10], emails [1, 2]
+   *    age 21: addresses null, emails [3]
+   *    age 22: addresses [zip 12, zip 13], emails null
+   */
+  @Test
+  public void testFlattenSiblingListsWithNulls() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder(NestedTestData.ROOT, 3);
+      NestedVectorBuilder.Level root = builder.getRoot().intColumn("age", new int[] {20, 21, 22});
+      root.list("addresses", new int[] {1, 0, 2}, new boolean[] {true, false, true})
+          .intColumn("zip", new int[] {10, 12, 13});
+      root.list("emails", new int[] {2, 1, 0}, new boolean[] {true, true, false})
+          .intColumn("email", new int[] {1, 2, 3});
+      StructVector person = builder.build(container);
+      FlattenOperator operator = new FlattenOperator();
+
+      for (FlattenOperator.JoinType joinType : FlattenOperator.JoinType.values()) {
+        try (FlattenOperator.ColumnarRecordBatch batch = operator.flattenSiblings("person", person, null, joinType,
+            FlattenOperator.SiblingMode.ZIP)) {
+          assertInts(batch, "age", 20, 20, 21, 22, 22);
+          assertInts(batch, "zip", 10, null, null, 12, 13);
+          assertInts(batch, "email", 1, 2, 3, null, null);
+        }
+      }
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flattenSiblings("person", person, null,
+          FlattenOperator.JoinType.INNER, FlattenOperator.SiblingMode.CROSS)) {
+        assertInts(batch, "zip", 10, 10);
+        assertInts(batch, "email", 1, 2);
+      }
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flattenSiblings("person", person, null,
+          FlattenOperator.JoinType.OUTER, FlattenOperator.SiblingMode.CROSS)) {
+        assertInts(batch, "age", 20, 20, 21, 22, 22);
+        assertInts(batch, "zip", 10, 10, null, 12, 13);
+        assertInts(batch, "email", 1, 2, 3, null, null);
+      }
+    }
+  }
+
+  /**
+   * Without sibling lists either mode is the plain flatten.
+   */
+  @Test
+  public void testFlattenSiblingModesWithoutSiblings() {
+    int[] addressCounts = {1, 0, 3, 2};
+    int[] phoneCounts = {2, 4, 3, 0};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      FlattenOperator operator = new FlattenOperator();
+      for (FlattenOperator.JoinType joinType : FlattenOperator.JoinType.values()) {
+        for (FlattenOperator.SiblingMode mode : FlattenOperator.SiblingMode.values()) {
+          try (FlattenOperator.ColumnarRecordBatch expected = operator.flatten("person", person, null, null,
+              joinType);
+               FlattenOperator.ColumnarRecordBatch actual = operator.flattenSiblings("person", person, null, joinType,
+                   mode)) {
+            Assert.assertEquals(expected.getRowCount(), actual.getRowCount());
+            for (String column : expected.getColumns()) {
+              assertSameValues(expected.getVector(column), actual.getVector(column));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A map flattens into a row per entry, as a list of key/value structs.
+   */
+  @Test
+  public void testFlattenMap() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector event = NestedTestData.writeEvents(container);
+      FlattenOperator operator = new FlattenOperator();
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("event", event)) {
+        assertInts(batch, "id", 0, 0, 1, 4);
+        assertStrings(batch, "key", "locale", "device", "device", "device");
+        assertStrings(batch, "os", "x", "ios", "android", null);
+        assertInts(batch, "version", 1, 17, 14, null);
+      }
+      try (FlattenOperator.ColumnarRecordBatch batch = operator.flatten("event", event,
+          Arrays.asList("event.id", "event.attrs.value.os"),
+          Arrays.asList(LeafPredicate.equal("event.attrs.key", "device")))) {
+        assertInts(batch, "id", 0, 1, 4);
+        assertStrings(batch, "os", "ios", "android", null);
+      }
+    }
+  }
+
+  @Test
+  public void testRepetitionIndexForDeepestRange() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, 3, 2, 3);
+      ListVector addresses = (ListVector) person.getChild("addresses");
+      ListVector phones = (ListVector)
+          ((StructVector) addresses.getDataVector()).getChild("phones");
+      // phones 4..13 start in the middle of the second address of person 0
+      RepetitionIndex index = RepetitionIndex.forDeepestRange(
+          new ListVector[] {null, addresses, phones}, 4, 14);
+      Assert.assertEquals(10, index.getRowCount());
+      for (int row = 0; row < 10; row++) {
+        int phone = 4 + row;
+        Assert.assertEquals(phone, index.getElement(2, row));
+        Assert.assertEquals(phone / 3, index.getElement(1, row));
+        Assert.assertEquals(phone / 6, index.getElement(0, row));
+      }
+      Assert.assertEquals(0, index.getFirstRow(0, 0));
+      Assert.assertEquals(2, index.getFirstRow(0, 1));
+      Assert.assertEquals(8, index.getFirstRow(0, 2));
+    }
+  }
+
+  /**
+   * Top-level rows 1..4 of persons with address counts {1, 0, 3, 2, 0} and
+   * phone counts {2, 4, 3, 1, 5}: the composed offsets give every first row,
+   * including those of rows without addresses.
+   */
+  @Test
+  public void testRepetitionIndexForTopLevelRows() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 3, 2, 0},
+          new int[] {2, 4, 3, 1, 5});
+      ListVector addresses = (ListVector) person.getChild("addresses");
+      ListVector phones = (ListVector)
+          ((StructVector) addresses.getDataVector()).getChild("phones");
+      ListVector[] lists = {null, addresses, phones};
+      RepetitionIndex index = RepetitionIndex.forTopLevelRows(lists, 1, 5);
+      Assert.assertEquals(11, index.getRowCount());
+      Assert.assertEquals(2, index.getDeepestStart());
+      int[] expectedPersons = {2, 2, 2, 2, 2, 2, 2, 2, 2, 3, 3};
+      int[] expectedAddresses = {1, 1, 1, 2, 2, 2, 3, 3, 3, 4, 5};
+      for (int row = 0; row < 11; row++) {
+        Assert.assertEquals(expectedPersons[row], index.getElement(0, row));
+        Assert.assertEquals(expectedAddresses[row], index.getElement(1, row));
+        Assert.assertEquals(2 + row, index.getElement(2, row));
+      }
+      Assert.assertEquals(0, index.getFirstRow(0, 1));
+      Assert.assertEquals(0, index.getFirstRow(0, 2));
+      Assert.assertEquals(9, index.getFirstRow(0, 3));
+      Assert.assertEquals(11, index.getFirstRow(0, 4));
+      Assert.assertEquals(11, index.getFirstRow(0, 5));
+    }
+  }
+
+  /**
+   * Check an INT column of a batch row by row, null for null values.
+   */
+  static void assertInts(FlattenOperator.ColumnarRecordBatch batch, String column, Integer... expected) {
+    IntVector vector = (IntVector) batch.getVector(column);
+    Assert.assertEquals(expected.length, batch.getRowCount());
+    for (int row = 0; row < expected.length; row++) {
+      Assert.assertEquals(column + " row " + row, expected[row], vector.getObject(row));
+    }
+  }
+
+  /**
+   * Check a VARCHAR column of a batch row by row, null for null values.
+   */
+  static void assertStrings(FlattenOperator.ColumnarRecordBatch batch, String column, String... expected) {
+    VarCharVector vector = (VarCharVector) batch.getVector(column);
+    Assert.assertEquals(expected.length, batch.getRowCount());
+    for (int row = 0; row < expected.length; row++) {
+      Assert.assertEquals(column + " row " + row, expected[row],
+          vector.isNull(row) ? null : vector.getObject(row).toString());
+    }
+  }
+
+  static void verifyPersons(FlattenOperator.ColumnarRecordBatch batch, int[] addressCounts, int[] phoneCounts) {
+    verifyPersons(batch, addressCounts, phoneCounts, 0);
+    Assert.assertEquals(NestedTestData.countRows(addressCounts, phoneCounts), batch.getRowCount());
+  }
+
+  /**
+   * Check a flattened batch against the values written by
+   * {@link NestedTestData#writePersons(StructVector, int[], int[])}, the
+   * first row of the batch being flattened row firstRow.
+   */
+  static void verifyPersons(
+      FlattenOperator.ColumnarRecordBatch batch,
+      int[] addressCounts,
+      int[] phoneCounts,
+      int firstRow) {
+    IntVector age = (IntVector) batch.getVector("age");
+    BigIntVector salary = (BigIntVector) batch.getVector("salary");
+    IntVector apt = (IntVector) batch.getVector("apt");
+    IntVector zip = (IntVector) batch.getVector("zip");
+    IntVector number = (IntVector) batch.getVector("phone-number");
+    IntVector type = (IntVector) batch.getVector("phone-type");
+    int rowCount = batch.getRowCount();
+    int flattenedRow = 0;
+    for (int i = 0; i < addressCounts.length; i++) {
+      for (int j = 0; j < addressCounts[i]; j++) {
+        for (int k = 0; k < phoneCounts[i]; k++, flattenedRow++) {
+          int row = flattenedRow - firstRow;
+          if (row < 0 || row >= rowCount) {
+            continue;
+          }
+          Assert.assertEquals(20 + i, age.get(row));
+          Assert.assertEquals(1000L * i, salary.get(row));
+          Assert.assertEquals(1000 * i + j, apt.get(row));
+          Assert.assertEquals(94400 + j, zip.get(row));
+          Assert.assertEquals(100 * i + 10 * j + k, number.get(row));
+          Assert.assertEquals(k, type.get(row));
+        }
+      }
+    }
+    Assert.assertEquals(rowCount, age.getValueCount());
+    Assert.assertEquals(rowCount, number.getValueCount());
+  }
+}
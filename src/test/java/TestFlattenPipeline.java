@@ -0,0 +1,153 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.ipc.ArrowFileReader;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFlattenPipeline {
+
+  private static final int[][] ADDRESS_COUNTS = {{1, 0, 3}, {2, 2}, {0}, {4, 1, 0, 2}};
+  private static final int[][] PHONE_COUNTS = {{2, 4, 3}, {1, 3}, {5}, {2, 0, 1, 3}};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Four batches of persons, one without any row, through a mapped Arrow
+   * file come out as the same rows as flattening each batch in memory.
+   */
+  @Test
+  public void testFlattenMappedFile() throws Exception {
+    File input = folder.newFile("persons.arrow");
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.buildPersons(container, ADDRESS_COUNTS[0], PHONE_COUNTS[0]);
+      try (VectorSchemaRoot root = new VectorSchemaRoot(Collections.<FieldVector>singletonList(person));
+           FileOutputStream out = new FileOutputStream(input);
+           ArrowFileWriter writer = new ArrowFileWriter(root, null, out.getChannel())) {
+        writer.start();
+        for (int batch = 0; batch < ADDRESS_COUNTS.length; batch++) {
+          NestedTestData.buildPersons(container, ADDRESS_COUNTS[batch], PHONE_COUNTS[batch]);
+          root.setRowCount(ADDRESS_COUNTS[batch].length);
+          writer.writeBatch();
+        }
+        writer.end();
+      }
+    }
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    FlattenPipeline.Result result;
+    try (ArrowFileReader reader = FlattenPipeline.openMapped(input.toPath(), allocator)) {
+      result = new FlattenPipeline(new FlattenOperator(), NestedTestData.ROOT, null, null)
+          .run(reader, allocator, Channels.newChannel(output));
+    }
+    Assert.assertEquals(4, result.getBatches());
+    Assert.assertEquals(10, result.getInputRows());
+    Assert.assertEquals(33, result.getOutputRows());
+    Assert.assertTrue(result.getInputBytes() > 0);
+    Assert.assertEquals(output.size(), result.getOutputBytes());
+
+    try (ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(output.toByteArray()),
+        allocator)) {
+      VectorSchemaRoot root = reader.getVectorSchemaRoot();
+      Assert.assertEquals(Arrays.asList("age", "salary", "apt", "zip", "phone-number", "phone-type"),
+          Arrays.asList(root.getSchema().getFields().stream().map(f -> f.getName()).toArray()));
+      for (int batch = 0; batch < ADDRESS_COUNTS.length; batch++) {
+        Assert.assertTrue(reader.loadNextBatch());
+        FlattenOperator.ColumnarRecordBatch flattened = new FlattenOperator.ColumnarRecordBatch();
+        for (FieldVector vector : root.getFieldVectors()) {
+          flattened.addVector(vector.getField().getName(), vector);
+        }
+        flattened.setRowCount(root.getRowCount());
+        TestFlattenOperator.verifyPersons(flattened, ADDRESS_COUNTS[batch], PHONE_COUNTS[batch]);
+      }
+      Assert.assertFalse(reader.loadNextBatch());
+    }
+  }
+
+  /**
+   * A stream read with projection and a predicate; the decoder thread is
+   * stopped when flattening fails halfway and nothing is leaked.
+   */
+  @Test
+  public void testFlattenStream() throws Exception {
+    byte[] input;
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.buildPersons(container, ADDRESS_COUNTS[0], PHONE_COUNTS[0]);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (VectorSchemaRoot root = new VectorSchemaRoot(Collections.<FieldVector>singletonList(person));
+           ArrowStreamWriter writer = new ArrowStreamWriter(root, null, Channels.newChannel(out))) {
+        writer.start();
+        for (int batch = 0; batch < ADDRESS_COUNTS.length; batch++) {
+          NestedTestData.buildPersons(container, ADDRESS_COUNTS[batch], PHONE_COUNTS[batch]);
+          root.setRowCount(ADDRESS_COUNTS[batch].length);
+          writer.writeBatch();
+        }
+        writer.end();
+      }
+      input = out.toByteArray();
+    }
+
+    List<LeafPredicate> predicates = Collections.singletonList(LeafPredicate.equal("root.addresses.zip", 94401));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(input), allocator)) {
+      FlattenPipeline.Result result = new FlattenPipeline(new FlattenOperator(), NestedTestData.ROOT,
+          Collections.singletonList("root.addresses.phones.phone-number"), predicates)
+          .run(reader, allocator, Channels.newChannel(output));
+      // the phones of every second address
+      Assert.assertEquals(12, result.getOutputRows());
+    }
+    try (ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(output.toByteArray()),
+        allocator)) {
+      int[] expected = {210, 211, 212, 10, 110, 111, 112, 10, 11, 310, 311, 312};
+      int row = 0;
+      while (reader.loadNextBatch()) {
+        IntVector number = (IntVector)reader.getVectorSchemaRoot().getVector("phone-number");
+        for (int i = 0; i < number.getValueCount(); i++) {
+          Assert.assertEquals(expected[row++], number.get(i));
+        }
+      }
+      Assert.assertEquals(12, row);
+    }
+
+    // a String constant cannot be compared with the INT zip leaf
+    try (ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(input), allocator)) {
+      new FlattenPipeline(new FlattenOperator(), NestedTestData.ROOT, null,
+          Collections.singletonList(LeafPredicate.equal("root.addresses.zip", "x")))
+          .run(reader, allocator, Channels.newChannel(new ByteArrayOutputStream()));
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // every buffer is released when the allocator is closed
+    }
+  }
+}
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLevelShredder {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Persons with {1, 0, 2} addresses of {2, 3, 0} phones each. Every
+   * struct, list and leaf written through the writers is nullable.
+   */
+  @Test
+  public void testShredPersons() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 2}, new int[] {2, 3, 0});
+      List<LevelShredder.Column> columns = LevelShredder.shred("person", person, allocator);
+      try {
+        List<String> paths = new ArrayList<>();
+        for (LevelShredder.Column column : columns) {
+          paths.add(column.path);
+        }
+        Assert.assertEquals(Arrays.asList("person.age", "person.salary", "person.addresses.apt",
+            "person.addresses.zip", "person.addresses.phones.phone-number", "person.addresses.phones.phone-type"),
+            paths);
+
+        LevelShredder.Column age = columns.get(0);
+        Assert.assertEquals(0, age.maxRepetitionLevel);
+        Assert.assertEquals(2, age.maxDefinitionLevel);
+        assertLevels(age, new int[] {0, 0, 0}, new int[] {2, 2, 2});
+        assertValues(age, 20, 21, 22);
+
+        // person 1 has an empty list of addresses
+        LevelShredder.Column zip = columns.get(3);
+        Assert.assertEquals(1, zip.maxRepetitionLevel);
+        Assert.assertEquals(5, zip.maxDefinitionLevel);
+        assertLevels(zip, new int[] {0, 0, 0, 1}, new int[] {5, 2, 5, 5});
+        assertValues(zip, 94400, 94400, 94401);
+
+        // and the addresses of person 2 empty lists of phones
+        LevelShredder.Column number = columns.get(4);
+        Assert.assertEquals(2, number.maxRepetitionLevel);
+        Assert.assertEquals(8, number.maxDefinitionLevel);
+        assertLevels(number, new int[] {0, 2, 0, 0, 1}, new int[] {8, 8, 2, 5, 5});
+        assertValues(number, 0, 1);
+
+        try (FieldVector assembled = RecordAssembler.assemble("person", person.getField(), columns, allocator)) {
+          Assert.assertEquals(person.getField(), assembled.getField());
+          assertSameValues(person, assembled);
+        }
+      } finally {
+        close(columns);
+      }
+    }
+  }
+
+  /**
+   * Null rows, lists, structs and values of every type over two levels
+   * assemble back into the same values.
+   */
+  @Test
+  public void testRoundTripWithNulls() {
+    int rows = 70;
+    boolean[] rowValid = new boolean[rows];
+    String[] names = new String[rows];
+    int[] itemCounts = new int[rows];
+    boolean[] itemsValid = new boolean[rows];
+    int items = 0;
+    for (int i = 0; i < rows; i++) {
+      rowValid[i] = i % 11 != 5;
+      names[i] = i % 6 == 1 ? null : "name" + i;
+      itemsValid[i] = i % 7 != 3;
+      itemCounts[i] = itemsValid[i] ? i % 4 : 0;
+      items += itemCounts[i];
+    }
+    boolean[] itemValid = new boolean[items];
+    double[] prices = new double[items];
+    int[] tagCounts = new int[items];
+    int tags = 0;
+    for (int i = 0; i < items; i++) {
+      // tags under a null item are dropped by the shredding
+      itemValid[i] = i % 9 != 2;
+      prices[i] = i * 1.5;
+      tagCounts[i] = i % 3;
+      tags += tagCounts[i];
+    }
+    long[] values = new long[tags];
+    boolean[] valueValid = new boolean[tags];
+    boolean[] tagValid = new boolean[tags];
+    for (int i = 0; i < tags; i++) {
+      values[i] = i * 7L;
+      valueValid[i] = i % 13 != 4;
+      tagValid[i] = i % 17 != 8;
+    }
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder("root", rows);
+      NestedVectorBuilder.Level itemLevel = builder.getRoot()
+          .validity(rowValid)
+          .varCharColumn("name", names)
+          .list("items", itemCounts, itemsValid)
+          .validity(itemValid)
+          .float8Column("price", prices);
+      itemLevel.list("tags", tagCounts)
+          .validity(tagValid)
+          .bigIntColumn("t", values, valueValid);
+      StructVector root = builder.build(container);
+      List<LevelShredder.Column> columns = LevelShredder.shred("root", root, allocator);
+      try (FieldVector assembled = RecordAssembler.assemble("root", root.getField(), columns, allocator)) {
+        assertSameValues(root, assembled);
+      } finally {
+        close(columns);
+      }
+    }
+  }
+
+  @Test
+  public void testAssembleMissingLeaf() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, 3, 2, 2);
+      List<LevelShredder.Column> columns = LevelShredder.shred("person", person, allocator);
+      try {
+        RecordAssembler.assemble("person", person.getField(), columns.subList(0, 3), allocator);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("No shredded column for person.addresses.zip", e.getMessage());
+      } finally {
+        close(columns);
+      }
+    }
+  }
+
+  private static void assertLevels(LevelShredder.Column column, int[] repetitionLevels, int[] definitionLevels) {
+    Assert.assertArrayEquals(column.path, repetitionLevels, column.repetitionLevels);
+    Assert.assertArrayEquals(column.path, definitionLevels, column.definitionLevels);
+  }
+
+  private static void assertValues(LevelShredder.Column column, int... values) {
+    IntVector vector = (IntVector)column.values;
+    Assert.assertEquals(values.length, vector.getValueCount());
+    for (int i = 0; i < values.length; i++) {
+      Assert.assertEquals(values[i], vector.get(i));
+    }
+  }
+
+  private static void assertSameValues(FieldVector expected, FieldVector actual) {
+    Assert.assertEquals(expected.getValueCount(), actual.getValueCount());
+    for (int row = 0; row < expected.getValueCount(); row++) {
+      Assert.assertEquals("row " + row, expected.getObject(row), actual.getObject(row));
+    }
+  }
+
+  private static void close(List<LevelShredder.Column> columns) {
+    for (LevelShredder.Column column : columns) {
+      column.close();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMapLookup {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Events {locale, device}, {device}, a null map, an empty map and a
+   * device with a null value.
+   */
+  @Test
+  public void testExtract() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector event = NestedTestData.writeEvents(container);
+      assertValues(event, "event.attrs['device'].os", "ios", "android", null, null, null);
+      assertValues(event, "event.attrs['device'].version", 17, 14, null, null, null);
+      assertValues(event, "event.attrs['locale'].os", "x", null, null, null, null);
+      assertValues(event, "event.attrs['browser'].os", null, null, null, null, null);
+    }
+  }
+
+  @Test
+  public void testInvalidLookups() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector event = NestedTestData.writeEvents(container);
+      try {
+        MapLookup.parse("event", "event.attrs[device]");
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Invalid map lookup: event.attrs[device]", e.getMessage());
+      }
+      try {
+        MapLookup.parse("event", "event.attrs[42].os").extract(event, allocator);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Cannot compare VARCHAR keys of event.attrs with Long", e.getMessage());
+      }
+      try {
+        MapLookup.parse("event", "event.id['device']").extract(event, allocator);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Not a map: event.id", e.getMessage());
+      }
+      try {
+        MapLookup.parse("event", "event.attrs['device']").extract(event, allocator);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Not a primitive leaf of the map value: event.attrs.value", e.getMessage());
+      }
+    }
+  }
+
+  private void assertValues(StructVector event, String expression, Object... expected) {
+    try (FieldVector values = MapLookup.parse("event", expression).extract(event, allocator)) {
+      Assert.assertEquals(expected.length, values.getValueCount());
+      for (int i = 0; i < expected.length; i++) {
+        Object value = values.isNull(i) ? null : values.getObject(i);
+        Assert.assertEquals(expression + " row " + i, expected[i], value == null ? null
+            : expected[i] instanceof String ? value.toString() : value);
+      }
+    }
+  }
+}
@@ -0,0 +1,213 @@
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.MapVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNestOperator {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Nesting a flatten with its own index gives back the column: every
+   * person of an inner flatten without empty lists, and with an outer
+   * flatten also the persons without addresses and addresses without
+   * phones, as empty lists.
+   */
+  @Test
+  public void testNestFlattened() {
+    int[][] addressCounts = {{1, 2, 3}, {1, 0, 3, 2}};
+    int[][] phoneCounts = {{2, 4, 3}, {2, 4, 0, 1}};
+    FlattenOperator.JoinType[] joinTypes = {FlattenOperator.JoinType.INNER, FlattenOperator.JoinType.OUTER};
+    for (int i = 0; i < joinTypes.length; i++) {
+      try (StructVector container = NestedTestData.newContainer(allocator)) {
+        StructVector person = NestedTestData.writePersons(container, addressCounts[i], phoneCounts[i]);
+        FlattenPlan plan = FlattenPlan.compile("person", person.getField(), null, null);
+        try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten(plan, person, null,
+                 joinTypes[i]);
+             FieldVector nested = new NestOperator().nest(plan, batch, allocator)) {
+          Assert.assertEquals(person.getField(), nested.getField());
+          assertSameValues(person, nested);
+        }
+      }
+    }
+  }
+
+  /**
+   * Rows ordered by phone type instead of by person are no longer clustered
+   * by any level, and are grouped back by hashing, either on key columns or
+   * on the element indexes kept from the flatten.
+   */
+  @Test
+  public void testNestUnclustered() {
+    int[] addressCounts = {1, 2, 3, 2};
+    int[] phoneCounts = {2, 4, 3, 1};
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      FlattenPlan plan = FlattenPlan.compile("person", person.getField(), null, null);
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten(plan, person, null);
+           FlattenOperator.ColumnarRecordBatch sorted = new FlattenOperator.ColumnarRecordBatch()) {
+        int rowCount = batch.getRowCount();
+        Integer[] order = new Integer[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+          order[row] = row;
+        }
+        final IntVector type = (IntVector)batch.getVector("phone-type");
+        Arrays.sort(order, (a, b) -> Integer.compare(type.get(a), type.get(b)));
+        int[] rows = new int[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+          rows[row] = order[row];
+        }
+        for (FlattenPlan.Leaf leaf : plan.getLeaves()) {
+          ValueVector source = batch.getVector(leaf.name);
+          ValueVector target = FlattenOperator.getOutputVector(source, allocator);
+          leaf.copier.gather(source, rows, target, rowCount);
+          target.setValueCount(rowCount);
+          sorted.addVector(leaf.name, target);
+        }
+        sorted.setRowCount(rowCount);
+
+        // elements in order of first appearance come out in the original order
+        int[][] keys = {
+            NestOperator.groupByKeys(sorted, "age"),
+            NestOperator.groupByKeys(sorted, "apt"),
+            null};
+        try (FieldVector nested = new NestOperator().nest(plan, sorted, keys, allocator)) {
+          assertSameValues(person, nested);
+        }
+
+        RepetitionIndex index = batch.getRepetitionIndex();
+        int[][] elements = new int[3][rowCount];
+        for (int level = 0; level < elements.length; level++) {
+          for (int row = 0; row < rowCount; row++) {
+            elements[level][row] = index.getElement(level, rows[row]);
+          }
+        }
+        try (FieldVector nested = new NestOperator().nest(plan, sorted, elements, allocator)) {
+          assertSameValues(person, nested);
+        }
+      }
+    }
+  }
+
+  /**
+   * A projected and filtered flatten nests into the column pruned to the
+   * projected leaves and the lists above them, holding the surviving
+   * elements only.
+   */
+  @Test
+  public void testNestProjectedAndFiltered() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 3}, new int[] {2, 4, 3});
+      FlattenPlan plan = FlattenPlan.compile("person", person.getField(),
+          Arrays.asList("person.age", "person.addresses.phones.phone-number"),
+          Collections.singletonList("person.addresses.zip"));
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten(plan, person,
+               Collections.singletonList(LeafPredicate.equal("person.addresses.zip", 94401)));
+           FieldVector nested = new NestOperator().nest(plan, batch, allocator)) {
+        StructVector root = (StructVector)nested;
+        Assert.assertEquals(Arrays.asList("age", "addresses"), root.getChildFieldNames());
+        // only person 2 has a second address, with phones 210, 211 and 212
+        Assert.assertEquals(1, root.getValueCount());
+        Assert.assertEquals(22, ((IntVector)root.getChild("age")).get(0));
+        ListVector addresses = (ListVector)root.getChild("addresses");
+        Assert.assertEquals(1, addresses.getDataVector().getValueCount());
+        StructVector address = (StructVector)addresses.getDataVector();
+        Assert.assertEquals(Collections.singletonList("phones"), address.getChildFieldNames());
+        Assert.assertEquals("[{\"phone-number\":210},{\"phone-number\":211},{\"phone-number\":212}]",
+            address.getChild("phones").getObject(0).toString());
+      }
+    }
+  }
+
+  @Test
+  public void testNestErrors() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 2}, new int[] {2, 1});
+      FlattenPlan plan = FlattenPlan.compile("person", person.getField(), null, null);
+      NestOperator operator = new NestOperator();
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten(plan, person, null)) {
+        int[] people = {0, 0, 1, 1};
+        try {
+          operator.nest(plan, batch, new int[][] {people, null}, allocator);
+          Assert.fail();
+        } catch (IllegalArgumentException e) {
+          Assert.assertEquals("Expected the elements of 3 levels, got 2", e.getMessage());
+        }
+        try {
+          operator.nest(plan, batch, new int[][] {people, {0, -1, 1, 2}, null}, allocator);
+          Assert.fail();
+        } catch (IllegalArgumentException e) {
+          Assert.assertEquals("Row 1 has an element at level 2 but none above it", e.getMessage());
+        }
+        try {
+          operator.nest(plan, new FlattenOperator.ColumnarRecordBatch(), allocator);
+          Assert.fail();
+        } catch (IllegalArgumentException e) {
+          // no index
+        }
+      }
+    }
+  }
+
+  /**
+   * A flattened map nests back into a map of its projected entries, and
+   * cannot be nested without its keys.
+   */
+  @Test
+  public void testNestMap() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector event = NestedTestData.writeEvents(container);
+      FlattenPlan plan = FlattenPlan.compile("event", event.getField(),
+          Arrays.asList("event.id", "event.attrs.key", "event.attrs.value.os"), null);
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten(plan, event, null);
+           FieldVector nested = new NestOperator().nest(plan, batch, allocator)) {
+        StructVector root = (StructVector)nested;
+        Assert.assertTrue(root.getChild("attrs") instanceof MapVector);
+        // the events with entries: 0, 1 and 4
+        Assert.assertEquals(3, root.getValueCount());
+        Assert.assertEquals("[{\"key\":\"locale\",\"value\":{\"os\":\"x\"}},"
+            + "{\"key\":\"device\",\"value\":{\"os\":\"ios\"}}]",
+            root.getChild("attrs").getObject(0).toString());
+        Assert.assertEquals("[{\"key\":\"device\",\"value\":{\"os\":\"android\"}}]",
+            root.getChild("attrs").getObject(1).toString());
+        Assert.assertEquals("[{\"key\":\"device\",\"value\":{}}]", root.getChild("attrs").getObject(2).toString());
+      }
+
+      FlattenPlan values = FlattenPlan.compile("event", event.getField(),
+          Collections.singletonList("event.attrs.value.os"), null);
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten(values, event, null)) {
+        new NestOperator().nest(values, batch, allocator);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Cannot nest map event.attrs without its key event.attrs.key", e.getMessage());
+      }
+    }
+  }
+
+  private static void assertSameValues(ValueVector expected, ValueVector actual) {
+    Assert.assertEquals(expected.getValueCount(), actual.getValueCount());
+    for (int row = 0; row < expected.getValueCount(); row++) {
+      Assert.assertEquals("row " + row, expected.getObject(row), actual.getObject(row));
+    }
+  }
+}
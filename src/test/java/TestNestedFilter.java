@@ -0,0 +1,227 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNestedFilter {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Persons with {1, 0, 3, 2} addresses of {2, 4, 3, 0} phones each.
+   */
+  @Test
+  public void testSelectPersons() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 3, 2}, new int[] {2, 4, 3, 0});
+      Assert.assertEquals(rows(2), selected(new NestedFilter("person")
+          .any(LeafPredicate.equal("person.addresses.zip", 94402)), person));
+      // person 3 has a zip 94401 but no phone at all
+      Assert.assertEquals(rows(2), selected(new NestedFilter("person")
+          .any(LeafPredicate.equal("person.addresses.zip", 94401))
+          .any(LeafPredicate.equal("person.addresses.phones.phone-type", 1)), person));
+      // vacuously true for the persons without phones
+      Assert.assertEquals(rows(0, 1, 3), selected(new NestedFilter("person")
+          .all(new LeafPredicate("person.addresses.phones.phone-type", LeafPredicate.Comparison.LT, 2)), person));
+      Assert.assertEquals(rows(1), selected(new NestedFilter("person")
+          .any(LeafPredicate.equal("person.age", 21)), person));
+      Assert.assertEquals(rows(0, 1, 2, 3), selected(new NestedFilter("person"), person));
+
+      try (IntVector indices = new NestedFilter("person")
+          .all(new LeafPredicate("person.addresses.apt", LeafPredicate.Comparison.GE, 2000))
+          .selectIndices(person, allocator)) {
+        Assert.assertEquals(3, indices.getValueCount());
+        Assert.assertEquals(1, indices.get(0));
+        Assert.assertEquals(2, indices.get(1));
+        Assert.assertEquals(3, indices.get(2));
+      }
+
+      try {
+        new NestedFilter("person").any(LeafPredicate.equal("person.addresses.city", 1)).select(person);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("No such nested column: person.addresses.city", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Fractional constants against INT ages 20 to 23 and BIGINT salaries 0 to
+   * 3000 compare exactly, not against their truncation.
+   */
+  @Test
+  public void testSelectIntegersByFractions() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 3, 2}, new int[] {2, 4, 3, 0});
+      Assert.assertEquals(rows(2, 3), selected(new NestedFilter("person")
+          .any(new LeafPredicate("person.age", LeafPredicate.Comparison.GT, 21.5)), person));
+      Assert.assertEquals(rows(2, 3), selected(new NestedFilter("person")
+          .any(new LeafPredicate("person.age", LeafPredicate.Comparison.GE, 21.5)), person));
+      Assert.assertEquals(rows(0, 1), selected(new NestedFilter("person")
+          .any(new LeafPredicate("person.age", LeafPredicate.Comparison.LT, 21.5)), person));
+      Assert.assertEquals(rows(0, 1), selected(new NestedFilter("person")
+          .any(new LeafPredicate("person.age", LeafPredicate.Comparison.LE, 21.5)), person));
+      Assert.assertEquals(rows(), selected(new NestedFilter("person")
+          .any(LeafPredicate.equal("person.age", 21.5)), person));
+      Assert.assertEquals(rows(0, 1, 2, 3), selected(new NestedFilter("person")
+          .any(new LeafPredicate("person.age", LeafPredicate.Comparison.NE, 21.5)), person));
+      Assert.assertEquals(rows(1), selected(new NestedFilter("person")
+          .any(LeafPredicate.equal("person.age", 21.0)), person));
+      Assert.assertEquals(rows(1, 2, 3), selected(new NestedFilter("person")
+          .any(new LeafPredicate("person.salary", LeafPredicate.Comparison.GE, 999.9)), person));
+      Assert.assertEquals(rows(0, 1, 2, 3), selected(new NestedFilter("person")
+          .any(new LeafPredicate("person.salary", LeafPredicate.Comparison.LT, 1e30)), person));
+      Assert.assertEquals(rows(0, 1, 2, 3), selected(new NestedFilter("person")
+          .any(new LeafPredicate("person.salary", LeafPredicate.Comparison.GT, -1e30)), person));
+    }
+  }
+
+  /**
+   * FLOAT4 values compare to the constant rounded to float, -0.0 equals 0.0
+   * and NaN, value or constant, satisfies only NE.
+   */
+  @Test
+  public void testSelectFloatingPoint() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector root = NestedTestData.buildFloats(container);
+      Assert.assertEquals(rows(0), selected(new NestedFilter("root")
+          .any(LeafPredicate.equal("root.f", 0.1)), root));
+      Assert.assertEquals(rows(0), selected(new NestedFilter("root")
+          .any(LeafPredicate.equal("root.d", 0.1)), root));
+      Assert.assertEquals(rows(1, 2), selected(new NestedFilter("root")
+          .any(LeafPredicate.equal("root.f", -0.0)), root));
+      Assert.assertEquals(rows(1, 2), selected(new NestedFilter("root")
+          .any(LeafPredicate.equal("root.d", 0.0)), root));
+      Assert.assertEquals(rows(), selected(new NestedFilter("root")
+          .any(new LeafPredicate("root.d", LeafPredicate.Comparison.LT, 0.0)), root));
+      Assert.assertEquals(rows(0, 3, 4), selected(new NestedFilter("root")
+          .any(new LeafPredicate("root.f", LeafPredicate.Comparison.NE, 0.0)), root));
+      Assert.assertEquals(rows(), selected(new NestedFilter("root")
+          .any(new LeafPredicate("root.d", LeafPredicate.Comparison.GE, Double.NaN)), root));
+      Assert.assertEquals(rows(0, 1, 2, 3, 4), selected(new NestedFilter("root")
+          .any(new LeafPredicate("root.f", LeafPredicate.Comparison.NE, Double.NaN)), root));
+      // beyond float range, like a fraction against an integer
+      Assert.assertEquals(rows(0, 1, 2, 4), selected(new NestedFilter("root")
+          .any(new LeafPredicate("root.f", LeafPredicate.Comparison.LT, 1e300)), root));
+      Assert.assertEquals(rows(), selected(new NestedFilter("root")
+          .any(new LeafPredicate("root.f", LeafPredicate.Comparison.GE, 1e300)), root));
+      Assert.assertEquals(rows(), selected(new NestedFilter("root")
+          .any(LeafPredicate.equal("root.f", -1e300)), root));
+      Assert.assertEquals(rows(4), selected(new NestedFilter("root")
+          .any(new LeafPredicate("root.d", LeafPredicate.Comparison.GE, 1e300)), root));
+    }
+  }
+
+  /**
+   * Null rows, lists, structs and values over two levels give the same rows
+   * as quantifying over the values of every row's lists.
+   */
+  @Test
+  public void testSelectWithNulls() {
+    int rows = 70;
+    boolean[] rowValid = new boolean[rows];
+    int[] itemCounts = new int[rows];
+    boolean[] itemsValid = new boolean[rows];
+    int items = 0;
+    for (int i = 0; i < rows; i++) {
+      rowValid[i] = i % 11 != 5;
+      itemsValid[i] = i % 7 != 3;
+      itemCounts[i] = itemsValid[i] ? i % 4 : 0;
+      items += itemCounts[i];
+    }
+    boolean[] itemValid = new boolean[items];
+    int[] tagCounts = new int[items];
+    int tags = 0;
+    for (int i = 0; i < items; i++) {
+      // tags under a null item are kept, and must not count
+      itemValid[i] = i % 9 != 2;
+      tagCounts[i] = i % 3;
+      tags += tagCounts[i];
+    }
+    int[] values = new int[tags];
+    boolean[] valueValid = new boolean[tags];
+    boolean[] tagValid = new boolean[tags];
+    for (int i = 0; i < tags; i++) {
+      values[i] = i * 7 % 10;
+      valueValid[i] = i % 13 != 4;
+      tagValid[i] = i % 17 != 8;
+    }
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder("root", rows);
+      builder.getRoot()
+          .validity(rowValid)
+          .list("items", itemCounts, itemsValid)
+          .validity(itemValid)
+          .list("tags", tagCounts)
+          .validity(tagValid)
+          .intColumn("t", values, valueValid);
+      StructVector root = builder.build(container);
+      for (NestedFilter.Quantifier quantifier : NestedFilter.Quantifier.values()) {
+        LeafPredicate predicate = new LeafPredicate("root.items.tags.t", LeafPredicate.Comparison.GT, 2);
+        List<Integer> expected = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+          Map<?, ?> value = (Map<?, ?>)root.getObject(row);
+          if (value == null) {
+            continue;
+          }
+          boolean any = false;
+          boolean all = true;
+          for (Object item : list(value.get("items"))) {
+            if (item == null) {
+              continue;
+            }
+            for (Object tag : list(((Map<?, ?>)item).get("tags"))) {
+              Integer t = tag == null ? null : (Integer)((Map<?, ?>)tag).get("t");
+              any |= t != null && t > 2;
+              all &= t != null && t > 2;
+            }
+          }
+          if (quantifier == NestedFilter.Quantifier.ANY ? any : all) {
+            expected.add(row);
+          }
+        }
+        Assert.assertEquals(quantifier.toString(), expected,
+            selected(new NestedFilter("root").add(predicate, quantifier), root));
+      }
+    }
+  }
+
+  private static List<?> list(Object value) {
+    return value == null ? new ArrayList<>() : (List<?>)value;
+  }
+
+  private static List<Integer> selected(NestedFilter filter, StructVector vector) {
+    SelectionBitmap selection = filter.select(vector);
+    List<Integer> rows = new ArrayList<>();
+    int count = vector.getValueCount();
+    for (int row = selection.nextSetBit(0, count); row < count; row = selection.nextSetBit(row + 1, count)) {
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  private static List<Integer> rows(Integer... rows) {
+    List<Integer> list = new ArrayList<>();
+    for (Integer row : rows) {
+      list.add(row);
+    }
+    return list;
+  }
+}
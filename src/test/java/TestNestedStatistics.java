@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNestedStatistics {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Persons with {1, 0, 3, 2} addresses of {2, 4, 3, 0} phones each.
+   */
+  @Test
+  public void testCollect() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 3, 2}, new int[] {2, 4, 3, 0});
+      NestedStatistics statistics = NestedStatistics.collect("person", person, 2);
+      Assert.assertEquals(2, statistics.getBlockCount());
+
+      NestedStatistics.LeafStatistics age = statistics.getLeaf("person.age");
+      Assert.assertEquals(0, age.level);
+      Assert.assertEquals(20L, age.getMin(-1));
+      Assert.assertEquals(23L, age.getMax(-1));
+      Assert.assertEquals(21L, age.getMax(0));
+      Assert.assertEquals(22L, age.getMin(1));
+      Assert.assertEquals(0, age.getNullCount(-1));
+
+      NestedStatistics.LeafStatistics zip = statistics.getLeaf("person.addresses.zip");
+      Assert.assertEquals(1, zip.level);
+      Assert.assertEquals(6, zip.getValueCount(-1));
+      Assert.assertEquals(1, zip.getValueCount(0));
+      Assert.assertEquals(94400L, zip.getMax(0));
+      Assert.assertEquals(94400L, zip.getMin(1));
+      Assert.assertEquals(94402L, zip.getMax(1));
+
+      NestedStatistics.LeafStatistics type = statistics.getLeaf("person.addresses.phones.phone-type");
+      Assert.assertEquals(2, type.level);
+      Assert.assertEquals(11, type.getValueCount(-1));
+      Assert.assertEquals(0L, type.getMin(-1));
+      Assert.assertEquals(2L, type.getMax(-1));
+
+      NestedStatistics.ListStatistics phones = statistics.getList("person.addresses.phones");
+      Assert.assertEquals(2, phones.level);
+      Assert.assertEquals(6, phones.listCount);
+      Assert.assertEquals(11, phones.elementCount);
+      Assert.assertEquals(11.0 / 6, phones.getAverageLength(), 1e-9);
+      Assert.assertEquals(4, statistics.getList("person.addresses").listCount);
+    }
+  }
+
+  @Test
+  public void testSelectRows() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 3, 2}, new int[] {2, 4, 3, 0});
+      NestedStatistics statistics = NestedStatistics.collect("person", person, 2);
+      LeafPredicate zip94402 = LeafPredicate.equal("person.addresses.zip", 94402);
+      LeafPredicate youngerThan22 = new LeafPredicate("person.age", LeafPredicate.Comparison.LT, 22);
+
+      Assert.assertEquals(Arrays.asList(2, 3), rows(statistics.selectRows(Collections.singletonList(zip94402)), 4));
+      Assert.assertEquals(Arrays.asList(0, 1), rows(statistics.selectRows(Collections.singletonList(youngerThan22)),
+          4));
+      Assert.assertEquals(Collections.emptyList(), rows(statistics.selectRows(Arrays.asList(zip94402, youngerThan22)),
+          4));
+      Assert.assertFalse(statistics.mayMatch(Collections.singletonList(LeafPredicate.equal("person.addresses.zip",
+          94403))));
+      Assert.assertTrue(statistics.mayMatch(Collections.singletonList(new LeafPredicate("person.addresses.zip",
+          LeafPredicate.Comparison.NE, 94400))));
+      // ages 20 to 23 against fractions, not their truncations
+      Assert.assertTrue(statistics.mayMatch(Collections.singletonList(new LeafPredicate("person.age",
+          LeafPredicate.Comparison.LT, 20.5))));
+      Assert.assertFalse(statistics.mayMatch(Collections.singletonList(new LeafPredicate("person.age",
+          LeafPredicate.Comparison.GT, 23.5))));
+      Assert.assertFalse(statistics.mayMatch(Collections.singletonList(LeafPredicate.equal("person.age", 23.5))));
+      // no statistics for a path that is not there, so it may match
+      Assert.assertTrue(statistics.mayMatch(Collections.singletonList(LeafPredicate.equal("person.addresses.city",
+          1))));
+    }
+  }
+
+  /**
+   * Skipping blocks gives the rows of the flatten and the filter without
+   * statistics.
+   */
+  @Test
+  public void testSkipBlocks() {
+    int rows = 50;
+    int[] addressCounts = new int[rows];
+    int[] phoneCounts = new int[rows];
+    for (int i = 0; i < rows; i++) {
+      // only persons 20 to 29 have a third address, zip 94402
+      addressCounts[i] = i >= 20 && i < 30 ? 3 : i % 3;
+      phoneCounts[i] = i % 4;
+    }
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      NestedStatistics statistics = NestedStatistics.collect("person", person, 8);
+      List<List<LeafPredicate>> conjunctions = Arrays.asList(
+          Collections.singletonList(LeafPredicate.equal("person.addresses.zip", 94402)),
+          Collections.singletonList(LeafPredicate.equal("person.addresses.zip", 94403)),
+          Arrays.asList(LeafPredicate.equal("person.addresses.zip", 94402),
+              new LeafPredicate("person.addresses.phones.phone-type", LeafPredicate.Comparison.GE, 2)),
+          Arrays.asList(new LeafPredicate("person.age", LeafPredicate.Comparison.GT, 60),
+              LeafPredicate.equal("person.addresses.zip", 94401)));
+      FlattenOperator operator = new FlattenOperator();
+      for (FlattenOperator.JoinType joinType : FlattenOperator.JoinType.values()) {
+        for (List<LeafPredicate> predicates : conjunctions) {
+          try (FlattenOperator.ColumnarRecordBatch expected = operator.flatten("person", person, null, predicates,
+              joinType);
+               FlattenOperator.ColumnarRecordBatch actual = operator.flattenWithStatistics("person", person, null,
+                   predicates, joinType, statistics)) {
+            Assert.assertEquals(expected.getRowCount(), actual.getRowCount());
+            IntVector expectedPhones = (IntVector)expected.getVector("phone-number");
+            IntVector actualPhones = (IntVector)actual.getVector("phone-number");
+            for (int i = 0; i < expected.getRowCount(); i++) {
+              Assert.assertEquals(expectedPhones.getObject(i), actualPhones.getObject(i));
+            }
+          }
+        }
+      }
+      for (List<LeafPredicate> predicates : conjunctions) {
+        NestedFilter filter = new NestedFilter("person");
+        for (LeafPredicate predicate : predicates) {
+          filter.any(predicate);
+        }
+        Assert.assertEquals(rows(filter.select(person), rows), rows(filter.select(person, statistics), rows));
+      }
+      // vacuously true over the persons without phones in blocks that fail it
+      NestedFilter all = new NestedFilter("person")
+          .all(new LeafPredicate("person.addresses.phones.phone-type", LeafPredicate.Comparison.GT, 5));
+      Assert.assertEquals(rows(all.select(person), rows), rows(all.select(person, statistics), rows));
+    }
+  }
+
+  /**
+   * Floating point blocks are skipped only when no value may match: not
+   * 0.1f against 0.1, -0.0 against 0.0, nor NaN against NE.
+   */
+  @Test
+  public void testSkipFloatingPointBlocks() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector root = NestedTestData.buildFloats(container);
+      NestedStatistics statistics = NestedStatistics.collect("root", root, 1);
+      NestedStatistics.LeafStatistics f = statistics.getLeaf("root.f");
+      Assert.assertNull(f.getMin(3));
+      Assert.assertEquals(1, f.getNaNCount(-1));
+      Assert.assertEquals((double)Float.MAX_VALUE, f.getMax(-1));
+      List<LeafPredicate> predicates = Arrays.asList(
+          LeafPredicate.equal("root.f", 0.1),
+          LeafPredicate.equal("root.f", 0.0),
+          LeafPredicate.equal("root.d", -0.0),
+          new LeafPredicate("root.f", LeafPredicate.Comparison.NE, 0.1),
+          new LeafPredicate("root.d", LeafPredicate.Comparison.NE, Double.NaN),
+          new LeafPredicate("root.d", LeafPredicate.Comparison.LE, Double.NaN),
+          new LeafPredicate("root.f", LeafPredicate.Comparison.LT, 1e300),
+          new LeafPredicate("root.f", LeafPredicate.Comparison.GT, 1e300));
+      for (LeafPredicate predicate : predicates) {
+        NestedFilter filter = new NestedFilter("root").any(predicate);
+        Assert.assertEquals(rows(filter.select(root), 5), rows(filter.select(root, statistics), 5));
+      }
+      Assert.assertEquals(Collections.singletonList(0),
+          rows(statistics.selectRows(Collections.singletonList(LeafPredicate.equal("root.f", 0.1))), 5));
+      Assert.assertEquals(Arrays.asList(1, 2),
+          rows(statistics.selectRows(Collections.singletonList(LeafPredicate.equal("root.d", -0.0))), 5));
+      Assert.assertEquals(Arrays.asList(0, 3, 4), rows(statistics.selectRows(Collections.singletonList(
+          new LeafPredicate("root.d", LeafPredicate.Comparison.NE, 0.0))), 5));
+    }
+  }
+
+  @Test
+  public void testOtherBatch() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      StructVector person = NestedTestData.writePersons(container, new int[] {1, 0, 3, 2}, new int[] {2, 4, 3, 0});
+      NestedStatistics statistics = NestedStatistics.collect("employee", person);
+      try {
+        new NestedFilter("person").any(LeafPredicate.equal("person.age", 21)).select(person, statistics);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Statistics of employee with 4 rows do not describe person with 4 rows", e.getMessage());
+      }
+    }
+  }
+
+  private static List<Integer> rows(SelectionBitmap selected, int rowCount) {
+    List<Integer> rows = new ArrayList<>();
+    for (int row = selected.nextSetBit(0, rowCount); row < rowCount; row = selected.nextSetBit(row + 1, rowCount)) {
+      rows.add(row);
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,149 @@
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNestedVectorBuilder {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * The built column has the schema of the one written through
+   * ComplexWriterImpl and flattens to the same rows.
+   */
+  @Test
+  public void testBuildMatchesWriter() {
+    int[] addressCounts = {1, 0, 3, 2, 0, 9};
+    int[] phoneCounts = {2, 4, 0, 1, 5, 3};
+    try (StructVector written = NestedTestData.newContainer(allocator);
+         StructVector built = NestedTestData.newContainer(allocator)) {
+      StructVector writtenPerson = NestedTestData.writePersons(written, addressCounts, phoneCounts);
+      StructVector builtPerson = NestedTestData.buildPersons(built, addressCounts, phoneCounts);
+      Assert.assertEquals(writtenPerson.getField(), builtPerson.getField());
+      Assert.assertEquals(addressCounts.length, builtPerson.getValueCount());
+      Assert.assertEquals(writtenPerson.getObject(2), builtPerson.getObject(2));
+      try (FlattenOperator.ColumnarRecordBatch batch = new FlattenOperator().flatten("person", builtPerson)) {
+        TestFlattenOperator.verifyPersons(batch, addressCounts, phoneCounts);
+      }
+    }
+  }
+
+  /**
+   * Null leaves and null lists are cleared in the validity buffers, more
+   * than a byte of them to cover partial bytes.
+   */
+  @Test
+  public void testBuildWithNulls() {
+    int rows = 11;
+    int[] ids = new int[rows];
+    boolean[] idValid = new boolean[rows];
+    int[] lengths = new int[rows];
+    boolean[] listValid = new boolean[rows];
+    int total = 0;
+    for (int i = 0; i < rows; i++) {
+      ids[i] = i;
+      idValid[i] = i % 3 != 0;
+      listValid[i] = i % 4 != 1;
+      lengths[i] = listValid[i] ? i % 3 : 0;
+      total += lengths[i];
+    }
+    double[] scores = new double[total];
+    boolean[] scoreValid = new boolean[total];
+    for (int i = 0; i < total; i++) {
+      scores[i] = i * 0.5;
+      scoreValid[i] = i % 2 == 0;
+    }
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder("root", rows);
+      builder.getRoot()
+          .intColumn("id", ids, idValid)
+          .list("items", lengths, listValid)
+          .float8Column("score", scores, scoreValid);
+      StructVector root = builder.build(container);
+
+      IntVector id = (IntVector) root.getChild("id");
+      ListVector items = (ListVector) root.getChild("items");
+      Float8Vector score = (Float8Vector) ((StructVector) items.getDataVector()).getChild("score");
+      int element = 0;
+      for (int i = 0; i < rows; i++) {
+        Assert.assertEquals(!idValid[i], id.isNull(i));
+        if (idValid[i]) {
+          Assert.assertEquals(i, id.get(i));
+        }
+        Assert.assertEquals(!listValid[i], items.isNull(i));
+        Assert.assertEquals(element, items.getOffsetBuffer().getInt(i * 4));
+        element += lengths[i];
+      }
+      Assert.assertEquals(total, items.getDataVector().getValueCount());
+      for (int i = 0; i < total; i++) {
+        Assert.assertEquals(!scoreValid[i], score.isNull(i));
+        if (scoreValid[i]) {
+          Assert.assertEquals(i * 0.5, score.get(i), 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Leaf arrays larger than the staging chunk are copied in several chunks.
+   */
+  @Test
+  public void testBuildLargeColumns() {
+    int rows = 50000;
+    long[] values = new long[rows];
+    int[] lengths = new int[rows];
+    int[] children = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      values[i] = i * 3L;
+      lengths[i] = 2;
+      children[2 * i] = i;
+      children[2 * i + 1] = -i;
+    }
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder("root", rows);
+      builder.getRoot()
+          .bigIntColumn("value", values)
+          .list("children", lengths)
+          .intColumn("child", children);
+      StructVector root = builder.build(container);
+
+      BigIntVector value = (BigIntVector) root.getChild("value");
+      ListVector list = (ListVector) root.getChild("children");
+      IntVector child = (IntVector) ((StructVector) list.getDataVector()).getChild("child");
+      Assert.assertEquals(rows * 2, child.getValueCount());
+      for (int i = 0; i < rows; i++) {
+        Assert.assertEquals(i * 3L, value.get(i));
+        Assert.assertEquals(2 * i, list.getOffsetBuffer().getInt(i * 4));
+        Assert.assertEquals(i, child.get(2 * i));
+        Assert.assertEquals(-i, child.get(2 * i + 1));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testColumnLengthMismatch() {
+    new NestedVectorBuilder("root", 3).getRoot().intColumn("id", new int[] {1, 2});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNullListWithElements() {
+    new NestedVectorBuilder("root", 2).getRoot().list("items", new int[] {1, 2}, new boolean[] {true, false});
+  }
+}
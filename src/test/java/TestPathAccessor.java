@@ -0,0 +1,148 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.complex.StructVector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPathAccessor {
+
+  private BufferAllocator allocator;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  /**
+   * Persons with {1, 0, 3, 2} addresses of {2, 4, 3, 0} phones each, read
+   * through the offsets the way TestNested reads through the readers.
+   */
+  @Test
+  public void testReadPersons() {
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      int[] addressCounts = {1, 0, 3, 2};
+      int[] phoneCounts = {2, 4, 3, 0};
+      StructVector person = NestedTestData.writePersons(container, addressCounts, phoneCounts);
+      PathAccessor.IntPathAccessor age = PathAccessor.forInt("person", person, "person.age");
+      PathAccessor.LongPathAccessor salary = PathAccessor.forLong("person", person, "person.salary");
+      PathAccessor.ListPathAccessor addresses = PathAccessor.forList("person", person, "person.addresses");
+      PathAccessor.IntPathAccessor zip = PathAccessor.forInt("person", person, "person.addresses.zip");
+      PathAccessor.ListPathAccessor phones = PathAccessor.forList("person", person, "person.addresses.phones");
+      PathAccessor.IntPathAccessor number = PathAccessor.forInt("person", person,
+          "person.addresses.phones.phone-number");
+      Assert.assertEquals(2, number.getLevel());
+
+      int phoneCount = 0;
+      for (int i = 0; i < person.getValueCount(); i++) {
+        Assert.assertEquals(20 + i, age.get(i));
+        Assert.assertEquals(1000L * i, salary.get(i));
+        Assert.assertFalse(age.isNull(i));
+        Assert.assertEquals(addressCounts[i], addresses.getLength(i));
+        for (int address = addresses.getStart(i); address < addresses.getEnd(i); address++) {
+          int j = address - addresses.getStart(i);
+          Assert.assertEquals(94400 + j, zip.get(address));
+          Assert.assertEquals(phoneCounts[i], phones.getLength(address));
+          for (int phone = phones.getStart(address); phone < phones.getEnd(address); phone++) {
+            int k = phone - phones.getStart(address);
+            Assert.assertEquals(100 * i + 10 * j + k, number.get(phone));
+            phoneCount++;
+          }
+        }
+        // all of a person's phones, without walking the addresses
+        int phoneStart = number.getRowStart(i);
+        Assert.assertEquals(addressCounts[i] * phoneCounts[i], number.getRowStart(i + 1) - phoneStart);
+      }
+      Assert.assertEquals(phoneCount, number.getRowStart(person.getValueCount()));
+
+      try {
+        PathAccessor.forLong("person", person, "person.addresses.zip");
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("Leaf person.addresses.zip is INT, not BIGINT", e.getMessage());
+      }
+      try {
+        PathAccessor.forList("person", person, "person.age");
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals("No list on person.age", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Null rows, lists, structs and values read the same as getObject().
+   */
+  @Test
+  public void testReadWithNulls() {
+    int rows = 40;
+    boolean[] rowValid = new boolean[rows];
+    int[] itemCounts = new int[rows];
+    boolean[] itemsValid = new boolean[rows];
+    int items = 0;
+    for (int i = 0; i < rows; i++) {
+      rowValid[i] = i % 11 != 5;
+      itemsValid[i] = i % 7 != 3;
+      itemCounts[i] = itemsValid[i] ? i % 4 : 0;
+      items += itemCounts[i];
+    }
+    boolean[] itemValid = new boolean[items];
+    double[] weights = new double[items];
+    String[] names = new String[items];
+    for (int i = 0; i < items; i++) {
+      itemValid[i] = i % 9 != 2;
+      weights[i] = i * 0.5;
+      names[i] = i % 5 == 1 ? null : "item-" + i;
+    }
+    try (StructVector container = NestedTestData.newContainer(allocator)) {
+      NestedVectorBuilder builder = new NestedVectorBuilder("root", rows);
+      builder.getRoot()
+          .validity(rowValid)
+          .list("items", itemCounts, itemsValid)
+          .validity(itemValid)
+          .float8Column("weight", weights)
+          .varCharColumn("name", names);
+      StructVector root = builder.build(container);
+      PathAccessor.ListPathAccessor itemList = PathAccessor.forList("root", root, "root.items");
+      PathAccessor.DoublePathAccessor weight = PathAccessor.forDouble("root", root, "root.items.weight");
+      PathAccessor.BytesPathAccessor name = PathAccessor.forBytes("root", root, "root.items.name");
+      byte[] buffer = new byte[64];
+      for (int row = 0; row < rows; row++) {
+        Map<?, ?> value = (Map<?, ?>)root.getObject(row);
+        Assert.assertEquals(value == null || value.get("items") == null, itemList.isNullList(row));
+        if (value == null) {
+          // the items of a null row are kept, and getObject() hides them
+          continue;
+        }
+        List<?> expected = value.get("items") == null ? new ArrayList<>() : (List<?>)value.get("items");
+        Assert.assertEquals(expected.size(), itemList.getLength(row));
+        for (int item = itemList.getStart(row); item < itemList.getEnd(row); item++) {
+          Map<?, ?> expectedItem = (Map<?, ?>)expected.get(item - itemList.getStart(row));
+          Assert.assertEquals(expectedItem == null, weight.isNull(item));
+          if (expectedItem == null) {
+            continue;
+          }
+          Assert.assertEquals((Double)expectedItem.get("weight"), weight.get(item), 0);
+          Object expectedName = expectedItem.get("name");
+          Assert.assertEquals(expectedName == null, name.isNull(item));
+          if (expectedName != null) {
+            int length = name.get(item, buffer);
+            Assert.assertEquals(expectedName.toString(), new String(buffer, 0, length, StandardCharsets.UTF_8));
+            Assert.assertTrue(name.equalTo(item, expectedName.toString().getBytes(StandardCharsets.UTF_8)));
+            Assert.assertFalse(name.equalTo(item, "item".getBytes(StandardCharsets.UTF_8)));
+          }
+        }
+      }
+    }
+  }
+}
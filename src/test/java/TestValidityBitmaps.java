@@ -0,0 +1,152 @@
+import io.netty.buffer.ArrowBuf;
+import java.util.Random;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BitVectorHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The word-at-a-time bitmap operations against bit-by-bit references, over
+ * every alignment of source and destination.
+ */
+public class TestValidityBitmaps {
+
+  private static final int BITS = 512;
+
+  private BufferAllocator allocator;
+  private Random random;
+
+  @Before
+  public void init() {
+    allocator = new RootAllocator(Integer.MAX_VALUE);
+    random = new Random(7);
+  }
+
+  @After
+  public void terminate() throws Exception {
+    allocator.close();
+  }
+
+  @Test
+  public void testCopyAndAndRange() {
+    try (ArrowBuf src = randomBits(); ArrowBuf dst = allocator.buffer(BITS / 8)) {
+      for (int srcIndex = 0; srcIndex < 72; srcIndex += 3) {
+        for (int dstIndex = 0; dstIndex < 20; dstIndex++) {
+          for (int count : new int[] {0, 1, 7, 8, 9, 63, 64, 65, 130, 300}) {
+            for (boolean and : new boolean[] {false, true}) {
+              fillRandom(dst);
+              boolean[] expected = new boolean[BITS];
+              for (int i = 0; i < BITS; i++) {
+                expected[i] = BitVectorHelper.get(dst, i) == 1;
+              }
+              for (int i = 0; i < count; i++) {
+                boolean bit = BitVectorHelper.get(src, srcIndex + i) == 1;
+                expected[dstIndex + i] = and ? expected[dstIndex + i] && bit : bit;
+              }
+              if (and) {
+                ValidityBitmaps.andRange(src, srcIndex, dst, dstIndex, count);
+              } else {
+                ValidityBitmaps.copyRange(src, srcIndex, dst, dstIndex, count);
+              }
+              for (int i = 0; i < BITS; i++) {
+                Assert.assertEquals("bit " + i, expected[i], BitVectorHelper.get(dst, i) == 1);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testGathers() {
+    try (ArrowBuf src = randomBits(); ArrowBuf dst = allocator.buffer(BITS / 8)) {
+      int[] nullableIndices = new int[300];
+      int[] presentIndices = new int[300];
+      for (int i = 0; i < nullableIndices.length; i++) {
+        presentIndices[i] = random.nextInt(BITS);
+        nullableIndices[i] = random.nextInt(8) == 0 ? -1 : presentIndices[i];
+      }
+      for (int dstIndex = 0; dstIndex < 20; dstIndex++) {
+        for (int count : new int[] {0, 1, 7, 8, 9, 63, 64, 65, 130, 300}) {
+          // gather, gatherNullable, andGathered
+          for (int mode = 0; mode < 3; mode++) {
+            int[] indices = mode == 0 ? presentIndices : nullableIndices;
+            fillRandom(dst);
+            boolean[] expected = new boolean[BITS];
+            for (int i = 0; i < BITS; i++) {
+              expected[i] = BitVectorHelper.get(dst, i) == 1;
+            }
+            for (int i = 0; i < count; i++) {
+              boolean bit = indices[i] >= 0 && BitVectorHelper.get(src, indices[i]) == 1;
+              expected[dstIndex + i] = mode < 2 ? bit : expected[dstIndex + i] && (indices[i] < 0 || bit);
+            }
+            if (mode == 0) {
+              ValidityBitmaps.gather(src, indices, dst, dstIndex, count);
+            } else if (mode == 1) {
+              ValidityBitmaps.gatherNullable(src, indices, dst, dstIndex, count);
+            } else {
+              ValidityBitmaps.andGathered(src, indices, dst, dstIndex, count);
+            }
+            for (int i = 0; i < BITS; i++) {
+              Assert.assertEquals("bit " + i, expected[i], BitVectorHelper.get(dst, i) == 1);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSelectionAnd() {
+    try (ArrowBuf validity = randomBits()) {
+      for (int start = 0; start < 70; start += 5) {
+        for (int end = start; end < BITS; end += 37) {
+          SelectionBitmap selection = new SelectionBitmap(BITS);
+          selection.setRange(0, BITS);
+          selection.and(validity, start, end);
+          for (int i = 0; i < BITS; i++) {
+            boolean expected = i < start || i >= end || BitVectorHelper.get(validity, i) == 1;
+            Assert.assertEquals("bit " + i, expected, selection.get(i));
+          }
+          int clear = selection.nextClearBit(0, BITS);
+          int expectedClear = 0;
+          while (expectedClear < BITS && selection.get(expectedClear)) {
+            expectedClear++;
+          }
+          Assert.assertEquals(expectedClear, clear);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSelectionClearRange() {
+    for (int start = 0; start < 70; start += 5) {
+      for (int end = start; end < BITS; end += 37) {
+        SelectionBitmap selection = new SelectionBitmap(BITS);
+        selection.setRange(0, BITS);
+        selection.clearRange(start, end);
+        for (int i = 0; i < BITS; i++) {
+          Assert.assertEquals("bit " + i, i < start || i >= end, selection.get(i));
+        }
+        Assert.assertEquals(BITS - (end - start), selection.cardinality(0, BITS));
+      }
+    }
+  }
+
+  private ArrowBuf randomBits() {
+    ArrowBuf buffer = allocator.buffer(BITS / 8);
+    fillRandom(buffer);
+    return buffer;
+  }
+
+  private void fillRandom(ArrowBuf buffer) {
+    byte[] bytes = new byte[BITS / 8];
+    random.nextBytes(bytes);
+    buffer.setBytes(0, bytes);
+  }
+}